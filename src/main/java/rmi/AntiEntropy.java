@@ -0,0 +1,159 @@
+package rmi;
+
+import java.rmi.registry.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Anti-Entropy - Background repair of pages a replica missed
+ *
+ * Each round the barrel picks the next live peer of its shard and walks both
+ * Merkle trees (see MerkleDigests) from the root, descending only into nodes
+ * whose digests differ, so the digests exchanged grow with the divergence,
+ * not with the index. For each differing leaf the (URL, digest) lists are
+ * compared and only the pages this barrel lacks, or holds in another
+ * version, are pulled and indexed like a Downloader batch (WAL-logged).
+ *
+ * Repair is pull-only: every replica fixes itself from its peers. Pages carry
+ * no version, so of two versions of a page the one with the larger digest
+ * wins; replicas converge on the same copy even if it is not the newest crawl.
+ */
+class AntiEntropy {
+    
+    private final String barrelId;
+    private final int shard;
+    private final StorageBarrel barrel;
+    private final SegmentedIndex index;
+    private final Registry registry;
+    private final int batchPages = Config.getBarrelAntiEntropyBatchPages();
+    
+    private int nextPeer = 0;
+    
+    // Metrics (since start)
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong digestsCompared = new AtomicLong();
+    private final AtomicLong rangesRepaired = new AtomicLong();
+    private final AtomicLong pagesRepaired = new AtomicLong();
+    private volatile long lastRoundMs = 0;
+    
+    AntiEntropy(String barrelId, int shard, StorageBarrel barrel, SegmentedIndex index, Registry registry) {
+        this.barrelId = barrelId;
+        this.shard = shard;
+        this.barrel = barrel;
+        this.index = index;
+        this.registry = registry;
+    }
+    
+    /**
+     * Compare with one peer and pull the pages that differ
+     */
+    void runRound() {
+        if (!index.isReady()) {
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        List<StorageBarrelInterface> peers = new ArrayList<>();
+        try {
+            for (String name : registry.list()) {
+                if (!name.startsWith("StorageBarrel_") || name.equals("StorageBarrel_" + barrelId)) {
+                    continue;
+                }
+                try {
+                    StorageBarrelInterface peer = (StorageBarrelInterface) registry.lookup(name);
+                    if (peer.getShard() == shard) {
+                        names.add(name);
+                        peers.add(peer);
+                    }
+                } catch (Exception e) {
+                    // Stale registry entry
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Barrel " + barrelId + " anti-entropy could not list peers: " + e.getMessage());
+            return;
+        }
+        if (peers.isEmpty()) {
+            return;
+        }
+        
+        int pick = nextPeer++ % peers.size();
+        long start = System.currentTimeMillis();
+        try {
+            int repaired = repairFrom(peers.get(pick));
+            if (repaired > 0) {
+                System.out.println("Barrel " + barrelId + " anti-entropy repaired " + repaired + " pages from " +
+                                 names.get(pick) + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (Exception e) {
+            System.err.println("Barrel " + barrelId + " anti-entropy with " + names.get(pick) + " failed: " + e.getMessage());
+        }
+        rounds.incrementAndGet();
+        lastRoundMs = System.currentTimeMillis() - start;
+    }
+    
+    private int repairFrom(StorageBarrelInterface peer) throws Exception {
+        int depth = index.merkleDepth();
+        
+        // Top-down: keep only the nodes whose digests differ
+        int[] nodes = {0};
+        for (int level = 0; level <= depth && nodes.length > 0; level++) {
+            long[] mine = index.merkleNodes(level, nodes);
+            long[] theirs = peer.getMerkleNodes(depth, level, nodes);
+            digestsCompared.addAndGet(nodes.length);
+            
+            List<Integer> differing = new ArrayList<>();
+            for (int i = 0; i < nodes.length; i++) {
+                if (mine[i] != theirs[i]) {
+                    differing.add(nodes[i]);
+                }
+            }
+            if (level == depth) {
+                nodes = differing.stream().mapToInt(Integer::intValue).toArray();
+                break;
+            }
+            nodes = new int[differing.size() * 2];
+            for (int i = 0; i < differing.size(); i++) {
+                nodes[2 * i] = differing.get(i) * 2;
+                nodes[2 * i + 1] = differing.get(i) * 2 + 1;
+            }
+        }
+        
+        // Differing leaves: pull pages that are missing here or lose the digest comparison
+        int repaired = 0;
+        for (int leaf : nodes) {
+            Map<String, Long> theirs = peer.getLeafDigests(depth, leaf);
+            Map<String, Long> mine = index.leafDigests(leaf);
+            digestsCompared.addAndGet(theirs.size());
+            
+            List<String> pull = new ArrayList<>();
+            for (Map.Entry<String, Long> page : theirs.entrySet()) {
+                Long local = mine.get(page.getKey());
+                if (local == null || local < page.getValue()) {
+                    pull.add(page.getKey());
+                }
+            }
+            if (pull.isEmpty()) {
+                continue; // the peer is the one missing pages; it repairs itself
+            }
+            for (int from = 0; from < pull.size(); from += batchPages) {
+                PageBatch batch = peer.exportPages(new ArrayList<>(pull.subList(from, Math.min(pull.size(), from + batchPages))));
+                for (boolean ack : barrel.indexPages(batch)) {
+                    if (ack) repaired++;
+                }
+            }
+            rangesRepaired.incrementAndGet();
+        }
+        pagesRepaired.addAndGet(repaired);
+        return repaired;
+    }
+    
+    Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("rounds", rounds.get());
+        stats.put("digestsCompared", digestsCompared.get());
+        stats.put("rangesRepaired", rangesRepaired.get());
+        stats.put("pagesRepaired", pagesRepaired.get());
+        stats.put("lastRoundMs", lastRoundMs);
+        return stats;
+    }
+}
@@ -3,16 +3,35 @@ package rmi;
 public class BarrelStats implements java.io.Serializable {
     private static final long serialVersionUID = 1L;
     public String barrelId;
+    public int shard;
     public int indexSize;
     public double avgSearchTime;
+    public double indexingRate;
+    public long timeToReadyMs;
+    public java.util.Map<String, Integer> postingsStats;
+    public java.util.Map<String, Long> repairStats;
+    public java.util.Map<String, LatencySummary> latency;
+    public java.util.Map<String, Long> heapFootprint;
 
     public String getBarrelId() { return barrelId; }
+    public int getShard() { return shard; }
     public int getIndexSize() { return indexSize; }
     public double getAverageSearchTime() { return avgSearchTime; }
+    public double getIndexingRate() { return indexingRate; }
+    public long getTimeToReadyMs() { return timeToReadyMs; }
+    public java.util.Map<String, Integer> getPostingsStats() { return postingsStats; }
+    public java.util.Map<String, Long> getRepairStats() { return repairStats; }
+    public java.util.Map<String, LatencySummary> getLatency() { return latency; }
+    public java.util.Map<String, Long> getHeapFootprint() { return heapFootprint; }
     
     @Override
     public String toString() {
-        return "Barrel " + barrelId + ": " + indexSize + " pages indexed, avg search time: " + 
-               String.format("%.1f", avgSearchTime) + " deciseconds";
+        return "Barrel " + barrelId + " (shard " + shard + "): " + indexSize + " pages indexed, avg search time: " + 
+               String.format("%.2f", avgSearchTime) + " ms, indexing: " + 
+               String.format("%.1f", indexingRate) + " pages/sec, ready in " + timeToReadyMs + " ms" +
+               (postingsStats != null ? ", postings: " + postingsStats : "") +
+               (repairStats != null ? ", anti-entropy: " + repairStats : "") +
+               (latency != null ? ", latency: " + latency : "") +
+               (heapFootprint != null ? ", footprint (bytes): " + heapFootprint : "");
     }
 }
\ No newline at end of file
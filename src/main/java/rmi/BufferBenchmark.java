@@ -0,0 +1,154 @@
+package rmi;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.File;
+import java.lang.management.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Buffer Benchmark - GC pauses and heap usage of on-heap vs off-heap buffers
+ *
+ * Indexes synthetic pages into a SegmentedIndex in a temporary directory
+ * (buffers flushed to segments as configured, no WAL) while a second thread
+ * keeps searching, then reports GC pauses, search latency and memory use.
+ * Run each mode in its own JVM with the same heap settings, e.g.
+ *
+ *   java -Xmx1g -cp target/classes rmi.BufferBenchmark onheap 200000
+ *   java -Xmx1g -cp target/classes rmi.BufferBenchmark offheap 200000
+ */
+public class BufferBenchmark {
+    
+    private static final int VOCABULARY = 200000;
+    private static final int WORDS_PER_PAGE = 60;
+    private static final long WINDOW_MILLIS = 3_600_000; // longer than any run
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !(args[0].equals("onheap") || args[0].equals("offheap"))) {
+            System.err.println("Usage: BufferBenchmark <onheap|offheap> [pages]");
+            System.exit(1);
+        }
+        boolean offHeap = args[0].equals("offheap");
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        
+        Random random = new Random(42);
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            vocabulary[i] = Integer.toString(i * 7919, 36);
+        }
+        
+        // GC pauses as reported by the collectors (durations in ms)
+        LatencyHistogram pauses = new LatencyHistogram(WINDOW_MILLIS);
+        AtomicLong pauseCount = new AtomicLong();
+        AtomicLong pauseMillis = new AtomicLong();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (info.getGcName().contains("Concurrent")) {
+                    return; // concurrent cycles do not stop the application
+                }
+                long millis = info.getGcInfo().getDuration();
+                pauses.record(millis * 1_000_000L);
+                pauseCount.incrementAndGet();
+                pauseMillis.addAndGet(millis);
+            }, null, null);
+        }
+        
+        File directory = Files.createTempDirectory("buffer-benchmark").toFile();
+        SegmentedIndex index = new SegmentedIndex("bench", directory.getPath(), false, false, offHeap);
+        index.open();
+        
+        // Searches running alongside ingestion
+        LatencyHistogram searches = new LatencyHistogram(WINDOW_MILLIS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread searcher = new Thread(() -> {
+            Random queries = new Random(7);
+            while (running.get()) {
+                List<String> terms = List.of(vocabulary[zipf(queries)], vocabulary[zipf(queries)]);
+                long start = System.nanoTime();
+                QueryExecutor.conjunction(index.view(), terms);
+                searches.recordSince(start);
+            }
+        }, "Benchmark-Search");
+        searcher.setDaemon(true);
+        searcher.start();
+        
+        // Peak heap in use, sampled
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong();
+        Timer sampler = new Timer("Benchmark-Heap", true);
+        sampler.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+            }
+        }, 0, 50);
+        
+        long start = System.nanoTime();
+        for (int p = 0; p < pages; p++) {
+            Set<String> words = new HashSet<>();
+            for (int w = 0; w < WORDS_PER_PAGE; w++) {
+                words.add(vocabulary[zipf(random)]);
+            }
+            Set<String> links = new HashSet<>();
+            for (int l = 0; l < 10; l++) {
+                links.add("http://site" + random.nextInt(1000) + ".pt/page/" + random.nextInt(pages));
+            }
+            String url = "http://site" + (p % 1000) + ".pt/page/" + p;
+            index.index(url, "Page " + p + " about " + vocabulary[zipf(random)],
+                        "Citation of page " + p + " with some words: " + String.join(" ", words).substring(0, 80),
+                        words, links);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        running.set(false);
+        searcher.join();
+        sampler.cancel();
+        
+        // Live heap: what remains after a full collection, with the last buffer still unflushed
+        System.gc();
+        long liveHeap = memory.getHeapMemoryUsage().getUsed();
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                direct = pool.getMemoryUsed();
+            }
+        }
+        Map<String, Long> footprint = index.heapFootprint();
+        
+        LatencySummary pause = pauses.summary();
+        LatencySummary search = searches.summary();
+        System.out.println();
+        System.out.println("Mode:            " + (offHeap ? "off-heap" : "on-heap") + " buffers, " + pages + " pages (" +
+                           Config.getBarrelSegmentBufferDocs() + " per buffer), max heap " + mb(memory.getHeapMemoryUsage().getMax()));
+        System.out.println(String.format("Ingestion:       %.1f s (%.0f pages/sec)", seconds, pages / seconds));
+        System.out.println(String.format("GC pauses:       %d, %d ms total, p50 %.0f / p99 %.0f / max %.0f ms",
+                           pauseCount.get(), pauseMillis.get(), pause.p50Ms, pause.p99Ms, pause.maxMs));
+        System.out.println("Search latency:  " + search);
+        System.out.println("Peak heap used:  " + mb(peakHeap.get()));
+        System.out.println("Live heap:       " + mb(liveHeap) + " (buffers ~" + mb(footprint.get("buffers")) + ")");
+        System.out.println("Direct memory:   " + mb(direct) + " (buffer arenas " + mb(footprint.get("buffersOffHeap")) + ")");
+        
+        index.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        System.exit(0);
+    }
+    
+    // Word rank with a roughly Zipfian distribution
+    private static int zipf(Random random) {
+        return (int) Math.min(VOCABULARY - 1, Math.exp(random.nextDouble() * Math.log(VOCABULARY)) - 1);
+    }
+    
+    private static String mb(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -169,7 +169,8 @@ public class Client {
         boolean viewingResults = true;
         
         while (viewingResults) {
-            List<SearchResult> results = gateway.searchPaginated(query, currentPage, pageSize);
+            SearchPage resultPage = gateway.searchPaginated(query, currentPage, pageSize);
+            List<SearchResult> results = resultPage.results;
             
             if (results.isEmpty() && currentPage == 0) {
                 System.out.println("No results found for \"" + query + "\"");
@@ -188,7 +189,7 @@ public class Client {
             
             System.out.println("\n" + "=".repeat(80));
             System.out.println("Search Results - Page " + (currentPage + 1) + 
-                             " (showing " + results.size() + " results)");
+                             " (showing " + results.size() + " of " + resultPage.totalHits + " results)");
             System.out.println("=".repeat(80));
             
             for (int i = 0; i < results.size(); i++) {
@@ -341,17 +342,35 @@ public class Client {
             System.out.println("║     No active barrels" + " ".repeat(53) + "║");
         } else {
             for (BarrelStats bs : stats.barrelStats) {
-                String line = String.format("   Barrel %s: %,6d pages | Avg search: %.1f deciseconds", 
+                String line = String.format("   Barrel %s: %,6d pages | %.1f pages/s | ready %d ms", 
                                            bs.barrelId, 
                                            bs.indexSize, 
-                                           bs.avgSearchTime);
+                                           bs.indexingRate,
+                                           bs.timeToReadyMs);
                 System.out.println("║" + padRight(line, 78) + "║");
+                LatencySummary search = bs.latency != null ? bs.latency.get("search") : null;
+                if (search != null) {
+                    System.out.println("║" + padRight(formatLatency("     search", search), 78) + "║");
+                }
+            }
+        }
+        
+        // Gateway latency (end-to-end, as seen by clients)
+        if (stats.gatewayLatency != null) {
+            System.out.println("╠" + "─".repeat(78) + "╣");
+            for (Map.Entry<String, LatencySummary> entry : stats.gatewayLatency.entrySet()) {
+                System.out.println("║" + padRight(formatLatency("   Gateway " + entry.getKey(), entry.getValue()), 78) + "║");
             }
         }
         
         System.out.println("╚" + "═".repeat(78) + "╝");
     }
     
+    private String formatLatency(String label, LatencySummary latency) {
+        return String.format("%s: p50 %.2f | p95 %.2f | p99 %.2f | max %.2f ms (%d)", 
+                             label, latency.p50Ms, latency.p95Ms, latency.p99Ms, latency.maxMs, latency.count);
+    }
+    
     private String centerText(String text, int width) {
         int padding = (width - text.length()) / 2;
         return " ".repeat(padding) + text + " ".repeat(width - padding - text.length());
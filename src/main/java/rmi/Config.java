@@ -59,6 +59,11 @@ public class Config {
         props.setProperty("downloader.sleep.no.urls.ms", "2000");
         props.setProperty("downloader.jsoup.timeout.ms", "5000");
         props.setProperty("downloader.user.agent", "Mozilla/5.0 (Googol Bot)");
+        props.setProperty("downloader.batch.size", "10");
+        props.setProperty("downloader.batch.window.ms", "2000");
+        props.setProperty("downloader.barrel.refresh.ms", "10000");
+        props.setProperty("downloader.prefetch.urls", "10");
+        props.setProperty("downloader.lease.ms", "60000");
         props.setProperty("search.page.size", "10");
         props.setProperty("search.min.word.length", "3");
         props.setProperty("gateway.barrel.selection", "round-robin");
@@ -68,7 +73,32 @@ public class Config {
         props.setProperty("barrel.persistence.directory", "data");
         props.setProperty("barrel.persistence.autosave.interval.ms", "30000");
         props.setProperty("barrel.sync.timeout.ms", "5000");
+        props.setProperty("barrel.wal.enabled", "true");
+        props.setProperty("barrel.wal.sync", "true");
+        props.setProperty("barrel.segment.buffer.docs", "5000");
+        props.setProperty("barrel.segment.merge.factor", "10");
+        props.setProperty("barrel.segment.max.mb", "1024");
+        props.setProperty("barrel.buffer.offheap", "false");
+        props.setProperty("barrel.throughput.mode", "false");
+        props.setProperty("barrel.throughput.interval.ms", "5000");
+        props.setProperty("barrel.shards", "1");
+        props.setProperty("barrel.shard.replicas", "1");
+        props.setProperty("barrel.bootstrap.enabled", "true");
+        props.setProperty("barrel.bootstrap.min.lag", "1000");
+        props.setProperty("barrel.bootstrap.chunk.kb", "1024");
+        props.setProperty("barrel.bootstrap.session.timeout.ms", "60000");
+        props.setProperty("barrel.antientropy.interval.ms", "60000");
+        props.setProperty("barrel.antientropy.depth", "12");
+        props.setProperty("barrel.antientropy.batch.pages", "200");
         props.setProperty("queue.bloom.filter.enabled", "false");
+        props.setProperty("queue.bloom.filter.size", "10000");
+        props.setProperty("queue.bloom.filter.fpr", "0.001");
+        props.setProperty("queue.host.crawl.delay.ms", "1000");
+        props.setProperty("queue.frontier.memory.urls", "100000");
+        props.setProperty("queue.frontier.host.urls", "1000");
+        props.setProperty("queue.frontier.segment.mb", "64");
+        props.setProperty("queue.lease.max.deliveries", "5");
+        props.setProperty("metrics.latency.window.ms", "60000");
         props.setProperty("logging.level", "INFO");
     }
     
@@ -102,6 +132,26 @@ public class Config {
         return props.getProperty("downloader.user.agent", "Mozilla/5.0 (Googol Bot)");
     }
     
+    public static int getDownloaderBatchSize() {
+        return Integer.parseInt(props.getProperty("downloader.batch.size", "10"));
+    }
+    
+    public static int getDownloaderBatchWindow() {
+        return Integer.parseInt(props.getProperty("downloader.batch.window.ms", "2000"));
+    }
+    
+    public static int getDownloaderBarrelRefresh() {
+        return Integer.parseInt(props.getProperty("downloader.barrel.refresh.ms", "10000"));
+    }
+    
+    public static int getDownloaderPrefetchUrls() {
+        return Integer.parseInt(props.getProperty("downloader.prefetch.urls", "10"));
+    }
+    
+    public static long getDownloaderLease() {
+        return Long.parseLong(props.getProperty("downloader.lease.ms", "60000"));
+    }
+    
     // Search Configuration
     public static int getSearchPageSize() {
         return Integer.parseInt(props.getProperty("search.page.size", "10"));
@@ -141,6 +191,74 @@ public class Config {
         return Integer.parseInt(props.getProperty("barrel.sync.timeout.ms", "5000"));
     }
     
+    public static boolean getBarrelWalEnabled() {
+        return Boolean.parseBoolean(props.getProperty("barrel.wal.enabled", "true"));
+    }
+    
+    public static boolean getBarrelWalSync() {
+        return Boolean.parseBoolean(props.getProperty("barrel.wal.sync", "true"));
+    }
+    
+    public static int getBarrelSegmentBufferDocs() {
+        return Integer.parseInt(props.getProperty("barrel.segment.buffer.docs", "5000"));
+    }
+    
+    public static int getBarrelSegmentMergeFactor() {
+        return Integer.parseInt(props.getProperty("barrel.segment.merge.factor", "10"));
+    }
+    
+    public static int getBarrelSegmentMaxMB() {
+        return Integer.parseInt(props.getProperty("barrel.segment.max.mb", "1024"));
+    }
+    
+    public static boolean getBarrelBufferOffHeap() {
+        return Boolean.parseBoolean(props.getProperty("barrel.buffer.offheap", "false"));
+    }
+    
+    public static boolean getBarrelThroughputMode() {
+        return Boolean.parseBoolean(props.getProperty("barrel.throughput.mode", "false"));
+    }
+    
+    public static int getBarrelThroughputInterval() {
+        return Integer.parseInt(props.getProperty("barrel.throughput.interval.ms", "5000"));
+    }
+    
+    public static int getBarrelShards() {
+        return Integer.parseInt(props.getProperty("barrel.shards", "1"));
+    }
+    
+    public static int getBarrelShardReplicas() {
+        return Integer.parseInt(props.getProperty("barrel.shard.replicas", "1"));
+    }
+    
+    public static boolean getBarrelBootstrapEnabled() {
+        return Boolean.parseBoolean(props.getProperty("barrel.bootstrap.enabled", "true"));
+    }
+    
+    public static int getBarrelBootstrapMinLag() {
+        return Integer.parseInt(props.getProperty("barrel.bootstrap.min.lag", "1000"));
+    }
+    
+    public static int getBarrelBootstrapChunkKB() {
+        return Integer.parseInt(props.getProperty("barrel.bootstrap.chunk.kb", "1024"));
+    }
+    
+    public static int getBarrelBootstrapSessionTimeout() {
+        return Integer.parseInt(props.getProperty("barrel.bootstrap.session.timeout.ms", "60000"));
+    }
+    
+    public static int getBarrelAntiEntropyInterval() {
+        return Integer.parseInt(props.getProperty("barrel.antientropy.interval.ms", "60000"));
+    }
+    
+    public static int getBarrelAntiEntropyDepth() {
+        return Integer.parseInt(props.getProperty("barrel.antientropy.depth", "12"));
+    }
+    
+    public static int getBarrelAntiEntropyBatchPages() {
+        return Integer.parseInt(props.getProperty("barrel.antientropy.batch.pages", "200"));
+    }
+    
     // Queue Configuration
     public static boolean getQueueBloomFilterEnabled() {
         return Boolean.parseBoolean(props.getProperty("queue.bloom.filter.enabled", "false"));
@@ -150,6 +268,35 @@ public class Config {
         return Integer.parseInt(props.getProperty("queue.bloom.filter.size", "10000"));
     }
     
+    public static double getQueueBloomFilterFpr() {
+        return Double.parseDouble(props.getProperty("queue.bloom.filter.fpr", "0.001"));
+    }
+    
+    public static long getQueueHostCrawlDelay() {
+        return Long.parseLong(props.getProperty("queue.host.crawl.delay.ms", "1000"));
+    }
+    
+    public static int getQueueFrontierMemoryUrls() {
+        return Integer.parseInt(props.getProperty("queue.frontier.memory.urls", "100000"));
+    }
+    
+    public static int getQueueFrontierHostUrls() {
+        return Integer.parseInt(props.getProperty("queue.frontier.host.urls", "1000"));
+    }
+    
+    public static int getQueueFrontierSegmentMb() {
+        return Integer.parseInt(props.getProperty("queue.frontier.segment.mb", "64"));
+    }
+    
+    public static int getQueueLeaseMaxDeliveries() {
+        return Integer.parseInt(props.getProperty("queue.lease.max.deliveries", "5"));
+    }
+    
+    // Metrics Configuration
+    public static long getMetricsLatencyWindow() {
+        return Long.parseLong(props.getProperty("metrics.latency.window.ms", "60000"));
+    }
+    
     public static String getLoggingLevel() {
         return props.getProperty("logging.level", "INFO");
     }
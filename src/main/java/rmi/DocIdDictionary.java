@@ -0,0 +1,325 @@
+package rmi;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Document ID Dictionary - Maps each indexed URL to a dense integer ID (and back)
+ * Postings lists store these IDs instead of full URL strings
+ *
+ * IDs are assigned in increasing order, so appending a new page always
+ * produces the largest ID seen so far (keeps postings lists sorted)
+ *
+ * A dictionary loaded with mapFile() resolves ID -> URL straight from the
+ * memory-mapped file; the URL -> ID map is only built by indexMapped(),
+ * which a barrel runs in the background after it starts serving queries.
+ *
+ * No URL is held as a String: newer URLs live host-compressed in a UrlStore,
+ * older ones only in the mapped file, and URL -> ID is an open-addressing
+ * table of IDs whose probes compare a stored hash, then the URL bytes.
+ * Lookups are lock-free; assigning an ID is synchronized.
+ */
+class DocIdDictionary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // URL -> doc ID: slots hold doc ID + 1 (0 = free), linear probing
+    private transient volatile AtomicIntegerArray table;
+    private transient int entries;
+
+    // Per doc ID, in fixed-size chunks: URL hash, and UrlStore position (IDs >= mappedSize)
+    private transient volatile int[][] hashes;
+    private transient volatile int[][] positions;
+    private transient UrlStore store;
+    private transient volatile int size;
+
+    // Memory-mapped URL list and the offset of each entry in it
+    private transient MappedByteBuffer mapped;
+    private transient int[] mappedOffsets;
+    private transient int mappedSize;
+
+    public DocIdDictionary() {
+        init();
+    }
+
+    private void init() {
+        table = new AtomicIntegerArray(1024);
+        entries = 0;
+        hashes = new int[0][];
+        positions = new int[0][];
+        store = new UrlStore();
+        size = 0;
+        mapped = null;
+        mappedOffsets = null;
+        mappedSize = 0;
+    }
+
+    /**
+     * Get the ID of a URL, assigning a new one if the URL is unknown
+     */
+    public int getOrAssign(String url) {
+        byte[] key = url.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int id = find(key, hash);
+        if (id >= 0) {
+            return id;
+        }
+        synchronized (this) {
+            id = find(key, hash);
+            if (id >= 0) {
+                return id;
+            }
+            int newId = size;
+            ensureCapacity(newId);
+            positions[newId >>> CHUNK_BITS][newId & CHUNK_MASK] = store.add(url);
+            hashes[newId >>> CHUNK_BITS][newId & CHUNK_MASK] = hash;
+            size = newId + 1;
+            insert(newId, hash);
+            return newId;
+        }
+    }
+
+    /**
+     * Get the ID of a URL, or -1 if it was never indexed
+     */
+    public int getId(String url) {
+        byte[] key = url.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int id = find(key, hash);
+        if (id < 0) {
+            // The table may have been replaced by a resize while probing
+            synchronized (this) {
+                id = find(key, hash);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Get the URL for a doc ID
+     */
+    public String getUrl(int id) {
+        if (id < 0 || id >= size) {
+            return null;
+        }
+        if (id < mappedSize) {
+            return readMapped(id);
+        }
+        return store.get(positions[id >>> CHUNK_BITS][id & CHUNK_MASK]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Map a URL list written as [int length][UTF-8 bytes] entries
+     * Only the entry offsets are read now; a torn last entry is ignored.
+     * Must be called on an empty dictionary.
+     * @return length in bytes of the complete entries
+     */
+    public synchronized long mapFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("URL list larger than 2 GB: " + file.getName());
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int[] offsets = new int[1024];
+            int count = 0;
+            int pos = 0;
+            int limit = buf.capacity();
+            while (pos + 4 <= limit) {
+                int len = buf.getInt(pos);
+                if (len < 0 || pos + 4 + len > limit) {
+                    break;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = pos;
+                pos += 4 + len;
+            }
+            mapped = buf;
+            mappedOffsets = Arrays.copyOf(offsets, count);
+            mappedSize = count;
+            size = count;
+            return pos;
+        }
+    }
+
+    public synchronized void clear() {
+        init();
+    }
+
+    /**
+     * Build the URL -> ID map for the mapped entries (hashes the mapped
+     * bytes, no String is created)
+     * Until this returns, getId() and getOrAssign() do not know mapped URLs
+     */
+    public synchronized void indexMapped() {
+        for (int id = 0; id < mappedSize; id++) {
+            int pos = mappedOffsets[id];
+            int hash = hash(mapped, pos + 4, mapped.getInt(pos));
+            ensureCapacity(id);
+            hashes[id >>> CHUNK_BITS][id & CHUNK_MASK] = hash;
+            insert(id, hash);
+        }
+    }
+
+    /**
+     * Heap bytes of the ID table, per-ID arrays and URL store
+     */
+    public synchronized long heapBytes() {
+        long total = 4L * table.length() + store.heapBytes();
+        for (int[] chunk : hashes) {
+            total += chunk != null ? 4L * chunk.length : 0;
+        }
+        for (int[] chunk : positions) {
+            total += chunk != null ? 4L * chunk.length : 0;
+        }
+        return total + (mappedOffsets != null ? 4L * mappedOffsets.length : 0);
+    }
+
+    /**
+     * Bytes of the memory-mapped URL list (outside the heap)
+     */
+    public synchronized long mappedBytes() {
+        return mapped != null ? mapped.capacity() : 0;
+    }
+
+    private int find(byte[] key, int hash) {
+        AtomicIntegerArray t = table;
+        int mask = t.length() - 1;
+        for (int i = slot(hash, mask); ; i = (i + 1) & mask) {
+            int value = t.get(i);
+            if (value == 0) {
+                return -1;
+            }
+            int id = value - 1;
+            if (hashes[id >>> CHUNK_BITS][id & CHUNK_MASK] == hash && matches(id, key)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Add an ID to the table, doubling it at 3/4 load (caller holds the lock)
+     */
+    private void insert(int id, int hash) {
+        AtomicIntegerArray t = table;
+        if ((entries + 1) * 4L > t.length() * 3L) {
+            AtomicIntegerArray grown = new AtomicIntegerArray(t.length() * 2);
+            for (int i = 0; i < t.length(); i++) {
+                int value = t.get(i);
+                if (value != 0) {
+                    int old = value - 1;
+                    put(grown, old, hashes[old >>> CHUNK_BITS][old & CHUNK_MASK]);
+                }
+            }
+            table = grown;
+            t = grown;
+        }
+        put(t, id, hash);
+        entries++;
+    }
+
+    private static void put(AtomicIntegerArray t, int id, int hash) {
+        int mask = t.length() - 1;
+        int i = slot(hash, mask);
+        while (t.get(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        t.set(i, id + 1);
+    }
+
+    private static int slot(int hash, int mask) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private boolean matches(int id, byte[] key) {
+        if (id >= mappedSize) {
+            return store.matches(positions[id >>> CHUNK_BITS][id & CHUNK_MASK], key);
+        }
+        int pos = mappedOffsets[id];
+        int len = mapped.getInt(pos);
+        if (len != key.length) {
+            return false;
+        }
+        for (int k = 0; k < len; k++) {
+            if (mapped.get(pos + 4 + k) != key[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allocate the per-ID chunks up to id (caller holds the lock); mapped
+     * IDs get no position chunk, their URL is in the file
+     */
+    private void ensureCapacity(int id) {
+        int c = id >>> CHUNK_BITS;
+        if (c < hashes.length) {
+            return;
+        }
+        int[][] grownHashes = Arrays.copyOf(hashes, c + 1);
+        int[][] grownPositions = Arrays.copyOf(positions, c + 1);
+        for (int i = hashes.length; i <= c; i++) {
+            grownHashes[i] = new int[CHUNK_SIZE];
+            grownPositions[i] = (i + 1) * CHUNK_SIZE > mappedSize ? new int[CHUNK_SIZE] : null;
+        }
+        positions = grownPositions;
+        hashes = grownHashes;
+    }
+
+    /**
+     * 32-bit FNV-1a
+     */
+    private static int hash(byte[] bytes) {
+        int h = 0x811c9dc5;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    private static int hash(MappedByteBuffer buf, int pos, int len) {
+        int h = 0x811c9dc5;
+        for (int k = 0; k < len; k++) {
+            h = (h ^ (buf.get(pos + k) & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    private String readMapped(int id) {
+        int pos = mappedOffsets[id];
+        byte[] bytes = new byte[mapped.getInt(pos)];
+        mapped.get(pos + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        String[] all = new String[size];
+        for (int id = 0; id < size; id++) {
+            all[id] = getUrl(id);
+        }
+        out.writeObject(all);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        String[] loaded = (String[]) in.readObject();
+        init();
+        for (String url : loaded) {
+            getOrAssign(url);
+        }
+    }
+}
@@ -17,25 +17,61 @@ import java.io.IOException;
  * - Reliable multicast with acknowledgment from all barrels
  * - Configurable retry logic
  * - Ensures only one downloader processes each URL
+ * - URLs leased from the queue in batches and acknowledged once indexed, so
+ *   pages of a crashed downloader are crawled again by another one
+ * - Pages are sent to barrels in batches (by count or time window)
+ * - Sharded mode: each page goes to the barrels of its shard, and each link
+ *   to the shard owning its target (complete in-link counts per shard)
+ * - Barrel list refreshed periodically, so barrels that join later get pages
  */
 public class Downloader implements Runnable {
     
     private final String downloaderId;
     private URLQueueInterface urlQueue;
     private List<StorageBarrelInterface> barrels;
+    private ShardRouter router = new ShardRouter(Config.getBarrelShards());
+    private Registry registry;
+    private Set<String> barrelNames = new HashSet<>();
+    private long barrelsUpdatedAt = 0;
     private volatile boolean running = true;
     
+    // Pages waiting to be multicast to the barrels
+    private PageBatch pendingBatch = new PageBatch();
+    private final int batchSize = Config.getDownloaderBatchSize();
+    private final long batchWindow = Config.getDownloaderBatchWindow();
+    
+    // Leased URLs not processed yet, and processed ones to settle at the next flush
+    private final Deque<String> leased = new ArrayDeque<>();
+    private final Map<String, Long> leaseStamps = new HashMap<>(); // until settled: a NACK names its lease
+    private final List<String> toAck = new ArrayList<>();
+    private final List<String> toNack = new ArrayList<>();
+    private final int prefetch = Config.getDownloaderPrefetchUrls();
+    private final long leaseMillis = leaseFor(prefetch);
+    
     public Downloader(String downloaderId) {
         this.downloaderId = downloaderId;
         this.barrels = new ArrayList<>();
     }
     
+    /**
+     * Lease long enough for the last URL of a prefetch: every page before it
+     * may take the whole fetch timeout, then it waits for its batch and the
+     * multicast retries. Doubled for the queue calls around each fetch; the
+     * configured lease is a floor.
+     */
+    static long leaseFor(int prefetch) {
+        long worstCase = (long) prefetch * Config.getDownloaderJsoupTimeout()
+                       + Config.getDownloaderBatchWindow()
+                       + (long) Config.getDownloaderRetryCount() * Config.getDownloaderRetryDelay();
+        return Math.max(Config.getDownloaderLease(), 2 * worstCase);
+    }
+    
     /**
      * Connect to RMI registry and get remote references
      */
     public void connectToServices() {
         try {
-            Registry registry = LocateRegistry.getRegistry(Config.getRMIHost(), Config.getRMIPort());
+            registry = LocateRegistry.getRegistry(Config.getRMIHost(), Config.getRMIPort());
             
             // Get URL Queue
             urlQueue = (URLQueueInterface) registry.lookup("URLQueue");
@@ -54,20 +90,43 @@ public class Downloader implements Runnable {
      * Update list of available barrels
      */
     private void updateBarrelList(Registry registry) {
+        barrelsUpdatedAt = System.currentTimeMillis();
         try {
-            barrels.clear();
+            List<StorageBarrelInterface> found = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            ShardRouter shards = new ShardRouter(Config.getBarrelShards());
             String[] boundNames = registry.list();
             for (String name : boundNames) {
                 if (name.startsWith("StorageBarrel_")) {
-                    StorageBarrelInterface barrel = (StorageBarrelInterface) registry.lookup(name);
-                    barrels.add(barrel);
-                    System.out.println("Downloader " + downloaderId + " connected to " + name);
+                    try {
+                        StorageBarrelInterface barrel = (StorageBarrelInterface) registry.lookup(name);
+                        int shard = barrel.getShard();
+                        found.add(barrel);
+                        names.add(name);
+                        shards.add(shard, barrel);
+                        if (!barrelNames.contains(name)) {
+                            System.out.println("Downloader " + downloaderId + " connected to " + name +
+                                             (shards.isSharded() ? " (shard " + shard + ")" : ""));
+                        }
+                    } catch (Exception e) {
+                        // Stale registry entry of a barrel that is down
+                        System.err.println("Downloader " + downloaderId + " could not reach " + name + ": " + e.getMessage());
+                    }
                 }
             }
+            barrels = found;
+            barrelNames = names;
+            router = shards;
             
             if (barrels.isEmpty()) {
                 System.err.println("WARNING: Downloader " + downloaderId + " - No Storage Barrels found!");
             }
+            if (shards.isSharded()) {
+                Map<Integer, Integer> missing = shards.underReplicated(Config.getBarrelShardReplicas());
+                if (!missing.isEmpty()) {
+                    System.err.println("WARNING: Downloader " + downloaderId + " - under-replicated shards (shard=live barrels): " + missing);
+                }
+            }
         } catch (Exception e) {
             System.err.println("Error updating barrel list: " + e.getMessage());
         }
@@ -75,15 +134,23 @@ public class Downloader implements Runnable {
     
     @Override
     public void run() {
-        System.out.println("Downloader " + downloaderId + " started");
+        System.out.println("Downloader " + downloaderId + " started (leases of " + leaseMillis + " ms)");
         
         while (running) {
             try {
-                // Get next URL from queue (only one downloader gets each URL)
-                String url = urlQueue.getNextURL();
+                // Lease the next URLs from the queue (only one downloader holds each URL)
+                if (leased.isEmpty()) {
+                    URLLease lease = urlQueue.getNextURLs(prefetch, leaseMillis);
+                    for (String leasedUrl : lease.urls) {
+                        leaseStamps.put(leasedUrl, lease.stamp);
+                    }
+                    leased.addAll(lease.urls);
+                }
+                String url = leased.poll();
                 
                 if (url == null) {
-                    // No URLs available, wait a bit
+                    // No URLs available: don't keep pages waiting, then wait a bit
+                    flushBatch();
                     Thread.sleep(Config.getDownloaderSleepNoURLs());
                     continue;
                 }
@@ -91,6 +158,10 @@ public class Downloader implements Runnable {
                 // Download and process the page
                 processPage(url);
                 
+                if (pendingBatch.size() >= batchSize || pendingBatch.getAgeMillis() >= batchWindow) {
+                    flushBatch();
+                }
+                
             } catch (RemoteException e) {
                 System.err.println("Downloader " + downloaderId + " RMI error: " + e.getMessage());
                 try {
@@ -106,6 +177,10 @@ public class Downloader implements Runnable {
             }
         }
         
+        flushBatch();
+        toNack.addAll(leased); // let other downloaders have them now
+        leased.clear();
+        settleLeases();
         System.out.println("Downloader " + downloaderId + " stopped");
     }
     
@@ -158,20 +233,21 @@ public class Downloader implements Runnable {
                 urlQueue.addURLs(new ArrayList<>(links));
             }
             
-            // Send indexed data to all Storage Barrels (reliable multicast with ACK)
-            boolean success = reliableMulticastToBarrels(url, title, citation, words, links);
-            
-            if (success) {
-                System.out.println("Downloader " + downloaderId + " finished: " + url + 
-                                 " (" + words.size() + " words, " + links.size() + " links)");
-            } else {
-                System.err.println("Downloader " + downloaderId + " FAILED to index: " + url);
-            }
+            // Queue indexed data for the next multicast to all Storage Barrels
+            pendingBatch.add(url, title, citation, words, links);
+            System.out.println("Downloader " + downloaderId + " processed: " + url + 
+                             " (" + words.size() + " words, " + links.size() + " links)");
             
+        } catch (RemoteException e) {
+            // The queue failed, not the page: crawl it again
+            System.err.println("Downloader " + downloaderId + " could not queue links of " + url + ": " + e.getMessage());
+            toNack.add(url);
         } catch (IOException e) {
             System.err.println("Downloader " + downloaderId + " failed to download " + url + ": " + e.getMessage());
+            toAck.add(url); // not retried, like any visited URL
         } catch (Exception e) {
             System.err.println("Downloader " + downloaderId + " error processing " + url + ": " + e.getMessage());
+            toNack.add(url);
         }
     }
     
@@ -191,16 +267,135 @@ public class Downloader implements Runnable {
         return words;
     }
     
+    /**
+     * Send the pending batch to the barrels and start a new one, then
+     * ACK the leases of indexed pages and NACK the others (crawled again)
+     */
+    private void flushBatch() {
+        if (pendingBatch.isEmpty()) {
+            settleLeases();
+            return;
+        }
+        PageBatch batch = pendingBatch;
+        pendingBatch = new PageBatch();
+        
+        // A joining barrel replays its peer's writes until every Downloader has picked it up here
+        if (registry != null && System.currentTimeMillis() - barrelsUpdatedAt >= Config.getDownloaderBarrelRefresh()) {
+            updateBarrelList(registry);
+        }
+        
+        boolean[] indexed = router.isSharded() ? multicastToShards(batch) : reliableMulticastToBarrels(batch, barrels);
+        for (int i = 0; i < batch.size(); i++) {
+            if (indexed[i]) {
+                System.out.println("Downloader " + downloaderId + " finished: " + batch.getUrl(i));
+                toAck.add(batch.getUrl(i));
+            } else {
+                System.err.println("Downloader " + downloaderId + " FAILED to index: " + batch.getUrl(i));
+                toNack.add(batch.getUrl(i));
+            }
+        }
+        settleLeases();
+    }
+    
+    /**
+     * One ACK and one NACK call for everything settled since the last flush
+     * If the queue can't be reached the leases expire and the URLs are redelivered
+     */
+    private void settleLeases() {
+        if (urlQueue == null || (toAck.isEmpty() && toNack.isEmpty())) {
+            return;
+        }
+        try {
+            if (!toAck.isEmpty()) {
+                urlQueue.ack(new ArrayList<>(toAck));
+            }
+            Map<Long, List<String>> nacks = new HashMap<>();
+            for (String url : toNack) {
+                nacks.computeIfAbsent(leaseStamps.get(url), stamp -> new ArrayList<>()).add(url);
+            }
+            for (Map.Entry<Long, List<String>> lease : nacks.entrySet()) {
+                urlQueue.nack(lease.getValue(), lease.getKey());
+            }
+        } catch (RemoteException e) {
+            System.err.println("Downloader " + downloaderId + " could not settle " + (toAck.size() + toNack.size()) +
+                             " leases (redelivered when they expire): " + e.getMessage());
+        }
+        for (String url : toAck) {
+            leaseStamps.remove(url);
+        }
+        for (String url : toNack) {
+            leaseStamps.remove(url);
+        }
+        toAck.clear();
+        toNack.clear();
+    }
+    
+    /**
+     * Sharded mode: split the batch per shard and multicast each part to that
+     * shard's replicas. A shard's part holds the pages it owns (with their
+     * links into the shard) plus link-only entries for other pages linking
+     * into it, so every link is stored where its target lives.
+     * 
+     * @return for each page in the batch, whether a barrel of its shard indexed it
+     */
+    private boolean[] multicastToShards(PageBatch batch) {
+        boolean[] indexed = new boolean[batch.size()];
+        ShardRouter shards = router;
+        
+        for (int shard = 0; shard < shards.getShardCount(); shard++) {
+            PageBatch part = new PageBatch();
+            List<Integer> owned = new ArrayList<>(); // batch position, or -1 for link-only entries
+            for (int i = 0; i < batch.size(); i++) {
+                Set<String> links = new HashSet<>();
+                for (String link : batch.getLinks(i)) {
+                    if (shards.shardOf(link) == shard) {
+                        links.add(link);
+                    }
+                }
+                if (shards.shardOf(batch.getUrl(i)) == shard) {
+                    part.add(batch.getUrl(i), batch.getTitle(i), batch.getCitation(i), batch.getWords(i), links);
+                    owned.add(i);
+                } else if (!links.isEmpty()) {
+                    part.addLinks(batch.getUrl(i), links);
+                    owned.add(-1);
+                }
+            }
+            if (part.isEmpty()) {
+                continue;
+            }
+            
+            List<StorageBarrelInterface> replicas = shards.getReplicas(shard);
+            if (replicas.isEmpty()) {
+                System.err.println("No barrels available for shard " + shard + ", " + part.size() + " entries not indexed");
+                continue;
+            }
+            boolean[] acks = reliableMulticastToBarrels(part, replicas);
+            for (int j = 0; j < acks.length; j++) {
+                if (acks[j] && owned.get(j) >= 0) {
+                    indexed[owned.get(j)] = true;
+                }
+            }
+        }
+        return indexed;
+    }
+    
     /**
      * Reliable Multicast: Send to ALL barrels with acknowledgment
      * Ensures all barrels receive the same information (consistency)
      * Uses retry logic for fault tolerance
+     * 
+     * Pages travel in batches (one RMI call per barrel per batch); barrels
+     * ACK each page, and retries only resend the pages a barrel NACKed
+     * 
+     * @param barrels all barrels, or the replicas of one shard
+     * @return for each page in the batch, whether at least one barrel indexed it
      */
-    private boolean reliableMulticastToBarrels(String url, String title, String citation, 
-                                               Set<String> words, Set<String> links) {
+    private boolean[] reliableMulticastToBarrels(PageBatch batch, List<StorageBarrelInterface> barrels) {
+        boolean[] indexed = new boolean[batch.size()];
+        
         if (barrels.isEmpty()) {
             System.err.println("No barrels available for multicast");
-            return false;
+            return indexed;
         }
         
         int retryCount = Config.getDownloaderRetryCount();
@@ -210,12 +405,22 @@ public class Downloader implements Runnable {
         Set<StorageBarrelInterface> acknowledgedBarrels = new HashSet<>();
         Set<StorageBarrelInterface> failedBarrels = new HashSet<>();
         
+        // Pages (positions in the batch) each barrel has yet to acknowledge
+        int[] allPositions = new int[batch.size()];
+        for (int i = 0; i < allPositions.length; i++) {
+            allPositions[i] = i;
+        }
+        Map<StorageBarrelInterface, int[]> pending = new HashMap<>();
+        for (StorageBarrelInterface barrel : barrels) {
+            pending.put(barrel, allPositions);
+        }
+        
         // Try to send to all barrels
         for (int attempt = 0; attempt <= retryCount; attempt++) {
             if (acknowledgedBarrels.size() == barrels.size()) {
                 // All barrels acknowledged - success!
-                System.out.println("All " + barrels.size() + " barrels acknowledged indexing of " + url);
-                return true;
+                System.out.println("All " + barrels.size() + " barrels acknowledged batch of " + batch.size() + " pages");
+                return indexed;
             }
             
             if (attempt > 0) {
@@ -223,7 +428,7 @@ public class Downloader implements Runnable {
                 try {
                     Thread.sleep(retryDelay);
                 } catch (InterruptedException e) {
-                    return false;
+                    return indexed;
                 }
             }
             
@@ -233,13 +438,27 @@ public class Downloader implements Runnable {
                     continue; // Already done or permanently failed
                 }
                 
+                int[] positions = pending.get(barrel);
+                PageBatch toSend = positions.length == batch.size() ? batch : batch.subset(positions);
+                
                 try {
-                    boolean ack = barrel.indexPage(url, title, citation, words, links);
-                    if (ack) {
+                    boolean[] acks = barrel.indexPages(toSend);
+                    int[] remaining = new int[positions.length];
+                    int remainingCount = 0;
+                    for (int i = 0; i < positions.length; i++) {
+                        if (acks[i]) {
+                            indexed[positions[i]] = true;
+                        } else {
+                            remaining[remainingCount++] = positions[i];
+                        }
+                    }
+                    
+                    if (remainingCount == 0) {
                         acknowledgedBarrels.add(barrel);
                         System.out.println("Barrel acknowledged: " + barrel.getBarrelId());
                     } else {
-                        System.err.println("Barrel returned NACK: " + barrel.getBarrelId());
+                        pending.put(barrel, Arrays.copyOf(remaining, remainingCount));
+                        System.err.println("Barrel returned NACK for " + remainingCount + " pages: " + barrel.getBarrelId());
                     }
                 } catch (RemoteException e) {
                     System.err.println("Failed to reach barrel: " + e.getMessage());
@@ -252,16 +471,13 @@ public class Downloader implements Runnable {
         
         // Check if at least one barrel acknowledged
         if (acknowledgedBarrels.isEmpty()) {
-            System.err.println("CRITICAL: No barrels acknowledged indexing of " + url);
-            return false;
-        }
-        
-        if (acknowledgedBarrels.size() < barrels.size()) {
+            System.err.println("CRITICAL: No barrels acknowledged the whole batch of " + batch.size() + " pages");
+        } else if (acknowledgedBarrels.size() < barrels.size()) {
             System.err.println("WARNING: Only " + acknowledgedBarrels.size() + "/" + 
                              barrels.size() + " barrels acknowledged");
         }
         
-        return !acknowledgedBarrels.isEmpty();
+        return indexed;
     }
     
     public void stop() {
@@ -0,0 +1,151 @@
+package rmi;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Forward Entry - Terms and outgoing links of the current version of a page
+ *
+ * Stored per document next to its fields (buffer and segments), so that
+ * re-indexing a page can diff the new version against the old one: only
+ * terms and links that appeared are added, the ones that vanished are
+ * deleted (see SegmentedIndex). Link-only sources (sharded mode) have links
+ * and no terms.
+ *
+ * Encoding: [varint termCount][varint linkCount], then the sorted terms
+ * front-coded ([varint shared prefix][varint suffix length][suffix UTF-8]),
+ * then the sorted target doc IDs delta + varint.
+ */
+class ForwardEntry {
+    
+    static final ForwardEntry EMPTY = new ForwardEntry(new String[0], new int[0]);
+    
+    final String[] terms; // sorted, distinct, lowercase
+    final int[] links;    // sorted, distinct target doc IDs
+    
+    ForwardEntry(String[] terms, int[] links) {
+        this.terms = terms;
+        this.links = links;
+    }
+    
+    static ForwardEntry of(Collection<String> words, int[] targets) {
+        TreeSet<String> terms = new TreeSet<>();
+        for (String word : words) {
+            terms.add(word.toLowerCase());
+        }
+        return new ForwardEntry(terms.toArray(new String[0]), sortedDistinct(targets));
+    }
+    
+    ForwardEntry withLinks(int[] targets) {
+        return new ForwardEntry(terms, sortedDistinct(targets));
+    }
+    
+    private static int[] sortedDistinct(int[] ids) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[i] != sorted[n - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+    
+    /**
+     * Terms in this entry but not in other (other may be null: all of them)
+     */
+    List<String> termsNotIn(ForwardEntry other) {
+        List<String> diff = new ArrayList<>();
+        String[] b = other != null ? other.terms : EMPTY.terms;
+        int j = 0;
+        for (String term : terms) {
+            while (j < b.length && b[j].compareTo(term) < 0) {
+                j++;
+            }
+            if (j == b.length || !b[j].equals(term)) {
+                diff.add(term);
+            }
+        }
+        return diff;
+    }
+    
+    /**
+     * Links in this entry but not in other (other may be null: all of them)
+     */
+    int[] linksNotIn(ForwardEntry other) {
+        return other != null ? SegmentedIndex.minus(links, other.links) : links;
+    }
+    
+    byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + terms.length * 8 + links.length * 2);
+        writeVarInt(out, terms.length);
+        writeVarInt(out, links.length);
+        byte[] previous = new byte[0];
+        for (String term : terms) {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int max = Math.min(previous.length, bytes.length);
+            while (shared < max && previous[shared] == bytes[shared]) {
+                shared++;
+            }
+            writeVarInt(out, shared);
+            writeVarInt(out, bytes.length - shared);
+            out.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+        int last = -1;
+        for (int link : links) {
+            writeVarInt(out, link - last);
+            last = link;
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Decode an entry at an absolute position (reads do not move the buffer)
+     */
+    static ForwardEntry decode(ByteBuffer buf, int pos) {
+        int[] at = {pos};
+        String[] terms = new String[readVarInt(buf, at)];
+        int[] links = new int[readVarInt(buf, at)];
+        byte[] previous = new byte[0];
+        for (int i = 0; i < terms.length; i++) {
+            int shared = readVarInt(buf, at);
+            byte[] bytes = new byte[shared + readVarInt(buf, at)];
+            System.arraycopy(previous, 0, bytes, 0, shared);
+            buf.get(at[0], bytes, shared, bytes.length - shared);
+            at[0] += bytes.length - shared;
+            terms[i] = new String(bytes, StandardCharsets.UTF_8);
+            previous = bytes;
+        }
+        int last = -1;
+        for (int i = 0; i < links.length; i++) {
+            last += readVarInt(buf, at);
+            links[i] = last;
+        }
+        return new ForwardEntry(terms, links);
+    }
+    
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    private static int readVarInt(ByteBuffer buf, int[] at) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get(at[0]++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
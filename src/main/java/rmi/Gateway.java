@@ -5,6 +5,7 @@ import java.rmi.server.*;
 import java.rmi.registry.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import java.io.*;
 
@@ -16,7 +17,8 @@ import java.io.*;
  * - Load balancing (round-robin, random, or performance-based)
  * - Search result caching
  * - Automatic failover on barrel failures
- * - Real-time statistics tracking
+ * - Sharded mode: scatter-gather over one replica per shard, merging top-K
+ * - Real-time statistics tracking (incl. end-to-end and per-barrel RMI latency)
  * - Persistent state for crash recovery
  */
 public class Gateway extends UnicastRemoteObject implements GatewayInterface {
@@ -24,17 +26,41 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
     private URLQueueInterface urlQueue;
     private List<StorageBarrelInterface> barrels;
     private final Map<Set<String>, List<SearchResult>> searchCache;
+    private final Map<List<Object>, SearchPage> pageCache; // [terms, offset, limit] -> ranked window
     private final Map<String, Integer> searchFrequency;
     private int currentBarrelIndex = 0;
+    
+    // Barrels grouped by shard, and the pool used to query shards in parallel
+    private volatile ShardRouter shardRouter = new ShardRouter(Config.getBarrelShards());
+    private final AtomicInteger shardRoundRobin = new AtomicInteger();
+    private final ExecutorService searchPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Gateway-Search");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    // End-to-end search and completion latency, and the remote calls made for them
+    private final LatencyHistogram searchLatency = new LatencyHistogram(Config.getMetricsLatencyWindow());
+    private final LatencyHistogram barrelLatency = new LatencyHistogram(Config.getMetricsLatencyWindow());
+    private final LatencyHistogram completeLatency = new LatencyHistogram(Config.getMetricsLatencyWindow());
+    
+    // Upper bound on the suggestions returned per prefix
+    private static final int MAX_SUGGESTIONS = 20;
+    
     private final Timer healthCheckTimer;
     private final Timer persistenceTimer;
     private final String persistenceFile = "data/gateway_state.dat";
     
+    // Persistence format (see SnapshotFile)
+    static final String SNAPSHOT_KIND = "gateway";
+    static final int SNAPSHOT_VERSION = 1;
+    
     public Gateway() throws RemoteException {
         super();
         this.barrels = new ArrayList<>();
         this.searchCache = Config.getGatewayCacheEnabled() ? 
                           new ConcurrentHashMap<>() : null;
+        this.pageCache = Config.getGatewayCacheEnabled() ? new ConcurrentHashMap<>() : null;
         this.searchFrequency = new ConcurrentHashMap<>();
         
         // Setup persistence
@@ -95,6 +121,7 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
     private synchronized void updateBarrelList(Registry registry) {
         try {
             List<StorageBarrelInterface> activeBarrels = new ArrayList<>();
+            ShardRouter shards = new ShardRouter(Config.getBarrelShards());
             String[] boundNames = registry.list();
             
             for (String name : boundNames) {
@@ -104,6 +131,7 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
                         // Ping to verify it's alive
                         if (barrel.ping()) {
                             activeBarrels.add(barrel);
+                            shards.add(barrel.getShard(), barrel);
                         }
                     } catch (Exception e) {
                         System.err.println("Barrel " + name + " is not responding");
@@ -111,6 +139,7 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
                 }
             }
             
+            shardRouter = shards;
             if (!activeBarrels.equals(barrels)) {
                 barrels = activeBarrels;
                 System.out.println("Gateway updated barrel list: " + barrels.size() + " active barrels");
@@ -118,6 +147,11 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
             
             if (barrels.isEmpty()) {
                 System.err.println("WARNING: No Storage Barrels available!");
+            } else if (shards.isSharded()) {
+                Map<Integer, Integer> missing = shards.underReplicated(Config.getBarrelShardReplicas());
+                if (!missing.isEmpty()) {
+                    System.err.println("WARNING: Under-replicated shards (shard=live barrels): " + missing);
+                }
             }
         } catch (Exception e) {
             System.err.println("Error updating barrel list: " + e.getMessage());
@@ -144,6 +178,8 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
     
     @Override
     public List<SearchResult> search(String query) throws RemoteException {
+        long startTime = System.nanoTime();
+        
         // Parse query into terms
         Set<String> terms = new HashSet<>(Arrays.asList(query.toLowerCase().split("\\s+")));
         
@@ -153,11 +189,18 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
         // Check cache
         if (searchCache != null && searchCache.containsKey(terms)) {
             System.out.println("Cache hit for query: " + query);
+            searchLatency.recordSince(startTime);
             return new ArrayList<>(searchCache.get(terms));
         }
         
-        // Select a barrel and search (with failover)
-        List<SearchResult> results = searchWithFailover(terms);
+        // Select a barrel and search (with failover), or ask every shard
+        List<SearchResult> results;
+        if (shardRouter.isSharded()) {
+            SearchPage merged = scatterGather(terms, 0, Integer.MAX_VALUE);
+            results = merged != null ? merged.results : null;
+        } else {
+            results = searchWithFailover(terms);
+        }
         
         if (results == null) {
             throw new RemoteException("No barrels available to process search");
@@ -168,6 +211,7 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
             searchCache.put(new HashSet<>(terms), new ArrayList<>(results));
         }
         
+        searchLatency.recordSince(startTime);
         return results;
     }
     
@@ -175,6 +219,108 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
      * Search with automatic failover if barrel fails
      */
     private List<SearchResult> searchWithFailover(Set<String> terms) {
+        return withFailover(barrel -> {
+            List<SearchResult> results = barrel.search(terms);
+            System.out.println("Search completed by barrel " + barrel.getBarrelId() + 
+                             ", found " + results.size() + " results");
+            return results;
+        });
+    }
+    
+    /**
+     * Fetch one ranked window from a barrel, with failover
+     */
+    private SearchPage searchPageWithFailover(Set<String> terms, int offset, int limit) {
+        return withFailover(barrel -> {
+            SearchPage page = barrel.search(terms, offset, limit);
+            System.out.println("Search completed by barrel " + barrel.getBarrelId() + 
+                             ", found " + page.totalHits + " results (returned " + page.results.size() + ")");
+            return page;
+        });
+    }
+    
+    /**
+     * Sharded search: ask one replica of every shard, in parallel, for its top
+     * offset + limit hits and merge them by incoming links. Each shard holds all
+     * links into its own pages, so per-shard counts are already global.
+     * @return the merged window, or null if no shard answered
+     */
+    private SearchPage scatterGather(Set<String> terms, int offset, int limit) {
+        ShardRouter shards = shardRouter;
+        int perShard = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        
+        List<Future<SearchPage>> futures = new ArrayList<>();
+        for (int shard = 0; shard < shards.getShardCount(); shard++) {
+            int s = shard;
+            List<StorageBarrelInterface> replicas = shards.getReplicas(shard);
+            futures.add(searchPool.submit(() -> searchShard(s, replicas, terms, perShard)));
+        }
+        
+        List<SearchResult> merged = new ArrayList<>();
+        int totalHits = 0;
+        int answered = 0;
+        for (Future<SearchPage> future : futures) {
+            try {
+                SearchPage page = future.get();
+                if (page != null) {
+                    merged.addAll(page.results);
+                    totalHits += page.totalHits;
+                    answered++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                System.err.println("Shard search failed: " + e.getCause());
+            }
+        }
+        if (answered == 0) {
+            return null;
+        }
+        if (answered < shards.getShardCount()) {
+            System.err.println("WARNING: Partial results, " + answered + "/" + shards.getShardCount() + " shards answered");
+        }
+        
+        // Each shard's list is already ranked; keep the global window
+        merged.sort((a, b) -> Integer.compare(b.incomingLinks, a.incomingLinks));
+        int from = Math.min(offset, merged.size());
+        int to = (int) Math.min((long) offset + limit, merged.size());
+        System.out.println("Search completed by " + answered + " shards, found " + totalHits + " results");
+        return new SearchPage(new ArrayList<>(merged.subList(from, to)), totalHits);
+    }
+    
+    /**
+     * Query one replica of a shard (round-robin), trying the others if it fails
+     */
+    private SearchPage searchShard(int shard, List<StorageBarrelInterface> replicas, Set<String> terms, int limit) {
+        int start = shardRoundRobin.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            StorageBarrelInterface barrel = replicas.get(Math.floorMod(start + i, replicas.size()));
+            long startTime = System.nanoTime();
+            try {
+                return barrel.search(terms, 0, limit);
+            } catch (RemoteException e) {
+                System.err.println("Shard " + shard + " replica failed: " + e.getMessage());
+            } finally {
+                barrelLatency.recordSince(startTime);
+            }
+        }
+        System.err.println("No live replica for shard " + shard);
+        return null;
+    }
+    
+    /**
+     * A remote call made against one barrel
+     */
+    private interface BarrelCall<T> {
+        T call(StorageBarrelInterface barrel) throws RemoteException;
+    }
+    
+    /**
+     * Run a call on the selected barrel, retrying on other barrels if it fails
+     * @return the result, or null if no barrel could answer
+     */
+    private <T> T withFailover(BarrelCall<T> call) {
         if (barrels.isEmpty()) {
             return null;
         }
@@ -183,16 +329,14 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
         int maxAttempts = Math.min(barrels.size(), 3); // Try up to 3 barrels
         
         while (attempts < maxAttempts) {
+            long startTime = System.nanoTime();
             try {
                 StorageBarrelInterface barrel = selectBarrel();
                 if (barrel == null) {
                     return null;
                 }
                 
-                List<SearchResult> results = barrel.search(terms);
-                System.out.println("Search completed by barrel " + barrel.getBarrelId() + 
-                                 ", found " + results.size() + " results");
-                return results;
+                return call.call(barrel);
                 
             } catch (RemoteException e) {
                 System.err.println("Barrel failed (attempt " + (attempts + 1) + "): " + e.getMessage());
@@ -205,6 +349,8 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
                 } catch (Exception ex) {
                     // Continue with next attempt
                 }
+            } finally {
+                barrelLatency.recordSince(startTime);
             }
         }
         
@@ -212,23 +358,137 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
     }
     
     @Override
-    public List<SearchResult> searchPaginated(String query, int page, int pageSize) throws RemoteException {
-        List<SearchResult> allResults = search(query);
-        
+    public SearchPage searchPaginated(String query, int page, int pageSize) throws RemoteException {
+        long startTime = System.nanoTime();
+        Set<String> terms = new HashSet<>(Arrays.asList(query.toLowerCase().split("\\s+")));
+        searchFrequency.merge(query.toLowerCase(), 1, Integer::sum);
         int start = page * pageSize;
-        int end = Math.min(start + pageSize, allResults.size());
         
-        if (start >= allResults.size()) {
+        // A full result list is already cached: just cut the page
+        List<SearchResult> cached = searchCache != null ? searchCache.get(terms) : null;
+        if (cached != null) {
+            System.out.println("Cache hit for query: " + query);
+            searchLatency.recordSince(startTime);
+            if (start >= cached.size()) {
+                return new SearchPage(new ArrayList<>(), cached.size());
+            }
+            return new SearchPage(new ArrayList<>(cached.subList(start, Math.min(start + pageSize, cached.size()))),
+                                  cached.size());
+        }
+        
+        // This page was asked for before
+        List<Object> key = List.of(terms, start, pageSize);
+        SearchPage cachedPage = pageCache != null ? pageCache.get(key) : null;
+        if (cachedPage != null) {
+            System.out.println("Cache hit for query: " + query + " (page " + page + ")");
+            searchLatency.recordSince(startTime);
+            return new SearchPage(new ArrayList<>(cachedPage.results), cachedPage.totalHits);
+        }
+        
+        // Otherwise the barrel (or every shard) ranks and returns only this page
+        SearchPage result = shardRouter.isSharded()
+                ? scatterGather(terms, start, pageSize)
+                : searchPageWithFailover(terms, start, pageSize);
+        if (result == null) {
+            throw new RemoteException("No barrels available to process search");
+        }
+        if (pageCache != null) {
+            pageCache.put(key, new SearchPage(new ArrayList<>(result.results), result.totalHits));
+        }
+        searchLatency.recordSince(startTime);
+        return new SearchPage(new ArrayList<>(result.results), result.totalHits);
+    }
+    
+    /**
+     * Autocomplete: up to k indexed terms starting with the prefix, those in
+     * the most documents first. Sharded: every shard proposes its top k and
+     * the document frequencies are summed (shards hold disjoint pages).
+     */
+    @Override
+    public List<String> complete(String prefix, int k) throws RemoteException {
+        long startTime = System.nanoTime();
+        String normalized = prefix.trim().toLowerCase();
+        int limit = Math.min(k, MAX_SUGGESTIONS);
+        if (normalized.isEmpty() || limit <= 0) {
             return new ArrayList<>();
         }
         
-        return new ArrayList<>(allResults.subList(start, end));
+        Map<String, Integer> frequencies;
+        if (shardRouter.isSharded()) {
+            frequencies = completeScatterGather(normalized, limit);
+        } else {
+            frequencies = withFailover(barrel -> barrel.complete(normalized, limit));
+        }
+        if (frequencies == null) {
+            throw new RemoteException("No barrels available to complete prefix");
+        }
+        
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(frequencies.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed()
+                    .thenComparing(Map.Entry.comparingByKey()));
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, ranked.size()); i++) {
+            terms.add(ranked.get(i).getKey());
+        }
+        completeLatency.recordSince(startTime);
+        return terms;
+    }
+    
+    /**
+     * Ask one replica of every shard (in parallel) and add up the frequencies
+     * @return term -> summed document frequency, or null if no shard answered
+     */
+    private Map<String, Integer> completeScatterGather(String prefix, int k) {
+        ShardRouter shards = shardRouter;
+        List<Future<Map<String, Integer>>> futures = new ArrayList<>();
+        for (int shard = 0; shard < shards.getShardCount(); shard++) {
+            List<StorageBarrelInterface> replicas = shards.getReplicas(shard);
+            futures.add(searchPool.submit(() -> completeShard(replicas, prefix, k)));
+        }
+        
+        Map<String, Integer> merged = new HashMap<>();
+        int answered = 0;
+        for (Future<Map<String, Integer>> future : futures) {
+            try {
+                Map<String, Integer> terms = future.get();
+                if (terms != null) {
+                    terms.forEach((term, df) -> merged.merge(term, df, Integer::sum));
+                    answered++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                System.err.println("Shard completion failed: " + e.getCause());
+            }
+        }
+        return answered > 0 ? merged : null;
+    }
+    
+    private Map<String, Integer> completeShard(List<StorageBarrelInterface> replicas, String prefix, int k) {
+        int start = shardRoundRobin.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            StorageBarrelInterface barrel = replicas.get(Math.floorMod(start + i, replicas.size()));
+            long startTime = System.nanoTime();
+            try {
+                return barrel.complete(prefix, k);
+            } catch (RemoteException e) {
+                System.err.println("Completion replica failed: " + e.getMessage());
+            } finally {
+                barrelLatency.recordSince(startTime);
+            }
+        }
+        return null;
     }
     
     @Override
     public Set<String> getIncomingLinks(String url) throws RemoteException {
+        // Links are stored in the shard owning the target page
+        ShardRouter shards = shardRouter;
+        List<StorageBarrelInterface> candidates = shards.isSharded() ? shards.getReplicas(shards.shardOf(url)) : barrels;
+        
         // Try all barrels until one succeeds
-        for (StorageBarrelInterface barrel : barrels) {
+        for (StorageBarrelInterface barrel : candidates) {
             try {
                 return barrel.getIncomingLinks(url);
             } catch (RemoteException e) {
@@ -259,14 +519,27 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
             try {
                 BarrelStats bs = new BarrelStats();
                 bs.barrelId = barrel.getBarrelId();
+                bs.shard = barrel.getShard();
                 bs.indexSize = barrel.getIndexSize();
                 bs.avgSearchTime = barrel.getAverageSearchTime();
+                bs.indexingRate = barrel.getIndexingRate();
+                bs.timeToReadyMs = barrel.getTimeToReady();
+                bs.postingsStats = barrel.getPostingsStats();
+                bs.repairStats = barrel.getRepairStats();
+                bs.latency = barrel.getLatencyStats();
+                bs.heapFootprint = barrel.getHeapFootprint();
                 stats.barrelStats.add(bs);
             } catch (RemoteException e) {
                 // Barrel not available, skip
             }
         }
         
+        // Gateway latency (search as seen by clients, and each remote barrel call)
+        stats.gatewayLatency = new LinkedHashMap<>();
+        stats.gatewayLatency.put("search", searchLatency.summary());
+        stats.gatewayLatency.put("barrelRpc", barrelLatency.summary());
+        stats.gatewayLatency.put("complete", completeLatency.summary());
+        
         return stats;
     }
     
@@ -296,9 +569,8 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
      * Save gateway state for crash recovery
      */
     private void saveState() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(persistenceFile))) {
-            oos.writeObject(new HashMap<>(searchFrequency));
+        try {
+            saveSnapshot(new File(persistenceFile), new HashMap<>(searchFrequency));
             System.out.println("Gateway state saved");
         } catch (Exception e) {
             System.err.println("Failed to save gateway state: " + e.getMessage());
@@ -306,20 +578,57 @@ public class Gateway extends UnicastRemoteObject implements GatewayInterface {
     }
     
     /**
-     * Load gateway state from disk
+     * Write search frequencies as a SnapshotFile
+     * @return file size in bytes
+     */
+    static long saveSnapshot(File file, Map<String, Integer> frequencies) throws IOException {
+        return SnapshotFile.save(file, SNAPSHOT_KIND, SNAPSHOT_VERSION, out -> {
+            SnapshotFile.writeVarInt(out, frequencies.size());
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                SnapshotFile.writeString(out, entry.getKey());
+                SnapshotFile.writeVarInt(out, entry.getValue());
+            }
+        });
+    }
+    
+    static Map<String, Integer> loadSnapshot(File file) throws IOException {
+        return SnapshotFile.load(file, SNAPSHOT_KIND, (in, version) -> {
+            int count = SnapshotFile.readVarInt(in);
+            Map<String, Integer> frequencies = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                frequencies.put(SnapshotFile.readString(in), SnapshotFile.readVarInt(in));
+            }
+            return frequencies;
+        });
+    }
+    
+    /**
+     * Read a state file written with ObjectOutputStream (before SnapshotFile)
      */
     @SuppressWarnings("unchecked")
+    static Map<String, Integer> loadLegacy(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new FileInputStream(file))) {
+            return (Map<String, Integer>) ois.readObject();
+        }
+    }
+    
+    /**
+     * Load gateway state from disk
+     */
     private void loadState() {
         File file = new File(persistenceFile);
-        if (!file.exists()) {
+        if (!file.exists() && !new File(persistenceFile + ".prev").exists()) {
             return;
         }
         
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(file))) {
-            Map<String, Integer> loadedFreq = (Map<String, Integer>) ois.readObject();
-            searchFrequency.putAll(loadedFreq);
+        try {
+            boolean legacy = file.exists() && SnapshotFile.isLegacy(file);
+            searchFrequency.putAll(legacy ? loadLegacy(file) : loadSnapshot(file));
             System.out.println("Gateway state recovered (" + searchFrequency.size() + " search queries)");
+            if (legacy) {
+                saveState(); // rewrite in the current format
+            }
         } catch (Exception e) {
             System.err.println("Failed to load gateway state: " + e.getMessage());
         }
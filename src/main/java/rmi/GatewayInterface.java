@@ -8,7 +8,8 @@ import java.util.Set;
 public interface GatewayInterface extends Remote {
     void indexURL(String url) throws RemoteException;
     List<SearchResult> search(String query) throws RemoteException;
-    List<SearchResult> searchPaginated(String query, int page, int pageSize) throws RemoteException;
+    SearchPage searchPaginated(String query, int page, int pageSize) throws RemoteException;
+    List<String> complete(String prefix, int k) throws RemoteException;
     Set<String> getIncomingLinks(String url) throws RemoteException;
     SystemStats getStatistics() throws RemoteException;
 }
\ No newline at end of file
@@ -0,0 +1,271 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Host Frontier - URLs waiting to be crawled, partitioned by host
+ *
+ * Each host has its own FIFO and a ready time: once one of its URLs is
+ * handed out, the host waits the crawl delay before the next one. Hosts
+ * with URLs sit in a heap ordered by ready time, so poll() takes the host
+ * that has been ready longest - round-robin across ready hosts - and a
+ * link-heavy site can't monopolize the downloaders while others wait.
+ * With H hosts holding URLs, downloaders can fetch up to H / delay pages
+ * per second in total.
+ *
+ * Hosts that run out of URLs are forgotten once their delay has passed.
+ * One lock guards the structure; offer and poll are O(log hosts).
+ *
+ * At most memoryLimit URLs are held in the host queues, and at most
+ * hostLimit of one host, so a link-heavy host can't fill memory and push
+ * every other host to disk. URLs beyond either limit go to a SpillLog.
+ * poll() refills from the log when the host queues drop below half the
+ * limit, or when no host is ready (hosts waiting on disk get a turn); a
+ * refill pass reads up to half the limit and sends URLs of hosts still at
+ * their cap to the back of the log. A host's spilled URLs may come back
+ * after newer ones that found room in memory.
+ */
+class HostFrontier {
+
+    private final long crawlDelayNanos;
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final PriorityQueue<Host> ready = new PriorityQueue<>(Comparator.comparingLong(h -> h.readyAt));
+    private final ArrayDeque<Host> idle = new ArrayDeque<>(); // emptied hosts, by ready time
+    private int size = 0; // in the host queues
+    private final int memoryLimit;
+    private final int hostLimit;
+    private final SpillLog spill; // null: unbounded
+    private long nextIdleRefill = System.nanoTime(); // pushed back after a pass that found nothing to load
+
+    private static final class Host {
+        final String name;
+        final ArrayDeque<String> urls = new ArrayDeque<>();
+        long readyAt = System.nanoTime(); // new hosts are ready at once
+        boolean scheduled = false; // in the ready heap
+
+        Host(String name) {
+            this.name = name;
+        }
+    }
+
+    HostFrontier(long crawlDelayMillis) {
+        this(crawlDelayMillis, Integer.MAX_VALUE, Integer.MAX_VALUE, null);
+    }
+
+    HostFrontier(long crawlDelayMillis, int memoryLimit, int hostLimit, SpillLog spill) {
+        this.crawlDelayNanos = crawlDelayMillis * 1_000_000L;
+        this.memoryLimit = memoryLimit;
+        this.hostLimit = hostLimit;
+        this.spill = spill;
+    }
+
+    public synchronized void offer(String url) {
+        if (spill != null && !hasRoom(url)) {
+            try {
+                spill.append(url);
+                return;
+            } catch (IOException e) {
+                System.err.println("Frontier spill failed, keeping URL in memory: " + e.getMessage());
+            }
+        }
+        enqueue(url);
+    }
+
+    /**
+     * Put a URL in memory regardless of the limit (queue restored from a
+     * snapshot, older than anything in the spill log)
+     */
+    public synchronized void restore(String url) {
+        enqueue(url);
+    }
+
+    private boolean hasRoom(String url) {
+        if (size >= memoryLimit) {
+            return false;
+        }
+        Host host = hosts.get(hostOf(url));
+        return host == null || host.urls.size() < hostLimit;
+    }
+
+    private void enqueue(String url) {
+        Host host = hosts.computeIfAbsent(hostOf(url), Host::new);
+        host.urls.add(url);
+        size++;
+        if (!host.scheduled) {
+            host.scheduled = true;
+            ready.add(host);
+        }
+    }
+
+    /**
+     * Next URL of the host ready longest
+     * @return null if no host with URLs is past its crawl delay
+     */
+    public synchronized String poll() {
+        long now = System.nanoTime();
+        forgetIdle(now);
+        if (size < memoryLimit / 2 && refill(now)) {
+            now = System.nanoTime(); // hosts created by the refill are ready from their creation
+        }
+        Host host = ready.peek();
+        if (host == null || host.readyAt - now > 0) {
+            if (now - nextIdleRefill < 0 || !refill(now)) {
+                return null;
+            }
+            now = System.nanoTime();
+            host = ready.peek();
+            if (host == null || host.readyAt - now > 0) {
+                return null;
+            }
+        }
+        ready.poll();
+        String url = host.urls.poll();
+        size--;
+        host.readyAt = now + crawlDelayNanos;
+        if (host.urls.isEmpty()) {
+            host.scheduled = false;
+            idle.add(host);
+        } else {
+            ready.add(host);
+        }
+        return url;
+    }
+
+    /**
+     * Load spilled URLs into the host queues
+     * @return true if any URL was loaded
+     */
+    private boolean refill(long now) {
+        if (spill == null || spill.size() == 0) {
+            return false;
+        }
+        int loaded = 0;
+        try {
+            // Deferred URLs go to the back of the log: read each at most once per pass
+            long budget = Math.min(spill.size(), Math.max(1, memoryLimit / 2));
+            String url;
+            while (budget-- > 0 && size < memoryLimit && (url = spill.next()) != null) {
+                if (hasRoom(url)) {
+                    enqueue(url);
+                    loaded++;
+                } else {
+                    spill.append(url);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Frontier refill from spill log failed: " + e.getMessage());
+        }
+        if (loaded == 0) {
+            // Only hosts at their cap on disk: don't rescan before a crawl delay has passed
+            nextIdleRefill = now + crawlDelayNanos;
+        }
+        return loaded > 0;
+    }
+
+    private void forgetIdle(long now) {
+        while (!idle.isEmpty() && idle.peek().readyAt - now <= 0) {
+            Host host = idle.poll();
+            if (!host.scheduled && host.urls.isEmpty() && hosts.get(host.name) == host) {
+                hosts.remove(host.name);
+            }
+        }
+    }
+
+    public synchronized long size() {
+        return size + (spill != null ? spill.size() : 0);
+    }
+
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * URLs waiting in the spill log
+     */
+    public synchronized long spilledCount() {
+        return spill != null ? spill.size() : 0;
+    }
+
+    /**
+     * Hosts with URLs waiting
+     */
+    public synchronized int hostCount() {
+        return ready.size();
+    }
+
+    /**
+     * Hosts with URLs waiting that are past their crawl delay
+     */
+    public synchronized int readyHostCount() {
+        long now = System.nanoTime();
+        int count = 0;
+        for (Host host : ready) {
+            if (host.readyAt - now <= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * URLs in memory (each host's in order) and the spill log's read position
+     */
+    static final class Snapshot {
+        final List<String> urls;
+        final int spillSegment;
+        final int spillOffset;
+
+        Snapshot(List<String> urls, int spillSegment, int spillOffset) {
+            this.urls = urls;
+            this.spillSegment = spillSegment;
+            this.spillOffset = spillOffset;
+        }
+    }
+
+    public synchronized Snapshot snapshot() throws IOException {
+        List<String> urls = new ArrayList<>(size);
+        for (Host host : ready) {
+            urls.addAll(host.urls);
+        }
+        int[] position = spill != null ? spill.position() : new int[2];
+        return new Snapshot(urls, position[0], position[1]);
+    }
+
+    /**
+     * A snapshot taken at this spill position is on disk: drop the segments read before it
+     */
+    public synchronized void release(int spillSegment) {
+        if (spill != null) {
+            spill.release(spillSegment);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    /**
+     * Lowercased host of a URL, without user info or port
+     */
+    static String hostOf(String url) {
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        String authority = url.substring(start, end);
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) {
+            authority = authority.substring(at + 1);
+        }
+        int port = authority.lastIndexOf(':');
+        if (port >= 0 && authority.indexOf(']') < port) { // not inside an IPv6 literal
+            authority = authority.substring(0, port);
+        }
+        return authority.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,510 @@
+package rmi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Index Buffer - Mutable in-memory segment receiving newly indexed pages
+ * Flushed to an immutable IndexSegment once it is large enough
+ *
+ * Off-heap mode (barrel.buffer.offheap): postings, in-links, stored fields,
+ * forward entries and deletes go to OffHeapTables in one OffHeapArena,
+ * keys included; the heap keeps only their primitive lookup tables.
+ *
+ * Freezing (epoch-based): writers enter() the buffer around each page;
+ * once the index has published a new active buffer, freeze() turns new
+ * writers away and waits for the ones inside, so the frozen buffer is a
+ * point-in-time image without ever blocking a writer or a search.
+ */
+class IndexBuffer implements SegmentReader {
+    
+    // ConcurrentHashMap node plus its table slot (heapBytes estimate)
+    private static final int MAP_ENTRY = 40;
+    
+    // Most frequent first, then alphabetical
+    static final Comparator<Map.Entry<String, Integer>> COMPLETION_ORDER =
+        Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey());
+    
+    // term -> doc IDs
+    private final Map<String, PostingList> postings = new ConcurrentHashMap<>();
+    
+    // The same terms, sorted (prefix completion)
+    private final NavigableSet<String> terms = new ConcurrentSkipListSet<>();
+    
+    // doc ID -> stored fields
+    private final Map<Integer, PageInfo> pages = new ConcurrentHashMap<>();
+    
+    // target doc ID -> doc IDs of pages linking to it
+    private final Map<Integer, PostingList> inlinks = new ConcurrentHashMap<>();
+    
+    // doc ID -> terms and links of the version indexed here
+    private final Map<Integer, ForwardEntry> forward = new ConcurrentHashMap<>();
+    
+    // Removed from older segments by re-indexed pages (term / target -> doc IDs)
+    private final Map<String, PostingList> deletedPostings = new ConcurrentHashMap<>();
+    private final Map<Integer, PostingList> deletedLinks = new ConcurrentHashMap<>();
+    
+    // Off-heap mode: the same structures in the arena (all null on-heap);
+    // a page record is [int length][title][int length][citation]
+    private final OffHeapArena arena;
+    private final OffHeapTable offHeapPostings;
+    private final OffHeapTable offHeapPages;
+    private final OffHeapTable offHeapInlinks;
+    private final OffHeapTable offHeapForward;
+    private final OffHeapTable offHeapDeletedPostings;
+    private final OffHeapTable offHeapDeletedLinks;
+    
+    // Writers applying a page right now, and whether new ones are turned away
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile boolean frozen = false;
+    
+    public IndexBuffer() {
+        this(false);
+    }
+    
+    public IndexBuffer(boolean offHeap) {
+        this.arena = offHeap ? new OffHeapArena() : null;
+        this.offHeapPostings = offHeap ? new OffHeapTable(arena) : null;
+        this.offHeapPages = offHeap ? new OffHeapTable(arena) : null;
+        this.offHeapInlinks = offHeap ? new OffHeapTable(arena) : null;
+        this.offHeapForward = offHeap ? new OffHeapTable(arena) : null;
+        this.offHeapDeletedPostings = offHeap ? new OffHeapTable(arena) : null;
+        this.offHeapDeletedLinks = offHeap ? new OffHeapTable(arena) : null;
+    }
+    
+    /**
+     * Start applying a page
+     * @return false if the buffer is frozen (the caller retries on the new active buffer)
+     */
+    public boolean enter() {
+        writers.incrementAndGet();
+        if (frozen) {
+            writers.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    public void exit() {
+        writers.decrementAndGet();
+    }
+    
+    /**
+     * Turn new writers away and wait until the ones inside have exited
+     * (called once this buffer is no longer the active one)
+     */
+    public void freeze() {
+        frozen = true;
+        while (writers.get() > 0) {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+    
+    public void addPage(int docId, String title, String citation) {
+        if (arena == null) {
+            pages.put(docId, new PageInfo(title, citation));
+            return;
+        }
+        byte[] t = (title != null ? title : "").getBytes(StandardCharsets.UTF_8);
+        byte[] c = (citation != null ? citation : "").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(8 + t.length + c.length);
+        record.putInt(t.length).put(t).putInt(c.length).put(c);
+        offHeapPages.put(OffHeapTable.key(docId), record.array());
+    }
+    
+    public void putForward(int docId, ForwardEntry entry) {
+        if (arena == null) {
+            forward.put(docId, entry);
+        } else {
+            offHeapForward.put(OffHeapTable.key(docId), entry.encode());
+        }
+    }
+    
+    public void addTerm(String term, int docId) {
+        if (arena != null) {
+            offHeapPostings.add(OffHeapTable.key(term), docId);
+            return;
+        }
+        postings.computeIfAbsent(term, k -> {
+            terms.add(k);
+            return new PostingList();
+        }).add(docId);
+    }
+    
+    /**
+     * Add a whole postings list (snapshot migration)
+     */
+    public void addPostings(String term, PostingList list) {
+        if (arena != null) {
+            byte[] key = OffHeapTable.key(term);
+            for (int docId : list.toArray()) {
+                offHeapPostings.add(key, docId);
+            }
+            return;
+        }
+        postings.put(term, list);
+        terms.add(term);
+    }
+    
+    /**
+     * A re-indexed page lost the term: drop it here and hide older postings
+     */
+    public void removeTerm(String term, int docId) {
+        if (arena != null) {
+            byte[] key = OffHeapTable.key(term);
+            offHeapPostings.remove(key, docId);
+            offHeapDeletedPostings.add(key, docId);
+            return;
+        }
+        PostingList list = postings.get(term);
+        if (list != null) {
+            list.remove(docId);
+        }
+        deletedPostings.computeIfAbsent(term, k -> new PostingList()).add(docId);
+    }
+    
+    /**
+     * @return true if this buffer did not have the link yet
+     */
+    public boolean addLink(int sourceDocId, int targetDocId) {
+        if (arena != null) {
+            return offHeapInlinks.add(OffHeapTable.key(targetDocId), sourceDocId);
+        }
+        return inlinks.computeIfAbsent(targetDocId, k -> new PostingList()).add(sourceDocId);
+    }
+    
+    /**
+     * Add all links to a target (snapshot migration)
+     */
+    public void addInlinks(int targetDocId, PostingList sources) {
+        if (arena != null) {
+            byte[] key = OffHeapTable.key(targetDocId);
+            for (int source : sources.toArray()) {
+                offHeapInlinks.add(key, source);
+            }
+            return;
+        }
+        inlinks.put(targetDocId, sources);
+    }
+    
+    /**
+     * A re-indexed page no longer links to the target
+     */
+    public void removeLink(int sourceDocId, int targetDocId) {
+        if (arena != null) {
+            byte[] key = OffHeapTable.key(targetDocId);
+            offHeapInlinks.remove(key, sourceDocId);
+            offHeapDeletedLinks.add(key, sourceDocId);
+            return;
+        }
+        PostingList list = inlinks.get(targetDocId);
+        if (list != null) {
+            list.remove(sourceDocId);
+        }
+        deletedLinks.computeIfAbsent(targetDocId, k -> new PostingList()).add(sourceDocId);
+    }
+    
+    public int docCount() {
+        return arena != null ? offHeapPages.size() : pages.size();
+    }
+    
+    /**
+     * Number of distinct terms
+     */
+    public int termCount() {
+        return arena != null ? offHeapPostings.size() : postings.size();
+    }
+    
+    public boolean isEmpty() {
+        if (arena != null) {
+            return offHeapPages.size() == 0 && offHeapInlinks.size() == 0 && offHeapForward.size() == 0;
+        }
+        return pages.isEmpty() && inlinks.isEmpty() && forward.isEmpty();
+    }
+    
+    /**
+     * Write the whole buffer (terms in byte order, then pages, links,
+     * forward entries and deletes by doc ID) to a segment
+     */
+    public void writeTo(SegmentWriter writer) throws IOException {
+        if (arena != null) {
+            for (int entry : offHeapPostings.sortedEntries()) {
+                int[] ids = offHeapPostings.toArrayAt(entry);
+                if (ids.length > 0) { // every page holding the term lost it
+                    writer.addTerm(offHeapPostings.keyAt(entry), ids, ids.length);
+                }
+            }
+            for (int entry : offHeapPages.sortedEntries()) {
+                int docId = OffHeapTable.docId(offHeapPages.keyAt(entry));
+                writer.addDoc(docId, pageInfo(docId));
+            }
+            for (int entry : offHeapInlinks.sortedEntries()) {
+                int[] sources = offHeapInlinks.toArrayAt(entry);
+                if (sources.length > 0) {
+                    writer.addLinks(OffHeapTable.docId(offHeapInlinks.keyAt(entry)), sources, sources.length);
+                }
+            }
+            for (int entry : offHeapForward.sortedEntries()) {
+                int docId = OffHeapTable.docId(offHeapForward.keyAt(entry));
+                writer.addForward(docId, forward(docId));
+            }
+            for (int entry : offHeapDeletedPostings.sortedEntries()) {
+                int[] ids = offHeapDeletedPostings.toArrayAt(entry);
+                writer.addDeletedTerm(offHeapDeletedPostings.keyAt(entry), ids, ids.length);
+            }
+            for (int entry : offHeapDeletedLinks.sortedEntries()) {
+                int[] sources = offHeapDeletedLinks.toArrayAt(entry);
+                writer.addDeletedLinks(OffHeapTable.docId(offHeapDeletedLinks.keyAt(entry)), sources, sources.length);
+            }
+            return;
+        }
+        
+        List<byte[]> sortedTerms = new ArrayList<>(postings.size());
+        for (String term : postings.keySet()) {
+            sortedTerms.add(term.getBytes(StandardCharsets.UTF_8));
+        }
+        sortedTerms.sort(Arrays::compareUnsigned);
+        for (byte[] term : sortedTerms) {
+            int[] ids = postings.get(new String(term, StandardCharsets.UTF_8)).toArray();
+            if (ids.length > 0) { // every page holding the term lost it
+                writer.addTerm(term, ids, ids.length);
+            }
+        }
+        
+        List<Integer> docs = new ArrayList<>(pages.keySet());
+        Collections.sort(docs);
+        for (int docId : docs) {
+            writer.addDoc(docId, pages.get(docId));
+        }
+        
+        List<Integer> targets = new ArrayList<>(inlinks.keySet());
+        Collections.sort(targets);
+        for (int target : targets) {
+            int[] sources = inlinks.get(target).toArray();
+            if (sources.length > 0) {
+                writer.addLinks(target, sources, sources.length);
+            }
+        }
+        
+        List<Integer> forwardDocs = new ArrayList<>(forward.keySet());
+        Collections.sort(forwardDocs);
+        for (int docId : forwardDocs) {
+            writer.addForward(docId, forward.get(docId));
+        }
+        
+        List<byte[]> deletedTerms = new ArrayList<>(deletedPostings.size());
+        for (String term : deletedPostings.keySet()) {
+            deletedTerms.add(term.getBytes(StandardCharsets.UTF_8));
+        }
+        deletedTerms.sort(Arrays::compareUnsigned);
+        for (byte[] term : deletedTerms) {
+            int[] ids = deletedPostings.get(new String(term, StandardCharsets.UTF_8)).toArray();
+            writer.addDeletedTerm(term, ids, ids.length);
+        }
+        
+        List<Integer> deletedTargets = new ArrayList<>(deletedLinks.keySet());
+        Collections.sort(deletedTargets);
+        for (int target : deletedTargets) {
+            int[] sources = deletedLinks.get(target).toArray();
+            writer.addDeletedLinks(target, sources, sources.length);
+        }
+    }
+    
+    /**
+     * Visit every postings list (term, doc IDs) and in-link list (target, sources)
+     */
+    public void scan(BiConsumer<String, int[]> termAction, BiConsumer<Integer, int[]> linkAction) {
+        if (arena != null) {
+            for (int entry = 0; entry < offHeapPostings.size(); entry++) {
+                termAction.accept(new String(offHeapPostings.keyAt(entry), StandardCharsets.UTF_8),
+                                  offHeapPostings.toArrayAt(entry));
+            }
+            for (int entry = 0; entry < offHeapInlinks.size(); entry++) {
+                linkAction.accept(OffHeapTable.docId(offHeapInlinks.keyAt(entry)), offHeapInlinks.toArrayAt(entry));
+            }
+            return;
+        }
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            termAction.accept(entry.getKey(), entry.getValue().toArray());
+        }
+        for (Map.Entry<Integer, PostingList> entry : inlinks.entrySet()) {
+            linkAction.accept(entry.getKey(), entry.getValue().toArray());
+        }
+    }
+    
+    /**
+     * Estimated heap bytes of this buffer (map entries, keys, lists, fields)
+     */
+    public long heapBytes() {
+        if (arena != null) {
+            return offHeapPostings.heapBytes() + offHeapPages.heapBytes() + offHeapInlinks.heapBytes() +
+                   offHeapForward.heapBytes() + offHeapDeletedPostings.heapBytes() + offHeapDeletedLinks.heapBytes();
+        }
+        long total = 0;
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            total += 2 * MAP_ENTRY + stringBytes(entry.getKey()) + entry.getValue().heapBytes();
+        }
+        for (Map.Entry<String, PostingList> entry : deletedPostings.entrySet()) {
+            total += MAP_ENTRY + stringBytes(entry.getKey()) + entry.getValue().heapBytes();
+        }
+        for (PageInfo info : pages.values()) {
+            total += MAP_ENTRY + 16 + 24 + stringBytes(info.title) + stringBytes(info.citation);
+        }
+        for (PostingList list : inlinks.values()) {
+            total += MAP_ENTRY + 16 + list.heapBytes();
+        }
+        for (PostingList list : deletedLinks.values()) {
+            total += MAP_ENTRY + 16 + list.heapBytes();
+        }
+        for (ForwardEntry entry : forward.values()) {
+            total += MAP_ENTRY + 16 + 24 + 16 + 8L * entry.terms.length + 16 + 4L * entry.links.length;
+            for (String term : entry.terms) {
+                total += stringBytes(term);
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Native bytes reserved by the arena (0 on-heap)
+     */
+    public long offHeapBytes() {
+        return arena != null ? arena.reservedBytes() : 0;
+    }
+    
+    private static long stringBytes(String value) {
+        return value != null ? 40 + value.length() : 0;
+    }
+    
+    @Override
+    public int[] postings(String term) {
+        if (arena != null) {
+            return offHeapPostings.toArray(OffHeapTable.key(term));
+        }
+        PostingList list = postings.get(term);
+        return list != null ? list.toArray() : null;
+    }
+    
+    @Override
+    public RoaringPostings bitmap(String term) {
+        return null; // the buffer keeps delta + varint lists
+    }
+    
+    @Override
+    public int[] filterPostings(String term, int[] candidates) {
+        if (arena != null) {
+            int[] ids = offHeapPostings.toArray(OffHeapTable.key(term));
+            return ids != null ? QueryExecutor.gallopIntersect(candidates, ids) : null;
+        }
+        PostingList list = postings.get(term);
+        return list != null ? list.filter(candidates) : null;
+    }
+    
+    @Override
+    public int docFrequency(String term) {
+        if (arena != null) {
+            return offHeapPostings.count(OffHeapTable.key(term));
+        }
+        PostingList list = postings.get(term);
+        return list != null ? list.size() : 0;
+    }
+    
+    @Override
+    public Map<String, Integer> topTerms(String prefix, int k) {
+        // Buffers are small: scan the sorted range, keeping the k most frequent
+        PriorityQueue<Map.Entry<String, Integer>> best = new PriorityQueue<>(COMPLETION_ORDER.reversed());
+        if (arena != null) {
+            for (int entry : offHeapPostings.withPrefix(OffHeapTable.key(prefix))) {
+                offer(best, new String(offHeapPostings.keyAt(entry), StandardCharsets.UTF_8),
+                      offHeapPostings.countAt(entry), k);
+            }
+        } else {
+            for (String term : terms.tailSet(prefix)) {
+                if (!term.startsWith(prefix)) {
+                    break;
+                }
+                offer(best, term, docFrequency(term), k);
+            }
+        }
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(best);
+        sorted.sort(COMPLETION_ORDER);
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : sorted) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+    
+    private static void offer(PriorityQueue<Map.Entry<String, Integer>> best, String term, int df, int k) {
+        if (df > 0) {
+            best.add(Map.entry(term, df));
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+    }
+    
+    @Override
+    public PageInfo pageInfo(int docId) {
+        if (arena == null) {
+            return pages.get(docId);
+        }
+        int address = offHeapPages.record(OffHeapTable.key(docId));
+        if (address < 0) {
+            return null;
+        }
+        ByteBuffer chunk = arena.chunk(address);
+        int pos = OffHeapArena.offset(address);
+        String title = readString(chunk, pos);
+        pos += 4 + chunk.getInt(pos);
+        return new PageInfo(title, readString(chunk, pos));
+    }
+    
+    private static String readString(ByteBuffer chunk, int pos) {
+        byte[] bytes = new byte[chunk.getInt(pos)];
+        chunk.get(pos + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    @Override
+    public int[] incomingLinks(int docId) {
+        if (arena != null) {
+            return offHeapInlinks.toArray(OffHeapTable.key(docId));
+        }
+        PostingList list = inlinks.get(docId);
+        return list != null ? list.toArray() : null;
+    }
+    
+    @Override
+    public ForwardEntry forward(int docId) {
+        if (arena == null) {
+            return forward.get(docId);
+        }
+        int address = offHeapForward.record(OffHeapTable.key(docId));
+        return address >= 0 ? ForwardEntry.decode(arena.chunk(address), OffHeapArena.offset(address)) : null;
+    }
+    
+    @Override
+    public int[] deletedPostings(String term) {
+        if (arena != null) {
+            return offHeapDeletedPostings.toArray(OffHeapTable.key(term));
+        }
+        PostingList list = deletedPostings.get(term);
+        return list != null ? list.toArray() : null;
+    }
+    
+    @Override
+    public int[] deletedLinks(int docId) {
+        if (arena != null) {
+            return offHeapDeletedLinks.toArray(OffHeapTable.key(docId));
+        }
+        PostingList list = deletedLinks.get(docId);
+        return list != null ? list.toArray() : null;
+    }
+}
@@ -0,0 +1,523 @@
+package rmi;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Index Segment - Immutable, memory-mapped index file (see SegmentWriter for the layout)
+ * Only the mapping is held on the heap; the OS pages data in as queries touch it.
+ * All reads use absolute positions, so one segment is safe to share between threads.
+ */
+class IndexSegment implements SegmentReader, TermCompleter.Frequencies {
+    
+    private final File file;
+    private final MappedByteBuffer buf;
+    private final int version;
+    
+    private final int termCount;
+    private final int termTable;
+    private final int docCount;
+    private final int docTable;
+    private final int linkCount;
+    private final int linkTable;
+    private final int forwardCount;
+    private final int forwardTable;
+    private final int deletedTermCount;
+    private final int deletedTermTable;
+    private final int deletedLinkCount;
+    private final int deletedLinkTable;
+    
+    // Bytes between docFreq and postingsBytes in a term entry (the encoding field, v2+)
+    private final int encodingBytes;
+    
+    // Terms per encoding and stored roaring container types (computed on first use)
+    private volatile int[] layout;
+    
+    // Top-k terms by document frequency (built on the first completion)
+    private volatile TermCompleter completer;
+    
+    private IndexSegment(File file, MappedByteBuffer buf) throws IOException {
+        this.file = file;
+        this.buf = buf;
+        
+        int footer = buf.capacity() - SegmentWriter.FOOTER_BYTES;
+        if (footer < 0 || buf.getInt(footer) != SegmentWriter.MAGIC) {
+            throw new IOException("Not a segment file: " + file.getName());
+        }
+        this.version = buf.getInt(footer + 4);
+        if (version < 1 || version > SegmentWriter.VERSION) {
+            throw new IOException("Unsupported segment version in " + file.getName());
+        }
+        this.encodingBytes = version >= 2 ? 4 : 0;
+        this.termCount = buf.getInt(footer + 8);
+        this.termTable = buf.getInt(footer + 12);
+        this.docCount = buf.getInt(footer + 16);
+        this.docTable = buf.getInt(footer + 20);
+        this.linkCount = buf.getInt(footer + 24);
+        this.linkTable = buf.getInt(footer + 28);
+        
+        // Forward entries and deletes (re-index diffing) exist from version 3
+        int extension = footer - SegmentWriter.FOOTER_V3_BYTES;
+        boolean diffs = version >= 3;
+        this.forwardCount = diffs ? buf.getInt(extension) : 0;
+        this.forwardTable = diffs ? buf.getInt(extension + 4) : 0;
+        this.deletedTermCount = diffs ? buf.getInt(extension + 8) : 0;
+        this.deletedTermTable = diffs ? buf.getInt(extension + 12) : 0;
+        this.deletedLinkCount = diffs ? buf.getInt(extension + 16) : 0;
+        this.deletedLinkTable = diffs ? buf.getInt(extension + 20) : 0;
+    }
+    
+    /**
+     * Map a segment file read-only
+     */
+    public static IndexSegment open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Segment larger than 2 GB: " + file.getName());
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new IndexSegment(file, buf);
+        }
+    }
+    
+    /**
+     * Check the file against the CRC32 written before its footer (v4+);
+     * older segments carry no checksum and always pass
+     */
+    public boolean verify() {
+        if (version < 4) {
+            return true;
+        }
+        int checksumPos = buf.capacity() - SegmentWriter.FOOTER_BYTES
+                        - SegmentWriter.FOOTER_V3_BYTES - SegmentWriter.CHECKSUM_BYTES;
+        if (checksumPos < 0) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.slice(0, checksumPos));
+        return (int) crc.getValue() == buf.getInt(checksumPos);
+    }
+    
+    public File getFile() { return file; }
+    public String getName() { return file.getName(); }
+    public long sizeBytes() { return buf.capacity(); }
+    
+    /**
+     * Raw bytes of the file (peer transfers read from the mapping, which
+     * stays valid after a merge deletes the file)
+     */
+    public byte[] bytes(int offset, int length) {
+        byte[] chunk = new byte[length];
+        buf.get(offset, chunk);
+        return chunk;
+    }
+    
+    public int termCount() { return termCount; }
+    public int docCount() { return docCount; }
+    public int linkCount() { return linkCount; }
+    public int forwardCount() { return forwardCount; }
+    public int deletedTermCount() { return deletedTermCount; }
+    public int deletedLinkCount() { return deletedLinkCount; }
+    
+    // ---------- Terms ----------
+    
+    private int termEntry(int i) {
+        return buf.getInt(termTable + i * 4);
+    }
+    
+    public byte[] termAt(int i) {
+        int pos = termEntry(i);
+        byte[] term = new byte[buf.getInt(pos)];
+        buf.get(pos + 4, term);
+        return term;
+    }
+    
+    public int docFrequencyAt(int i) {
+        int pos = termEntry(i);
+        return buf.getInt(pos + 4 + buf.getInt(pos));
+    }
+    
+    public int encodingAt(int i) {
+        if (encodingBytes == 0) {
+            return SegmentWriter.ENCODING_VARINT;
+        }
+        int pos = termEntry(i);
+        return buf.getInt(pos + 8 + buf.getInt(pos));
+    }
+    
+    public int[] postingsAt(int i) {
+        int pos = termEntry(i);
+        pos += 4 + buf.getInt(pos);
+        int count = buf.getInt(pos);
+        if (encodingAt(i) == SegmentWriter.ENCODING_ROARING) {
+            return RoaringPostings.read(buf, pos + 8 + encodingBytes).toArray();
+        }
+        return decode(pos + 8 + encodingBytes, count);
+    }
+    
+    /**
+     * Postings of term i as a bitmap, or null if stored as delta + varint
+     */
+    public RoaringPostings bitmapAt(int i) {
+        if (encodingAt(i) != SegmentWriter.ENCODING_ROARING) {
+            return null;
+        }
+        int pos = termEntry(i);
+        pos += 4 + buf.getInt(pos);
+        return RoaringPostings.read(buf, pos + 8 + encodingBytes);
+    }
+    
+    /**
+     * Term counts per representation:
+     * [varint terms, roaring terms, array containers, bitmap containers, run containers]
+     */
+    public int[] postingsLayout() {
+        int[] counts = layout;
+        if (counts == null) {
+            counts = new int[5];
+            int[] containers = new int[3];
+            for (int i = 0; i < termCount; i++) {
+                if (encodingAt(i) == SegmentWriter.ENCODING_ROARING) {
+                    counts[1]++;
+                    int pos = termEntry(i);
+                    RoaringPostings.countContainers(buf, pos + 4 + buf.getInt(pos) + 12, containers);
+                } else {
+                    counts[0]++;
+                }
+            }
+            System.arraycopy(containers, 0, counts, 2, 3);
+            layout = counts;
+        }
+        return counts;
+    }
+    
+    /**
+     * Binary search of the term dictionary (terms sorted by UTF-8 bytes)
+     * @return term index, or -1 if absent
+     */
+    public int findTerm(byte[] term) {
+        return findTerm(termTable, termCount, term);
+    }
+    
+    private int findTerm(int table, int count, byte[] term) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(buf.getInt(table + mid * 4), term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Index range [from, to) of the terms starting with the prefix
+     */
+    public int[] prefixRange(byte[] prefix) {
+        return new int[] {prefixBound(prefix, false), prefixBound(prefix, true)};
+    }
+    
+    // First term index sorting after the prefix range (after = true) or not before it
+    private int prefixBound(byte[] prefix, boolean after) {
+        int low = 0;
+        int high = termCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparePrefix(termEntry(mid), prefix);
+            if (cmp < 0 || (after && cmp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    // Compare a term with a prefix: 0 if the term starts with it
+    private int comparePrefix(int pos, byte[] prefix) {
+        int len = buf.getInt(pos);
+        int n = Math.min(len, prefix.length);
+        for (int k = 0; k < n; k++) {
+            int cmp = Integer.compare(buf.get(pos + 4 + k) & 0xFF, prefix[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return len >= prefix.length ? 0 : -1;
+    }
+    
+    private int compareTerm(int pos, byte[] term) {
+        int len = buf.getInt(pos);
+        int n = Math.min(len, term.length);
+        for (int k = 0; k < n; k++) {
+            int cmp = Integer.compare(buf.get(pos + 4 + k) & 0xFF, term[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(len, term.length);
+    }
+    
+    @Override
+    public int[] postings(String term) {
+        int i = findTerm(term.getBytes(StandardCharsets.UTF_8));
+        return i >= 0 ? postingsAt(i) : null;
+    }
+    
+    @Override
+    public RoaringPostings bitmap(String term) {
+        int i = findTerm(term.getBytes(StandardCharsets.UTF_8));
+        return i >= 0 ? bitmapAt(i) : null;
+    }
+    
+    @Override
+    public int[] filterPostings(String term, int[] candidates) {
+        int i = findTerm(term.getBytes(StandardCharsets.UTF_8));
+        if (i < 0) {
+            return null;
+        }
+        if (encodingAt(i) == SegmentWriter.ENCODING_ROARING) {
+            return bitmapAt(i).filter(candidates);
+        }
+        int pos = termEntry(i);
+        pos += 4 + buf.getInt(pos);
+        return filterDecoded(pos + 8 + encodingBytes, buf.getInt(pos), candidates);
+    }
+    
+    @Override
+    public int docFrequency(String term) {
+        int i = findTerm(term.getBytes(StandardCharsets.UTF_8));
+        return i >= 0 ? docFrequencyAt(i) : 0;
+    }
+    
+    @Override
+    public Map<String, Integer> topTerms(String prefix, int k) {
+        TermCompleter top = completer;
+        if (top == null) {
+            synchronized (this) {
+                if (completer == null) {
+                    completer = new TermCompleter(this);
+                }
+                top = completer;
+            }
+        }
+        int[] range = prefixRange(prefix.getBytes(StandardCharsets.UTF_8));
+        Map<String, Integer> terms = new LinkedHashMap<>();
+        for (int i : top.top(range[0], range[1], k)) {
+            terms.put(new String(termAt(i), StandardCharsets.UTF_8), docFrequencyAt(i));
+        }
+        return terms;
+    }
+    
+    /**
+     * Heap held by the completion tree (0 until a completion ran)
+     */
+    public long completerBytes() {
+        TermCompleter top = completer;
+        return top != null ? top.heapBytes() : 0;
+    }
+    
+    // ---------- Stored fields ----------
+    
+    private int docEntry(int i) {
+        return buf.getInt(docTable + i * 4);
+    }
+    
+    public int docIdAt(int i) {
+        return buf.getInt(docEntry(i));
+    }
+    
+    public PageInfo pageInfoAt(int i) {
+        int pos = docEntry(i) + 4;
+        String title = readString(pos);
+        pos += 4 + buf.getInt(pos);
+        String citation = readString(pos);
+        return new PageInfo(title, citation);
+    }
+    
+    @Override
+    public PageInfo pageInfo(int docId) {
+        int i = findEntry(docTable, docCount, docId);
+        return i >= 0 ? pageInfoAt(i) : null;
+    }
+    
+    // ---------- Links ----------
+    
+    private int linkEntry(int i) {
+        return buf.getInt(linkTable + i * 4);
+    }
+    
+    public int linkTargetAt(int i) {
+        return buf.getInt(linkEntry(i));
+    }
+    
+    public int linkCountAt(int i) {
+        return buf.getInt(linkEntry(i) + 4);
+    }
+    
+    public int[] linksAt(int i) {
+        int pos = linkEntry(i);
+        return decode(pos + 12, buf.getInt(pos + 4));
+    }
+    
+    @Override
+    public int[] incomingLinks(int docId) {
+        int i = findEntry(linkTable, linkCount, docId);
+        return i >= 0 ? linksAt(i) : null;
+    }
+    
+    // ---------- Forward entries and deletes ----------
+    
+    private int forwardEntry(int i) {
+        return buf.getInt(forwardTable + i * 4);
+    }
+    
+    public int forwardDocIdAt(int i) {
+        return buf.getInt(forwardEntry(i));
+    }
+    
+    public ForwardEntry forwardAt(int i) {
+        return ForwardEntry.decode(buf, forwardEntry(i) + 8);
+    }
+    
+    @Override
+    public ForwardEntry forward(int docId) {
+        int i = findEntry(forwardTable, forwardCount, docId);
+        return i >= 0 ? forwardAt(i) : null;
+    }
+    
+    private int deletedTermEntry(int i) {
+        return buf.getInt(deletedTermTable + i * 4);
+    }
+    
+    public byte[] deletedTermAt(int i) {
+        int pos = deletedTermEntry(i);
+        byte[] term = new byte[buf.getInt(pos)];
+        buf.get(pos + 4, term);
+        return term;
+    }
+    
+    public int[] deletedPostingsAt(int i) {
+        int pos = deletedTermEntry(i);
+        pos += 4 + buf.getInt(pos);
+        return decode(pos + 8, buf.getInt(pos));
+    }
+    
+    @Override
+    public int[] deletedPostings(String term) {
+        if (deletedTermCount == 0) {
+            return null;
+        }
+        int i = findTerm(deletedTermTable, deletedTermCount, term.getBytes(StandardCharsets.UTF_8));
+        return i >= 0 ? deletedPostingsAt(i) : null;
+    }
+    
+    private int deletedLinkEntry(int i) {
+        return buf.getInt(deletedLinkTable + i * 4);
+    }
+    
+    public int deletedLinkTargetAt(int i) {
+        return buf.getInt(deletedLinkEntry(i));
+    }
+    
+    public int[] deletedLinksAt(int i) {
+        int pos = deletedLinkEntry(i);
+        return decode(pos + 12, buf.getInt(pos + 4));
+    }
+    
+    @Override
+    public int[] deletedLinks(int docId) {
+        int i = findEntry(deletedLinkTable, deletedLinkCount, docId);
+        return i >= 0 ? deletedLinksAt(i) : null;
+    }
+    
+    // ---------- Helpers ----------
+    
+    /**
+     * Binary search of a table whose entries start with an int doc ID
+     */
+    private int findEntry(int table, int count, int docId) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = buf.getInt(buf.getInt(table + mid * 4));
+            if (value < docId) {
+                low = mid + 1;
+            } else if (value > docId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Decode delta + varint postings starting at pos
+     */
+    private int[] decode(int pos, int count) {
+        int[] ids = new int[count];
+        int current = -1;
+        for (int i = 0; i < count; i++) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get(pos++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            current += value;
+            ids[i] = current;
+        }
+        return ids;
+    }
+    
+    /**
+     * Keep the candidates found in the delta + varint postings at pos,
+     * decoding one ID at a time and stopping past the last candidate
+     */
+    private int[] filterDecoded(int pos, int count, int[] candidates) {
+        int[] kept = new int[candidates.length];
+        int n = 0;
+        int c = 0;
+        int current = -1;
+        for (int i = 0; i < count && c < candidates.length; i++) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get(pos++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            current += value;
+            while (c < candidates.length && candidates[c] < current) {
+                c++;
+            }
+            if (c < candidates.length && candidates[c] == current) {
+                kept[n++] = current;
+                c++;
+            }
+        }
+        return n == kept.length ? kept : Arrays.copyOf(kept, n);
+    }
+    
+    private String readString(int pos) {
+        byte[] bytes = new byte[buf.getInt(pos)];
+        buf.get(pos + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
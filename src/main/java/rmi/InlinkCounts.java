@@ -0,0 +1,61 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * In-link Counts - Number of distinct pages linking to each doc ID
+ *
+ * Ranking reads only this table, so a search never touches the link lists.
+ * Storage is a directory of fixed-size chunks that are never copied, so
+ * growing the table cannot lose a concurrent increment, and reads are lock-free.
+ */
+class InlinkCounts {
+    
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    private volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[0];
+    
+    public int get(int docId) {
+        AtomicIntegerArray[] current = chunks;
+        int c = docId >>> CHUNK_BITS;
+        return c < current.length ? current[c].get(docId & CHUNK_MASK) : 0;
+    }
+    
+    public void add(int docId, int delta) {
+        chunk(docId).addAndGet(docId & CHUNK_MASK, delta);
+    }
+    
+    public void increment(int docId) {
+        add(docId, 1);
+    }
+    
+    public void set(int docId, int value) {
+        chunk(docId).set(docId & CHUNK_MASK, value);
+    }
+    
+    public long heapBytes() {
+        return (long) chunks.length * CHUNK_SIZE * 4;
+    }
+    
+    private AtomicIntegerArray chunk(int docId) {
+        int c = docId >>> CHUNK_BITS;
+        AtomicIntegerArray[] current = chunks;
+        if (c < current.length) {
+            return current[c];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (c >= current.length) {
+                AtomicIntegerArray[] grown = java.util.Arrays.copyOf(current, c + 1);
+                for (int i = current.length; i <= c; i++) {
+                    grown[i] = new AtomicIntegerArray(CHUNK_SIZE);
+                }
+                chunks = grown;
+                current = grown;
+            }
+            return current[c];
+        }
+    }
+}
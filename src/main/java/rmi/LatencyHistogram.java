@@ -0,0 +1,147 @@
+package rmi;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Latency Histogram - Thread-safe latency distribution over a sliding window
+ *
+ * Durations are recorded in nanoseconds into log-linear buckets (8 per power
+ * of two, so a reported percentile is within 12.5% of the true value; max is
+ * exact). The window is split into slots and a slot is cleared when it is
+ * reused, so a summary covers only the last windowMillis. Recording is a few
+ * atomic updates; recorders never wait on each other except when a slot rolls.
+ */
+class LatencyHistogram {
+    
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final int SLOTS = 6;
+    
+    private final long windowMillis;
+    private final long slotMillis;
+    private final Slot[] slots = new Slot[SLOTS];
+    
+    private static final class Slot {
+        volatile long epoch = -1;
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+    }
+    
+    LatencyHistogram(long windowMillis) {
+        this.windowMillis = windowMillis;
+        this.slotMillis = Math.max(1, windowMillis / SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+    
+    /**
+     * Record the time elapsed since a System.nanoTime() reading
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+    
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long epoch = System.currentTimeMillis() / slotMillis;
+        Slot slot = slots[(int) (epoch % SLOTS)];
+        if (slot.epoch != epoch) {
+            roll(slot, epoch);
+        }
+        slot.counts.incrementAndGet(bucketOf(nanos));
+        slot.total.addAndGet(nanos);
+        slot.max.accumulateAndGet(nanos, Math::max);
+    }
+    
+    private void roll(Slot slot, long epoch) {
+        synchronized (slot) {
+            if (slot.epoch < epoch) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    slot.counts.set(i, 0);
+                }
+                slot.total.set(0);
+                slot.max.set(0);
+                slot.epoch = epoch;
+            }
+        }
+    }
+    
+    /**
+     * Count, mean and percentiles of the slots still inside the window
+     */
+    LatencySummary summary() {
+        long epoch = System.currentTimeMillis() / slotMillis;
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        long total = 0;
+        long max = 0;
+        for (Slot slot : slots) {
+            if (slot.epoch <= epoch - SLOTS || slot.epoch > epoch) {
+                continue; // expired (or not reached yet)
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = slot.counts.get(i);
+                counts[i] += c;
+                count += c;
+            }
+            total += slot.total.get();
+            max = Math.max(max, slot.max.get());
+        }
+        
+        LatencySummary summary = new LatencySummary();
+        summary.windowSeconds = windowMillis / 1000;
+        summary.count = count;
+        if (count > 0) {
+            summary.meanMs = toMillis(total / count);
+            summary.p50Ms = toMillis(Math.min(max, percentile(counts, count, 0.50)));
+            summary.p95Ms = toMillis(Math.min(max, percentile(counts, count, 0.95)));
+            summary.p99Ms = toMillis(Math.min(max, percentile(counts, count, 0.99)));
+            summary.maxMs = toMillis(max);
+        }
+        return summary;
+    }
+    
+    /**
+     * Upper bound of the bucket holding the given rank
+     */
+    private static long percentile(long[] counts, long count, double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+    
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        int shift = magnitude - SUB_BITS;
+        long lower = (long) (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+    
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,29 @@
+package rmi;
+
+/**
+ * Latency of one operation over the last window (see LatencyHistogram)
+ */
+public class LatencySummary implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+    public long windowSeconds;
+    public long count;
+    public double meanMs;
+    public double p50Ms;
+    public double p95Ms;
+    public double p99Ms;
+    public double maxMs;
+
+    public long getWindowSeconds() { return windowSeconds; }
+    public long getCount() { return count; }
+    public double getMeanMs() { return meanMs; }
+    public double getP50Ms() { return p50Ms; }
+    public double getP95Ms() { return p95Ms; }
+    public double getP99Ms() { return p99Ms; }
+    public double getMaxMs() { return maxMs; }
+
+    @Override
+    public String toString() {
+        return String.format("p50 %.2f / p95 %.2f / p99 %.2f / max %.2f ms (%d in %ds)",
+                             p50Ms, p95Ms, p99Ms, maxMs, count, windowSeconds);
+    }
+}
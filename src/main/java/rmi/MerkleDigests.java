@@ -0,0 +1,152 @@
+package rmi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Merkle Digests - Digests of a barrel's pages by URL-hash range (anti-entropy)
+ *
+ * Pages fall into 2^depth leaves by the top bits of their URL hash. A leaf's
+ * digest is the sum of its pages' digests (hash of URL, title and citation),
+ * so it is order-independent and updated in O(1) when a page is added or
+ * changes. Inner nodes are sums of their children, computed on request.
+ * Replicas holding the same pages have equal digests at every node.
+ */
+class MerkleDigests {
+    
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    private final int depth;
+    private final AtomicLongArray leaves;
+    
+    // Doc IDs per leaf (a page stays in its leaf, its URL never changes); also the leaf's lock
+    private final SegmentWriter.IntList[] leafDocs;
+    
+    // Digest per doc ID, 0 for documents without stored fields
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+    
+    MerkleDigests(int depth) {
+        this.depth = depth;
+        this.leaves = new AtomicLongArray(1 << depth);
+        this.leafDocs = new SegmentWriter.IntList[1 << depth];
+        for (int i = 0; i < leafDocs.length; i++) {
+            leafDocs[i] = new SegmentWriter.IntList();
+        }
+    }
+    
+    int getDepth() {
+        return depth;
+    }
+    
+    /**
+     * Record the current version of a page
+     */
+    void update(int docId, String url, String title, String citation) {
+        long digest = pageDigest(url, title, citation);
+        int leaf = leafOf(url);
+        SegmentWriter.IntList docs = leafDocs[leaf];
+        synchronized (docs) {
+            long old = chunk(docId).getAndSet(docId & CHUNK_MASK, digest);
+            if (old == digest) {
+                return;
+            }
+            if (old == 0) {
+                docs.add(docId);
+            }
+            leaves.addAndGet(leaf, digest - old);
+        }
+    }
+    
+    long digest(int docId) {
+        AtomicLongArray[] current = chunks;
+        int c = docId >>> CHUNK_BITS;
+        return c < current.length ? current[c].get(docId & CHUNK_MASK) : 0;
+    }
+    
+    /**
+     * Digests of the given nodes of one level (level 0 is the root, level
+     * depth the leaves; node i of a level covers leaves [i * w, (i + 1) * w))
+     */
+    long[] nodes(int level, int[] indexes) {
+        int width = 1 << (depth - level);
+        long[] digests = new long[indexes.length];
+        for (int n = 0; n < indexes.length; n++) {
+            long sum = 0;
+            for (int leaf = indexes[n] * width; leaf < (indexes[n] + 1) * width; leaf++) {
+                sum += leaves.get(leaf);
+            }
+            digests[n] = sum;
+        }
+        return digests;
+    }
+    
+    int[] docsInLeaf(int leaf) {
+        SegmentWriter.IntList docs = leafDocs[leaf];
+        synchronized (docs) {
+            int[] ids = new int[docs.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = docs.get(i);
+            }
+            return ids;
+        }
+    }
+    
+    int leafOf(String url) {
+        return depth == 0 ? 0 : (int) (hash(url) >>> (64 - depth));
+    }
+    
+    static long pageDigest(String url, String title, String citation) {
+        long digest = hash(url + '\0' + title + '\0' + citation);
+        return digest != 0 ? digest : 1; // 0 means "no page"
+    }
+    
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, then a finalizer so the top bits mix well
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    long heapBytes() {
+        long total = 8L * leaves.length() + (long) chunks.length * CHUNK_SIZE * 8;
+        for (SegmentWriter.IntList docs : leafDocs) {
+            synchronized (docs) {
+                total += 16 + 4L * docs.capacity();
+            }
+        }
+        return total;
+    }
+    
+    private AtomicLongArray chunk(int docId) {
+        int c = docId >>> CHUNK_BITS;
+        AtomicLongArray[] current = chunks;
+        if (c < current.length) {
+            return current[c];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (c >= current.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(current, c + 1);
+                for (int i = current.length; i <= c; i++) {
+                    grown[i] = new AtomicLongArray(CHUNK_SIZE);
+                }
+                chunks = grown;
+                current = grown;
+            }
+            return current[c];
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package rmi;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Off-Heap Arena - Append-only direct memory for one index buffer
+ *
+ * Keys, postings, stored fields and forward entries of an off-heap
+ * IndexBuffer (see OffHeapTable) are written into 1 MB direct ByteBuffers,
+ * so the collector never copies or scans them. Space is never reused: a
+ * postings list that grows moves to a new region and its old bytes stay
+ * readable for searches still holding them. The whole arena is released at once when the flushed buffer
+ * becomes unreachable (the chunks' cleaners free the native memory).
+ *
+ * Addresses are ints: [chunk (11 bits)][offset in chunk (20 bits)].
+ * Regions never span chunks; a region larger than a chunk gets its own.
+ * Allocation is synchronized; writes go to regions owned by one writer.
+ */
+class OffHeapArena {
+    
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+    
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int used = CHUNK_SIZE; // bytes allocated in the last chunk (full: none yet)
+    private long reserved = 0;     // native bytes held by the chunks
+    private long allocated = 0;    // bytes handed out
+    
+    /**
+     * Reserve a region
+     * @return its address
+     */
+    synchronized int allocate(int size) {
+        ByteBuffer[] current = chunks;
+        if (used + size > CHUNK_SIZE) {
+            if (current.length == MAX_CHUNKS) {
+                throw new IllegalStateException("Off-heap arena full");
+            }
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size));
+            reserved += current[current.length - 1].capacity();
+            used = 0;
+            chunks = current;
+        }
+        int address = ((current.length - 1) << CHUNK_BITS) | used;
+        used += size;
+        allocated += size;
+        return address;
+    }
+    
+    /**
+     * Chunk holding an address (read with absolute gets at offset(address))
+     */
+    ByteBuffer chunk(int address) {
+        return chunks[address >>> CHUNK_BITS];
+    }
+    
+    static int offset(int address) {
+        return address & (CHUNK_SIZE - 1);
+    }
+    
+    void put(int address, byte[] src, int from, int length) {
+        chunk(address).put(offset(address), src, from, length);
+    }
+    
+    void get(int address, byte[] dst, int from, int length) {
+        chunk(address).get(offset(address), dst, from, length);
+    }
+    
+    /**
+     * Copy length bytes between two regions
+     */
+    void copy(int from, int to, int length) {
+        chunk(to).put(offset(to), chunk(from), offset(from), length);
+    }
+    
+    /**
+     * Write a varint at a position inside the region starting at address
+     * @return bytes written
+     */
+    int writeVarInt(int address, int at, int value) {
+        ByteBuffer buf = chunk(address);
+        int pos = offset(address) + at;
+        int start = pos;
+        while ((value & ~0x7F) != 0) {
+            buf.put(pos++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put(pos++, (byte) value);
+        return pos - start;
+    }
+    
+    /**
+     * Store a record and return its address
+     */
+    int store(byte[] record) {
+        int address = allocate(record.length);
+        put(address, record, 0, record.length);
+        return address;
+    }
+    
+    synchronized long reservedBytes() {
+        return reserved;
+    }
+    
+    synchronized long allocatedBytes() {
+        return allocated;
+    }
+}
@@ -0,0 +1,533 @@
+package rmi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Off-Heap Table - Keyed byte regions of an OffHeapArena: postings lists
+ * (same encoding as PostingList) or whole records (stored fields, forward
+ * entries) of an off-heap IndexBuffer
+ *
+ * Keys are term bytes or 4-byte doc IDs, stored in the arena next to the
+ * values. The heap only keeps primitive tables: key -> entry as an
+ * open-addressing table of entry numbers (probes compare a stored hash, then
+ * the key bytes), and per entry, in fixed-size chunks, the key's hash and
+ * address and the published [region][length] of its value.
+ *
+ * Lookups are lock-free, like in DocIdDictionary; adding a key is
+ * synchronized. Lists are changed under one of a few striped locks and
+ * published with a single volatile write: appends never touch bytes already
+ * visible, and rebuilds or growth write a new region, so a reader always
+ * decodes a consistent list.
+ */
+class OffHeapTable {
+    
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int STRIPES = 64;
+    
+    // Heap bytes per entry: hash, key address, value, count, last doc ID, capacity
+    private static final int ENTRY_BYTES = 28;
+    
+    private final OffHeapArena arena;
+    
+    // key -> entry: slots hold entry + 1 (0 = free), linear probing
+    private volatile AtomicIntegerArray table = new AtomicIntegerArray(1024);
+    private volatile int size;
+    
+    // Per entry: key hash and address (immutable), published value, and the
+    // list state only writers read (doc ID count, last doc ID, region capacity)
+    private volatile int[][] hashes = new int[0][];
+    private volatile int[][] keys = new int[0][];
+    private volatile AtomicLongArray[] values = new AtomicLongArray[0];
+    private volatile AtomicIntegerArray[] counts = new AtomicIntegerArray[0];
+    private volatile int[][] lasts = new int[0][];
+    private volatile int[][] capacities = new int[0][];
+    
+    private final Object[] locks = new Object[STRIPES];
+    
+    // Entries sorted by key, covering the first sorted.length entries
+    private volatile int[] sorted = new int[0];
+    
+    OffHeapTable(OffHeapArena arena) {
+        this.arena = arena;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+    
+    static byte[] key(String term) {
+        return term.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    static byte[] key(int docId) {
+        return new byte[] { (byte) (docId >>> 24), (byte) (docId >>> 16), (byte) (docId >>> 8), (byte) docId };
+    }
+    
+    static int docId(byte[] key) {
+        return ((key[0] & 0xFF) << 24) | ((key[1] & 0xFF) << 16) | ((key[2] & 0xFF) << 8) | (key[3] & 0xFF);
+    }
+    
+    /**
+     * Number of keys
+     */
+    int size() {
+        return size;
+    }
+    
+    // ==================== Postings lists ====================
+    
+    /**
+     * Add a doc ID to the key's list (created if new)
+     * @return true if the ID was not already present
+     */
+    boolean add(byte[] key, int docId) {
+        int entry = findOrAdd(key, 0);
+        synchronized (locks[entry % STRIPES]) {
+            int c = entry >>> CHUNK_BITS;
+            int i = entry & CHUNK_MASK;
+            int last = lasts[c][i];
+            if (docId > last) {
+                long value = values[c].get(i);
+                int region = region(value);
+                int length = length(value);
+                int capacity = capacities[c][i];
+                if (length + 5 > capacity) {
+                    capacity = Math.max(capacity * 2, 16);
+                    int moved = arena.allocate(capacity);
+                    if (length > 0) {
+                        arena.copy(region, moved, length);
+                    }
+                    region = moved;
+                    capacities[c][i] = capacity;
+                }
+                length += arena.writeVarInt(region, length, docId - last); // first gap is relative to -1
+                lasts[c][i] = docId;
+                counts[c].set(i, counts[c].get(i) + 1);
+                values[c].set(i, value(region, length));
+                return true;
+            }
+            if (docId == last) {
+                return false;
+            }
+            
+            // Out of order: splice into a copy, as PostingList.add does
+            byte[] data = bytes(values[c].get(i));
+            PostingList.Cursor cursor = new PostingList.Cursor(data, data.length);
+            int prev = -1;
+            while (cursor.hasNext()) {
+                int start = cursor.pos;
+                int id = cursor.next();
+                if (id == docId) {
+                    return false;
+                }
+                if (id > docId) {
+                    int end = cursor.pos;
+                    byte[] spliced = new byte[data.length + 10];
+                    System.arraycopy(data, 0, spliced, 0, start);
+                    int pos = PostingList.writeVarInt(spliced, start, docId - prev);
+                    pos = PostingList.writeVarInt(spliced, pos, id - docId);
+                    System.arraycopy(data, end, spliced, pos, data.length - end);
+                    replace(entry, spliced, pos + (data.length - end));
+                    counts[c].set(i, counts[c].get(i) + 1);
+                    return true;
+                }
+                prev = id;
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Remove a doc ID from the key's list
+     * @return true if the ID was present
+     */
+    boolean remove(byte[] key, int docId) {
+        int entry = find(key);
+        if (entry < 0) {
+            return false;
+        }
+        synchronized (locks[entry % STRIPES]) {
+            int c = entry >>> CHUNK_BITS;
+            int i = entry & CHUNK_MASK;
+            if (docId > lasts[c][i]) {
+                return false;
+            }
+            byte[] data = bytes(values[c].get(i));
+            PostingList.Cursor cursor = new PostingList.Cursor(data, data.length);
+            int prev = -1;
+            while (cursor.hasNext()) {
+                int start = cursor.pos;
+                int id = cursor.next();
+                if (id > docId) {
+                    return false;
+                }
+                if (id == docId) {
+                    int end = cursor.pos;
+                    byte[] spliced = new byte[data.length + 5];
+                    System.arraycopy(data, 0, spliced, 0, start);
+                    int pos = start;
+                    if (cursor.hasNext()) {
+                        // The following entry now takes the removed entry's gap plus its own
+                        int next = cursor.next();
+                        pos = PostingList.writeVarInt(spliced, pos, next - prev);
+                        end = cursor.pos;
+                    } else {
+                        lasts[c][i] = prev;
+                    }
+                    System.arraycopy(data, end, spliced, pos, data.length - end);
+                    replace(entry, spliced, pos + (data.length - end));
+                    counts[c].set(i, counts[c].get(i) - 1);
+                    return true;
+                }
+                prev = id;
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Write rebuilt list bytes into a new region and publish it (caller holds the stripe)
+     */
+    private void replace(int entry, byte[] rebuilt, int length) {
+        int c = entry >>> CHUNK_BITS;
+        int i = entry & CHUNK_MASK;
+        int capacity = Math.max(16, length + 5);
+        int region = arena.allocate(capacity);
+        arena.put(region, rebuilt, 0, length);
+        capacities[c][i] = capacity;
+        values[c].set(i, value(region, length));
+    }
+    
+    /**
+     * Doc IDs of the key's list, or null if the key is absent
+     */
+    int[] toArray(byte[] key) {
+        int entry = find(key);
+        return entry >= 0 ? toArrayAt(entry) : null;
+    }
+    
+    int[] toArrayAt(int entry) {
+        long value = values[entry >>> CHUNK_BITS].get(entry & CHUNK_MASK);
+        if (length(value) == 0) {
+            return new int[0];
+        }
+        ByteBuffer chunk = arena.chunk(region(value));
+        int pos = OffHeapArena.offset(region(value));
+        int end = pos + length(value);
+        int[] ids = new int[Math.max(4, countAt(entry))];
+        int n = 0;
+        int current = -1;
+        while (pos < end) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = chunk.get(pos++);
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            current += gap;
+            if (n == ids.length) {
+                ids = Arrays.copyOf(ids, n * 2); // count read before a later append was published
+            }
+            ids[n++] = current;
+        }
+        return n == ids.length ? ids : Arrays.copyOf(ids, n);
+    }
+    
+    /**
+     * Length of the key's list, 0 if absent
+     */
+    int count(byte[] key) {
+        int entry = find(key);
+        return entry >= 0 ? countAt(entry) : 0;
+    }
+    
+    int countAt(int entry) {
+        return counts[entry >>> CHUNK_BITS].get(entry & CHUNK_MASK);
+    }
+    
+    // ==================== Records ====================
+    
+    /**
+     * Store a record under the key, replacing the previous one
+     */
+    void put(byte[] key, byte[] record) {
+        long value = value(arena.store(record), record.length);
+        int entry = findOrAdd(key, value);
+        values[entry >>> CHUNK_BITS].set(entry & CHUNK_MASK, value);
+    }
+    
+    /**
+     * Arena address of the key's record, or -1 if absent
+     */
+    int record(byte[] key) {
+        int entry = find(key);
+        return entry >= 0 ? region(values[entry >>> CHUNK_BITS].get(entry & CHUNK_MASK)) : -1;
+    }
+    
+    // ==================== Keys ====================
+    
+    /**
+     * Key bytes of an entry (entries are numbered 0..size-1 in insertion order)
+     */
+    byte[] keyAt(int entry) {
+        int address = keys[entry >>> CHUNK_BITS][entry & CHUNK_MASK];
+        ByteBuffer chunk = arena.chunk(address);
+        int pos = OffHeapArena.offset(address);
+        byte[] key = new byte[chunk.getInt(pos)];
+        chunk.get(pos + 4, key);
+        return key;
+    }
+    
+    /**
+     * All entries ordered by key (unsigned bytes, as in a segment)
+     */
+    int[] sortedEntries() {
+        int[] s = sorted;
+        if (s.length < size) {
+            s = sort();
+        }
+        return s;
+    }
+    
+    /**
+     * Entries whose key starts with the prefix (unordered). The sorted order
+     * is rebuilt only once enough keys were added after it; newer entries
+     * are scanned.
+     */
+    List<Integer> withPrefix(byte[] prefix) {
+        int[] s = sorted;
+        int n = size;
+        if (n - s.length > Math.max(1024, s.length / 4)) {
+            s = sort();
+            n = Math.max(n, s.length);
+        }
+        List<Integer> matches = new ArrayList<>();
+        int lo = 0;
+        int hi = s.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(s[mid], prefix, false) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int k = lo; k < s.length && compareKey(s[k], prefix, true) == 0; k++) {
+            matches.add(s[k]);
+        }
+        for (int entry = s.length; entry < n; entry++) {
+            if (compareKey(entry, prefix, true) == 0) {
+                matches.add(entry);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Sort all entries (outside the lock, so adding keys is never held up)
+     */
+    private int[] sort() {
+        int n = size;
+        if (sorted.length >= n) {
+            return sorted;
+        }
+        Integer[] order = new Integer[n];
+        for (int entry = 0; entry < n; entry++) {
+            order[entry] = entry;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keyAt(a), keyAt(b)));
+        int[] s = new int[n];
+        for (int k = 0; k < n; k++) {
+            s[k] = order[k];
+        }
+        synchronized (this) {
+            if (s.length > sorted.length) {
+                sorted = s;
+            }
+        }
+        return s;
+    }
+    
+    /**
+     * Compare an entry's key with the given bytes (unsigned); as a prefix,
+     * a key starting with them compares equal
+     */
+    private int compareKey(int entry, byte[] other, boolean prefix) {
+        int address = keys[entry >>> CHUNK_BITS][entry & CHUNK_MASK];
+        ByteBuffer chunk = arena.chunk(address);
+        int pos = OffHeapArena.offset(address);
+        int len = chunk.getInt(pos);
+        int n = Math.min(len, other.length);
+        for (int k = 0; k < n; k++) {
+            int cmp = (chunk.get(pos + 4 + k) & 0xFF) - (other[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return prefix && len >= other.length ? 0 : len - other.length;
+    }
+    
+    /**
+     * Heap bytes of the lookup table and per-entry chunks
+     */
+    long heapBytes() {
+        return 4L * table.length() + (long) ENTRY_BYTES * CHUNK_SIZE * hashes.length + 4L * sorted.length;
+    }
+    
+    private int find(byte[] key) {
+        int hash = hash(key);
+        AtomicIntegerArray t;
+        int entry;
+        do {
+            t = table;
+            entry = find(t, key, hash);
+        } while (entry < 0 && t != table); // resized while probing: the key may be in the new table
+        return entry;
+    }
+    
+    private int find(AtomicIntegerArray t, byte[] key, int hash) {
+        int mask = t.length() - 1;
+        for (int i = slot(hash, mask); ; i = (i + 1) & mask) {
+            int value = t.get(i);
+            if (value == 0) {
+                return -1;
+            }
+            int entry = value - 1;
+            if (hashes[entry >>> CHUNK_BITS][entry & CHUNK_MASK] == hash && compareKey(entry, key, false) == 0) {
+                return entry;
+            }
+        }
+    }
+    
+    /**
+     * Entry of a key, added with the given value if new
+     */
+    private int findOrAdd(byte[] key, long value) {
+        int entry = find(key);
+        if (entry >= 0) {
+            return entry;
+        }
+        synchronized (this) {
+            int hash = hash(key);
+            entry = find(table, key, hash);
+            if (entry >= 0) {
+                return entry;
+            }
+            entry = size;
+            ensureCapacity(entry);
+            int c = entry >>> CHUNK_BITS;
+            int i = entry & CHUNK_MASK;
+            ByteBuffer record = ByteBuffer.allocate(4 + key.length);
+            record.putInt(key.length).put(key);
+            keys[c][i] = arena.store(record.array());
+            hashes[c][i] = hash;
+            values[c].set(i, value);
+            lasts[c][i] = -1;
+            insert(entry, hash);
+            size = entry + 1;
+            return entry;
+        }
+    }
+    
+    /**
+     * Add an entry to the table, doubling it at 3/4 load (caller holds the lock)
+     */
+    private void insert(int entry, int hash) {
+        AtomicIntegerArray t = table;
+        if ((entry + 1) * 4L > t.length() * 3L) {
+            AtomicIntegerArray grown = new AtomicIntegerArray(t.length() * 2);
+            for (int k = 0; k < t.length(); k++) {
+                int value = t.get(k);
+                if (value != 0) {
+                    int old = value - 1;
+                    put(grown, old, hashes[old >>> CHUNK_BITS][old & CHUNK_MASK]);
+                }
+            }
+            table = grown;
+            t = grown;
+        }
+        put(t, entry, hash);
+    }
+    
+    private static void put(AtomicIntegerArray t, int entry, int hash) {
+        int mask = t.length() - 1;
+        int i = slot(hash, mask);
+        while (t.get(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        t.set(i, entry + 1);
+    }
+    
+    /**
+     * Allocate the per-entry chunks up to entry (caller holds the lock)
+     */
+    private void ensureCapacity(int entry) {
+        int c = entry >>> CHUNK_BITS;
+        if (c < hashes.length) {
+            return;
+        }
+        int[][] grownKeys = Arrays.copyOf(keys, c + 1);
+        AtomicLongArray[] grownValues = Arrays.copyOf(values, c + 1);
+        AtomicIntegerArray[] grownCounts = Arrays.copyOf(counts, c + 1);
+        int[][] grownLasts = Arrays.copyOf(lasts, c + 1);
+        int[][] grownCapacities = Arrays.copyOf(capacities, c + 1);
+        int[][] grownHashes = Arrays.copyOf(hashes, c + 1);
+        for (int k = hashes.length; k <= c; k++) {
+            grownKeys[k] = new int[CHUNK_SIZE];
+            grownValues[k] = new AtomicLongArray(CHUNK_SIZE);
+            grownCounts[k] = new AtomicIntegerArray(CHUNK_SIZE);
+            grownLasts[k] = new int[CHUNK_SIZE];
+            grownCapacities[k] = new int[CHUNK_SIZE];
+            grownHashes[k] = new int[CHUNK_SIZE];
+        }
+        keys = grownKeys;
+        values = grownValues;
+        counts = grownCounts;
+        lasts = grownLasts;
+        capacities = grownCapacities;
+        hashes = grownHashes;
+    }
+    
+    private byte[] bytes(long value) {
+        byte[] data = new byte[length(value)];
+        if (data.length > 0) {
+            arena.get(region(value), data, 0, data.length);
+        }
+        return data;
+    }
+    
+    private static long value(int region, int length) {
+        return ((long) region << 32) | (length & 0xFFFFFFFFL);
+    }
+    
+    private static int region(long value) {
+        return (int) (value >>> 32);
+    }
+    
+    private static int length(long value) {
+        return (int) value;
+    }
+    
+    /**
+     * 32-bit FNV-1a
+     */
+    private static int hash(byte[] bytes) {
+        int h = 0x811c9dc5;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+    
+    private static int slot(int hash, int mask) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,104 @@
+package rmi;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Page Batch - Several crawled pages sent to a barrel in a single RMI call
+ *
+ * Words and links of all pages share one string table, so a term or URL
+ * that appears in many pages of the batch is only serialized once. Each
+ * page refers to its words/links by index into that table.
+ *
+ * In sharded mode a batch may also carry link-only entries (null title):
+ * links of a page owned by another shard, pointing into this shard.
+ */
+public class PageBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final List<String> urls = new ArrayList<>();
+    private final List<String> titles = new ArrayList<>();
+    private final List<String> citations = new ArrayList<>();
+    private final List<int[]> words = new ArrayList<>();
+    private final List<int[]> links = new ArrayList<>();
+    
+    // Shared string table for words and links
+    private final List<String> strings = new ArrayList<>();
+    private transient Map<String, Integer> stringIndex;
+    
+    // Creation time of the oldest page (used by time-window flushing)
+    private transient long firstAddedAt = 0;
+    
+    /**
+     * Add a page to the batch
+     */
+    public void add(String url, String title, String citation, Set<String> pageWords, Set<String> pageLinks) {
+        if (urls.isEmpty()) {
+            firstAddedAt = System.currentTimeMillis();
+        }
+        urls.add(url);
+        titles.add(title);
+        citations.add(citation);
+        words.add(intern(pageWords));
+        links.add(intern(pageLinks));
+    }
+    
+    /**
+     * Add the links of a page owned by another shard
+     */
+    public void addLinks(String url, Set<String> pageLinks) {
+        add(url, null, null, Collections.emptySet(), pageLinks);
+    }
+    
+    private int[] intern(Collection<String> values) {
+        if (stringIndex == null) {
+            // Built lazily: barrels only read batches, they never add to them
+            stringIndex = new HashMap<>();
+            for (int i = 0; i < strings.size(); i++) {
+                stringIndex.put(strings.get(i), i);
+            }
+        }
+        int[] refs = new int[values.size()];
+        int i = 0;
+        for (String value : values) {
+            Integer ref = stringIndex.get(value);
+            if (ref == null) {
+                ref = strings.size();
+                strings.add(value);
+                stringIndex.put(value, ref);
+            }
+            refs[i++] = ref;
+        }
+        return refs;
+    }
+    
+    /**
+     * New batch with only the pages at the given positions (used to resend NACKed pages)
+     */
+    public PageBatch subset(int[] positions) {
+        PageBatch sub = new PageBatch();
+        for (int pos : positions) {
+            sub.add(urls.get(pos), titles.get(pos), citations.get(pos), getWords(pos), getLinks(pos));
+        }
+        return sub;
+    }
+    
+    public int size() { return urls.size(); }
+    public boolean isEmpty() { return urls.isEmpty(); }
+    public long getAgeMillis() { return urls.isEmpty() ? 0 : System.currentTimeMillis() - firstAddedAt; }
+    
+    public String getUrl(int i) { return urls.get(i); }
+    public String getTitle(int i) { return titles.get(i); }
+    public String getCitation(int i) { return citations.get(i); }
+    public boolean isLinksOnly(int i) { return titles.get(i) == null; }
+    public Set<String> getWords(int i) { return resolve(words.get(i)); }
+    public Set<String> getLinks(int i) { return resolve(links.get(i)); }
+    
+    private Set<String> resolve(int[] refs) {
+        Set<String> values = new HashSet<>(refs.length * 2);
+        for (int ref : refs) {
+            values.add(strings.get(ref));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,257 @@
+package rmi;
+
+import java.io.*;
+import java.nio.file.*;
+import java.rmi.registry.*;
+import java.util.*;
+
+/**
+ * Peer Bootstrap - Joining side of a barrel state transfer
+ *
+ * A barrel that starts empty, or far behind the live barrels of its shard,
+ * copies a peer's index instead of only seeing pages crawled after it joins:
+ *   1. pick the live peer (same shard) with the most pages
+ *   2. stream its segments and URL list in fixed-size chunks into a staging
+ *      directory, then install them as this barrel's state (before the
+ *      index is opened, so startup maps them like its own segments)
+ *   3. once the index is open, replay the peer's tail (writes it accepted
+ *      since the snapshot) until nothing is pending
+ *   4. only then is the barrel registered; the tail is drained for one more
+ *      Downloader refresh interval, until every Downloader sends to it too
+ * At most one chunk is held in memory at a time. Progress is logged.
+ */
+class PeerBootstrap {
+    
+    private final String barrelId;
+    private final StorageBarrelInterface peer;
+    private final TransferSession.Manifest manifest;
+    private final int chunkBytes = Config.getBarrelBootstrapChunkKB() * 1024;
+    
+    private long copiedBytes = 0;
+    private int reportedPercent = -1;
+    private long tailOffset = 0;
+    private int tailPages = 0;
+    
+    private PeerBootstrap(String barrelId, StorageBarrelInterface peer, TransferSession.Manifest manifest) {
+        this.barrelId = barrelId;
+        this.peer = peer;
+        this.manifest = manifest;
+    }
+    
+    /**
+     * Copy a peer's snapshot if this barrel needs one
+     * @return the running transfer (tail still to replay), or null to start
+     *         from local state (up to date, no peer, or transfer failed)
+     */
+    static PeerBootstrap start(String barrelId, int shard, Registry registry) {
+        if (!Config.getBarrelBootstrapEnabled() || !Config.getBarrelPersistenceEnabled()) {
+            return null;
+        }
+        String directory = Config.getBarrelPersistenceDirectory();
+        new File(directory).mkdirs();
+        int localPages = SegmentedIndex.persistedPageCount(directory, barrelId);
+        
+        // Healthiest source: the live barrel of the same shard with the most pages
+        StorageBarrelInterface best = null;
+        String bestName = null;
+        int bestPages = 0;
+        try {
+            for (String name : registry.list()) {
+                if (!name.startsWith("StorageBarrel_") || name.equals("StorageBarrel_" + barrelId)) {
+                    continue;
+                }
+                try {
+                    StorageBarrelInterface candidate = (StorageBarrelInterface) registry.lookup(name);
+                    int pages = candidate.getIndexSize();
+                    if (candidate.getShard() == shard && pages > bestPages) {
+                        best = candidate;
+                        bestName = name;
+                        bestPages = pages;
+                    }
+                } catch (Exception e) {
+                    // Stale registry entry
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Barrel " + barrelId + " could not list peers: " + e.getMessage());
+            return null;
+        }
+        
+        int lag = bestPages - localPages;
+        if (best == null || lag <= 0 || (localPages > 0 && lag < Config.getBarrelBootstrapMinLag())) {
+            return null;
+        }
+        System.out.println("Barrel " + barrelId + " has " + localPages + " pages, " + bestName + " has " +
+                         bestPages + ": bootstrapping from it");
+        
+        TransferSession.Manifest manifest = null;
+        try {
+            manifest = best.beginTransfer(barrelId);
+            PeerBootstrap bootstrap = new PeerBootstrap(barrelId, best, manifest);
+            bootstrap.copySnapshot(directory);
+            return bootstrap;
+        } catch (Exception e) {
+            System.err.println("Barrel " + barrelId + " bootstrap from " + bestName + " failed: " + e.getMessage());
+            System.err.println("Starting from local state");
+            if (manifest != null) {
+                try {
+                    best.endTransfer(manifest.sessionId);
+                } catch (Exception ignored) {
+                    // The peer expires the session on its own
+                }
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Stream every snapshot file into a staging directory, then install them
+     */
+    private void copySnapshot(String directory) throws IOException {
+        long start = System.currentTimeMillis();
+        String prefix = "barrel_" + barrelId;
+        String peerPrefix = "barrel_" + manifest.peerId;
+        File staging = new File(directory, prefix + ".bootstrap");
+        deleteStaging(staging);
+        staging.mkdirs();
+        
+        System.out.println("Barrel " + barrelId + " copying " + manifest.segments.length + " segments (" +
+                         manifest.pages + " pages, " + formatMB(manifest.totalBytes()) + ") from " + manifest.peerId);
+        
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < manifest.segments.length; i++) {
+            // <peer prefix>_<n>.seg keeps its number under this barrel's prefix
+            String name = prefix + manifest.segments[i].substring(peerPrefix.length());
+            File target = new File(staging, name);
+            copyFile(i, manifest.segmentBytes[i], target);
+            if (!IndexSegment.open(target).verify()) {
+                throw new IOException(name + " failed its checksum after transfer");
+            }
+            names.add(name);
+        }
+        if (manifest.docsBytes > 0) {
+            copyFile(manifest.segments.length, manifest.docsBytes, new File(staging, prefix + ".docs"));
+        }
+        
+        SegmentedIndex.installTransfer(directory, barrelId, staging, names, manifest.nextSegment, manifest.pages);
+        deleteStaging(staging);
+        System.out.println("Barrel " + barrelId + " copied snapshot in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    
+    private void copyFile(int file, long size, File target) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            long offset = 0;
+            while (offset < size) {
+                byte[] chunk = peer.readTransferChunk(manifest.sessionId, file, offset,
+                                                      (int) Math.min(chunkBytes, size - offset));
+                if (chunk.length == 0) {
+                    throw new IOException("peer sent no data for " + target.getName() + " at " + offset);
+                }
+                out.write(chunk);
+                offset += chunk.length;
+                copiedBytes += chunk.length;
+                reportProgress();
+            }
+            out.getFD().sync();
+        }
+    }
+    
+    private void reportProgress() {
+        long total = Math.max(1, manifest.totalBytes());
+        int percent = (int) (copiedBytes * 100 / total);
+        if (percent / 10 > reportedPercent / 10) {
+            reportedPercent = percent;
+            System.out.println("Barrel " + barrelId + " bootstrap: " + percent + "% (" +
+                             formatMB(copiedBytes) + " / " + formatMB(total) + ")");
+        }
+    }
+    
+    /**
+     * Replay the peer's tail into the barrel until nothing is pending
+     */
+    void catchUp(StorageBarrel barrel) throws IOException {
+        while (true) {
+            byte[] chunk = peer.readTransferTail(manifest.sessionId, tailOffset, chunkBytes);
+            if (chunk.length == 0) {
+                return;
+            }
+            apply(barrel, chunk);
+            tailOffset += chunk.length;
+        }
+    }
+    
+    private void apply(StorageBarrel barrel, byte[] chunk) throws IOException {
+        PageBatch batch = new PageBatch();
+        WriteAheadLog.Replayer toBatch = new WriteAheadLog.Replayer() {
+            @Override
+            public void index(String url, String title, String citation, Set<String> words, Set<String> links) {
+                batch.add(url, title, citation, words, links);
+            }
+            
+            @Override
+            public void links(String url, Set<String> links) {
+                batch.addLinks(url, links);
+            }
+        };
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+        byte[] payload;
+        while ((payload = WriteAheadLog.readRecord(in)) != null) {
+            WriteAheadLog.decode(payload, toBatch);
+        }
+        
+        // Same path as a Downloader batch: logged in this barrel's WAL before the ACK
+        for (boolean ack : barrel.indexPages(batch)) {
+            if (!ack) {
+                throw new IOException("barrel did not index a replayed page");
+            }
+        }
+        tailPages += batch.size();
+    }
+    
+    /**
+     * Keep replaying the tail until every Downloader has refreshed its barrel
+     * list (and so sends to this barrel directly), then end the transfer
+     */
+    void finish(StorageBarrel barrel) {
+        long until = System.currentTimeMillis() + Config.getDownloaderBarrelRefresh() + 2L * Config.getDownloaderBatchWindow();
+        try {
+            while (System.currentTimeMillis() < until) {
+                catchUp(barrel);
+                Thread.sleep(500);
+            }
+            catchUp(barrel);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Barrel " + barrelId + " stopped replaying " + manifest.peerId + "'s writes: " + e.getMessage());
+        }
+        close();
+        System.out.println("Barrel " + barrelId + " bootstrap complete: " + manifest.pages + " pages copied, " +
+                         tailPages + " replayed from " + manifest.peerId);
+    }
+    
+    /**
+     * End the session on the peer (drops its tail file)
+     */
+    void close() {
+        try {
+            peer.endTransfer(manifest.sessionId);
+        } catch (Exception e) {
+            // The peer expires the session on its own
+        }
+    }
+    
+    private static void deleteStaging(File staging) throws IOException {
+        File[] files = staging.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.deleteIfExists(staging.toPath());
+    }
+    
+    private static String formatMB(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,161 @@
+package rmi;
+
+/**
+ * Pending Set - URLs queued or leased, kept as 64-bit fingerprints
+ *
+ * The frontier can outgrow the heap (see SpillLog), so the duplicate check
+ * can't hold every queued URL: it keeps an 8-byte hash per URL in
+ * open-addressing tables (11-21 bytes per URL with their free slots)
+ * instead of a String per URL (~100 bytes). Two URLs sharing a fingerprint
+ * are treated as one; with 2^64 values that is unlikely below billions of
+ * URLs, and costs one skipped URL if it happens.
+ *
+ * The fingerprint's low bits pick one of 64 stripes, each a linear-probing
+ * table behind its own lock, so concurrent admissions rarely contend.
+ */
+class PendingSet {
+
+    private static final int STRIPES = 64;
+    private static final int INITIAL_CAPACITY = 1024; // per stripe, a power of two
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    PendingSet() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return true if the URL was not pending
+     */
+    public boolean add(String url) {
+        long fingerprint = fingerprint(url);
+        return stripeOf(fingerprint).add(fingerprint);
+    }
+
+    public boolean remove(String url) {
+        long fingerprint = fingerprint(url);
+        return stripeOf(fingerprint).remove(fingerprint);
+    }
+
+    public boolean contains(String url) {
+        long fingerprint = fingerprint(url);
+        return stripeOf(fingerprint).contains(fingerprint);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (Stripe stripe : stripes) {
+            if (stripe.size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.capacity() * 8L;
+        }
+        return bytes;
+    }
+
+    // 0 marks an empty slot
+    private static long fingerprint(String url) {
+        long fingerprint = ScalableBloomFilter.hash(url);
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private Stripe stripeOf(long fingerprint) {
+        return stripes[(int) (fingerprint & (STRIPES - 1))];
+    }
+
+    /**
+     * Linear-probing table of fingerprints, at most three quarters full
+     */
+    private static final class Stripe {
+        private long[] slots = new long[INITIAL_CAPACITY];
+        private int size = 0;
+
+        synchronized boolean add(long fingerprint) {
+            int slot = find(slots, fingerprint);
+            if (slots[slot] == fingerprint) {
+                return false;
+            }
+            slots[slot] = fingerprint;
+            if (++size * 4 > slots.length * 3) {
+                resize();
+            }
+            return true;
+        }
+
+        synchronized boolean contains(long fingerprint) {
+            return slots[find(slots, fingerprint)] == fingerprint;
+        }
+
+        synchronized boolean remove(long fingerprint) {
+            int slot = find(slots, fingerprint);
+            if (slots[slot] != fingerprint) {
+                return false;
+            }
+            // Backward-shift deletion: move later entries of the run into the gap
+            int mask = slots.length - 1;
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while (slots[next] != 0) {
+                int home = home(slots[next], mask);
+                // The entry can fill the gap unless its home lies in (gap, next]
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    slots[gap] = slots[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            slots[gap] = 0;
+            size--;
+            return true;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized int capacity() {
+            return slots.length;
+        }
+
+        private void resize() {
+            long[] grown = new long[slots.length * 2];
+            for (long fingerprint : slots) {
+                if (fingerprint != 0) {
+                    grown[find(grown, fingerprint)] = fingerprint;
+                }
+            }
+            slots = grown;
+        }
+
+        // Slot holding the fingerprint, or the empty slot ending its run
+        private static int find(long[] slots, long fingerprint) {
+            int mask = slots.length - 1;
+            int slot = home(fingerprint, mask);
+            while (slots[slot] != 0 && slots[slot] != fingerprint) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        // High bits: the low ones already chose the stripe
+        private static int home(long fingerprint, int mask) {
+            return (int) (fingerprint >>> 32) & mask;
+        }
+    }
+}
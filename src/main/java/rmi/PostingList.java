@@ -0,0 +1,276 @@
+package rmi;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Postings List - Sorted list of doc IDs for one term
+ * Stored as delta + varint encoded bytes (small gaps take a single byte)
+ *
+ * Appends of increasing IDs are O(1); an out-of-order ID (re-indexed page,
+ * or two writers racing on the same term) is spliced into a copy of the list,
+ * and so is a removal (re-indexed page that lost the term). Writers
+ * synchronize on the list (one lock per term), readers never lock: they
+ * decode the last published View, since appends never touch bytes already
+ * visible to a view and rebuilds always write into a new array.
+ */
+class PostingList implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private byte[] data;
+    private int length;    // bytes used in data
+    private int count;     // number of doc IDs (document frequency)
+    private int lastDocId; // largest doc ID stored, -1 if empty
+
+    // Immutable snapshot read by searches without locking
+    private transient volatile View view;
+
+    public PostingList() {
+        this.data = new byte[8];
+        this.length = 0;
+        this.count = 0;
+        this.lastDocId = -1;
+        this.view = new View(data, 0, 0);
+    }
+
+    /**
+     * Build a postings list from doc IDs already sorted in increasing order
+     */
+    public static PostingList fromSorted(int[] docIds, int n) {
+        PostingList list = new PostingList();
+        for (int i = 0; i < n; i++) {
+            if (docIds[i] > list.lastDocId) {
+                list.append(docIds[i]);
+            }
+        }
+        list.publish();
+        return list;
+    }
+
+    /**
+     * Add a doc ID to the list
+     * @return true if the ID was not already present
+     */
+    public synchronized boolean add(int docId) {
+        if (docId > lastDocId) {
+            append(docId);
+            publish();
+            return true;
+        }
+        if (docId == lastDocId) {
+            return false;
+        }
+
+        // Out of order (concurrent writers or re-indexed page): find the insertion
+        // point and splice the encoded bytes into a fresh array. Only the gap of
+        // the following entry changes, the rest of the bytes are copied as-is.
+        Cursor c = new Cursor(data, length);
+        int prev = -1;
+        while (c.hasNext()) {
+            int start = c.pos;
+            int id = c.next();
+            if (id == docId) {
+                return false;
+            }
+            if (id > docId) {
+                int end = c.pos;
+                byte[] spliced = new byte[length + 10];
+                System.arraycopy(data, 0, spliced, 0, start);
+                int pos = writeVarInt(spliced, start, docId - prev);
+                pos = writeVarInt(spliced, pos, id - docId);
+                System.arraycopy(data, end, spliced, pos, length - end);
+                this.data = spliced;
+                this.length = pos + (length - end);
+                this.count++;
+                publish();
+                return true;
+            }
+            prev = id;
+        }
+        return false;
+    }
+
+    /**
+     * Remove a doc ID (re-indexed page that lost the term)
+     * The bytes are rebuilt into a new array, like an out-of-order add.
+     * @return true if the ID was present
+     */
+    public synchronized boolean remove(int docId) {
+        if (docId > lastDocId) {
+            return false;
+        }
+        Cursor c = new Cursor(data, length);
+        int prev = -1;
+        while (c.hasNext()) {
+            int start = c.pos;
+            int id = c.next();
+            if (id > docId) {
+                return false;
+            }
+            if (id == docId) {
+                int end = c.pos;
+                byte[] spliced = new byte[length + 5];
+                System.arraycopy(data, 0, spliced, 0, start);
+                int pos = start;
+                if (c.hasNext()) {
+                    // The following entry now takes the removed entry's gap plus its own
+                    int next = c.next();
+                    pos = writeVarInt(spliced, pos, next - prev);
+                    end = c.pos;
+                } else {
+                    lastDocId = prev;
+                }
+                System.arraycopy(data, end, spliced, pos, length - end);
+                this.data = spliced;
+                this.length = pos + (length - end);
+                this.count--;
+                publish();
+                return true;
+            }
+            prev = id;
+        }
+        return false;
+    }
+
+    private void publish() {
+        view = new View(data, length, count);
+    }
+
+    private void append(int docId) {
+        int gap = docId - lastDocId; // first gap is relative to -1
+        if (length + 5 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+        }
+        length = writeVarInt(data, length, gap);
+        lastDocId = docId;
+        count++;
+    }
+
+    /**
+     * Approximate heap bytes (object, published view and encoded array)
+     */
+    public long heapBytes() {
+        return 64 + view.data.length;
+    }
+
+    /**
+     * Number of documents containing the term
+     */
+    public int size() {
+        return view.count;
+    }
+
+    /**
+     * Cursor over the current contents, decoding one ID at a time
+     */
+    public Cursor cursor() {
+        View v = view;
+        return new Cursor(v.data, v.length);
+    }
+
+    /**
+     * Decode the whole list
+     */
+    public int[] toArray() {
+        View v = view;
+        int[] ids = new int[v.count];
+        Cursor c = new Cursor(v.data, v.length);
+        for (int i = 0; i < v.count; i++) {
+            ids[i] = c.next();
+        }
+        return ids;
+    }
+
+    /**
+     * Keep the sorted candidates that are in the list, decoding only up to the last one
+     */
+    public int[] filter(int[] candidates) {
+        View v = view;
+        Cursor cursor = new Cursor(v.data, v.length);
+        int[] kept = new int[candidates.length];
+        int n = 0;
+        int c = 0;
+        while (c < candidates.length && cursor.hasNext()) {
+            int docId = cursor.next();
+            while (c < candidates.length && candidates[c] < docId) {
+                c++;
+            }
+            if (c < candidates.length && candidates[c] == docId) {
+                kept[n++] = docId;
+                c++;
+            }
+        }
+        return n == kept.length ? kept : Arrays.copyOf(kept, n);
+    }
+
+    static int writeVarInt(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static final class View {
+        final byte[] data;
+        final int length;
+        final int count;
+
+        View(byte[] data, int length, int count) {
+            this.data = data;
+            this.length = length;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Sequential decoder over a snapshot of the encoded bytes
+     */
+    static class Cursor {
+        private final byte[] buf;
+        private final int end;
+        int pos;
+        private int current;
+
+        Cursor(byte[] buf, int end) {
+            this.buf = buf;
+            this.end = end;
+            this.pos = 0;
+            this.current = -1;
+        }
+
+        boolean hasNext() {
+            return pos < end;
+        }
+
+        int next() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            current += value;
+            return current;
+        }
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.writeInt(count);
+        out.writeInt(lastDocId);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        count = in.readInt();
+        lastDocId = in.readInt();
+        length = in.readInt();
+        data = new byte[Math.max(8, length)];
+        in.readFully(data, 0, length);
+        publish();
+    }
+}
@@ -0,0 +1,256 @@
+package rmi;
+
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Query Executor - Evaluates AND queries over one view of a barrel's index
+ *
+ * Terms are ordered by document frequency (cheap: read from the term
+ * dictionaries, no postings decoded), so the rarest term seeds the candidate
+ * set and every later step can only shrink it. Only that term's postings are
+ * gathered across readers; each later term is checked reader by reader
+ * against the candidates alone (see filter()), so a common term is never
+ * unioned or copied into an array. A segment's delta + varint list has no
+ * skip data, so it is still decoded in order, but only up to the last
+ * candidate and without allocating. The query stops as soon as a term is
+ * missing or no candidate survives.
+ *
+ * Dense terms stored as RoaringPostings stay bitmaps: bitmap AND bitmap is
+ * word-level, and a short candidate list is probed against a bitmap
+ * directly, so common words are never expanded into doc ID arrays.
+ */
+class QueryExecutor {
+    
+    private QueryExecutor() {}
+    
+    /**
+     * Doc IDs (sorted) of pages containing every term
+     */
+    static int[] conjunction(SegmentedIndex.View view, Collection<String> terms) {
+        // Lowercase and dedupe, then look up how common each term is
+        Set<String> unique = new HashSet<>();
+        for (String term : terms) {
+            unique.add(term.toLowerCase());
+        }
+        if (unique.isEmpty()) {
+            return new int[0];
+        }
+        
+        List<String> ordered = new ArrayList<>(unique.size());
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String term : unique) {
+            int df = view.docFrequency(term);
+            if (df == 0) {
+                return new int[0]; // a missing term empties the result, nothing decoded
+            }
+            frequencies.put(term, df);
+            ordered.add(term);
+        }
+        ordered.sort(Comparator.comparingInt(frequencies::get));
+        
+        // Exactly one of candidates / candidateBits is set after the first term
+        int[] candidates = null;
+        RoaringPostings candidateBits = null;
+        for (String term : ordered) {
+            if (candidates != null) {
+                candidates = filter(view, term, candidates);
+            } else {
+                TermPostings postings = fetch(view, term);
+                if (candidateBits == null) {
+                    candidates = postings.ids;
+                    candidateBits = postings.bits;
+                } else if (postings.bits != null) {
+                    candidateBits = candidateBits.and(postings.bits);
+                } else {
+                    candidates = gallopIntersect(candidateBits.toArray(), postings.ids);
+                    candidateBits = null;
+                }
+            }
+            
+            if (candidateBits != null ? candidateBits.cardinality() == 0 : candidates.length == 0) {
+                return new int[0];
+            }
+        }
+        return candidateBits != null ? candidateBits.toArray() : candidates;
+    }
+    
+    /**
+     * The candidates whose pages contain the term: each reader's deletes,
+     * then its postings, are applied to the candidates only (oldest reader
+     * first, as fetch() does for whole lists)
+     */
+    static int[] filter(SegmentedIndex.View view, String term, int[] candidates) {
+        int[] kept = null;
+        for (SegmentReader reader : view.readers) {
+            int[] deleted = reader.deletedPostings(term);
+            if (deleted != null && kept != null) {
+                kept = SegmentedIndex.minus(kept, deleted);
+            }
+            kept = SegmentedIndex.union(kept, reader.filterPostings(term, candidates));
+        }
+        return kept != null ? kept : new int[0];
+    }
+    
+    /**
+     * A term's postings across all readers: a sorted array, or a bitmap if
+     * any segment stores the term as one (a reader deleting some of the
+     * older postings turns what was gathered so far into an array)
+     */
+    static final class TermPostings {
+        final int[] ids;
+        final RoaringPostings bits;
+        
+        TermPostings(int[] ids, RoaringPostings bits) {
+            this.ids = ids;
+            this.bits = bits;
+        }
+    }
+    
+    static TermPostings fetch(SegmentedIndex.View view, String term) {
+        int[] ids = null;
+        RoaringPostings bits = null;
+        for (SegmentReader reader : view.readers) {
+            int[] deleted = reader.deletedPostings(term);
+            if (deleted != null && (ids != null || bits != null)) {
+                if (bits != null) {
+                    ids = SegmentedIndex.union(ids, bits.toArray());
+                    bits = null;
+                }
+                ids = SegmentedIndex.minus(ids, deleted);
+            }
+            RoaringPostings part = reader.bitmap(term);
+            if (part != null) {
+                bits = bits == null ? part : bits.or(part);
+            } else {
+                ids = SegmentedIndex.union(ids, reader.postings(term));
+            }
+        }
+        if (bits == null) {
+            return new TermPostings(ids != null ? ids : new int[0], null);
+        }
+        if (ids != null) {
+            bits = bits.or(RoaringPostings.fromSorted(ids, ids.length));
+        }
+        return new TermPostings(null, bits);
+    }
+    
+    /**
+     * The k best doc IDs by score (descending; ties keep the lower doc ID first)
+     * Uses a bounded min-heap, so only O(k) entries are ever held and sorted
+     */
+    static int[] topK(int[] docIds, IntUnaryOperator score, int k) {
+        if (k <= 0) {
+            return new int[0];
+        }
+        // Pack score and inverted doc ID so a larger key is a better hit
+        long[] heap = new long[Math.min(k, docIds.length)];
+        int size = 0;
+        for (int docId : docIds) {
+            long key = ((long) score.applyAsInt(docId) << 32) | (Integer.MAX_VALUE - docId);
+            if (size < heap.length) {
+                heap[size] = key;
+                siftUp(heap, size++);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                siftDown(heap, size);
+            }
+        }
+        
+        Arrays.sort(heap, 0, size);
+        int[] ranked = new int[size];
+        for (int i = 0; i < size; i++) {
+            ranked[i] = Integer.MAX_VALUE - (int) heap[size - 1 - i];
+        }
+        return ranked;
+    }
+    
+    private static void siftUp(long[] heap, int i) {
+        long key = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    }
+    
+    private static void siftDown(long[] heap, int size) {
+        long key = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (key <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+    }
+    
+    /**
+     * Intersect a small sorted array with a (usually much larger) sorted array
+     * Cost is O(small * log(large / small)) instead of O(small + large)
+     */
+    static int[] gallopIntersect(int[] small, int[] large) {
+        if (small.length > large.length) {
+            int[] swap = small;
+            small = large;
+            large = swap;
+        }
+        int[] common = new int[small.length];
+        int n = 0;
+        int low = 0;
+        for (int docId : small) {
+            low = gallop(large, low, docId);
+            if (low == large.length) {
+                break; // every remaining candidate is past the end
+            }
+            if (large[low] == docId) {
+                common[n++] = docId;
+                low++;
+            }
+        }
+        return n == common.length ? common : Arrays.copyOf(common, n);
+    }
+    
+    /**
+     * First index >= from whose value is >= target (or ids.length)
+     * Probes from+1, from+2, from+4, ... then binary searches the last step
+     */
+    private static int gallop(int[] ids, int from, int target) {
+        if (from >= ids.length || ids[from] >= target) {
+            return from;
+        }
+        int step = 1;
+        int low = from;       // ids[low] < target
+        int high = from + 1;
+        while (high < ids.length && ids[high] < target) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        high = Math.min(high, ids.length);
+        
+        // ids[low] < target <= ids[high] (or high == length)
+        while (low + 1 < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] < target) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+}
@@ -0,0 +1,189 @@
+package rmi;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Queue Benchmark - URL admission throughput and heap use against frontier size
+ *
+ * Fills an in-memory URLQueue (no persistence) to each frontier size, then
+ * several threads call addURLs with batches of outlinks like a Downloader
+ * does (about 100 per page, half of them already queued or visited).
+ * The "scan" mode runs the same workload against the previous admission
+ * path (global lock + ConcurrentLinkedQueue.contains) for comparison:
+ *
+ *   java -cp target/classes rmi.QueueBenchmark pending 4
+ *   java -cp target/classes rmi.QueueBenchmark scan 4
+ *
+ * The "spill" mode grows the frontier to the given number of URLs in steps,
+ * reporting live heap after each (flat but for 11-21 B of pending-set
+ * fingerprint per URL, as the rest goes to the spill log), then leases
+ * the whole frontier back. Run it with queue.host.crawl.delay.ms=0 and
+ * queue.bloom.filter.enabled=true (dequeued URLs become visited):
+ *
+ *   java -Xmx256m -cp target/classes rmi.QueueBenchmark spill 5000000
+ */
+public class QueueBenchmark {
+
+    private static final int[] FRONTIER_SIZES = {1000, 10000, 100000, 500000};
+    private static final int LINKS_PER_PAGE = 100;
+    private static final long RUN_MILLIS = 3000;
+
+    /**
+     * One admission path under test
+     */
+    private interface Frontier {
+        void addURLs(List<String> urls) throws Exception;
+        void fill(List<String> urls) throws Exception;
+        String next() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 1 && args[0].equals("spill")) {
+            spill(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000);
+            System.exit(0);
+        }
+        if (args.length < 1 || !(args[0].equals("pending") || args[0].equals("scan"))) {
+            System.err.println("Usage: QueueBenchmark <pending|scan> [threads] | spill [urls]");
+            System.exit(1);
+        }
+        boolean scan = args[0].equals("scan");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        PrintStream console = System.out;
+
+        console.println("Mode: " + (scan ? "lock + queue scan" : "pending set") + ", " + threads +
+                        " threads, " + LINKS_PER_PAGE + " links per call");
+        console.println(String.format("%10s %14s %14s", "frontier", "calls/sec", "urls/sec"));
+        for (int size : FRONTIER_SIZES) {
+            Frontier frontier = scan ? new ScanFrontier() : pendingFrontier();
+            List<String> initial = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                initial.add(url(i));
+            }
+            System.setOut(new PrintStream(OutputStream.nullOutputStream())); // queue logging
+            frontier.fill(initial);
+            for (int i = 0; i < size / 10; i++) {
+                frontier.next(); // some of the frontier already visited
+            }
+
+            long[] calls = new long[threads];
+            long deadline = System.currentTimeMillis() + RUN_MILLIS;
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int worker = t;
+                workers.add(pool.submit(() -> {
+                    Random random = new Random(worker);
+                    int fresh = size + worker * 100_000_000;
+                    List<String> links = new ArrayList<>(LINKS_PER_PAGE);
+                    while (System.currentTimeMillis() < deadline) {
+                        links.clear();
+                        for (int l = 0; l < LINKS_PER_PAGE; l++) {
+                            links.add(l % 2 == 0 ? url(random.nextInt(size)) : url(fresh++));
+                        }
+                        frontier.addURLs(links);
+                        calls[worker]++;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            pool.shutdown();
+            System.setOut(console);
+
+            long total = Arrays.stream(calls).sum();
+            double seconds = RUN_MILLIS / 1000.0;
+            console.println(String.format("%10d %14.0f %14.0f", size, total / seconds, total * LINKS_PER_PAGE / seconds));
+        }
+        System.exit(0);
+    }
+
+    private static void spill(int total) throws Exception {
+        PrintStream console = System.out;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        console.println("Frontier: " + Config.getQueueFrontierMemoryUrls() + " URLs in memory, max heap " +
+                        memory.getHeapMemoryUsage().getMax() / (1024 * 1024) + " MB");
+        console.println(String.format("%10s %14s %12s", "frontier", "enqueue/sec", "live heap"));
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        URLQueue queue = new URLQueue(null);
+        List<String> links = new ArrayList<>(LINKS_PER_PAGE);
+        int added = 0;
+        for (int step = total / 10; added < total; ) {
+            long start = System.nanoTime();
+            int target = Math.min(total, added + step);
+            for (; added < target; added++) {
+                links.add(url(added));
+                if (links.size() == LINKS_PER_PAGE) {
+                    queue.addURLs(links);
+                    links.clear();
+                }
+            }
+            queue.addURLs(links);
+            links.clear();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.gc();
+            console.println(String.format("%10d %14.0f %9d MB", added, step / seconds,
+                            memory.getHeapMemoryUsage().getUsed() / (1024 * 1024)));
+        }
+
+        long start = System.nanoTime();
+        long leased = 0;
+        List<String> batch;
+        while (!(batch = queue.getNextURLs(1000, 60000).urls).isEmpty()) {
+            queue.ack(batch);
+            leased += batch.size();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        queue.shutdown();
+        System.setOut(console);
+        console.println(String.format("Dequeued %d URLs (lease + ack) at %.0f/sec", leased, leased / seconds));
+    }
+
+    private static String url(int i) {
+        return "http://site" + (i % 1000) + ".pt/page/" + i;
+    }
+
+    private static Frontier pendingFrontier() throws Exception {
+        URLQueue queue = new URLQueue(null);
+        return new Frontier() {
+            public void addURLs(List<String> urls) throws Exception { queue.addURLs(urls); }
+            public void fill(List<String> urls) throws Exception { queue.addURLs(urls); }
+            public String next() throws Exception { return queue.getNextURL(); }
+        };
+    }
+
+    /**
+     * The admission path URLQueue used before the pending set
+     */
+    private static final class ScanFrontier implements Frontier {
+        private final ConcurrentLinkedQueue<String> urlQueue = new ConcurrentLinkedQueue<>();
+        private final Set<String> visitedURLs = ConcurrentHashMap.newKeySet();
+        private final Object lock = new Object();
+
+        public void addURLs(List<String> urls) {
+            for (String url : urls) {
+                synchronized(lock) {
+                    if (!visitedURLs.contains(url) && !urlQueue.contains(url)) {
+                        urlQueue.offer(url);
+                    }
+                }
+            }
+        }
+
+        public void fill(List<String> urls) {
+            urlQueue.addAll(urls); // scanning while filling would take minutes
+        }
+
+        public String next() {
+            String url = urlQueue.poll();
+            if (url != null) {
+                visitedURLs.add(url);
+            }
+            return url;
+        }
+    }
+}
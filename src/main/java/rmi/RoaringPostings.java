@@ -0,0 +1,456 @@
+package rmi;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Roaring Postings - Compressed bitmap of doc IDs for dense terms
+ *
+ * Doc IDs are split by their high 16 bits into containers of up to 65536
+ * values. In memory a container is a sorted char array (up to 4096 values)
+ * or a 1024-word bitmap; on disk it may also be a list of runs. AND and OR
+ * between bitmaps work a 64-bit word at a time.
+ *
+ * Serialized layout (see SegmentWriter):
+ *   [int containers] then per container [int key][int type][int cardinality][int payloadBytes]
+ *   followed by the payloads in the same order:
+ *     ARRAY  cardinality chars (low 16 bits, ascending)
+ *     BITMAP 1024 longs
+ *     RUN    [int runs] then runs x [char start][char length - 1]
+ */
+class RoaringPostings {
+    
+    static final int ARRAY = 0;
+    static final int BITMAP = 1;
+    static final int RUN = 2;
+    
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+    private static final int HEADER_BYTES = 16;
+    
+    // Containers by high 16 bits of the doc ID (ascending)
+    private final int[] keys;
+    private final Container[] containers;
+    private final int count;
+    
+    /**
+     * One 65536-value chunk: either array (sorted low bits) or bitmap
+     */
+    static final class Container {
+        final char[] array;
+        final long[] bitmap;
+        final int cardinality;
+        
+        Container(char[] array, int cardinality) {
+            this.array = array;
+            this.bitmap = null;
+            this.cardinality = cardinality;
+        }
+        
+        Container(long[] bitmap, int cardinality) {
+            this.array = null;
+            this.bitmap = bitmap;
+            this.cardinality = cardinality;
+        }
+        
+        boolean contains(char low) {
+            if (bitmap != null) {
+                return (bitmap[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+        
+        long[] toBitmap() {
+            if (bitmap != null) {
+                return bitmap;
+            }
+            long[] words = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                words[array[i] >>> 6] |= 1L << array[i];
+            }
+            return words;
+        }
+        
+        /**
+         * Number of runs of consecutive values
+         */
+        int runCount() {
+            if (bitmap == null) {
+                int runs = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    if (i == 0 || array[i] != array[i - 1] + 1) runs++;
+                }
+                return runs;
+            }
+            int runs = 0;
+            long carry = 0;
+            for (long word : bitmap) {
+                runs += Long.bitCount(word & ~((word << 1) | carry));
+                carry = word >>> 63;
+            }
+            return runs;
+        }
+    }
+    
+    private RoaringPostings(int[] keys, Container[] containers, int count) {
+        this.keys = keys;
+        this.containers = containers;
+        this.count = count;
+    }
+    
+    /**
+     * Build from sorted, distinct doc IDs in ids[0..n)
+     */
+    static RoaringPostings fromSorted(int[] ids, int n) {
+        List<Integer> keyList = new ArrayList<>();
+        List<Container> list = new ArrayList<>();
+        int start = 0;
+        while (start < n) {
+            int key = ids[start] >>> 16;
+            int end = start;
+            while (end < n && ids[end] >>> 16 == key) {
+                end++;
+            }
+            int card = end - start;
+            if (card > ARRAY_MAX) {
+                long[] words = new long[WORDS];
+                for (int i = start; i < end; i++) {
+                    words[(ids[i] & 0xFFFF) >>> 6] |= 1L << ids[i];
+                }
+                list.add(new Container(words, card));
+            } else {
+                char[] low = new char[card];
+                for (int i = start; i < end; i++) {
+                    low[i - start] = (char) ids[i];
+                }
+                list.add(new Container(low, card));
+            }
+            keyList.add(key);
+            start = end;
+        }
+        int[] keys = new int[keyList.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyList.get(i);
+        }
+        return new RoaringPostings(keys, list.toArray(new Container[0]), keys.length);
+    }
+    
+    public int cardinality() {
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            total += containers[i].cardinality;
+        }
+        return total;
+    }
+    
+    public boolean contains(int docId) {
+        int c = Arrays.binarySearch(keys, 0, count, docId >>> 16);
+        return c >= 0 && containers[c].contains((char) docId);
+    }
+    
+    /**
+     * Keep the sorted doc IDs that are in this set
+     */
+    public int[] filter(int[] ids) {
+        int[] kept = new int[ids.length];
+        int n = 0;
+        int c = 0;
+        for (int docId : ids) {
+            int key = docId >>> 16;
+            while (c < count && keys[c] < key) {
+                c++;
+            }
+            if (c == count) {
+                break;
+            }
+            if (keys[c] == key && containers[c].contains((char) docId)) {
+                kept[n++] = docId;
+            }
+        }
+        return n == kept.length ? kept : Arrays.copyOf(kept, n);
+    }
+    
+    public RoaringPostings and(RoaringPostings other) {
+        int[] outKeys = new int[Math.min(count, other.count)];
+        Container[] out = new Container[outKeys.length];
+        int n = 0;
+        int i = 0, j = 0;
+        while (i < count && j < other.count) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container c = and(containers[i], other.containers[j]);
+                if (c.cardinality > 0) {
+                    outKeys[n] = keys[i];
+                    out[n++] = c;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new RoaringPostings(outKeys, out, n);
+    }
+    
+    public RoaringPostings or(RoaringPostings other) {
+        int[] outKeys = new int[count + other.count];
+        Container[] out = new Container[outKeys.length];
+        int n = 0;
+        int i = 0, j = 0;
+        while (i < count || j < other.count) {
+            if (j == other.count || (i < count && keys[i] < other.keys[j])) {
+                outKeys[n] = keys[i];
+                out[n++] = containers[i++];
+            } else if (i == count || keys[i] > other.keys[j]) {
+                outKeys[n] = other.keys[j];
+                out[n++] = other.containers[j++];
+            } else {
+                outKeys[n] = keys[i];
+                out[n++] = or(containers[i++], other.containers[j++]);
+            }
+        }
+        return new RoaringPostings(outKeys, out, n);
+    }
+    
+    private static Container and(Container a, Container b) {
+        if (a.bitmap != null && b.bitmap != null) {
+            long[] words = new long[WORDS];
+            int card = 0;
+            for (int w = 0; w < WORDS; w++) {
+                words[w] = a.bitmap[w] & b.bitmap[w];
+                card += Long.bitCount(words[w]);
+            }
+            return card > ARRAY_MAX ? new Container(words, card) : toArrayContainer(words, card);
+        }
+        if (a.bitmap != null || b.bitmap != null) {
+            Container array = a.bitmap != null ? b : a;
+            Container bitmap = a.bitmap != null ? a : b;
+            char[] kept = new char[array.cardinality];
+            int n = 0;
+            for (int i = 0; i < array.cardinality; i++) {
+                if (bitmap.contains(array.array[i])) {
+                    kept[n++] = array.array[i];
+                }
+            }
+            return new Container(kept, n);
+        }
+        char[] kept = new char[Math.min(a.cardinality, b.cardinality)];
+        int n = 0;
+        int i = 0, j = 0;
+        while (i < a.cardinality && j < b.cardinality) {
+            if (a.array[i] < b.array[j]) {
+                i++;
+            } else if (a.array[i] > b.array[j]) {
+                j++;
+            } else {
+                kept[n++] = a.array[i++];
+                j++;
+            }
+        }
+        return new Container(kept, n);
+    }
+    
+    private static Container or(Container a, Container b) {
+        if (a.bitmap == null && b.bitmap == null && a.cardinality + b.cardinality <= ARRAY_MAX) {
+            char[] merged = new char[a.cardinality + b.cardinality];
+            int n = 0;
+            int i = 0, j = 0;
+            while (i < a.cardinality || j < b.cardinality) {
+                if (j == b.cardinality || (i < a.cardinality && a.array[i] < b.array[j])) {
+                    merged[n++] = a.array[i++];
+                } else if (i == a.cardinality || a.array[i] > b.array[j]) {
+                    merged[n++] = b.array[j++];
+                } else {
+                    merged[n++] = a.array[i++];
+                    j++;
+                }
+            }
+            return new Container(merged, n);
+        }
+        long[] left = a.toBitmap();
+        long[] right = b.toBitmap();
+        long[] words = new long[WORDS];
+        int card = 0;
+        for (int w = 0; w < WORDS; w++) {
+            words[w] = left[w] | right[w];
+            card += Long.bitCount(words[w]);
+        }
+        return card > ARRAY_MAX ? new Container(words, card) : toArrayContainer(words, card);
+    }
+    
+    private static Container toArrayContainer(long[] words, int card) {
+        char[] low = new char[card];
+        int n = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long word = words[w];
+            while (word != 0) {
+                low[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new Container(low, card);
+    }
+    
+    public int[] toArray() {
+        int[] ids = new int[cardinality()];
+        int n = 0;
+        for (int c = 0; c < count; c++) {
+            int high = keys[c] << 16;
+            Container container = containers[c];
+            if (container.bitmap == null) {
+                for (int i = 0; i < container.cardinality; i++) {
+                    ids[n++] = high | container.array[i];
+                }
+            } else {
+                for (int w = 0; w < WORDS; w++) {
+                    long word = container.bitmap[w];
+                    while (word != 0) {
+                        ids[n++] = high | (w * 64 + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+    
+    // ==================== Serialization ====================
+    
+    /**
+     * Smallest on-disk form of a container
+     */
+    private static int storedType(Container c) {
+        int arrayBytes = 2 * c.cardinality;
+        int bitmapBytes = 8 * WORDS;
+        int runBytes = 4 + 4 * c.runCount();
+        if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+            return RUN;
+        }
+        return arrayBytes <= bitmapBytes ? ARRAY : BITMAP;
+    }
+    
+    private static int payloadBytes(Container c, int type) {
+        switch (type) {
+            case ARRAY: return 2 * c.cardinality;
+            case BITMAP: return 8 * WORDS;
+            default: return 4 + 4 * c.runCount();
+        }
+    }
+    
+    public byte[] serialize() {
+        int[] types = new int[count];
+        int size = 4;
+        for (int c = 0; c < count; c++) {
+            types[c] = storedType(containers[c]);
+            size += HEADER_BYTES + payloadBytes(containers[c], types[c]);
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(count);
+        for (int c = 0; c < count; c++) {
+            out.putInt(keys[c]);
+            out.putInt(types[c]);
+            out.putInt(containers[c].cardinality);
+            out.putInt(payloadBytes(containers[c], types[c]));
+        }
+        for (int c = 0; c < count; c++) {
+            writePayload(out, containers[c], types[c]);
+        }
+        return out.array();
+    }
+    
+    private static void writePayload(ByteBuffer out, Container c, int type) {
+        if (type == BITMAP) {
+            for (long word : c.toBitmap()) {
+                out.putLong(word);
+            }
+            return;
+        }
+        char[] values = c.bitmap != null ? toArrayContainer(c.bitmap, c.cardinality).array : c.array;
+        if (type == ARRAY) {
+            for (int i = 0; i < c.cardinality; i++) {
+                out.putChar(values[i]);
+            }
+            return;
+        }
+        out.putInt(c.runCount());
+        int i = 0;
+        while (i < c.cardinality) {
+            int start = i;
+            while (i + 1 < c.cardinality && values[i + 1] == values[i] + 1) {
+                i++;
+            }
+            out.putChar(values[start]);
+            out.putChar((char) (i - start));
+            i++;
+        }
+    }
+    
+    /**
+     * Decode a serialized bitmap starting at pos (absolute reads only)
+     */
+    static RoaringPostings read(ByteBuffer buf, int pos) {
+        int n = buf.getInt(pos);
+        int[] keys = new int[n];
+        Container[] containers = new Container[n];
+        int payload = pos + 4 + n * HEADER_BYTES;
+        for (int c = 0; c < n; c++) {
+            int header = pos + 4 + c * HEADER_BYTES;
+            keys[c] = buf.getInt(header);
+            int type = buf.getInt(header + 4);
+            int card = buf.getInt(header + 8);
+            containers[c] = readContainer(buf, payload, type, card);
+            payload += buf.getInt(header + 12);
+        }
+        return new RoaringPostings(keys, containers, n);
+    }
+    
+    private static Container readContainer(ByteBuffer buf, int pos, int type, int card) {
+        if (type == BITMAP) {
+            long[] words = new long[WORDS];
+            for (int w = 0; w < WORDS; w++) {
+                words[w] = buf.getLong(pos + 8 * w);
+            }
+            return new Container(words, card);
+        }
+        if (type == ARRAY) {
+            char[] low = new char[card];
+            for (int i = 0; i < card; i++) {
+                low[i] = buf.getChar(pos + 2 * i);
+            }
+            return new Container(low, card);
+        }
+        int runs = buf.getInt(pos);
+        if (card > ARRAY_MAX) {
+            long[] words = new long[WORDS];
+            for (int r = 0; r < runs; r++) {
+                int start = buf.getChar(pos + 4 + 4 * r);
+                int end = start + buf.getChar(pos + 6 + 4 * r);
+                for (int v = start; v <= end; v++) {
+                    words[v >>> 6] |= 1L << v;
+                }
+            }
+            return new Container(words, card);
+        }
+        char[] low = new char[card];
+        int n = 0;
+        for (int r = 0; r < runs; r++) {
+            int start = buf.getChar(pos + 4 + 4 * r);
+            int end = start + buf.getChar(pos + 6 + 4 * r);
+            for (int v = start; v <= end; v++) {
+                low[n++] = (char) v;
+            }
+        }
+        return new Container(low, card);
+    }
+    
+    /**
+     * Add the stored container types of a serialized bitmap to counts[ARRAY|BITMAP|RUN]
+     */
+    static void countContainers(ByteBuffer buf, int pos, int[] counts) {
+        int n = buf.getInt(pos);
+        for (int c = 0; c < n; c++) {
+            counts[buf.getInt(pos + 4 + c * HEADER_BYTES + 4)]++;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package rmi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Scalable Bloom Filter - Approximate, thread-safe set of strings that grows with its content
+ *
+ * A chain of plain Bloom filters ("stages"): new strings go to the last
+ * stage, and when it holds its capacity a stage twice as large with half
+ * the false-positive rate is appended, so the compound rate stays below
+ * the configured one however many strings are added (Almeida et al.,
+ * "Scalable Bloom Filters"). Lookups check every stage.
+ *
+ * Bits live in AtomicLongArrays set with CAS, so add and mightContain need
+ * no lock; only appending a stage synchronizes. A string is never reported
+ * missing once added; a string never added is reported present with about
+ * the configured probability (see estimatedFalsePositiveRate).
+ */
+class ScalableBloomFilter {
+
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+
+    private final double falsePositiveRate;
+    private volatile Stage[] stages;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong stringBytes = new AtomicLong(); // characters of added strings, for memorySavedBytes
+
+    /**
+     * @param initialCapacity strings the first stage holds at the target rate
+     * @param falsePositiveRate target compound false-positive rate
+     */
+    ScalableBloomFilter(int initialCapacity, double falsePositiveRate) {
+        if (initialCapacity < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Bloom filter needs capacity >= 1 and 0 < rate < 1");
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        // Stage rates p/2, p/4, p/8... sum to at most p
+        this.stages = new Stage[] { new Stage(initialCapacity, falsePositiveRate * (1 - TIGHTENING)) };
+    }
+
+    private ScalableBloomFilter(double falsePositiveRate, Stage[] stages, long count, long stringBytes) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.stages = stages;
+        this.count.set(count);
+        this.stringBytes.set(stringBytes);
+    }
+
+    /**
+     * @return true if the string was not (as far as the filter can tell) present before
+     */
+    public boolean add(String value) {
+        long h1 = hash(value);
+        long h2 = hash2(h1);
+        if (contains(h1, h2)) {
+            return false;
+        }
+        Stage stage = writableStage();
+        stage.set(h1, h2);
+        count.incrementAndGet();
+        stringBytes.addAndGet(value.length());
+        return true;
+    }
+
+    public boolean mightContain(String value) {
+        long h1 = hash(value);
+        return contains(h1, hash2(h1));
+    }
+
+    private boolean contains(long h1, long h2) {
+        Stage[] current = stages;
+        for (int i = current.length - 1; i >= 0; i--) { // newest first: most recent URLs are looked up most
+            if (current[i].get(h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Stage writableStage() {
+        Stage[] current = stages;
+        Stage last = current[current.length - 1];
+        if (last.added.incrementAndGet() <= last.capacity) {
+            return last;
+        }
+        synchronized (this) {
+            current = stages;
+            last = current[current.length - 1];
+            if (last.added.get() > last.capacity) {
+                Stage next = new Stage((int) Math.min(Integer.MAX_VALUE, (long) last.capacity * GROWTH),
+                                       last.rate * TIGHTENING);
+                current = Arrays.copyOf(current, current.length + 1);
+                current[current.length - 1] = next;
+                stages = current;
+                last = next;
+            }
+            last.added.incrementAndGet();
+            return last;
+        }
+    }
+
+    /**
+     * Strings added (the same string added by two threads at once counts twice)
+     */
+    public long size() {
+        return count.get();
+    }
+
+    public int stageCount() {
+        return stages.length;
+    }
+
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Stage stage : stages) {
+            bytes += stage.bits.length() * 8L;
+        }
+        return bytes;
+    }
+
+    /**
+     * Rough heap a ConcurrentHashMap key set of the same strings would use
+     * (compact Latin-1 Strings: 24 B header + 16 B array header + chars,
+     * a 32 B node and a table slot per entry) minus this filter's bits
+     */
+    public long memorySavedBytes() {
+        long set = count.get() * (24 + 16 + 32 + 8) + stringBytes.get();
+        return set - memoryBytes();
+    }
+
+    /**
+     * False-positive rate for strings never added, from the bits actually set:
+     * a stage answers wrongly with probability fill^k
+     */
+    public double estimatedFalsePositiveRate() {
+        double allMiss = 1.0;
+        for (Stage stage : stages) {
+            allMiss *= 1 - Math.pow(stage.fillRatio(), stage.hashes);
+        }
+        return 1 - allMiss;
+    }
+
+    public double targetFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    // ==================== Persistence ====================
+
+    /**
+     * [rate][count][stringBytes][stages] then per stage
+     * [capacity][rate][hashes][added][words][long words...]
+     */
+    void write(DataOutputStream out) throws IOException {
+        Stage[] current = stages;
+        out.writeDouble(falsePositiveRate);
+        out.writeLong(count.get());
+        out.writeLong(stringBytes.get());
+        SnapshotFile.writeVarInt(out, current.length);
+        for (Stage stage : current) {
+            SnapshotFile.writeVarInt(out, stage.capacity);
+            out.writeDouble(stage.rate);
+            SnapshotFile.writeVarInt(out, stage.hashes);
+            SnapshotFile.writeVarInt(out, Math.min(stage.added.get(), stage.capacity));
+            SnapshotFile.writeVarInt(out, stage.bits.length());
+            for (int i = 0; i < stage.bits.length(); i++) {
+                out.writeLong(stage.bits.get(i));
+            }
+        }
+    }
+
+    static ScalableBloomFilter read(DataInputStream in) throws IOException {
+        double rate = in.readDouble();
+        long count = in.readLong();
+        long stringBytes = in.readLong();
+        int stageCount = SnapshotFile.readVarInt(in);
+        if (stageCount < 1 || stageCount > 64) {
+            throw new IOException("malformed Bloom filter: " + stageCount + " stages");
+        }
+        Stage[] stages = new Stage[stageCount];
+        for (int s = 0; s < stageCount; s++) {
+            int capacity = SnapshotFile.readVarInt(in);
+            double stageRate = in.readDouble();
+            int hashes = SnapshotFile.readVarInt(in);
+            int added = SnapshotFile.readVarInt(in);
+            int words = SnapshotFile.readVarInt(in);
+            if (capacity < 1 || hashes < 1 || hashes > 64 || words < 1) {
+                throw new IOException("malformed Bloom filter stage " + s);
+            }
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = in.readLong();
+            }
+            stages[s] = new Stage(capacity, stageRate, hashes, new AtomicLongArray(bits), added);
+        }
+        return new ScalableBloomFilter(rate, stages, count, stringBytes);
+    }
+
+    // ==================== Hashing ====================
+
+    // 64-bit FNV-1a over the UTF-8 bytes, finished with a murmur3 mix
+    // (also PendingSet's fingerprint)
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long hash2(long h1) {
+        return mix(h1 ^ 0x9e3779b97f4a7c15L) | 1; // odd, so probes differ for any bit count
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One fixed-size Bloom filter; bit i of the filter is probe h1 + i*h2
+     */
+    private static final class Stage {
+        final int capacity;
+        final double rate;
+        final int hashes;
+        final AtomicLongArray bits;
+        final long bitCount;
+        final AtomicInteger added;
+
+        Stage(int capacity, double rate) {
+            this(capacity, rate, hashesFor(rate), new AtomicLongArray(wordsFor(capacity, rate)), 0);
+        }
+
+        Stage(int capacity, double rate, int hashes, AtomicLongArray bits, int added) {
+            this.capacity = capacity;
+            this.rate = rate;
+            this.hashes = hashes;
+            this.bits = bits;
+            this.bitCount = bits.length() * 64L;
+            this.added = new AtomicInteger(added);
+        }
+
+        // Optimal sizing: m = -n ln p / (ln 2)^2 bits, k = -log2 p hashes
+        private static int wordsFor(int capacity, double rate) {
+            double bits = -capacity * Math.log(rate) / (Math.log(2) * Math.log(2));
+            return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, Math.ceil(bits / 64)));
+        }
+
+        private static int hashesFor(double rate) {
+            return Math.max(1, (int) Math.round(-Math.log(rate) / Math.log(2)));
+        }
+
+        void set(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                do {
+                    old = bits.get(word);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(word, old, old | mask));
+            }
+        }
+
+        boolean get(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double fillRatio() {
+            long set = 0;
+            for (int i = 0; i < bits.length(); i++) {
+                set += Long.bitCount(bits.get(i));
+            }
+            return (double) set / bitCount;
+        }
+    }
+}
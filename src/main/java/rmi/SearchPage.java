@@ -0,0 +1,24 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One window of ranked search results plus the total number of hits
+ */
+public class SearchPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    public List<SearchResult> results;
+    public int totalHits;
+    
+    public SearchPage(List<SearchResult> results, int totalHits) {
+        this.results = results;
+        this.totalHits = totalHits;
+    }
+    
+    @Override
+    public String toString() {
+        return results.size() + " of " + totalHits + " results";
+    }
+}
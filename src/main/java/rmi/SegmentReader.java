@@ -0,0 +1,65 @@
+package rmi;
+
+import java.util.Map;
+
+/**
+ * Read access shared by the in-memory buffer and the on-disk segments
+ * Doc IDs are global (from the barrel's DocIdDictionary), so results from
+ * different segments can be merged directly
+ */
+interface SegmentReader {
+    
+    /**
+     * Sorted doc IDs containing the term, or null if the term is absent
+     */
+    int[] postings(String term);
+    
+    /**
+     * Postings as a bitmap if this segment stores the term that way, else null
+     */
+    RoaringPostings bitmap(String term);
+    
+    /**
+     * The sorted candidates this segment lists for the term, or null if the
+     * term is absent; postings are decoded only as far as the last candidate
+     */
+    int[] filterPostings(String term, int[] candidates);
+    
+    /**
+     * Number of documents containing the term (0 if absent)
+     */
+    int docFrequency(String term);
+    
+    /**
+     * Up to k terms starting with the prefix and their document frequencies
+     * here, the most frequent first
+     */
+    Map<String, Integer> topTerms(String prefix, int k);
+    
+    /**
+     * Stored fields of a document, or null if this segment does not hold it
+     */
+    PageInfo pageInfo(int docId);
+    
+    /**
+     * Sorted doc IDs of pages linking to this document, or null if none
+     */
+    int[] incomingLinks(int docId);
+    
+    /**
+     * Terms and links of the page version this segment holds, or null
+     */
+    ForwardEntry forward(int docId);
+    
+    /**
+     * Sorted doc IDs this segment removes from the term's postings in older
+     * segments (applied before its own postings), or null if none
+     */
+    int[] deletedPostings(String term);
+    
+    /**
+     * Sorted doc IDs this segment removes from the document's in-links in
+     * older segments (applied before its own links), or null if none
+     */
+    int[] deletedLinks(int docId);
+}
@@ -0,0 +1,231 @@
+package rmi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Segment Writer - Streams an immutable index segment to disk
+ *
+ * Sections must be written in order: terms (sorted by UTF-8 bytes), then
+ * documents (increasing doc ID), then link targets (increasing doc ID), then
+ * forward entries (increasing doc ID), deleted terms (sorted by UTF-8 bytes)
+ * and deleted links (increasing target doc ID).
+ * Only one int offset per entry is kept in memory while writing, so large
+ * merges do not need the whole segment on the heap.
+ *
+ * File layout:
+ *   terms   [int len][term bytes][int docFreq][int encoding][int postingsBytes][postings]
+ *   docs    [int docId][string title][string citation]
+ *   links   [int targetDocId][int count][int postingsBytes][postings]
+ *   forward [int docId][int bytes][ForwardEntry encoding]
+ *   deleted terms [int len][term bytes][int count][int postingsBytes][postings]
+ *   deleted links [int targetDocId][int count][int postingsBytes][postings]
+ *   tables  int offsets of every entry, one table per section
+ *   checksum [int CRC32 of every byte before it]
+ *   footer  [forwardCount][forwardTable][deletedTermCount][deletedTermTable]
+ *           [deletedLinkCount][deletedLinkTable]
+ *           [magic][version][termCount][termTable][docCount][docTable][linkCount][linkTable]
+ * Postings are delta + varint encoded doc IDs (same encoding as PostingList),
+ * or a RoaringPostings bitmap when that is smaller (dense, common terms).
+ * Deleted postings and links remove what older segments hold for re-indexed
+ * pages: a segment applies its deletes first, then its own postings.
+ * Version 1 segments have no encoding field and are always delta + varint;
+ * version 1 and 2 segments have no forward or deleted sections;
+ * versions 1 to 3 have no checksum.
+ */
+class SegmentWriter implements Closeable {
+    
+    static final int MAGIC = 0x47534547; // "GSEG"
+    static final int VERSION = 4;
+    
+    static final int ENCODING_VARINT = 0;
+    static final int ENCODING_ROARING = 1;
+    
+    // Smaller lists are always varint (a bitmap cannot pay off its headers)
+    private static final int ROARING_MIN_DOCS = 32;
+    static final int FOOTER_BYTES = 32;
+    static final int FOOTER_V3_BYTES = 24; // section counts and tables before the footer (v3+)
+    static final int CHECKSUM_BYTES = 4; // before the v3 footer fields (v4+)
+    
+    private final DataOutputStream out;
+    private final CRC32 checksum = new CRC32();
+    private int position = 0;
+    
+    private final IntList termOffsets = new IntList();
+    private final IntList docOffsets = new IntList();
+    private final IntList linkOffsets = new IntList();
+    private final IntList forwardOffsets = new IntList();
+    private final IntList deletedTermOffsets = new IntList();
+    private final IntList deletedLinkOffsets = new IntList();
+    
+    private byte[] scratch = new byte[1024];
+    
+    public SegmentWriter(File file) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(
+            new CheckedOutputStream(new FileOutputStream(file), checksum), 1 << 16));
+    }
+    
+    public void addTerm(byte[] term, int[] docIds, int n) throws IOException {
+        termOffsets.add(position);
+        writeInt(term.length);
+        writeBytes(term, term.length);
+        writeInt(n);
+        
+        int varintBytes = encodePostings(docIds, n);
+        if (n >= ROARING_MIN_DOCS) {
+            byte[] bitmap = RoaringPostings.fromSorted(docIds, n).serialize();
+            if (bitmap.length < varintBytes) {
+                writeInt(ENCODING_ROARING);
+                writeInt(bitmap.length);
+                writeBytes(bitmap, bitmap.length);
+                return;
+            }
+        }
+        writeInt(ENCODING_VARINT);
+        writeInt(varintBytes);
+        writeBytes(scratch, varintBytes);
+    }
+    
+    public void addDoc(int docId, PageInfo info) throws IOException {
+        docOffsets.add(position);
+        writeInt(docId);
+        writeString(info.title);
+        writeString(info.citation);
+    }
+    
+    public void addLinks(int targetDocId, int[] sources, int n) throws IOException {
+        linkOffsets.add(position);
+        writeInt(targetDocId);
+        writeInt(n);
+        writePostings(sources, n);
+    }
+    
+    public void addForward(int docId, ForwardEntry entry) throws IOException {
+        forwardOffsets.add(position);
+        byte[] bytes = entry.encode();
+        writeInt(docId);
+        writeInt(bytes.length);
+        writeBytes(bytes, bytes.length);
+    }
+    
+    public void addDeletedTerm(byte[] term, int[] docIds, int n) throws IOException {
+        deletedTermOffsets.add(position);
+        writeInt(term.length);
+        writeBytes(term, term.length);
+        writeInt(n);
+        writePostings(docIds, n);
+    }
+    
+    public void addDeletedLinks(int targetDocId, int[] sources, int n) throws IOException {
+        deletedLinkOffsets.add(position);
+        writeInt(targetDocId);
+        writeInt(n);
+        writePostings(sources, n);
+    }
+    
+    /**
+     * Write the offset tables and footer
+     */
+    public void finish() throws IOException {
+        int termTable = writeTable(termOffsets);
+        int docTable = writeTable(docOffsets);
+        int linkTable = writeTable(linkOffsets);
+        int forwardTable = writeTable(forwardOffsets);
+        int deletedTermTable = writeTable(deletedTermOffsets);
+        int deletedLinkTable = writeTable(deletedLinkOffsets);
+        out.flush();
+        writeInt((int) checksum.getValue());
+        writeInt(forwardOffsets.size());
+        writeInt(forwardTable);
+        writeInt(deletedTermOffsets.size());
+        writeInt(deletedTermTable);
+        writeInt(deletedLinkOffsets.size());
+        writeInt(deletedLinkTable);
+        writeInt(MAGIC);
+        writeInt(VERSION);
+        writeInt(termOffsets.size());
+        writeInt(termTable);
+        writeInt(docOffsets.size());
+        writeInt(docTable);
+        writeInt(linkOffsets.size());
+        writeInt(linkTable);
+        out.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+    
+    private int writeTable(IntList offsets) throws IOException {
+        int start = position;
+        for (int i = 0; i < offsets.size(); i++) {
+            writeInt(offsets.get(i));
+        }
+        return start;
+    }
+    
+    private void writePostings(int[] docIds, int n) throws IOException {
+        int len = encodePostings(docIds, n);
+        writeInt(len);
+        writeBytes(scratch, len);
+    }
+    
+    /**
+     * Delta + varint encode into scratch
+     * @return encoded length
+     */
+    private int encodePostings(int[] docIds, int n) {
+        if (scratch.length < n * 5) {
+            scratch = new byte[n * 5];
+        }
+        int len = 0;
+        int last = -1;
+        for (int i = 0; i < n; i++) {
+            len = PostingList.writeVarInt(scratch, len, docIds[i] - last);
+            last = docIds[i];
+        }
+        return len;
+    }
+    
+    private void writeString(String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        writeBytes(bytes, bytes.length);
+    }
+    
+    private void writeInt(int value) throws IOException {
+        out.writeInt(value);
+        position += 4;
+    }
+    
+    private void writeBytes(byte[] bytes, int len) throws IOException {
+        out.write(bytes, 0, len);
+        position += len;
+        if (position < 0) {
+            throw new IOException("Segment exceeds 2 GB");
+        }
+    }
+    
+    /**
+     * Growable int array
+     */
+    static class IntList {
+        private int[] values = new int[64];
+        private int size = 0;
+        
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+        
+        int get(int i) { return values[i]; }
+        int size() { return size; }
+        int capacity() { return values.length; }
+    }
+}
@@ -0,0 +1,1727 @@
+package rmi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Segmented Index - Storage engine of a Storage Barrel
+ *
+ * New pages go into an in-memory IndexBuffer (and the WAL). When the buffer
+ * is large enough, or on every autosave tick, it is frozen and written as an
+ * immutable, memory-mapped IndexSegment; the WAL generations it covers are
+ * then deleted. A background merge policy compacts runs of small segments.
+ * Searches read every live segment plus the frozen and active buffers.
+ *
+ * STARTUP: open() only maps the segments and the URL list, so the barrel can
+ * serve queries right away. Building the URL -> ID map, counting pages and
+ * replaying the WAL run in a background catch-up thread; indexing and
+ * flushing wait for it (until then, recent WAL pages are not searchable yet).
+ *
+ * RE-INDEXING: every page version stores its terms and outlinks (a
+ * ForwardEntry). When a page is indexed again, only the terms and links it
+ * gained are added; the ones it lost are removed from the buffer and
+ * recorded as deletes, which hide the old postings in older segments (each
+ * reader applies its deletes, then its own postings). Merges fold deletes
+ * into the merged postings and keep only those still hiding something, so
+ * the index does not grow under continuous recrawl.
+ *
+ * RANKING: in-link counts per doc ID are kept in an InlinkCounts table,
+ * rebuilt from the segments' link headers at startup and updated as pages
+ * are indexed. The link source lists stay in the mapped segments and are
+ * only decoded for getIncomingLinks().
+ *
+ * FILES (in the persistence directory):
+ * - <prefix>_<n>.seg   immutable segments
+ * - <prefix>.docs      append-only URL list (doc ID = position)
+ * - <prefix>.manifest  live segments (oldest first), first uncovered WAL generation
+ *                      and page count
+ * - <prefix>.wal.<n>   write-ahead log generations
+ *
+ * ANTI-ENTROPY: MerkleDigests keeps a digest per page and per URL-hash
+ * range, so replicas can find the pages they differ on without comparing
+ * whole indexes; exportPages() rebuilds those pages for the replica missing them.
+ *
+ * PEER TRANSFER: beginTransfer() flushes the buffer and hands out the live
+ * segments and URL list as a consistent snapshot for a joining barrel, and
+ * passes every later write to a tail (see TransferSession, PeerBootstrap).
+ */
+class SegmentedIndex {
+    
+    // Completion candidates asked per reader: k, widened up to this many times k
+    private static final int COMPLETION_WIDENING = 4;
+    
+    private final String barrelId;
+    private final String directory; // null: in-memory only
+    private final String prefix;
+    
+    private final DocIdDictionary docIds = new DocIdDictionary();
+    private final WriteAheadLog wal;
+    
+    private final int bufferDocs;
+    private final int mergeFactor;
+    private final long maxSegmentBytes;
+    private final boolean offHeap; // buffers keep their data in direct memory
+    
+    // Readers grab the current view; every change publishes a new one
+    private final Object viewLock = new Object();
+    private volatile View view;
+    
+    // Persistent state (guarded by viewLock)
+    private long walGeneration = 0;
+    private int nextSegment = 1;
+    private int persistedDocs = 0;
+    
+    // Documents holding stored fields (getIndexSize)
+    private final BitSet indexedDocs = new BitSet();
+    private int indexedCount = 0;
+    private int manifestCount = 0; // reported until catch-up has counted the pages
+    
+    // Distinct in-links per doc ID (valid once ready)
+    private final InlinkCounts inlinkCounts = new InlinkCounts();
+    
+    // Page digests by URL-hash range for anti-entropy (valid once ready)
+    private final MerkleDigests digests = new MerkleDigests(Config.getBarrelAntiEntropyDepth());
+    
+    // Released once the URL -> ID map is built and the WAL replayed
+    private final CountDownLatch ready = new CountDownLatch(1);
+    
+    private final Object flushLock = new Object();
+    // First WAL generation not holding a frozen buffer's writes (guarded by flushLock)
+    private final Map<IndexBuffer, Long> frozenGenerations = new HashMap<>();
+    private final ExecutorService flusher;
+    private final ExecutorService merger;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+    
+    // Serializes writes of the same page (the diff reads the version it replaces)
+    private final Object[] docLocks = new Object[64];
+    
+    // Tails of running peer transfers: they receive every write after their snapshot
+    private final List<WriteAheadLog.Replayer> transferTails = new CopyOnWriteArrayList<>();
+    
+    public SegmentedIndex(String barrelId, String directory, boolean walEnabled, boolean walSync) {
+        this(barrelId, directory, walEnabled, walSync, Config.getBarrelBufferOffHeap());
+    }
+    
+    public SegmentedIndex(String barrelId, String directory, boolean walEnabled, boolean walSync, boolean offHeap) {
+        this.barrelId = barrelId;
+        this.directory = directory;
+        this.prefix = "barrel_" + barrelId;
+        this.bufferDocs = Config.getBarrelSegmentBufferDocs();
+        this.mergeFactor = Config.getBarrelSegmentMergeFactor();
+        this.maxSegmentBytes = Config.getBarrelSegmentMaxMB() * 1024L * 1024L;
+        this.offHeap = offHeap;
+        this.view = new View(List.of(), List.of(), new IndexBuffer(offHeap));
+        for (int i = 0; i < docLocks.length; i++) {
+            docLocks[i] = new Object();
+        }
+        
+        WriteAheadLog log = null;
+        if (directory != null && walEnabled) {
+            try {
+                log = new WriteAheadLog(directory, prefix, walSync);
+            } catch (IOException e) {
+                System.err.println("Barrel " + barrelId + " could not open WAL, using segments only: " + e.getMessage());
+            }
+        }
+        this.wal = log;
+        
+        this.flusher = Executors.newSingleThreadExecutor(daemon("Flush-" + barrelId));
+        this.merger = Executors.newSingleThreadExecutor(daemon("Merge-" + barrelId));
+    }
+    
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+    
+    // ==================== Recovery ====================
+    
+    /**
+     * Load segments and URL dictionary, migrate an old snapshot if present,
+     * then replay the WAL generations not covered by segments
+     */
+    public void open() {
+        if (directory == null) {
+            ready.countDown();
+            return;
+        }
+        File manifest = new File(directory, prefix + ".manifest");
+        File legacy = new File(directory, prefix + ".dat");
+        
+        if (manifest.exists()) {
+            try {
+                long replayFrom = loadManifest(manifest);
+                Thread catchUp = new Thread(() -> catchUp(replayFrom), "CatchUp-" + barrelId);
+                catchUp.setDaemon(true);
+                catchUp.start();
+                return;
+            } catch (Exception e) {
+                // Set the old files aside: new doc IDs and segments must not
+                // be appended to or named after ones a restart would misread
+                System.err.println("Barrel " + barrelId + " failed to load state: " + e.getMessage());
+                System.err.println("Starting with empty index, old files kept as .corrupt");
+                resetState();
+                setAside();
+                catchUp(0);
+                return;
+            }
+        }
+        
+        // Older snapshot or no state: nothing to map, recover synchronously
+        long replayFrom = 0;
+        try {
+            if (legacy.exists()) {
+                replayFrom = migrateSnapshot(legacy);
+            } else {
+                System.out.println("Barrel " + barrelId + " no previous state found, starting fresh");
+            }
+        } catch (Exception e) {
+            System.err.println("Barrel " + barrelId + " failed to load state: " + e.getMessage());
+            System.err.println("Starting with empty index");
+        }
+        catchUp(replayFrom);
+        
+        if (legacy.exists() && manifest.exists()) {
+            legacy.renameTo(new File(directory, prefix + ".dat.migrated"));
+        }
+    }
+    
+    /**
+     * Work deferred by open(): URL -> ID map, page count, WAL replay
+     */
+    private void catchUp(long replayFrom) {
+        long start = System.currentTimeMillis();
+        try {
+            quarantineCorrupt();
+            docIds.indexMapped();
+            for (IndexSegment segment : view.segments) {
+                for (int i = 0; i < segment.docCount(); i++) {
+                    int docId = segment.docIdAt(i);
+                    markIndexed(docId);
+                    // Oldest segment first, so the newest copy of a page wins
+                    PageInfo info = segment.pageInfoAt(i);
+                    digests.update(docId, docIds.getUrl(docId), info.title, info.citation);
+                }
+            }
+            countInlinks(view);
+            if (wal != null) {
+                int replayed = wal.replay(replayFrom, new WriteAheadLog.Replayer() {
+                    @Override
+                    public void index(String url, String title, String citation, Set<String> words, Set<String> links) {
+                        try {
+                            apply(url, title, citation, words, links, false);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e); // not logging, cannot happen
+                        }
+                    }
+                    
+                    @Override
+                    public void links(String url, Set<String> links) {
+                        try {
+                            applyLinks(url, links, false);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e); // not logging, cannot happen
+                        }
+                    }
+                });
+                if (replayed > 0) {
+                    System.out.println("Barrel " + barrelId + " replayed " + replayed + " pages from WAL");
+                }
+            }
+        } finally {
+            ready.countDown();
+        }
+        System.out.println("Barrel " + barrelId + " caught up in " + (System.currentTimeMillis() - start) +
+                         " ms: " + size() + " pages, accepting writes");
+    }
+    
+    /**
+     * Drop segments failing their checksum from the view and manifest, so a
+     * damaged file never serves wrong postings (it is kept as .seg.corrupt);
+     * its pages stay missing until re-indexed or repaired by anti-entropy
+     */
+    private void quarantineCorrupt() {
+        List<IndexSegment> corrupt = new ArrayList<>();
+        for (IndexSegment segment : view.segments) {
+            if (!segment.verify()) {
+                corrupt.add(segment);
+            }
+        }
+        if (corrupt.isEmpty()) {
+            return;
+        }
+        synchronized (viewLock) {
+            List<IndexSegment> kept = new ArrayList<>(view.segments);
+            kept.removeAll(corrupt);
+            view = new View(kept, view.frozen, view.active);
+            List<String> names = new ArrayList<>();
+            for (IndexSegment segment : kept) {
+                names.add(segment.getName());
+            }
+            try {
+                writeManifest(directory, barrelId, walGeneration, nextSegment, manifestCount, names);
+            } catch (IOException e) {
+                System.err.println("Barrel " + barrelId + " failed to write manifest: " + e.getMessage());
+            }
+        }
+        for (IndexSegment segment : corrupt) {
+            File file = segment.getFile();
+            file.renameTo(new File(file.getPath() + ".corrupt"));
+            System.err.println("Barrel " + barrelId + " segment " + segment.getName() + " failed its checksum, " +
+                             segment.docCount() + " pages missing until re-indexed or repaired from a peer");
+        }
+    }
+    
+    /**
+     * Fill the in-link count table from the segments' link headers
+     * A target listed in several segments may share sources between them
+     * (re-indexed pages), and deletes may remove some, so only those targets
+     * decode and combine their lists.
+     */
+    private void countInlinks(View v) {
+        BitSet seen = new BitSet();
+        BitSet shared = new BitSet();
+        for (IndexSegment segment : v.segments) {
+            for (int i = 0; i < segment.linkCount(); i++) {
+                int target = segment.linkTargetAt(i);
+                if (seen.get(target)) {
+                    shared.set(target);
+                }
+                seen.set(target);
+                inlinkCounts.add(target, segment.linkCountAt(i));
+            }
+            // Targets that lost links to re-indexed pages are recounted too
+            for (int i = 0; i < segment.deletedLinkCount(); i++) {
+                shared.set(segment.deletedLinkTargetAt(i));
+            }
+        }
+        for (int target = shared.nextSetBit(0); target >= 0; target = shared.nextSetBit(target + 1)) {
+            inlinkCounts.set(target, v.incomingLinkCount(target));
+        }
+    }
+    
+    /**
+     * Block until catch-up is done (writes and URL lookups need the full map)
+     */
+    private void awaitReady() {
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for barrel startup");
+        }
+    }
+    
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+    
+    private void resetState() {
+        synchronized (viewLock) {
+            view = new View(List.of(), List.of(), new IndexBuffer(offHeap));
+            walGeneration = 0;
+            nextSegment = 1;
+            persistedDocs = 0;
+            manifestCount = 0;
+        }
+        docIds.clear();
+    }
+    
+    /**
+     * Rename the manifest, URL list and segments to *.corrupt (the WAL stays
+     * and is replayed into the fresh index)
+     */
+    private void setAside() {
+        File[] files = new File(directory).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(prefix + ".manifest") || name.equals(prefix + ".docs") ||
+                (name.startsWith(prefix + "_") && name.endsWith(".seg"))) {
+                File aside = new File(file.getPath() + ".corrupt");
+                aside.delete();
+                if (!file.renameTo(aside)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Map the segments and URL list named by the manifest
+     * Pages are only counted later, by catchUp()
+     */
+    private long loadManifest(File manifest) throws IOException {
+        long replayFrom = 0;
+        List<String> names = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("wal=")) {
+                replayFrom = Long.parseLong(line.substring(4));
+            } else if (line.startsWith("next=")) {
+                nextSegment = Integer.parseInt(line.substring(5));
+            } else if (line.startsWith("docs=")) {
+                manifestCount = Integer.parseInt(line.substring(5));
+            } else if (line.startsWith("segment=")) {
+                names.add(line.substring(8));
+            }
+        }
+        
+        loadDocIds();
+        
+        // An unreadable segment is quarantined like one failing its checksum
+        List<IndexSegment> segments = new ArrayList<>();
+        List<String> kept = new ArrayList<>();
+        for (String name : names) {
+            File file = new File(directory, name);
+            try {
+                segments.add(IndexSegment.open(file));
+                kept.add(name);
+            } catch (Exception e) {
+                file.renameTo(new File(file.getPath() + ".corrupt"));
+                System.err.println("Barrel " + barrelId + " segment " + name + " failed to load (" + e.getMessage() +
+                                 "), its pages are missing until re-indexed or repaired from a peer");
+            }
+        }
+        deleteOrphanSegments(kept);
+        
+        synchronized (viewLock) {
+            walGeneration = replayFrom;
+            view = new View(segments, List.of(), view.active);
+            if (kept.size() < names.size()) {
+                writeManifest(directory, barrelId, walGeneration, nextSegment, manifestCount, kept);
+            }
+        }
+        System.out.println("Barrel " + barrelId + " mapped " + segments.size() + " segments (" +
+                         manifestCount + " pages), serving queries while catching up");
+        return replayFrom;
+    }
+    
+    /**
+     * Segment files left by a crash during flush/merge, or by a failed delete
+     */
+    private void deleteOrphanSegments(List<String> live) {
+        File[] files = new File(directory).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix + "_") && name.endsWith(".seg") && !live.contains(name)) {
+                file.delete();
+            }
+        }
+    }
+    
+    /**
+     * Read a snapshot written by earlier versions (whole index in one
+     * ObjectOutputStream) into the buffer, and flush it as the first segment
+     * @return first WAL generation not covered by the snapshot
+     */
+    @SuppressWarnings("unchecked")
+    private long migrateSnapshot(File file) throws Exception {
+        long replayFrom = 0;
+        IndexBuffer buffer = view.active;
+        
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            
+            Object first = ois.readObject();
+            if (first instanceof DocIdDictionary) {
+                // Fresh dictionary: assigning in order reproduces the same IDs
+                DocIdDictionary loadedDocIds = (DocIdDictionary) first;
+                for (int id = 0; id < loadedDocIds.size(); id++) {
+                    docIds.getOrAssign(loadedDocIds.getUrl(id));
+                }
+                for (Map.Entry<String, PostingList> entry : ((Map<String, PostingList>) ois.readObject()).entrySet()) {
+                    buffer.addPostings(entry.getKey(), entry.getValue());
+                }
+            } else {
+                // Oldest format: word -> set of URLs
+                for (Map.Entry<String, Set<String>> entry : ((Map<String, Set<String>>) first).entrySet()) {
+                    buffer.addPostings(entry.getKey(), toPostings(entry.getValue()));
+                }
+            }
+            
+            Map<String, PageInfo> loadedPages = (Map<String, PageInfo>) ois.readObject();
+            for (Map.Entry<String, PageInfo> entry : loadedPages.entrySet()) {
+                int docId = docIds.getOrAssign(entry.getKey());
+                buffer.addPage(docId, entry.getValue().title, entry.getValue().citation);
+                markIndexed(docId);
+            }
+            
+            Map<String, Set<String>> loadedLinks = (Map<String, Set<String>>) ois.readObject();
+            for (Map.Entry<String, Set<String>> entry : loadedLinks.entrySet()) {
+                buffer.addInlinks(docIds.getOrAssign(entry.getKey()), toPostings(entry.getValue()));
+            }
+            
+            ois.readLong(); // search time statistics (no longer persisted)
+            ois.readInt();
+            try {
+                replayFrom = ois.readLong();
+            } catch (EOFException e) {
+                // Written before the WAL existed
+            }
+        }
+        
+        System.out.println("Barrel " + barrelId + " migrating snapshot (" + indexedCount + " pages) to segments");
+        synchronized (viewLock) {
+            walGeneration = replayFrom;
+        }
+        flushBuffer();
+        return replayFrom;
+    }
+    
+    private PostingList toPostings(Set<String> urls) {
+        int[] ids = new int[urls.size()];
+        int n = 0;
+        for (String url : urls) {
+            ids[n++] = docIds.getOrAssign(url);
+        }
+        Arrays.sort(ids, 0, n);
+        return PostingList.fromSorted(ids, n);
+    }
+    
+    // ==================== Indexing ====================
+    
+    /**
+     * Index a page and append it to the WAL
+     * @return WAL sequence number to wait for (0 without a WAL)
+     * @throws IOException if the WAL has failed (the page may already be searchable)
+     */
+    public long index(String url, String title, String citation, Set<String> words, Set<String> links)
+            throws IOException {
+        awaitReady();
+        long seq = apply(url, title, citation, words, links, true);
+        if (directory != null && view.active.docCount() >= bufferDocs) {
+            scheduleFlush();
+        }
+        return seq;
+    }
+    
+    /**
+     * Record links of a page indexed by another shard (sharded mode: every
+     * link is stored in the shard owning its target, so in-link counts are
+     * complete). The source gets a doc ID but no stored fields or terms.
+     * @return WAL sequence number to wait for (0 without a WAL)
+     * @throws IOException if the WAL has failed
+     */
+    public long indexLinks(String url, Set<String> links) throws IOException {
+        awaitReady();
+        return applyLinks(url, links, true);
+    }
+    
+    /**
+     * Wait until a WAL record is on disk
+     */
+    public void awaitDurable(long seq) throws IOException {
+        if (wal != null && seq > 0) {
+            wal.awaitDurable(seq);
+        }
+    }
+    
+    /**
+     * Add a page to the active buffer, then log it (WAL replay doesn't)
+     * A page indexed before is diffed against its stored version, so
+     * replaying pages already in a segment is harmless. The record is
+     * appended before the page's lock is released, so two versions of a
+     * page reach the log (and transfer tails) in the order they were applied.
+     * @return WAL sequence number to wait for (0 without a WAL or logging)
+     */
+    private long apply(String url, String title, String citation, Set<String> words, Set<String> links,
+                       boolean log) throws IOException {
+        int docId = docIds.getOrAssign(url);
+        int[] targets = new int[links.size()];
+        int n = 0;
+        for (String link : links) {
+            targets[n++] = docIds.getOrAssign(link);
+        }
+        ForwardEntry current = ForwardEntry.of(words, targets);
+        
+        boolean reindexed = isIndexed(docId);
+        long seq = 0;
+        
+        synchronized (docLock(docId)) {
+            View v = enterActive();
+            try {
+                IndexBuffer buffer = v.active;
+                ForwardEntry previous = v.forward(docId);
+                buffer.addPage(docId, title, citation);
+                if (previous != null) {
+                    // Only what changed since the stored version
+                    for (String term : previous.termsNotIn(current)) {
+                        buffer.removeTerm(term, docId);
+                    }
+                    for (String term : current.termsNotIn(previous)) {
+                        buffer.addTerm(term, docId);
+                    }
+                    diffLinks(buffer, docId, previous, current);
+                } else {
+                    for (String term : current.terms) {
+                        buffer.addTerm(term, docId);
+                    }
+                    // A page seen before (older segment format) may already have these links
+                    addLinks(v, docId, targets, reindexed);
+                }
+                buffer.putForward(docId, current);
+            } finally {
+                v.active.exit();
+            }
+            if (log) {
+                for (WriteAheadLog.Replayer tail : transferTails) {
+                    tail.index(url, title, citation, words, links);
+                }
+                seq = wal != null ? wal.appendIndex(url, title, citation, words, links) : 0;
+            }
+        }
+        markIndexed(docId);
+        digests.update(docId, url, title, citation);
+        return seq;
+    }
+    
+    /**
+     * Add links of a page owned by another shard, then log them under the
+     * page's lock as apply() does (WAL replay doesn't)
+     * @return WAL sequence number to wait for (0 without a WAL or logging)
+     */
+    private long applyLinks(String url, Set<String> links, boolean log) throws IOException {
+        int docId = docIds.getOrAssign(url);
+        int[] targets = new int[links.size()];
+        int n = 0;
+        for (String link : links) {
+            targets[n++] = docIds.getOrAssign(link);
+        }
+        long seq = 0;
+        
+        synchronized (docLock(docId)) {
+            View v = enterActive();
+            try {
+                ForwardEntry previous = v.forward(docId);
+                ForwardEntry current = (previous != null ? previous : ForwardEntry.EMPTY).withLinks(targets);
+                if (previous != null) {
+                    diffLinks(v.active, docId, previous, current);
+                } else {
+                    // Such sources are never marked indexed here, so always check older segments
+                    addLinks(v, docId, targets, true);
+                }
+                v.active.putForward(docId, current);
+            } finally {
+                v.active.exit();
+            }
+            if (log) {
+                for (WriteAheadLog.Replayer tail : transferTails) {
+                    tail.links(url, links);
+                }
+                seq = wal != null ? wal.appendLinks(url, links) : 0;
+            }
+        }
+        return seq;
+    }
+    
+    /**
+     * Current view, with its active buffer entered by the caller (who must
+     * exit() it); a buffer frozen meanwhile is skipped for its successor
+     */
+    private View enterActive() {
+        while (true) {
+            View v = view;
+            if (v.active.enter()) {
+                return v;
+            }
+        }
+    }
+    
+    /**
+     * Add links to the active buffer of v, counting the ones that are new
+     * (caller has entered the buffer)
+     */
+    private void addLinks(View v, int sourceDocId, int[] targets, boolean checkOlder) {
+        for (int target : targets) {
+            if (v.active.addLink(sourceDocId, target) && !(checkOlder && v.linkedBefore(sourceDocId, target))) {
+                inlinkCounts.increment(target);
+            }
+        }
+    }
+    
+    /**
+     * Apply the change in a page's outlinks and in-link counts
+     * (caller has entered the buffer)
+     */
+    private void diffLinks(IndexBuffer buffer, int sourceDocId, ForwardEntry previous, ForwardEntry current) {
+        for (int target : previous.linksNotIn(current)) {
+            buffer.removeLink(sourceDocId, target);
+            inlinkCounts.add(target, -1);
+        }
+        for (int target : current.linksNotIn(previous)) {
+            if (buffer.addLink(sourceDocId, target)) {
+                inlinkCounts.increment(target);
+            }
+        }
+    }
+    
+    private Object docLock(int docId) {
+        return docLocks[docId & (docLocks.length - 1)];
+    }
+    
+    private synchronized void markIndexed(int docId) {
+        if (!indexedDocs.get(docId)) {
+            indexedDocs.set(docId);
+            indexedCount++;
+        }
+    }
+    
+    private synchronized boolean isIndexed(int docId) {
+        return indexedDocs.get(docId);
+    }
+    
+    /**
+     * Number of distinct pages linking to a document (ranking signal)
+     */
+    public int incomingLinkCount(int docId) {
+        return isReady() ? inlinkCounts.get(docId) : view.incomingLinkCount(docId);
+    }
+    
+    public synchronized int size() {
+        return isReady() ? indexedCount : manifestCount;
+    }
+    
+    public String getUrl(int docId) {
+        return docIds.getUrl(docId);
+    }
+    
+    public int getDocId(String url) {
+        awaitReady();
+        return docIds.getId(url);
+    }
+    
+    public View view() {
+        return view;
+    }
+    
+    /**
+     * Prefix completion: the k terms starting with the prefix that occur in
+     * the most documents, with their document frequencies (most frequent first)
+     * 
+     * Every reader proposes its own top terms (segments through a
+     * TermCompleter) and the candidates are ranked by their frequency over the
+     * whole view. A term no reader proposed occurs in at most the sum of the
+     * readers' last proposed frequencies, so once the k-th candidate reaches
+     * that bound the answer is exact (up to ties); otherwise the readers are
+     * asked for twice as many, up to COMPLETION_WIDENING times k.
+     */
+    public Map<String, Integer> complete(String prefix, int k) {
+        View v = view;
+        Map<String, Integer> candidates = new HashMap<>(); // term -> frequency in the view
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>();
+        for (int want = k; ; want *= 2) {
+            List<Map<String, Integer>> proposed = new ArrayList<>(v.readers.size());
+            long unseen = 0; // upper bound on the frequency of a term nobody proposed
+            for (SegmentReader reader : v.readers) {
+                Map<String, Integer> top = reader.topTerms(prefix, want);
+                proposed.add(top);
+                if (top.size() == want) {
+                    unseen += Collections.min(top.values());
+                }
+            }
+            for (Map<String, Integer> top : proposed) {
+                for (String term : top.keySet()) {
+                    candidates.computeIfAbsent(term, t -> v.docFrequency(t, proposed));
+                }
+            }
+            ranked = new ArrayList<>(candidates.entrySet());
+            ranked.sort(IndexBuffer.COMPLETION_ORDER);
+            boolean exact = ranked.size() >= k ? ranked.get(k - 1).getValue() >= unseen : unseen == 0;
+            if (exact || want >= k * COMPLETION_WIDENING) {
+                break;
+            }
+        }
+        
+        Map<String, Integer> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : ranked.subList(0, Math.min(k, ranked.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+    
+    /**
+     * How postings are represented, summed over segments (a term stored in
+     * several segments counts once per segment); buffered terms are varint lists
+     */
+    public Map<String, Integer> postingsLayout() {
+        View v = view;
+        int[] totals = new int[5];
+        for (IndexSegment segment : v.segments) {
+            int[] counts = segment.postingsLayout();
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += counts[i];
+            }
+        }
+        for (IndexBuffer buffer : v.frozen) {
+            totals[0] += buffer.termCount();
+        }
+        totals[0] += v.active.termCount();
+        
+        Map<String, Integer> layout = new LinkedHashMap<>();
+        layout.put("varintTerms", totals[0]);
+        layout.put("roaringTerms", totals[1]);
+        layout.put("arrayContainers", totals[2]);
+        layout.put("bitmapContainers", totals[3]);
+        layout.put("runContainers", totals[4]);
+        return layout;
+    }
+    
+    /**
+     * Estimated heap bytes per structure, plus the bytes mapped from disk
+     * (segments and URL list) and the direct memory of off-heap buffers,
+     * both outside the heap
+     */
+    public Map<String, Long> heapFootprint() {
+        View v = view;
+        long buffers = v.active.heapBytes();
+        long offHeapBuffers = v.active.offHeapBytes();
+        for (IndexBuffer buffer : v.frozen) {
+            buffers += buffer.heapBytes();
+            offHeapBuffers += buffer.offHeapBytes();
+        }
+        long segmentBytes = 0;
+        long completers = 0;
+        for (IndexSegment segment : v.segments) {
+            segmentBytes += segment.sizeBytes();
+            completers += segment.completerBytes();
+        }
+        long indexed;
+        synchronized (this) {
+            indexed = indexedDocs.size() / 8;
+        }
+        
+        Map<String, Long> footprint = new LinkedHashMap<>();
+        footprint.put("urlStore", docIds.heapBytes());
+        footprint.put("buffers", buffers);
+        footprint.put("inlinkCounts", inlinkCounts.heapBytes());
+        footprint.put("merkleDigests", digests.heapBytes());
+        footprint.put("termCompleters", completers);
+        footprint.put("indexedDocs", indexed);
+        footprint.put("segmentsMapped", segmentBytes);
+        footprint.put("urlListMapped", docIds.mappedBytes());
+        footprint.put("buffersOffHeap", offHeapBuffers);
+        return footprint;
+    }
+    
+    // ==================== Flushing ====================
+    
+    public void scheduleFlush() {
+        if (directory != null && flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                // Closing: close() does the final flush itself
+            }
+        }
+    }
+    
+    /**
+     * Freeze the active buffer and write it as a new segment
+     * Waits for catch-up: a flush deletes the WAL generations being replayed
+     */
+    public void flush() {
+        if (directory == null) {
+            return;
+        }
+        awaitReady();
+        flushBuffer();
+    }
+    
+    private void flushBuffer() {
+        synchronized (flushLock) {
+            // Buffers left by a failed flush go first, oldest first: a WAL
+            // generation is only deleted once every buffer it holds is written
+            for (IndexBuffer frozen : view.frozen) {
+                if (!writeFrozen(frozen, frozenGenerations.get(frozen))) {
+                    return;
+                }
+            }
+            if (view.active.isEmpty()) {
+                return;
+            }
+            // Rotate first: a write still landing in the frozen buffer may be
+            // logged to the new generation (replayed twice, harmless), but no
+            // write to the next buffer can be logged to a covered one
+            long coveredGeneration;
+            try {
+                coveredGeneration = wal != null ? wal.rotate() : 0;
+            } catch (IOException e) {
+                System.err.println("Barrel " + barrelId + " flush failed: " + e.getMessage());
+                return;
+            }
+            IndexBuffer frozen;
+            synchronized (viewLock) {
+                View v = view;
+                frozen = v.active;
+                view = new View(v.segments, append(v.frozen, frozen), new IndexBuffer(offHeap));
+            }
+            frozen.freeze();
+            frozenGenerations.put(frozen, coveredGeneration);
+            if (!writeFrozen(frozen, coveredGeneration)) {
+                return;
+            }
+        }
+        scheduleMerge();
+    }
+    
+    /**
+     * Write a frozen buffer as the next segment, then drop the WAL
+     * generations before coveredGeneration (called under flushLock)
+     * @return false if it failed: the buffer stays frozen and searchable,
+     *         its WAL generations are kept and the next flush retries it
+     */
+    private boolean writeFrozen(IndexBuffer frozen, long coveredGeneration) {
+        File file = newSegmentFile();
+        IndexSegment segment = null;
+        try {
+            writeBuffer(frozen, file);
+            segment = IndexSegment.open(file);
+            persistDocIds();
+            
+            synchronized (viewLock) {
+                View v = view;
+                List<IndexBuffer> remaining = new ArrayList<>(v.frozen);
+                remaining.remove(frozen);
+                view = new View(append(v.segments, segment), remaining, v.active);
+                walGeneration = coveredGeneration;
+                writeManifest();
+            }
+            frozenGenerations.remove(frozen);
+            if (wal != null) {
+                wal.deleteBefore(coveredGeneration);
+            }
+            System.out.println("Barrel " + barrelId + " flushed segment " + segment.getName() +
+                             " (" + segment.docCount() + " pages, " + segment.termCount() + " terms)");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Barrel " + barrelId + " flush failed: " + e.getMessage());
+            if (segment != null && view.segments.contains(segment)) {
+                // Only the manifest failed: the next one lists the segment,
+                // the WAL is kept until then
+                frozenGenerations.remove(frozen);
+                return true;
+            }
+            file.delete(); // the retry writes a new file
+            return false;
+        }
+    }
+    
+    private void writeBuffer(IndexBuffer buffer, File file) throws IOException {
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            buffer.writeTo(writer);
+            writer.finish();
+        }
+    }
+    
+    // ==================== Merging ====================
+    
+    private void scheduleMerge() {
+        if (mergeScheduled.compareAndSet(false, true)) {
+            try {
+                merger.execute(() -> {
+                    mergeScheduled.set(false);
+                    List<IndexSegment> run;
+                    while ((run = selectMerge(view.segments)) != null) {
+                        if (!merge(run)) {
+                            break;
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closing: remaining segments are merged after the next start
+            }
+        }
+    }
+    
+    /**
+     * Log-size merge policy: segments are grouped in levels by size (each level
+     * mergeFactor times larger than the previous); mergeFactor consecutive
+     * segments of the same level are merged. Only consecutive runs are merged,
+     * so segment order keeps meaning "older to newer".
+     */
+    private List<IndexSegment> selectMerge(List<IndexSegment> segments) {
+        List<IndexSegment> best = null;
+        int bestLevel = Integer.MAX_VALUE;
+        for (int start = 0; start + mergeFactor <= segments.size(); start++) {
+            List<IndexSegment> run = segments.subList(start, start + mergeFactor);
+            int level = level(run.get(0));
+            long total = 0;
+            boolean sameLevel = true;
+            for (IndexSegment segment : run) {
+                sameLevel &= level(segment) == level;
+                total += segment.sizeBytes();
+            }
+            if (sameLevel && total <= maxSegmentBytes && level < bestLevel) {
+                best = new ArrayList<>(run);
+                bestLevel = level;
+            }
+        }
+        return best;
+    }
+    
+    private int level(IndexSegment segment) {
+        long floor = 1024 * 1024; // everything under 1 MB is level 0
+        int level = 0;
+        for (long size = segment.sizeBytes(); size >= floor; size /= mergeFactor) {
+            level++;
+        }
+        return level;
+    }
+    
+    private boolean merge(List<IndexSegment> run) {
+        try {
+            // Only the merger replaces segments, so the ones before the run stay put
+            List<IndexSegment> live = view.segments;
+            List<IndexSegment> older = new ArrayList<>(live.subList(0, live.indexOf(run.get(0))));
+            
+            File file = newSegmentFile();
+            try (SegmentWriter writer = new SegmentWriter(file)) {
+                mergeTerms(run, writer);
+                mergeDocs(run, writer);
+                mergeLinks(run, writer);
+                mergeForward(run, writer);
+                mergeDeletedTerms(run, older, writer);
+                mergeDeletedLinks(run, older, writer);
+                writer.finish();
+            }
+            IndexSegment merged = IndexSegment.open(file);
+            
+            synchronized (viewLock) {
+                View v = view;
+                List<IndexSegment> segments = new ArrayList<>(v.segments);
+                int at = segments.indexOf(run.get(0));
+                segments.removeAll(run);
+                segments.add(at, merged);
+                view = new View(segments, v.frozen, v.active);
+                writeManifest();
+            }
+            
+            // Searches still holding an old view keep their mapping valid
+            for (IndexSegment old : run) {
+                old.getFile().delete();
+            }
+            System.out.println("Barrel " + barrelId + " merged " + run.size() + " segments into " +
+                             merged.getName() + " (" + merged.docCount() + " pages)");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Barrel " + barrelId + " merge failed: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    private void mergeTerms(List<IndexSegment> run, SegmentWriter writer) throws IOException {
+        int[] pos = new int[run.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Arrays.compareUnsigned(run.get(a).termAt(pos[a]), run.get(b).termAt(pos[b]));
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).termCount() > 0) queue.add(s);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            byte[] term = run.get(s).termAt(pos[s]);
+            int[][] parts = new int[run.size()][];
+            parts[s] = run.get(s).postingsAt(pos[s]);
+            advance(queue, run.get(s).termCount(), pos, s);
+            while (!queue.isEmpty() && Arrays.equals(run.get(queue.peek()).termAt(pos[queue.peek()]), term)) {
+                int t = queue.poll();
+                parts[t] = run.get(t).postingsAt(pos[t]);
+                advance(queue, run.get(t).termCount(), pos, t);
+            }
+            
+            // Oldest to newest: each segment's deletes, then its postings
+            int[] ids = null;
+            String text = null;
+            for (int k = 0; k < run.size(); k++) {
+                if (ids != null && run.get(k).deletedTermCount() > 0) {
+                    if (text == null) text = new String(term, StandardCharsets.UTF_8);
+                    ids = minus(ids, run.get(k).deletedPostings(text));
+                }
+                ids = union(ids, parts[k]);
+            }
+            if (ids.length > 0) {
+                writer.addTerm(term, ids, ids.length);
+            }
+        }
+    }
+    
+    private void mergeDocs(List<IndexSegment> run, SegmentWriter writer) throws IOException {
+        int[] pos = new int[run.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Integer.compare(run.get(a).docIdAt(pos[a]), run.get(b).docIdAt(pos[b]));
+            return cmp != 0 ? cmp : Integer.compare(b, a); // newest segment first
+        });
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).docCount() > 0) queue.add(s);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            int docId = run.get(s).docIdAt(pos[s]);
+            writer.addDoc(docId, run.get(s).pageInfoAt(pos[s]));
+            advance(queue, run.get(s).docCount(), pos, s);
+            // Older copies of the same page are dropped
+            while (!queue.isEmpty() && run.get(queue.peek()).docIdAt(pos[queue.peek()]) == docId) {
+                int t = queue.poll();
+                advance(queue, run.get(t).docCount(), pos, t);
+            }
+        }
+    }
+    
+    private void mergeLinks(List<IndexSegment> run, SegmentWriter writer) throws IOException {
+        int[] pos = new int[run.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Integer.compare(run.get(a).linkTargetAt(pos[a]), run.get(b).linkTargetAt(pos[b]));
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).linkCount() > 0) queue.add(s);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            int target = run.get(s).linkTargetAt(pos[s]);
+            int[][] parts = new int[run.size()][];
+            parts[s] = run.get(s).linksAt(pos[s]);
+            advance(queue, run.get(s).linkCount(), pos, s);
+            while (!queue.isEmpty() && run.get(queue.peek()).linkTargetAt(pos[queue.peek()]) == target) {
+                int t = queue.poll();
+                parts[t] = run.get(t).linksAt(pos[t]);
+                advance(queue, run.get(t).linkCount(), pos, t);
+            }
+            
+            int[] sources = null;
+            for (int k = 0; k < run.size(); k++) {
+                if (sources != null) {
+                    sources = minus(sources, run.get(k).deletedLinks(target));
+                }
+                sources = union(sources, parts[k]);
+            }
+            if (sources.length > 0) {
+                writer.addLinks(target, sources, sources.length);
+            }
+        }
+    }
+    
+    /**
+     * Newest forward entry of each page
+     */
+    private void mergeForward(List<IndexSegment> run, SegmentWriter writer) throws IOException {
+        int[] pos = new int[run.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Integer.compare(run.get(a).forwardDocIdAt(pos[a]), run.get(b).forwardDocIdAt(pos[b]));
+            return cmp != 0 ? cmp : Integer.compare(b, a); // newest segment first
+        });
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).forwardCount() > 0) queue.add(s);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            int docId = run.get(s).forwardDocIdAt(pos[s]);
+            writer.addForward(docId, run.get(s).forwardAt(pos[s]));
+            advance(queue, run.get(s).forwardCount(), pos, s);
+            while (!queue.isEmpty() && run.get(queue.peek()).forwardDocIdAt(pos[queue.peek()]) == docId) {
+                int t = queue.poll();
+                advance(queue, run.get(t).forwardCount(), pos, t);
+            }
+        }
+    }
+    
+    /**
+     * Deletes of the run, kept only where a segment older than the run still
+     * holds the posting (the run's own postings already had them applied)
+     */
+    private void mergeDeletedTerms(List<IndexSegment> run, List<IndexSegment> older, SegmentWriter writer) throws IOException {
+        if (older.isEmpty()) {
+            return;
+        }
+        int[] pos = new int[run.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Arrays.compareUnsigned(run.get(a).deletedTermAt(pos[a]), run.get(b).deletedTermAt(pos[b]));
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).deletedTermCount() > 0) queue.add(s);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            byte[] term = run.get(s).deletedTermAt(pos[s]);
+            int[] ids = run.get(s).deletedPostingsAt(pos[s]);
+            advance(queue, run.get(s).deletedTermCount(), pos, s);
+            while (!queue.isEmpty() && Arrays.equals(run.get(queue.peek()).deletedTermAt(pos[queue.peek()]), term)) {
+                int t = queue.poll();
+                ids = union(ids, run.get(t).deletedPostingsAt(pos[t]));
+                advance(queue, run.get(t).deletedTermCount(), pos, t);
+            }
+            
+            int[] held = null;
+            for (IndexSegment segment : older) {
+                int i = segment.findTerm(term);
+                if (i >= 0) {
+                    RoaringPostings bits = segment.bitmapAt(i);
+                    held = union(held, bits != null ? bits.filter(ids) : QueryExecutor.gallopIntersect(ids, segment.postingsAt(i)));
+                }
+            }
+            if (held != null && held.length > 0) {
+                writer.addDeletedTerm(term, held, held.length);
+            }
+        }
+    }
+    
+    private void mergeDeletedLinks(List<IndexSegment> run, List<IndexSegment> older, SegmentWriter writer) throws IOException {
+        if (older.isEmpty()) {
+            return;
+        }
+        int[] pos = new int[run.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Integer.compare(run.get(a).deletedLinkTargetAt(pos[a]), run.get(b).deletedLinkTargetAt(pos[b]));
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).deletedLinkCount() > 0) queue.add(s);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            int target = run.get(s).deletedLinkTargetAt(pos[s]);
+            int[] sources = run.get(s).deletedLinksAt(pos[s]);
+            advance(queue, run.get(s).deletedLinkCount(), pos, s);
+            while (!queue.isEmpty() && run.get(queue.peek()).deletedLinkTargetAt(pos[queue.peek()]) == target) {
+                int t = queue.poll();
+                sources = union(sources, run.get(t).deletedLinksAt(pos[t]));
+                advance(queue, run.get(t).deletedLinkCount(), pos, t);
+            }
+            
+            int[] held = null;
+            for (IndexSegment segment : older) {
+                int[] linked = segment.incomingLinks(target);
+                if (linked != null) {
+                    held = union(held, QueryExecutor.gallopIntersect(sources, linked));
+                }
+            }
+            if (held != null && held.length > 0) {
+                writer.addDeletedLinks(target, held, held.length);
+            }
+        }
+    }
+    
+    private static void advance(PriorityQueue<Integer> queue, int count, int[] pos, int s) {
+        pos[s]++;
+        if (pos[s] < count) {
+            queue.add(s);
+        }
+    }
+    
+    // ==================== Persistence ====================
+    
+    private File newSegmentFile() {
+        synchronized (viewLock) {
+            return new File(directory, prefix + "_" + (nextSegment++) + ".seg");
+        }
+    }
+    
+    /**
+     * Write the manifest atomically (caller holds viewLock)
+     */
+    private void writeManifest() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (IndexSegment segment : view.segments) {
+            names.add(segment.getName());
+        }
+        int docs;
+        synchronized (this) {
+            docs = indexedCount;
+        }
+        writeManifest(directory, barrelId, walGeneration, nextSegment, docs, names);
+    }
+    
+    private static void writeManifest(String directory, String barrelId, long walGeneration, int nextSegment,
+                                      int docs, List<String> segmentNames) throws IOException {
+        String prefix = "barrel_" + barrelId;
+        Path target = Paths.get(directory, prefix + ".manifest");
+        Path temp = Paths.get(directory, prefix + ".manifest.tmp");
+        List<String> lines = new ArrayList<>();
+        lines.add("# Googol barrel " + barrelId + " segments (oldest first)");
+        lines.add("wal=" + walGeneration);
+        lines.add("next=" + nextSegment);
+        lines.add("docs=" + docs);
+        for (String name : segmentNames) {
+            lines.add("segment=" + name);
+        }
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Append URLs assigned since the last flush to the .docs file
+     * Must reach disk before a manifest refers to segments using those IDs
+     */
+    private void persistDocIds() throws IOException {
+        int size = docIds.size();
+        if (size == persistedDocs) {
+            return;
+        }
+        try (FileOutputStream file = new FileOutputStream(new File(directory, prefix + ".docs"), true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (int id = persistedDocs; id < size; id++) {
+                WriteAheadLog.writeString(out, docIds.getUrl(id));
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        persistedDocs = size;
+    }
+    
+    private void loadDocIds() throws IOException {
+        File file = new File(directory, prefix + ".docs");
+        if (!file.exists()) {
+            return;
+        }
+        // A torn last entry is never referenced by a segment: cut it off so
+        // the next append starts at an entry boundary
+        long valid = docIds.mapFile(file);
+        if (file.length() > valid) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        persistedDocs = docIds.size();
+    }
+    
+    /**
+     * Flush the frozen and active buffers and stop background work
+     */
+    public void close() {
+        merger.shutdown();
+        flusher.shutdown();
+        try {
+            merger.awaitTermination(30, TimeUnit.SECONDS);
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (directory != null && !view.frozen.isEmpty()) {
+            System.err.println("Barrel " + barrelId + " closed with " + view.frozen.size() +
+                             " unwritten buffers, kept in the WAL until the next start");
+        }
+        if (wal != null) {
+            wal.close();
+        }
+    }
+    
+    // ==================== Anti-entropy ====================
+    
+    public int merkleDepth() {
+        return digests.getDepth();
+    }
+    
+    /**
+     * Digests of some nodes of one tree level (see MerkleDigests)
+     */
+    public long[] merkleNodes(int level, int[] nodes) {
+        return digests.nodes(level, nodes);
+    }
+    
+    /**
+     * URL -> page digest of every page in one leaf range
+     */
+    public Map<String, Long> leafDigests(int leaf) {
+        Map<String, Long> pages = new HashMap<>();
+        for (int docId : digests.docsInLeaf(leaf)) {
+            pages.put(docIds.getUrl(docId), digests.digest(docId));
+        }
+        return pages;
+    }
+    
+    /**
+     * Rebuild pages as a batch another replica can index. Terms and links
+     * come from each page's forward entry; pages only held by segments
+     * older than forward entries are recovered in one pass over the term
+     * dictionaries and link lists.
+     */
+    public PageBatch exportPages(Collection<String> urls) {
+        awaitReady();
+        View v = view;
+        Set<Integer> seen = new HashSet<>();
+        Map<Integer, Integer> slots = new HashMap<>(); // pages without a forward entry
+        List<String> found = new ArrayList<>();
+        List<PageInfo> infos = new ArrayList<>();
+        List<Set<String>> words = new ArrayList<>();
+        List<Set<String>> links = new ArrayList<>();
+        for (String url : urls) {
+            int docId = docIds.getId(url);
+            PageInfo info = docId >= 0 ? v.pageInfo(docId) : null;
+            if (info == null || !seen.add(docId)) {
+                continue;
+            }
+            ForwardEntry entry = v.forward(docId);
+            Set<String> pageWords = new HashSet<>();
+            Set<String> pageLinks = new HashSet<>();
+            if (entry != null) {
+                pageWords.addAll(Arrays.asList(entry.terms));
+                for (int target : entry.links) {
+                    pageLinks.add(docIds.getUrl(target));
+                }
+            } else {
+                slots.put(docId, found.size());
+            }
+            found.add(url);
+            infos.add(info);
+            words.add(pageWords);
+            links.add(pageLinks);
+        }
+        if (!slots.isEmpty()) {
+            scanPages(v, slots, words, links);
+        }
+        
+        PageBatch batch = new PageBatch();
+        for (int i = 0; i < found.size(); i++) {
+            batch.add(found.get(i), infos.get(i).title, infos.get(i).citation, words.get(i), links.get(i));
+        }
+        return batch;
+    }
+    
+    /**
+     * Recover terms and links of pages (doc ID -> slot) by scanning every reader
+     */
+    private void scanPages(View v, Map<Integer, Integer> slots, List<Set<String>> words, List<Set<String>> links) {
+        for (IndexSegment segment : v.segments) {
+            for (int i = 0; i < segment.termCount(); i++) {
+                List<Integer> hits = new ArrayList<>();
+                RoaringPostings bits = segment.bitmapAt(i);
+                if (bits != null) {
+                    for (Map.Entry<Integer, Integer> slot : slots.entrySet()) {
+                        if (bits.contains(slot.getKey())) {
+                            hits.add(slot.getValue());
+                        }
+                    }
+                } else {
+                    for (int docId : segment.postingsAt(i)) {
+                        Integer slot = slots.get(docId);
+                        if (slot != null) {
+                            hits.add(slot);
+                        }
+                    }
+                }
+                if (!hits.isEmpty()) {
+                    String term = new String(segment.termAt(i), StandardCharsets.UTF_8);
+                    for (int slot : hits) {
+                        words.get(slot).add(term);
+                    }
+                }
+            }
+            for (int i = 0; i < segment.linkCount(); i++) {
+                String target = null;
+                for (int source : segment.linksAt(i)) {
+                    Integer slot = slots.get(source);
+                    if (slot != null) {
+                        if (target == null) target = docIds.getUrl(segment.linkTargetAt(i));
+                        links.get(slot).add(target);
+                    }
+                }
+            }
+        }
+        List<IndexBuffer> buffers = new ArrayList<>(v.frozen);
+        buffers.add(v.active);
+        for (IndexBuffer buffer : buffers) {
+            buffer.scan((term, ids) -> {
+                for (int docId : ids) {
+                    Integer slot = slots.get(docId);
+                    if (slot != null) {
+                        words.get(slot).add(term);
+                    }
+                }
+            }, (target, sources) -> {
+                for (int source : sources) {
+                    Integer slot = slots.get(source);
+                    if (slot != null) {
+                        links.get(slot).add(docIds.getUrl(target));
+                    }
+                }
+            });
+        }
+    }
+    
+    // ==================== Peer transfer ====================
+    
+    /**
+     * Start sending this index to a joining barrel. The tail is registered
+     * before the buffer is flushed: a write applied earlier is in the flushed
+     * segments, a later one is passed to the tail (some may be in both, and
+     * re-indexing a page is idempotent).
+     * @return the segments and URL list holding every write before the tail
+     */
+    public Snapshot beginTransfer(WriteAheadLog.Replayer tail) throws IOException {
+        if (directory == null) {
+            throw new IOException("persistence disabled, no segments to transfer");
+        }
+        awaitReady();
+        synchronized (flushLock) {
+            // A write still applying now passes the tail afterwards, and its
+            // buffer is flushed below only once it has finished
+            transferTails.add(tail);
+            flushBuffer();
+            
+            View v = view;
+            if (!v.frozen.isEmpty()) {
+                transferTails.remove(tail);
+                throw new IOException("buffer could not be flushed");
+            }
+            // The URL list only grows under flushLock, so this length is stable
+            File docs = new File(directory, prefix + ".docs");
+            synchronized (viewLock) {
+                return new Snapshot(v.segments, docs, docs.length(), nextSegment, size());
+            }
+        }
+    }
+    
+    public void endTransfer(WriteAheadLog.Replayer tail) {
+        transferTails.remove(tail);
+    }
+    
+    /**
+     * Segments (mappings stay valid even if a merge deletes their files)
+     * and the prefix of the URL list they refer to
+     */
+    static final class Snapshot {
+        final List<IndexSegment> segments;
+        final File docs;
+        final long docsBytes;
+        final int nextSegment;
+        final int pages;
+        
+        Snapshot(List<IndexSegment> segments, File docs, long docsBytes, int nextSegment, int pages) {
+            this.segments = segments;
+            this.docs = docs;
+            this.docsBytes = docsBytes;
+            this.nextSegment = nextSegment;
+            this.pages = pages;
+        }
+    }
+    
+    /**
+     * Pages recorded in a barrel's manifest (0 without one)
+     */
+    static int persistedPageCount(String directory, String barrelId) {
+        File manifest = new File(directory, "barrel_" + barrelId + ".manifest");
+        if (!manifest.exists()) {
+            return 0;
+        }
+        try {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("docs=")) {
+                    return Integer.parseInt(line.substring(5));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Unreadable manifest: open() will start fresh anyway
+        }
+        return 0;
+    }
+    
+    /**
+     * Replace a barrel's persistent state with transferred files (called
+     * before its index is opened). staging holds the segments, already named
+     * for this barrel, and the URL list; the WAL starts empty.
+     */
+    static void installTransfer(String directory, String barrelId, File staging, List<String> segmentNames,
+                                int nextSegment, int pages) throws IOException {
+        String prefix = "barrel_" + barrelId;
+        File[] files = new File(directory).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(prefix + ".manifest") || name.equals(prefix + ".docs") || name.equals(prefix + ".dat") ||
+                    name.startsWith(prefix + ".wal.") || (name.startsWith(prefix + "_") && name.endsWith(".seg"))) {
+                    Files.delete(file.toPath());
+                }
+            }
+        }
+        for (String name : segmentNames) {
+            Files.move(new File(staging, name).toPath(), Paths.get(directory, name));
+        }
+        File docs = new File(staging, prefix + ".docs");
+        if (docs.exists()) {
+            Files.move(docs.toPath(), Paths.get(directory, prefix + ".docs"));
+        }
+        // The manifest goes last: until it exists the barrel has no state
+        writeManifest(directory, barrelId, 0, nextSegment, pages, segmentNames);
+    }
+    
+    // ==================== Doc ID set operations ====================
+    
+    /**
+     * Merge two sorted doc ID arrays, dropping duplicates
+     */
+    static int[] union(int[] a, int[] b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        int[] merged = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                merged[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                merged[n++] = b[j++];
+            } else {
+                merged[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) merged[n++] = a[i++];
+        while (j < b.length) merged[n++] = b[j++];
+        return n == merged.length ? merged : Arrays.copyOf(merged, n);
+    }
+    
+    /**
+     * Doc IDs of sorted a that are not in sorted b
+     */
+    static int[] minus(int[] a, int[] b) {
+        if (a == null || b == null || a.length == 0 || b.length == 0) return a;
+        int[] kept = new int[a.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length) {
+            if (j == b.length || a[i] < b[j]) {
+                kept[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return n == kept.length ? a : Arrays.copyOf(kept, n);
+    }
+    
+    private static <T> List<T> append(List<T> list, T item) {
+        List<T> copy = new ArrayList<>(list);
+        copy.add(item);
+        return copy;
+    }
+    
+    /**
+     * Point-in-time set of readers: live segments, frozen buffers being
+     * flushed, and the active buffer (ordered oldest to newest)
+     */
+    static final class View {
+        final List<IndexSegment> segments;
+        final List<IndexBuffer> frozen;
+        final IndexBuffer active;
+        final List<SegmentReader> readers;
+        
+        View(List<IndexSegment> segments, List<IndexBuffer> frozen, IndexBuffer active) {
+            this.segments = List.copyOf(segments);
+            this.frozen = List.copyOf(frozen);
+            this.active = active;
+            List<SegmentReader> all = new ArrayList<>(segments);
+            all.addAll(frozen);
+            all.add(active);
+            this.readers = Collections.unmodifiableList(all);
+        }
+        
+        /**
+         * Doc IDs containing the term (each reader's deletes applied to the
+         * older ones), or null if no reader has the term
+         */
+        int[] postings(String term) {
+            int[] ids = null;
+            for (SegmentReader reader : readers) {
+                ids = minus(ids, reader.deletedPostings(term));
+                ids = union(ids, reader.postings(term));
+            }
+            return ids;
+        }
+        
+        /**
+         * Documents containing the term, summed over segments minus their
+         * deletes (an estimate, fine for ordering); 0 only if no segment
+         * has the term at all
+         */
+        int docFrequency(String term) {
+            return docFrequency(term, null);
+        }
+        
+        /**
+         * Same, reusing the frequencies already known per reader (in reader order)
+         */
+        int docFrequency(String term, List<Map<String, Integer>> known) {
+            int df = 0;
+            int deleted = 0;
+            for (int i = 0; i < readers.size(); i++) {
+                SegmentReader reader = readers.get(i);
+                Integer count = known != null ? known.get(i).get(term) : null;
+                df += count != null ? count : reader.docFrequency(term);
+                int[] ids = reader.deletedPostings(term);
+                deleted += ids != null ? ids.length : 0;
+            }
+            return df > 0 ? Math.max(1, df - deleted) : 0;
+        }
+        
+        /**
+         * Terms and links of the newest version of a page, or null if it was
+         * never indexed (or only by a segment older than forward entries)
+         */
+        ForwardEntry forward(int docId) {
+            for (int i = readers.size() - 1; i >= 0; i--) {
+                ForwardEntry entry = readers.get(i).forward(docId);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Stored fields from the newest segment holding the page
+         */
+        PageInfo pageInfo(int docId) {
+            for (int i = readers.size() - 1; i >= 0; i--) {
+                PageInfo info = readers.get(i).pageInfo(docId);
+                if (info != null) {
+                    return info;
+                }
+            }
+            return null;
+        }
+        
+        int[] incomingLinks(int docId) {
+            return incomingLinks(docId, readers.size());
+        }
+        
+        /**
+         * In-links recorded by the first n readers (deletes applied)
+         */
+        private int[] incomingLinks(int docId, int n) {
+            int[] ids = null;
+            for (int i = 0; i < n; i++) {
+                ids = minus(ids, readers.get(i).deletedLinks(docId));
+                ids = union(ids, readers.get(i).incomingLinks(docId));
+            }
+            return ids;
+        }
+        
+        int incomingLinkCount(int docId) {
+            int[] ids = incomingLinks(docId);
+            return ids != null ? ids.length : 0;
+        }
+        
+        /**
+         * Whether a segment or frozen buffer (not the active buffer) has the link
+         */
+        boolean linkedBefore(int sourceDocId, int targetDocId) {
+            int[] sources = incomingLinks(targetDocId, readers.size() - 1);
+            return sources != null && Arrays.binarySearch(sources, sourceDocId) >= 0;
+        }
+    }
+}
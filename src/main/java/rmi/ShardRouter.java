@@ -0,0 +1,64 @@
+package rmi;
+
+import java.util.*;
+
+/**
+ * Shard Router - Document partitioning of the index across barrels
+ *
+ * Each URL belongs to one shard (hash of the URL). A barrel serves one shard
+ * and every barrel of a shard holds the same data (replicas). With a single
+ * shard every barrel is a full replica, as before sharding existed.
+ */
+class ShardRouter {
+    
+    private final int shards;
+    private final Map<Integer, List<StorageBarrelInterface>> replicas = new HashMap<>();
+    
+    public ShardRouter(int shards) {
+        this.shards = Math.max(1, shards);
+    }
+    
+    /**
+     * Shard owning a URL (String.hashCode is the same on every JVM)
+     */
+    public static int shardOf(String url, int shards) {
+        return Math.floorMod(url.hashCode(), Math.max(1, shards));
+    }
+    
+    public int shardOf(String url) {
+        return shardOf(url, shards);
+    }
+    
+    public int getShardCount() {
+        return shards;
+    }
+    
+    public boolean isSharded() {
+        return shards > 1;
+    }
+    
+    public void add(int shard, StorageBarrelInterface barrel) {
+        replicas.computeIfAbsent(shard, k -> new ArrayList<>()).add(barrel);
+    }
+    
+    /**
+     * Live barrels of a shard (empty if none)
+     */
+    public List<StorageBarrelInterface> getReplicas(int shard) {
+        return replicas.getOrDefault(shard, Collections.emptyList());
+    }
+    
+    /**
+     * Shards with fewer live barrels than expected (shard -> live count)
+     */
+    public Map<Integer, Integer> underReplicated(int expectedReplicas) {
+        Map<Integer, Integer> missing = new TreeMap<>();
+        for (int shard = 0; shard < shards; shard++) {
+            int live = getReplicas(shard).size();
+            if (live < expectedReplicas) {
+                missing.put(shard, live);
+            }
+        }
+        return missing;
+    }
+}
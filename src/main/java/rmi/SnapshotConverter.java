@@ -0,0 +1,87 @@
+package rmi;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Snapshot Converter - Rewrites state files from the old ObjectOutputStream format
+ *
+ * URLQueue and Gateway convert their own state on the first load, and barrels
+ * migrate barrel_<id>.dat into segments on open; this does the same offline for
+ * a whole data directory (e.g. before an upgrade, or to check the savings):
+ *
+ *   java -cp target/classes rmi.SnapshotConverter data
+ *
+ * Originals are kept as <name>.legacy (barrel snapshots as .dat.migrated).
+ */
+public class SnapshotConverter {
+    
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args.length > 0 ? args[0] : "data");
+        if (!directory.isDirectory()) {
+            System.err.println("Usage: SnapshotConverter [data directory]");
+            System.exit(1);
+        }
+        
+        File queue = new File(directory, "urlqueue_state.dat");
+        if (queue.exists() && SnapshotFile.isLegacy(queue)) {
+            long start = System.nanoTime();
+            URLQueue.State state = URLQueue.loadLegacy(queue);
+            File original = keepOriginal(queue);
+            long bytes = URLQueue.saveSnapshot(queue, state.queue, state.visited, null, 0, 0);
+            report(queue, original.length(), bytes, start);
+        }
+        
+        File gateway = new File(directory, "gateway_state.dat");
+        if (gateway.exists() && SnapshotFile.isLegacy(gateway)) {
+            long start = System.nanoTime();
+            Map<String, Integer> frequencies = Gateway.loadLegacy(gateway);
+            File original = keepOriginal(gateway);
+            long bytes = Gateway.saveSnapshot(gateway, frequencies);
+            report(gateway, original.length(), bytes, start);
+        }
+        
+        // Opening a barrel index migrates its snapshot into segments
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("barrel_") && name.endsWith(".dat")) {
+                    String barrelId = name.substring("barrel_".length(), name.length() - ".dat".length());
+                    long start = System.nanoTime();
+                    long original = file.length();
+                    SegmentedIndex index = new SegmentedIndex(barrelId, directory.getPath(), false, false);
+                    index.open();
+                    index.close();
+                    report(file, original, segmentBytes(directory, "barrel_" + barrelId + "_"), start);
+                }
+            }
+        }
+        System.exit(0);
+    }
+    
+    private static File keepOriginal(File file) {
+        File original = new File(file.getPath() + ".legacy");
+        if (!file.renameTo(original)) {
+            throw new IllegalStateException("Cannot rename " + file.getName() + " to " + original.getName());
+        }
+        return original;
+    }
+    
+    private static long segmentBytes(File directory, String prefix) {
+        long bytes = 0;
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            if (file.getName().startsWith(prefix) && file.getName().endsWith(".seg")) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+    
+    private static void report(File file, long before, long after, long start) {
+        System.out.println(String.format("%s: %d KB -> %d KB (%.0f%%) in %d ms", file.getName(),
+                           before / 1024, after / 1024, after * 100.0 / Math.max(1, before),
+                           (System.nanoTime() - start) / 1_000_000));
+    }
+}
@@ -0,0 +1,386 @@
+package rmi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Snapshot File - Versioned, block-compressed and checksummed state file
+ * Used by URLQueue (urlqueue_state.dat) and Gateway (gateway_state.dat)
+ *
+ * File layout:
+ *   header [int magic "GSNP"][int format version][string kind][int kind version]
+ *   blocks [int rawBytes][int storedBytes][long crc32 of raw bytes][Deflater data]
+ *   end    [int 0][int blockCount]
+ * The payload (written by the owner through a DataOutputStream) is cut into
+ * 64 KB blocks, each compressed on its own. A block failing its checksum, a
+ * missing end marker (torn write) or payload left unread by the owner fails
+ * the load with an IOException saying what is wrong, instead of a partial state.
+ *
+ * Saves go to a temporary file moved into place atomically; the snapshot it
+ * replaces is kept as <name>.prev and loaded when the newest one is corrupt.
+ * Files written by ObjectOutputStream (the previous format) are recognized
+ * by isLegacy(), so owners can read them once and save them in this format.
+ */
+class SnapshotFile {
+    
+    static final int MAGIC = 0x47534e50; // "GSNP"
+    static final int FORMAT_VERSION = 1;
+    
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final short OBJECT_STREAM_MAGIC = (short) 0xACED;
+    
+    /**
+     * Writes the owner's state
+     */
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    /**
+     * Reads the owner's state (a fresh object per attempt, so a failed
+     * attempt leaves nothing behind)
+     */
+    interface Reader<T> {
+        T read(DataInputStream in, int version) throws IOException;
+    }
+    
+    /**
+     * Write a snapshot atomically, keeping the previous one as <name>.prev
+     * @return bytes written
+     */
+    static long save(File file, String kind, int version, Writer writer) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            DataOutputStream header = new DataOutputStream(fileOut);
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+            header.writeUTF(kind);
+            header.writeInt(version);
+            BlockOutputStream blocks = new BlockOutputStream(new BufferedOutputStream(fileOut, BLOCK_SIZE));
+            DataOutputStream out = new DataOutputStream(blocks);
+            writer.write(out);
+            out.flush();
+            blocks.finish();
+            fileOut.getFD().sync();
+        }
+        if (file.exists()) {
+            Files.move(file.toPath(), Paths.get(file.getPath() + ".prev"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file.length();
+    }
+    
+    /**
+     * Read a snapshot, falling back to <name>.prev if it is corrupt
+     * @throws IOException if neither can be read
+     */
+    static <T> T load(File file, String kind, Reader<T> reader) throws IOException {
+        try {
+            return read(file, kind, reader);
+        } catch (IOException e) {
+            File previous = new File(file.getPath() + ".prev");
+            if (!previous.exists()) {
+                throw e;
+            }
+            System.err.println("Snapshot " + file.getName() + " unreadable (" + e.getMessage() + "), using " + previous.getName());
+            return read(previous, kind, reader);
+        }
+    }
+    
+    private static <T> T read(File file, String kind, Reader<T> reader) throws IOException {
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            DataInputStream header = new DataInputStream(fileIn);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("not a snapshot file: " + file.getName());
+            }
+            int format = header.readInt();
+            if (format < 1 || format > FORMAT_VERSION) {
+                throw new IOException("unsupported snapshot format " + format + " in " + file.getName());
+            }
+            String fileKind = header.readUTF();
+            if (!fileKind.equals(kind)) {
+                throw new IOException(file.getName() + " holds " + fileKind + " state, expected " + kind);
+            }
+            int version = header.readInt();
+            BlockInputStream blocks = new BlockInputStream(new BufferedInputStream(fileIn, BLOCK_SIZE), file.getName());
+            T state = reader.read(new DataInputStream(blocks), version);
+            blocks.expectEnd();
+            return state;
+        } catch (EOFException e) {
+            throw new IOException("truncated snapshot " + file.getName());
+        }
+    }
+    
+    /**
+     * True if the file was written by ObjectOutputStream (previous format)
+     */
+    static boolean isLegacy(File file) throws IOException {
+        if (file.length() < 2) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readShort() == OBJECT_STREAM_MAGIC;
+        }
+    }
+    
+    // ==================== Payload encoding ====================
+    
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 28) {
+                throw new IOException("malformed varint");
+            }
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+    
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+    
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Write strings sorted, each as [shared prefix length][rest] (URLs
+     * mostly share their scheme and host with the previous one)
+     */
+    static void writeSortedStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        List<byte[]> sorted = new ArrayList<>(values.size());
+        for (String value : values) {
+            sorted.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        sorted.sort(Arrays::compareUnsigned);
+        writeVarInt(out, sorted.size());
+        byte[] previous = new byte[0];
+        for (byte[] value : sorted) {
+            int shared = Arrays.mismatch(previous, value);
+            if (shared < 0) {
+                shared = value.length; // duplicate
+            }
+            writeVarInt(out, shared);
+            writeVarInt(out, value.length - shared);
+            out.write(value, shared, value.length - shared);
+            previous = value;
+        }
+    }
+    
+    static List<String> readSortedStrings(DataInputStream in) throws IOException {
+        int count = readVarInt(in);
+        List<String> values = new ArrayList<>(count);
+        byte[] previous = new byte[0];
+        for (int i = 0; i < count; i++) {
+            int shared = readVarInt(in);
+            int rest = readVarInt(in);
+            if (shared > previous.length) {
+                throw new IOException("malformed string list");
+            }
+            byte[] value = Arrays.copyOf(previous, shared + rest);
+            in.readFully(value, shared, rest);
+            values.add(new String(value, StandardCharsets.UTF_8));
+            previous = value;
+        }
+        return values;
+    }
+    
+    // ==================== Blocks ====================
+    
+    /**
+     * Cuts the payload into compressed, checksummed blocks
+     */
+    private static final class BlockOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] compressed = new byte[BLOCK_SIZE + 1024];
+        private int used = 0;
+        private int blocks = 0;
+        
+        BlockOutputStream(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (used == BLOCK_SIZE) {
+                writeBlock();
+            }
+            block[used++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (used == BLOCK_SIZE) {
+                    writeBlock();
+                }
+                int n = Math.min(len, BLOCK_SIZE - used);
+                System.arraycopy(b, off, block, used, n);
+                used += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        private void writeBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block, 0, used);
+            deflater.finish();
+            int stored = 0;
+            while (!deflater.finished()) {
+                if (stored == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                stored += deflater.deflate(compressed, stored, compressed.length - stored);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, used);
+            out.writeInt(used);
+            out.writeInt(stored);
+            out.writeLong(crc.getValue());
+            out.write(compressed, 0, stored);
+            used = 0;
+            blocks++;
+        }
+        
+        /**
+         * Write the last block and the end marker
+         */
+        void finish() throws IOException {
+            if (used > 0) {
+                writeBlock();
+            }
+            out.writeInt(0);
+            out.writeInt(blocks);
+            out.flush();
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Reads the blocks back, verifying each checksum
+     */
+    private static final class BlockInputStream extends InputStream {
+        private final DataInputStream in;
+        private final String name;
+        private final Inflater inflater = new Inflater();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private int pos = 0;
+        private int limit = 0;
+        private int blocks = 0;
+        private boolean ended = false;
+        
+        BlockInputStream(InputStream in, String name) {
+            this.in = new DataInputStream(in);
+            this.name = name;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !nextBlock()) {
+                return -1;
+            }
+            return block[pos++] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == limit && !nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        
+        /**
+         * @return false at the end marker
+         */
+        private boolean nextBlock() throws IOException {
+            if (ended) {
+                return false;
+            }
+            int raw = in.readInt();
+            if (raw == 0) {
+                int count = in.readInt();
+                if (count != blocks) {
+                    throw new IOException(name + " ends after " + blocks + " blocks, expected " + count);
+                }
+                ended = true;
+                inflater.end();
+                return false;
+            }
+            int stored = in.readInt();
+            long expected = in.readLong();
+            if (raw < 0 || raw > BLOCK_SIZE || stored < 0 || stored > 2 * BLOCK_SIZE + 1024) {
+                throw new IOException("corrupt block " + blocks + " in " + name + ": bad header");
+            }
+            if (compressed.length < stored) {
+                compressed = new byte[stored];
+            }
+            in.readFully(compressed, 0, stored);
+            inflater.reset();
+            inflater.setInput(compressed, 0, stored);
+            try {
+                int n = 0;
+                while (n < raw && !inflater.finished()) {
+                    int got = inflater.inflate(block, n, raw - n);
+                    if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += got;
+                }
+                if (n != raw) {
+                    throw new IOException("corrupt block " + blocks + " in " + name + ": short data");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt block " + blocks + " in " + name + ": " + e.getMessage());
+            }
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, raw);
+            if (crc.getValue() != expected) {
+                throw new IOException("corrupt block " + blocks + " in " + name + ": checksum mismatch");
+            }
+            pos = 0;
+            limit = raw;
+            blocks++;
+            return true;
+        }
+        
+        /**
+         * The owner read everything: the end marker must come next
+         */
+        void expectEnd() throws IOException {
+            if (pos < limit || nextBlock()) {
+                throw new IOException(name + " has data after the state it holds");
+            }
+        }
+    }
+}
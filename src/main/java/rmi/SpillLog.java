@@ -0,0 +1,286 @@
+package rmi;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Spill Log - On-disk FIFO of URLs that overflowed the in-memory frontier
+ *
+ * Segment files spill_<n>.log, each a run of [varint length][UTF-8 bytes]
+ * records. URLs are appended to the newest segment through a buffer; a
+ * segment that reaches the size limit is closed and a new one started.
+ * Reading memory-maps the oldest unread segment (closing it first if it is
+ * still being written) and walks it in order, so URLs come back in the
+ * order they were spilled and the heap only holds the write buffer.
+ *
+ * A record cut short at the end of a segment (crash mid-append) ends that
+ * segment. Segments read to the end are deleted at once, or, for a log
+ * whose position is saved in a snapshot, by release() once a snapshot
+ * past them is safely written (so a crash never loses URLs read since).
+ *
+ * Not thread-safe: HostFrontier calls it under its own lock.
+ */
+class SpillLog implements Closeable {
+
+    private static final String PREFIX = "spill_";
+    private static final String SUFFIX = ".log";
+    private static final int WRITE_BUFFER = 1 << 16;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final boolean keepRead;
+    private final TreeMap<Integer, File> segments = new TreeMap<>(); // unread or partly read
+    private final List<Integer> read = new ArrayList<>(); // read to the end, kept until release()
+
+    private int writeSegment = -1;
+    private DataOutputStream writer;
+    private long written;
+
+    private int readSegment = -1;
+    private MappedByteBuffer reader;
+
+    private long pending = 0; // URLs appended and not read yet
+
+    /**
+     * @param keepRead keep segments read to the end until release()
+     */
+    SpillLog(File directory, long segmentBytes, boolean keepRead) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.keepRead = keepRead;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spill directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    segments.put(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+    }
+
+    /**
+     * Resume reading at a saved position, dropping segments before it
+     * (a position from before any spill, or of a segment already deleted,
+     * starts at the oldest segment on disk)
+     * @return URLs left to read
+     */
+    public long open(int segment, int offset) throws IOException {
+        Iterator<Map.Entry<Integer, File>> older = segments.headMap(segment).entrySet().iterator();
+        while (older.hasNext()) {
+            older.next().getValue().delete();
+            older.remove();
+        }
+        pending = 0;
+        for (Map.Entry<Integer, File> entry : segments.entrySet()) {
+            pending += scan(entry.getValue(), entry.getKey() == segment ? offset : 0, null);
+        }
+        if (!segments.isEmpty()) {
+            mapSegment(segments.firstKey());
+            if (readSegment == segment) {
+                reader.position(Math.min(offset, reader.limit()));
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Each unread URL in order, without consuming it (rebuilds the pending set on startup)
+     */
+    public void forEachPending(Consumer<String> action) throws IOException {
+        for (Map.Entry<Integer, File> entry : segments.entrySet()) {
+            int from = entry.getKey() == readSegment && reader != null ? reader.position() : 0;
+            scan(entry.getValue(), from, action);
+        }
+    }
+
+    public void append(String url) throws IOException {
+        if (writer == null || written >= segmentBytes) {
+            startSegment();
+        }
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            writer.writeByte((length & 0x7F) | 0x80);
+            length >>>= 7;
+            written++;
+        }
+        writer.writeByte(length);
+        writer.write(bytes);
+        written += 1 + bytes.length;
+        pending++;
+    }
+
+    /**
+     * Oldest unread URL
+     * @return null if every spilled URL has been read
+     */
+    public String next() throws IOException {
+        while (pending > 0) {
+            if (reader == null) {
+                if (segments.isEmpty()) {
+                    pending = 0; // records lost to a torn write
+                    return null;
+                }
+                mapSegment(segments.firstKey());
+            }
+            String url = readRecord(reader);
+            if (url != null) {
+                pending--;
+                return url;
+            }
+            finishSegment();
+        }
+        return null;
+    }
+
+    public long size() {
+        return pending;
+    }
+
+    /**
+     * Read position to save in a snapshot (segment, offset); writes are flushed first
+     */
+    public int[] position() throws IOException {
+        flush();
+        if (reader == null) {
+            return new int[] { readSegment + 1, 0 }; // past the last segment read to the end
+        }
+        return new int[] { readSegment, reader.position() };
+    }
+
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Delete segments read to the end before the given one (a snapshot
+     * resuming at that segment no longer needs them)
+     */
+    public void release(int beforeSegment) {
+        Iterator<Integer> it = read.iterator();
+        while (it.hasNext()) {
+            int segment = it.next();
+            if (segment < beforeSegment) {
+                new File(directory, PREFIX + segment + SUFFIX).delete();
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        reader = null;
+    }
+
+    /**
+     * Close and remove the log with its directory (a temporary frontier)
+     */
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // deleted anyway
+        }
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private void startSegment() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        writeSegment = Math.max(writeSegment, segments.isEmpty() ? -1 : segments.lastKey());
+        writeSegment = Math.max(writeSegment, readSegment) + 1;
+        File file = new File(directory, PREFIX + writeSegment + SUFFIX);
+        writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER));
+        written = 0;
+        segments.put(writeSegment, file);
+    }
+
+    private void mapSegment(int segment) throws IOException {
+        if (segment == writeSegment && writer != null) {
+            writer.close(); // sealed: later URLs go to a new segment
+            writer = null;
+        }
+        File file = segments.get(segment);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            reader = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        readSegment = segment;
+    }
+
+    private void finishSegment() {
+        File file = segments.remove(readSegment);
+        reader = null;
+        if (keepRead) {
+            read.add(readSegment);
+        } else if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Count (and pass to the action, if any) the records of a file from an offset
+     */
+    private static long scan(File file, int offset, Consumer<String> action) throws IOException {
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.position(Math.min(offset, buf.limit()));
+            String url;
+            while ((url = readRecord(buf)) != null) {
+                count++;
+                if (action != null) {
+                    action.accept(url);
+                }
+            }
+        }
+        return count;
+    }
+
+    // Next record, or null at the end of the buffer or a torn record
+    private static String readRecord(MappedByteBuffer buf) {
+        int start = buf.position();
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            if (!buf.hasRemaining() || shift > 28) {
+                buf.position(start);
+                return null;
+            }
+            byte b = buf.get();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > buf.remaining()) {
+            buf.position(start);
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -5,233 +5,513 @@ import java.rmi.server.*;
 import java.rmi.registry.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
-import java.nio.file.*;
+import java.lang.management.ManagementFactory;
 
 /**
  * Storage Barrel - Stores the inverted index and handles search queries
- * Multiple barrels replicate the same data for fault tolerance
+ * Multiple barrels replicate the same data for fault tolerance; in sharded
+ * mode each barrel holds one shard (a hash partition of the URLs)
  * 
  * FEATURES:
  * - Persistent storage (survives crashes)
  * - Automatic state recovery on restart
- * - Periodic autosave
+ * - Write-ahead log: pages are ACKed only once logged (group commit)
+ * - Segment storage: immutable memory-mapped segments plus an in-memory
+ *   buffer, compacted by a background merge policy (see SegmentedIndex)
  * - Synchronization acknowledgment for reliable multicast
+ * - Concurrent ingestion (per-term locking, searches never block)
+ * - Cost-ordered AND queries with galloping intersection (see QueryExecutor)
+ * - Top-K retrieval: paginated searches return only the requested window
+ * - Ranking reads precomputed in-link counts; link lists stay on disk
+ * - Adaptive postings: varint lists for rare terms, roaring bitmaps for dense ones
+ * - Optional throughput mode reporting indexed pages/sec
+ * - Fast startup: segments are memory-mapped and queries are served while
+ *   the URL map and WAL catch up in the background (time-to-ready reported)
+ * - Peer bootstrap: an empty or stale barrel streams a live peer's segments
+ *   and the writes made meanwhile before registering (see PeerBootstrap)
+ * - Anti-entropy: replicas compare Merkle digests of URL-hash ranges and pull
+ *   only the pages they missed (see AntiEntropy)
+ * - Re-index diffing: a re-crawled page only adds the terms and links it
+ *   gained and deletes the ones it lost (see ForwardEntry)
+ * - Latency metrics: p50/p95/p99/max of searches and indexing calls over a
+ *   sliding window (see LatencyHistogram)
+ * - Compact URL map: each URL is kept once, host-compressed (see UrlStore);
+ *   per-structure heap footprint reported in the statistics
+ * - Autocomplete: top-k terms for a prefix by document frequency, from the
+ *   sorted segment dictionaries (see TermCompleter)
+ * - Off-heap buffers (optional): unflushed postings and stored fields live in
+ *   direct memory, cutting GC pauses while indexing (see OffHeapTable)
+ * - Non-blocking autosave: the buffer is frozen by epoch (writers move to a
+ *   fresh buffer, the flush waits for stragglers), so a consistent image is
+ *   written without pausing indexing or searches (see IndexBuffer)
  */
 public class StorageBarrel extends UnicastRemoteObject implements StorageBarrelInterface {
     
-    // Inverted index: word -> set of URLs
-    private final Map<String, Set<String>> invertedIndex;
-    
-    // URL -> PageInfo (title, citation, incoming links)
-    private final Map<String, PageInfo> pageInfoMap;
-    
-    // URL -> Set of URLs that link to it
-    private final Map<String, Set<String>> incomingLinks;
+    // Inverted index, page info and incoming links (buffer + on-disk segments)
+    private final SegmentedIndex index;
     
     private final String barrelId;
-    private long totalSearchTime = 0;
-    private int searchCount = 0;
+    private final int shard;
+    
+    // Latency over the last metrics.latency.window.ms (nanosecond histograms)
+    private final LatencyHistogram searchLatency = new LatencyHistogram(Config.getMetricsLatencyWindow());
+    private final LatencyHistogram indexLatency = new LatencyHistogram(Config.getMetricsLatencyWindow());
+    private final LatencyHistogram batchLatency = new LatencyHistogram(Config.getMetricsLatencyWindow());
+    private final LatencyHistogram completeLatency = new LatencyHistogram(Config.getMetricsLatencyWindow());
     
-    private final String persistenceFile;
     private final Timer autosaveTimer;
     
+    // Ingestion throughput (pages/sec over the last sampling interval)
+    private final AtomicLong pagesIndexed = new AtomicLong();
+    private final Timer throughputTimer;
+    private final boolean throughputMode;
+    private volatile double indexingRate = 0.0;
+    
+    // Milliseconds from process start until the barrel was registered
+    private volatile long timeToReady = -1;
+    
+    // Snapshots being sent to joining barrels, by session ID
+    private final Map<Long, TransferSession> transfers = new ConcurrentHashMap<>();
+    private final AtomicLong nextTransferId = new AtomicLong();
+    
+    // Background repair against the other replicas of this shard (started once registered)
+    private volatile AntiEntropy antiEntropy;
+    private Timer antiEntropyTimer;
+    
     public StorageBarrel(String barrelId) throws RemoteException {
+        this(barrelId, 0);
+    }
+    
+    public StorageBarrel(String barrelId, int shard) throws RemoteException {
         super();
         this.barrelId = barrelId;
-        this.invertedIndex = new ConcurrentHashMap<>();
-        this.pageInfoMap = new ConcurrentHashMap<>();
-        this.incomingLinks = new ConcurrentHashMap<>();
+        this.shard = shard;
         
         // Setup persistence
         if (Config.getBarrelPersistenceEnabled()) {
             String persistenceDir = Config.getBarrelPersistenceDirectory();
             new File(persistenceDir).mkdirs();
-            this.persistenceFile = persistenceDir + "/barrel_" + barrelId + ".dat";
+            this.index = new SegmentedIndex(barrelId, persistenceDir, 
+                                            Config.getBarrelWalEnabled(), Config.getBarrelWalSync());
             
-            // Try to load previous state
-            loadState();
+            // Try to load previous state (segments + WAL replay)
+            index.open();
             
-            // Setup autosave timer
+            // Setup autosave timer: freeze the buffer and flush it to a new segment
+            // in the background (indexing continues into a fresh buffer)
             this.autosaveTimer = new Timer("Autosave-" + barrelId, true);
             int autosaveInterval = Config.getBarrelPersistenceAutosaveInterval();
             autosaveTimer.scheduleAtFixedRate(new TimerTask() {
                 @Override
                 public void run() {
-                    saveState();
+                    index.scheduleFlush();
+                    expireTransfers();
                 }
             }, autosaveInterval, autosaveInterval);
             
-            System.out.println("StorageBarrel " + barrelId + " persistence enabled: " + persistenceFile);
+            System.out.println("StorageBarrel " + barrelId + " persistence enabled: " + persistenceDir);
         } else {
-            this.persistenceFile = null;
+            this.index = new SegmentedIndex(barrelId, null, false, false);
+            this.index.open(); // nothing to load, just marks the index ready
             this.autosaveTimer = null;
             System.out.println("StorageBarrel " + barrelId + " persistence disabled");
         }
         
-        System.out.println("StorageBarrel " + barrelId + " initialized with " + pageInfoMap.size() + " pages");
+        // Sample ingestion rate periodically (logged only in throughput mode)
+        this.throughputMode = Config.getBarrelThroughputMode();
+        this.throughputTimer = new Timer("Throughput-" + barrelId, true);
+        int sampleInterval = Config.getBarrelThroughputInterval();
+        throughputTimer.scheduleAtFixedRate(new TimerTask() {
+            private long lastCount = pagesIndexed.get();
+            private long lastTime = System.nanoTime();
+            
+            @Override
+            public void run() {
+                long count = pagesIndexed.get();
+                long now = System.nanoTime();
+                indexingRate = (count - lastCount) * 1e9 / Math.max(1, now - lastTime);
+                lastCount = count;
+                lastTime = now;
+                if (throughputMode) {
+                    System.out.println("Barrel " + barrelId + " throughput: " + 
+                                     String.format("%.1f", indexingRate) + " pages/sec (" + count + " indexed since start)");
+                }
+            }
+        }, sampleInterval, sampleInterval);
+        
+        System.out.println("StorageBarrel " + barrelId + " initialized with " + index.size() + " pages" +
+                         (Config.getBarrelShards() > 1 ? " (shard " + shard + "/" + Config.getBarrelShards() + ")" : ""));
     }
     
+    /**
+     * Not synchronized: several Downloaders can index at once. Page info and
+     * the doc ID dictionary are concurrent, and each term's postings list
+     * takes its own lock, so writers only contend when they touch the same term.
+     */
     @Override
-    public synchronized boolean indexPage(String url, String title, String citation, Set<String> words, Set<String> links) throws RemoteException {
-        try {
-            // Store page info
-            pageInfoMap.put(url, new PageInfo(title, citation));
-            
-            // Update inverted index
-            for (String word : words) {
-                invertedIndex.computeIfAbsent(word.toLowerCase(), k -> ConcurrentHashMap.newKeySet()).add(url);
-            }
-            
-            // Update incoming links for linked pages
-            for (String linkedUrl : links) {
-                incomingLinks.computeIfAbsent(linkedUrl, k -> ConcurrentHashMap.newKeySet()).add(url);
-            }
-            
+    public boolean indexPage(String url, String title, String citation, Set<String> words, Set<String> links) throws RemoteException {
+        long startTime = System.nanoTime();
+        long seq = indexDocument(url, title, citation, words, links);
+        boolean ack = seq >= 0 && awaitLogged(seq);
+        indexLatency.recordSince(startTime);
+        if (ack && !throughputMode) {
+            // Per-page logging serializes writers on System.out, skip it when measuring
             System.out.println("Barrel " + barrelId + " indexed: " + url + " (" + words.size() + " words)");
-            return true; // ACK
+        }
+        return ack;
+    }
+    
+    /**
+     * Index a batch of pages in one RMI call
+     * @return one ACK/NACK per page, in batch order
+     */
+    @Override
+    public boolean[] indexPages(PageBatch batch) throws RemoteException {
+        long startTime = System.nanoTime();
+        boolean[] acks = new boolean[batch.size()];
+        long lastSeq = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            long seq = batch.isLinksOnly(i)
+                    ? indexLinks(batch.getUrl(i), batch.getLinks(i))
+                    : indexDocument(batch.getUrl(i), batch.getTitle(i), batch.getCitation(i), 
+                                    batch.getWords(i), batch.getLinks(i));
+            acks[i] = seq >= 0;
+            lastSeq = Math.max(lastSeq, seq);
+        }
+        
+        // One commit wait covers the whole batch
+        if (!awaitLogged(lastSeq)) {
+            Arrays.fill(acks, false);
+        }
+        batchLatency.recordSince(startTime);
+        int acked = 0;
+        for (boolean ack : acks) {
+            if (ack) acked++;
+        }
+        if (!throughputMode) {
+            System.out.println("Barrel " + barrelId + " indexed batch: " + acked + "/" + batch.size() + " pages");
+        }
+        return acks;
+    }
+    
+    /**
+     * Wait for the WAL group commit that includes this record
+     * @return false (NACK) if the log could not be written
+     */
+    private boolean awaitLogged(long seq) {
+        try {
+            index.awaitDurable(seq);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Barrel " + barrelId + " WAL commit failed: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Add one page to the index buffer and the WAL
+     * @return WAL sequence number to wait for before ACKing, or -1 (NACK) on error
+     */
+    private long indexDocument(String url, String title, String citation, Set<String> words, Set<String> links) {
+        try {
+            long seq = index.index(url, title, citation, words, links);
+            pagesIndexed.incrementAndGet();
+            return seq;
             
         } catch (Exception e) {
             System.err.println("Barrel " + barrelId + " indexing error: " + e.getMessage());
-            return false; // NACK
+            return -1; // NACK
+        }
+    }
+    
+    /**
+     * Store links of a page owned by another shard (sharded mode)
+     * @return WAL sequence number to wait for before ACKing, or -1 (NACK) on error
+     */
+    private long indexLinks(String url, Set<String> links) {
+        try {
+            return index.indexLinks(url, links);
+        } catch (Exception e) {
+            System.err.println("Barrel " + barrelId + " link indexing error: " + e.getMessage());
+            return -1; // NACK
         }
     }
     
     @Override
     public List<SearchResult> search(Set<String> terms) throws RemoteException {
-        long startTime = System.currentTimeMillis();
+        return search(terms, 0, Integer.MAX_VALUE).results;
+    }
+    
+    /**
+     * Ranked window of results: only the best offset + limit hits are kept
+     * (bounded heap), and only the returned ones get a SearchResult
+     */
+    @Override
+    public SearchPage search(Set<String> terms, int offset, int limit) throws RemoteException {
+        long startTime = System.nanoTime();
         
         List<SearchResult> results = new ArrayList<>();
         
-        if (terms.isEmpty()) {
-            return results;
+        if (terms.isEmpty() || offset < 0 || limit <= 0) {
+            return new SearchPage(results, 0);
         }
         
-        // Find URLs that contain ALL search terms
-        Set<String> resultUrls = null;
-        for (String term : terms) {
-            Set<String> urlsForTerm = invertedIndex.get(term.toLowerCase());
-            if (urlsForTerm == null) {
-                return results; // No results if any term is not found
-            }
-            if (resultUrls == null) {
-                resultUrls = new HashSet<>(urlsForTerm);
-            } else {
-                resultUrls.retainAll(urlsForTerm);
-            }
-        }
+        // Search one consistent view of the buffer and segments
+        SegmentedIndex.View view = index.view();
+        
+        // Find doc IDs that contain ALL search terms (rarest term first, galloping intersection)
+        int[] resultIds = QueryExecutor.conjunction(view, terms);
+        
+        // Select the top offset + limit by number of incoming links
+        int k = (int) Math.min((long) offset + limit, resultIds.length);
+        int[] ranked = QueryExecutor.topK(resultIds, index::incomingLinkCount, k);
         
-        // Build search results with page info and incoming link count
-        for (String url : resultUrls) {
-            PageInfo info = pageInfoMap.get(url);
+        // Build search results for the requested window only
+        for (int i = offset; i < ranked.length; i++) {
+            int docId = ranked[i];
+            PageInfo info = view.pageInfo(docId);
             if (info != null) {
-                int incomingLinkCount = incomingLinks.getOrDefault(url, Collections.emptySet()).size();
-                results.add(new SearchResult(url, info.title, info.citation, incomingLinkCount));
+                results.add(new SearchResult(index.getUrl(docId), info.title, info.citation, 
+                                             index.incomingLinkCount(docId)));
             }
         }
         
-        // Sort by number of incoming links (descending)
-        results.sort((a, b) -> Integer.compare(b.incomingLinks, a.incomingLinks));
+        searchLatency.recordSince(startTime);
         
-        long endTime = System.currentTimeMillis();
-        totalSearchTime += (endTime - startTime);
-        searchCount++;
-        
-        return results;
+        return new SearchPage(results, resultIds.length);
+    }
+    
+    /**
+     * Autocomplete: the k most frequent terms starting with the prefix, with
+     * their document frequencies (most frequent first)
+     */
+    @Override
+    public Map<String, Integer> complete(String prefix, int k) throws RemoteException {
+        long startTime = System.nanoTime();
+        String normalized = prefix.trim().toLowerCase();
+        Map<String, Integer> terms = normalized.isEmpty() || k <= 0
+                ? new LinkedHashMap<>()
+                : index.complete(normalized, k);
+        completeLatency.recordSince(startTime);
+        return terms;
     }
     
     @Override
     public Set<String> getIncomingLinks(String url) throws RemoteException {
-        return new HashSet<>(incomingLinks.getOrDefault(url, Collections.emptySet()));
+        Set<String> sources = new HashSet<>();
+        int docId = index.getDocId(url);
+        int[] sourceIds = docId >= 0 ? index.view().incomingLinks(docId) : null;
+        if (sourceIds != null) {
+            for (int sourceId : sourceIds) {
+                sources.add(index.getUrl(sourceId));
+            }
+        }
+        return sources;
     }
     
     @Override
     public int getIndexSize() throws RemoteException {
-        return pageInfoMap.size();
+        return index.size();
     }
     
     @Override
     public double getAverageSearchTime() throws RemoteException {
-        return searchCount > 0 ? (double) totalSearchTime / searchCount / 100.0 : 0.0; // in deciseconds
+        return searchLatency.summary().meanMs;
     }
     
+    /**
+     * Search, single-page and batch indexing and completion latency
+     * (indexing includes the WAL commit)
+     */
     @Override
-    public String getBarrelId() throws RemoteException {
-        return barrelId;
+    public Map<String, LatencySummary> getLatencyStats() throws RemoteException {
+        Map<String, LatencySummary> stats = new LinkedHashMap<>();
+        stats.put("search", searchLatency.summary());
+        stats.put("indexPage", indexLatency.summary());
+        stats.put("indexPages", batchLatency.summary());
+        stats.put("complete", completeLatency.summary());
+        return stats;
     }
     
+    /**
+     * Estimated heap bytes per index structure (entries ending in "Mapped"
+     * are memory-mapped files and "OffHeap" direct memory, outside the heap)
+     */
     @Override
-    public boolean ping() throws RemoteException {
-        return true;
+    public Map<String, Long> getHeapFootprint() throws RemoteException {
+        return index.heapFootprint();
+    }
+    
+    @Override
+    public double getIndexingRate() throws RemoteException {
+        return indexingRate;
+    }
+    
+    @Override
+    public Map<String, Integer> getPostingsStats() throws RemoteException {
+        return index.postingsLayout();
+    }
+    
+    @Override
+    public long getTimeToReady() throws RemoteException {
+        return timeToReady;
     }
     
     /**
-     * Save current state to disk for crash recovery
+     * Record time-to-ready once the barrel is registered and serving queries
      */
-    private synchronized void saveState() {
-        if (persistenceFile == null) return;
-        
-        try {
-            // Create temp file first (atomic write)
-            File tempFile = new File(persistenceFile + ".tmp");
-            
-            try (ObjectOutputStream oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
-                
-                // Write all data structures
-                oos.writeObject(new HashMap<>(invertedIndex));
-                oos.writeObject(new HashMap<>(pageInfoMap));
-                oos.writeObject(new HashMap<>(incomingLinks));
-                oos.writeLong(totalSearchTime);
-                oos.writeInt(searchCount);
-                oos.flush();
+    private void markReady() {
+        timeToReady = ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+    
+    // ==================== Anti-entropy ====================
+    
+    /**
+     * Start comparing with peers every barrel.antientropy.interval.ms
+     */
+    private void startAntiEntropy(Registry registry) {
+        int interval = Config.getBarrelAntiEntropyInterval();
+        if (interval <= 0) {
+            return;
+        }
+        AntiEntropy job = new AntiEntropy(barrelId, shard, this, index, registry);
+        antiEntropy = job;
+        antiEntropyTimer = new Timer("AntiEntropy-" + barrelId, true);
+        antiEntropyTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                job.runRound();
             }
-            
-            // Atomic rename
-            Files.move(tempFile.toPath(), Paths.get(persistenceFile), 
-                      StandardCopyOption.REPLACE_EXISTING, 
-                      StandardCopyOption.ATOMIC_MOVE);
-            
-            System.out.println("Barrel " + barrelId + " state saved (" + pageInfoMap.size() + " pages)");
-            
-        } catch (Exception e) {
-            System.err.println("Barrel " + barrelId + " failed to save state: " + e.getMessage());
+        }, interval, interval);
+    }
+    
+    @Override
+    public long[] getMerkleNodes(int depth, int level, int[] nodes) throws RemoteException {
+        checkMerkleDepth(depth);
+        return index.merkleNodes(level, nodes);
+    }
+    
+    @Override
+    public Map<String, Long> getLeafDigests(int depth, int leaf) throws RemoteException {
+        checkMerkleDepth(depth);
+        return index.leafDigests(leaf);
+    }
+    
+    private void checkMerkleDepth(int depth) throws RemoteException {
+        if (depth != index.merkleDepth()) {
+            throw new RemoteException("Barrel " + barrelId + " uses Merkle depth " + index.merkleDepth() + ", not " + depth);
+        }
+        if (!index.isReady()) {
+            throw new RemoteException("Barrel " + barrelId + " is still catching up");
         }
     }
     
+    @Override
+    public PageBatch exportPages(List<String> urls) throws RemoteException {
+        return index.exportPages(urls);
+    }
+    
+    @Override
+    public Map<String, Long> getRepairStats() throws RemoteException {
+        AntiEntropy job = antiEntropy;
+        return job != null ? job.stats() : null;
+    }
+    
+    // ==================== Peer transfer (serving side) ====================
+    
     /**
-     * Load state from disk (crash recovery)
+     * Start sending this barrel's state to a joining barrel
      */
-    @SuppressWarnings("unchecked")
-    private void loadState() {
-        File file = new File(persistenceFile);
-        if (!file.exists()) {
-            System.out.println("Barrel " + barrelId + " no previous state found, starting fresh");
-            return;
+    @Override
+    public TransferSession.Manifest beginTransfer(String joinerId) throws RemoteException {
+        if (!Config.getBarrelPersistenceEnabled()) {
+            throw new RemoteException("Barrel " + barrelId + " has persistence disabled, cannot send its state");
         }
-        
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new BufferedInputStream(new FileInputStream(file)))) {
-            
-            Map<String, Set<String>> loadedIndex = (Map<String, Set<String>>) ois.readObject();
-            Map<String, PageInfo> loadedPages = (Map<String, PageInfo>) ois.readObject();
-            Map<String, Set<String>> loadedLinks = (Map<String, Set<String>>) ois.readObject();
-            long loadedSearchTime = ois.readLong();
-            int loadedSearchCount = ois.readInt();
-            
-            // Restore data
-            invertedIndex.putAll(loadedIndex);
-            pageInfoMap.putAll(loadedPages);
-            incomingLinks.putAll(loadedLinks);
-            totalSearchTime = loadedSearchTime;
-            searchCount = loadedSearchCount;
-            
-            System.out.println("Barrel " + barrelId + " state recovered: " + pageInfoMap.size() + " pages");
-            
-        } catch (Exception e) {
-            System.err.println("Barrel " + barrelId + " failed to load state: " + e.getMessage());
-            System.err.println("Starting with empty index");
+        long id = nextTransferId.incrementAndGet();
+        File tailFile = new File(Config.getBarrelPersistenceDirectory(), "barrel_" + barrelId + ".transfer." + id);
+        try {
+            TransferSession session = new TransferSession(id, joinerId, tailFile);
+            TransferSession.Manifest manifest;
+            try {
+                manifest = session.start(barrelId, index.beginTransfer(session));
+            } catch (IOException e) {
+                session.close();
+                throw e;
+            }
+            transfers.put(id, session);
+            System.out.println("Barrel " + barrelId + " sending " + manifest.segments.length + " segments (" +
+                             manifest.pages + " pages) to joining barrel " + joinerId);
+            return manifest;
+        } catch (IOException e) {
+            throw new RemoteException("Barrel " + barrelId + " could not start transfer: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public byte[] readTransferChunk(long sessionId, int file, long offset, int maxBytes) throws RemoteException {
+        try {
+            return transfer(sessionId).readChunk(file, offset, maxBytes);
+        } catch (IOException e) {
+            throw new RemoteException("Transfer " + sessionId + " read failed: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public byte[] readTransferTail(long sessionId, long offset, int maxBytes) throws RemoteException {
+        try {
+            return transfer(sessionId).readTail(offset, maxBytes);
+        } catch (IOException e) {
+            throw new RemoteException("Transfer " + sessionId + " tail read failed: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public void endTransfer(long sessionId) throws RemoteException {
+        TransferSession session = transfers.remove(sessionId);
+        if (session != null) {
+            index.endTransfer(session);
+            session.close();
+            System.out.println("Barrel " + barrelId + " finished transfer to " + session.getJoinerId());
+        }
+    }
+    
+    private TransferSession transfer(long sessionId) throws RemoteException {
+        TransferSession session = transfers.get(sessionId);
+        if (session == null) {
+            throw new RemoteException("Unknown or expired transfer " + sessionId);
         }
+        return session;
+    }
+    
+    /**
+     * Drop transfers whose joining barrel stopped asking (crashed mid-transfer)
+     */
+    private void expireTransfers() {
+        long timeout = Config.getBarrelBootstrapSessionTimeout();
+        for (TransferSession session : transfers.values()) {
+            if (session.isExpired(timeout) && transfers.remove(session.getId(), session)) {
+                index.endTransfer(session);
+                session.close();
+                System.err.println("Barrel " + barrelId + " dropped stalled transfer to " + session.getJoinerId());
+            }
+        }
+    }
+    
+    @Override
+    public String getBarrelId() throws RemoteException {
+        return barrelId;
+    }
+    
+    @Override
+    public int getShard() throws RemoteException {
+        return shard;
+    }
+    
+    @Override
+    public boolean ping() throws RemoteException {
+        return true;
     }
     
     /**
@@ -242,13 +522,21 @@ public class StorageBarrel extends UnicastRemoteObject implements StorageBarrelI
         if (autosaveTimer != null) {
             autosaveTimer.cancel();
         }
-        saveState();
+        throughputTimer.cancel();
+        if (antiEntropyTimer != null) {
+            antiEntropyTimer.cancel();
+        }
+        for (TransferSession session : transfers.values()) {
+            index.endTransfer(session);
+            session.close();
+        }
+        index.close();
         System.out.println("Barrel " + barrelId + " shutdown complete");
     }
     
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java StorageBarrel <barrel-id>");
+            System.out.println("Usage: java StorageBarrel <barrel-id> [shard]");
             return;
         }
         
@@ -256,19 +544,48 @@ public class StorageBarrel extends UnicastRemoteObject implements StorageBarrelI
             String barrelId = args[0];
             System.setProperty("java.rmi.server.hostname", Config.getRMIHost());
             
-            StorageBarrel barrel = new StorageBarrel(barrelId);
+            int shard = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+            if (shard < 0 || shard >= Config.getBarrelShards()) {
+                System.err.println("Shard must be between 0 and " + (Config.getBarrelShards() - 1));
+                return;
+            }
             
             Registry registry = LocateRegistry.getRegistry(Config.getRMIPort());
+            
+            // Empty or far behind: copy a live peer's segments before opening the index
+            PeerBootstrap bootstrap = PeerBootstrap.start(barrelId, shard, registry);
+            
+            StorageBarrel barrel = new StorageBarrel(barrelId, shard);
+            
+            // Not visible to the Gateway (or Downloaders) until the peer's
+            // newer writes are replayed
+            if (bootstrap != null) {
+                try {
+                    bootstrap.catchUp(barrel);
+                } catch (IOException e) {
+                    System.err.println("Barrel " + barrelId + " could not replay peer writes, some recent pages may be missing: " + e.getMessage());
+                    bootstrap.close();
+                    bootstrap = null;
+                }
+            }
+            
             registry.rebind("StorageBarrel_" + barrelId, barrel);
+            barrel.markReady();
+            barrel.startAntiEntropy(registry);
             
             System.out.println("StorageBarrel " + barrelId + " is ready on " + 
-                             Config.getRMIHost() + ":" + Config.getRMIPort());
+                             Config.getRMIHost() + ":" + Config.getRMIPort() +
+                             " (time-to-ready: " + barrel.timeToReady + " ms)");
             
             // Shutdown hook for graceful exit
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 barrel.shutdown();
             }));
             
+            if (bootstrap != null) {
+                bootstrap.finish(barrel);
+            }
+            
         } catch (Exception e) {
             System.err.println("StorageBarrel exception: " + e.getMessage());
             e.printStackTrace();
@@ -281,11 +598,28 @@ public class StorageBarrel extends UnicastRemoteObject implements StorageBarrelI
  */
 interface StorageBarrelInterface extends Remote {
     boolean indexPage(String url, String title, String citation, Set<String> words, Set<String> links) throws RemoteException;
+    boolean[] indexPages(PageBatch batch) throws RemoteException;
     List<SearchResult> search(Set<String> terms) throws RemoteException;
+    SearchPage search(Set<String> terms, int offset, int limit) throws RemoteException;
+    Map<String, Integer> complete(String prefix, int k) throws RemoteException;
     Set<String> getIncomingLinks(String url) throws RemoteException;
     int getIndexSize() throws RemoteException;
     double getAverageSearchTime() throws RemoteException;
+    Map<String, LatencySummary> getLatencyStats() throws RemoteException;
+    Map<String, Long> getHeapFootprint() throws RemoteException;
+    double getIndexingRate() throws RemoteException;
+    long getTimeToReady() throws RemoteException;
+    Map<String, Integer> getPostingsStats() throws RemoteException;
     String getBarrelId() throws RemoteException;
+    int getShard() throws RemoteException;
+    TransferSession.Manifest beginTransfer(String joinerId) throws RemoteException;
+    byte[] readTransferChunk(long sessionId, int file, long offset, int maxBytes) throws RemoteException;
+    byte[] readTransferTail(long sessionId, long offset, int maxBytes) throws RemoteException;
+    void endTransfer(long sessionId) throws RemoteException;
+    long[] getMerkleNodes(int depth, int level, int[] nodes) throws RemoteException;
+    Map<String, Long> getLeafDigests(int depth, int leaf) throws RemoteException;
+    PageBatch exportPages(List<String> urls) throws RemoteException;
+    Map<String, Long> getRepairStats() throws RemoteException;
     boolean ping() throws RemoteException;
 }
 
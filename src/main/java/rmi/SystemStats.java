@@ -6,7 +6,9 @@ public class SystemStats implements java.io.Serializable {
     private static final long serialVersionUID = 1L;
     public Map<String, Integer> topSearches;
     public List<BarrelStats> barrelStats;
+    public Map<String, LatencySummary> gatewayLatency;
 
     public Map<String, Integer> getTopSearches() { return topSearches; }
     public List<BarrelStats> getBarrelStats() { return barrelStats; }
+    public Map<String, LatencySummary> getGatewayLatency() { return gatewayLatency; }
 }
\ No newline at end of file
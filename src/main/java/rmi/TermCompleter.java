@@ -0,0 +1,103 @@
+package rmi;
+
+import java.util.*;
+
+/**
+ * Term Completer - Top-k terms of a sorted term table by document frequency
+ *
+ * The terms starting with a prefix form one contiguous range of a segment's
+ * sorted dictionary. Terms are grouped in blocks of BLOCK consecutive
+ * entries and a max-tree over the block maxima finds the most frequent ones
+ * best-first: only the blocks that can still beat the k-th result are opened,
+ * so a lookup costs O(k log n) whatever the size of the range. The tree holds
+ * two ints per block; frequencies themselves are read from the segment.
+ */
+class TermCompleter {
+    
+    private static final int BLOCK = 16;
+    
+    /**
+     * Document frequencies of a term table, read by index
+     */
+    interface Frequencies {
+        int termCount();
+        int docFrequencyAt(int i);
+    }
+    
+    private final Frequencies terms;
+    private final int blocks;
+    private final int[] tree; // tree[blocks + b] = max of block b; tree[i] = max of its children
+    
+    TermCompleter(Frequencies terms) {
+        this.terms = terms;
+        int n = terms.termCount();
+        this.blocks = (n + BLOCK - 1) / BLOCK;
+        this.tree = new int[2 * blocks];
+        for (int i = 0; i < n; i++) {
+            int leaf = blocks + i / BLOCK;
+            tree[leaf] = Math.max(tree[leaf], terms.docFrequencyAt(i));
+        }
+        for (int i = blocks - 1; i >= 1; i--) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+    
+    /**
+     * Indices in [from, to) of the (up to) k terms with the highest document
+     * frequency, highest first (ties: dictionary order)
+     */
+    int[] top(int from, int to, int k) {
+        if (from >= to || k <= 0) {
+            return new int[0];
+        }
+        // Candidates: [frequency, 0 = term / 1 = tree node, index]
+        PriorityQueue<int[]> queue = new PriorityQueue<>((a, b) ->
+                a[0] != b[0] ? Integer.compare(b[0], a[0])
+              : a[1] != b[1] ? Integer.compare(b[1], a[1]) // nodes first, so tied terms all get queued
+              : Integer.compare(a[2], b[2]));
+        
+        // Partial blocks at both ends are scanned; whole blocks go through the tree
+        int firstBlock = (from + BLOCK - 1) / BLOCK;
+        int lastBlock = to / BLOCK; // exclusive
+        if (firstBlock >= lastBlock) {
+            addTerms(queue, from, to);
+        } else {
+            addTerms(queue, from, firstBlock * BLOCK);
+            addTerms(queue, lastBlock * BLOCK, to);
+            for (int l = firstBlock + blocks, r = lastBlock + blocks; l < r; l >>= 1, r >>= 1) {
+                if ((l & 1) == 1) {
+                    queue.add(new int[] {tree[l], 1, l++});
+                }
+                if ((r & 1) == 1) {
+                    queue.add(new int[] {tree[--r], 1, r});
+                }
+            }
+        }
+        
+        int[] result = new int[Math.min(k, to - from)];
+        int found = 0;
+        while (found < result.length && !queue.isEmpty()) {
+            int[] best = queue.poll();
+            if (best[1] == 0) {
+                result[found++] = best[2];
+            } else if (best[2] < blocks) {
+                queue.add(new int[] {tree[2 * best[2]], 1, 2 * best[2]});
+                queue.add(new int[] {tree[2 * best[2] + 1], 1, 2 * best[2] + 1});
+            } else {
+                int start = (best[2] - blocks) * BLOCK;
+                addTerms(queue, start, Math.min(start + BLOCK, terms.termCount()));
+            }
+        }
+        return found == result.length ? result : Arrays.copyOf(result, found);
+    }
+    
+    private void addTerms(PriorityQueue<int[]> queue, int from, int to) {
+        for (int i = from; i < to; i++) {
+            queue.add(new int[] {terms.docFrequencyAt(i), 0, i});
+        }
+    }
+    
+    long heapBytes() {
+        return 16 + 4L * tree.length;
+    }
+}
@@ -0,0 +1,179 @@
+package rmi;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Transfer Session - Peer side of a barrel bootstrap (see PeerBootstrap)
+ *
+ * Holds the snapshot taken by SegmentedIndex.beginTransfer() and spools every
+ * write accepted after it to a tail file, in WAL record format, so a long
+ * transfer never grows the heap. The joining barrel reads the snapshot files
+ * and the tail in bounded chunks; the session ends when it says so, or when
+ * it stops asking for longer than the session timeout.
+ */
+class TransferSession implements WriteAheadLog.Replayer {
+    
+    /**
+     * Files the joining barrel has to copy
+     */
+    static final class Manifest implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        final long sessionId;
+        final String peerId;
+        final String[] segments;    // file names on the peer, oldest first
+        final long[] segmentBytes;
+        final long docsBytes;       // URL list prefix (file number segments.length)
+        final int nextSegment;
+        final int pages;
+        
+        Manifest(long sessionId, String peerId, String[] segments, long[] segmentBytes,
+                 long docsBytes, int nextSegment, int pages) {
+            this.sessionId = sessionId;
+            this.peerId = peerId;
+            this.segments = segments;
+            this.segmentBytes = segmentBytes;
+            this.docsBytes = docsBytes;
+            this.nextSegment = nextSegment;
+            this.pages = pages;
+        }
+        
+        long totalBytes() {
+            long total = docsBytes;
+            for (long bytes : segmentBytes) {
+                total += bytes;
+            }
+            return total;
+        }
+    }
+    
+    private final long id;
+    private final String joinerId;
+    private final File tailFile;
+    private final DataOutputStream tail;
+    private long tailBytes = 0;
+    private IOException tailFailure;
+    private SegmentedIndex.Snapshot snapshot;
+    
+    private volatile long lastAccess = System.currentTimeMillis();
+    
+    TransferSession(long id, String joinerId, File tailFile) throws IOException {
+        this.id = id;
+        this.joinerId = joinerId;
+        this.tailFile = tailFile;
+        this.tail = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tailFile), 1 << 16));
+    }
+    
+    long getId() { return id; }
+    String getJoinerId() { return joinerId; }
+    
+    /**
+     * Describe the snapshot this session serves
+     */
+    Manifest start(String peerId, SegmentedIndex.Snapshot snapshot) {
+        this.snapshot = snapshot;
+        String[] names = new String[snapshot.segments.size()];
+        long[] sizes = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = snapshot.segments.get(i).getName();
+            sizes[i] = snapshot.segments.get(i).sizeBytes();
+        }
+        return new Manifest(id, peerId, names, sizes, snapshot.docsBytes, snapshot.nextSegment, snapshot.pages);
+    }
+    
+    // ---------- Tail (writes after the snapshot) ----------
+    
+    @Override
+    public void index(String url, String title, String citation, Set<String> words, Set<String> links) {
+        spool(WriteAheadLog.encodeIndex(url, title, citation, words, links));
+    }
+    
+    @Override
+    public void links(String url, Set<String> links) {
+        spool(WriteAheadLog.encodeLinks(url, links));
+    }
+    
+    private synchronized void spool(byte[] payload) {
+        if (tailFailure != null) {
+            return;
+        }
+        try {
+            byte[] record = WriteAheadLog.frame(payload);
+            tail.write(record);
+            tailBytes += record.length;
+        } catch (IOException e) {
+            // Reported to the joining barrel on its next tail read
+            tailFailure = e;
+        }
+    }
+    
+    /**
+     * Whole tail records starting at offset, at most maxBytes unless the
+     * first record alone is larger; empty once the joiner has caught up
+     */
+    synchronized byte[] readTail(long offset, int maxBytes) throws IOException {
+        lastAccess = System.currentTimeMillis();
+        if (tailFailure != null) {
+            throw tailFailure;
+        }
+        tail.flush();
+        try (RandomAccessFile file = new RandomAccessFile(tailFile, "r")) {
+            long end = offset;
+            while (end < tailBytes) {
+                file.seek(end);
+                long record = 12L + file.readInt();
+                if (end > offset && end + record - offset > maxBytes) {
+                    break;
+                }
+                end += record;
+            }
+            byte[] chunk = new byte[(int) (end - offset)];
+            file.seek(offset);
+            file.readFully(chunk);
+            return chunk;
+        }
+    }
+    
+    // ---------- Snapshot files ----------
+    
+    /**
+     * Up to maxBytes of a snapshot file: segment number file, or the URL
+     * list when file == number of segments
+     */
+    byte[] readChunk(int file, long offset, int maxBytes) throws IOException {
+        lastAccess = System.currentTimeMillis();
+        List<IndexSegment> segments = snapshot.segments;
+        if (file >= 0 && file < segments.size()) {
+            IndexSegment segment = segments.get(file);
+            int length = (int) Math.max(0, Math.min(maxBytes, segment.sizeBytes() - offset));
+            return segment.bytes((int) offset, length);
+        }
+        if (file == segments.size()) {
+            int length = (int) Math.max(0, Math.min(maxBytes, snapshot.docsBytes - offset));
+            byte[] chunk = new byte[length];
+            try (RandomAccessFile docs = new RandomAccessFile(snapshot.docs, "r")) {
+                docs.seek(offset);
+                docs.readFully(chunk);
+            }
+            return chunk;
+        }
+        throw new IOException("No file " + file + " in transfer " + id);
+    }
+    
+    boolean isExpired(long timeoutMillis) {
+        return System.currentTimeMillis() - lastAccess > timeoutMillis;
+    }
+    
+    /**
+     * Drop the tail file (the snapshot mappings are released with the session)
+     */
+    synchronized void close() {
+        try {
+            tail.close();
+        } catch (IOException e) {
+            // Deleted below anyway
+        }
+        tailFile.delete();
+    }
+}
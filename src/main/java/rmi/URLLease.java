@@ -0,0 +1,25 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * URLs leased by one getNextURLs call, and the lease stamp a NACK of them
+ * must carry (a stale NACK can't requeue a URL leased again since)
+ */
+public class URLLease implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public List<String> urls;
+    public long stamp;
+
+    public URLLease(List<String> urls, long stamp) {
+        this.urls = urls;
+        this.stamp = stamp;
+    }
+
+    @Override
+    public String toString() {
+        return urls.size() + " URLs, lease " + stamp;
+    }
+}
@@ -4,8 +4,10 @@ import java.rmi.*;
 import java.rmi.server.*;
 import java.rmi.registry.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.*;
 import java.io.*;
+import java.nio.file.Files;
 
 /**
  * URL Queue - Manages the queue of URLs to be downloaded
@@ -13,27 +15,68 @@ import java.io.*;
  * 
  * FEATURES:
  * - Thread-safe queue operations
+ * - Leased batch dequeue: URLs handed out by getNextURLs count as visited
+ *   only once acknowledged, and go back to the frontier if their lease
+ *   expires or they are NACKed (a crashed Downloader loses no pages); a
+ *   URL leased queue.lease.max.deliveries times without an ACK is dropped
+ * - Per-host politeness: URLs handed out round-robin across hosts, each
+ *   host at most once per crawl delay (see HostFrontier)
+ * - O(1) duplicate check against queued URLs (hashed pending set, no global lock)
  * - Visited URL tracking (prevents reprocessing)
- * - Optional Bloom filter for memory efficiency
- * - Persistent state across restarts
+ * - Optional scalable Bloom filter for visited URLs (bounded false-positive
+ *   rate, a fraction of the memory of full URL strings)
+ * - Bounded heap: beyond queue.frontier.memory.urls the frontier spills to
+ *   log files on disk (SpillLog), and queued URLs are tracked by fingerprint
+ * - Persistent state across restarts (compressed, checksummed SnapshotFile)
  */
 public class URLQueue extends UnicastRemoteObject implements URLQueueInterface {
     
-    private final ConcurrentLinkedQueue<String> urlQueue;
+    private final HostFrontier frontier;
+    private final SpillLog spill; // frontier overflow, or null
+    private final PendingSet pendingURLs; // the URLs in the frontier or leased, with O(1) contains
+    // Leased URL -> expiry (ms), unique per lease
+    private final Map<String, Long> leases = new ConcurrentHashMap<>();
+    // Leased or requeued URL -> times leased
+    private final Map<String, Integer> deliveries = new ConcurrentHashMap<>();
+    private final AtomicLong lastExpiry = new AtomicLong();
+    private final int maxDeliveries = Config.getQueueLeaseMaxDeliveries();
     private final Set<String> visitedURLs;
-    private final Object lock = new Object();
-    private final String persistenceFile = "data/urlqueue_state.dat";
+    private ScalableBloomFilter visitedFilter; // replaces visitedURLs when the Bloom filter is enabled
+    private final String persistenceFile;
     private final Timer autosaveTimer;
+    private final Timer leaseTimer;
+    
+    // Persistence format (see SnapshotFile)
+    static final String SNAPSHOT_KIND = "urlqueue";
+    static final int SNAPSHOT_VERSION = 3; // v2: Bloom filter after the visited URLs, v3: spill position
     
     public URLQueue() throws RemoteException {
+        this(Config.getBarrelPersistenceEnabled() ? "data/urlqueue_state.dat" : null);
+    }
+    
+    /**
+     * @param persistenceFile state file, or null to keep the queue in memory only
+     */
+    URLQueue(String persistenceFile) throws RemoteException {
         super();
-        this.urlQueue = new ConcurrentLinkedQueue<>();
+        this.spill = createSpill(persistenceFile);
+        this.frontier = new HostFrontier(Config.getQueueHostCrawlDelay(), Config.getQueueFrontierMemoryUrls(),
+                                         Config.getQueueFrontierHostUrls(), spill);
+        this.pendingURLs = new PendingSet();
         this.visitedURLs = ConcurrentHashMap.newKeySet();
+        this.persistenceFile = persistenceFile;
+        if (Config.getQueueBloomFilterEnabled()) {
+            this.visitedFilter = new ScalableBloomFilter(Config.getQueueBloomFilterSize(), Config.getQueueBloomFilterFpr());
+        }
         
         // Setup persistence
-        if (Config.getBarrelPersistenceEnabled()) {
-            new File("data").mkdirs();
-            loadState();
+        if (persistenceFile != null) {
+            new File(persistenceFile).getAbsoluteFile().getParentFile().mkdirs();
+            State state = loadState();
+            openSpill(state);
+            if (state != null && state.legacy) {
+                saveState(); // rewrite in the current format
+            }
             
             // Periodic autosave
             this.autosaveTimer = new Timer("URLQueue-Autosave", true);
@@ -47,19 +90,26 @@ public class URLQueue extends UnicastRemoteObject implements URLQueueInterface {
             System.out.println("URLQueue persistence enabled");
         } else {
             this.autosaveTimer = null;
+            openSpill(null);
         }
+        
+        // Expired leases go back to the frontier
+        this.leaseTimer = new Timer("URLQueue-Leases", true);
+        leaseTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                expireLeases();
+            }
+        }, 1000, 1000);
     }
     
     @Override
     public void addURL(String url) throws RemoteException {
-        synchronized(lock) {
-            // Normalize URL (remove trailing slash, convert to lowercase for consistency)
-            String normalizedUrl = normalizeURL(url);
-            
-            if (!visitedURLs.contains(normalizedUrl) && !urlQueue.contains(normalizedUrl)) {
-                urlQueue.offer(normalizedUrl);
-                System.out.println("URL added to queue: " + normalizedUrl + " (queue size: " + urlQueue.size() + ")");
-            }
+        // Normalize URL (remove trailing slash, convert to lowercase for consistency)
+        String normalizedUrl = normalizeURL(url);
+        
+        if (admit(normalizedUrl)) {
+            System.out.println("URL added to queue: " + normalizedUrl + " (queue size: " + frontier.size() + ")");
         }
     }
     
@@ -67,42 +117,164 @@ public class URLQueue extends UnicastRemoteObject implements URLQueueInterface {
     public void addURLs(List<String> urls) throws RemoteException {
         int addedCount = 0;
         for (String url : urls) {
-            synchronized(lock) {
-                String normalizedUrl = normalizeURL(url);
-                if (!visitedURLs.contains(normalizedUrl) && !urlQueue.contains(normalizedUrl)) {
-                    urlQueue.offer(normalizedUrl);
-                    addedCount++;
-                }
+            if (admit(normalizeURL(url))) {
+                addedCount++;
             }
         }
         if (addedCount > 0) {
-            System.out.println("Added " + addedCount + " new URLs to queue (queue size: " + urlQueue.size() + ")");
+            System.out.println("Added " + addedCount + " new URLs to queue (queue size: " + frontier.size() + ")");
+        }
+    }
+    
+    /**
+     * Enqueue a URL unless it is visited or already queued
+     * The pending set's add() decides, without locking, which of several
+     * concurrent callers enqueues the URL; only new URLs take the frontier's
+     * lock. getNextURL marks a URL visited before it leaves the pending set,
+     * so the visited check after add() catches a URL dequeued in between.
+     * @return true if the URL was enqueued
+     */
+    private boolean admit(String url) {
+        if (url == null || isVisited(url) || !pendingURLs.add(url)) {
+            return false;
+        }
+        if (isVisited(url)) {
+            pendingURLs.remove(url);
+            return false;
+        }
+        frontier.offer(url);
+        return true;
+    }
+    
+    // Visited URLs from a Bloom filter snapshot stay in the filter even with it disabled
+    private boolean isVisited(String url) {
+        ScalableBloomFilter filter = visitedFilter;
+        return visitedURLs.contains(url) || (filter != null && filter.mightContain(url));
+    }
+    
+    private void markVisited(String url) {
+        ScalableBloomFilter filter = visitedFilter;
+        if (filter != null && Config.getQueueBloomFilterEnabled()) {
+            filter.add(url);
+        } else {
+            visitedURLs.add(url);
         }
     }
     
     @Override
     public String getNextURL() throws RemoteException {
-        String url = urlQueue.poll();
+        String url = pollUnvisited();
         if (url != null) {
-            visitedURLs.add(url);
-            System.out.println("URL retrieved from queue: " + url + " (queue size: " + urlQueue.size() + ", visited: " + visitedURLs.size() + ")");
+            markVisited(url);
+            pendingURLs.remove(url);
+            System.out.println("URL retrieved from queue: " + url + " (queue size: " + frontier.size() + ", visited: " + getVisitedCount() + ")");
+        }
+        return url;
+    }
+    
+    /**
+     * Lease up to max URLs; a URL already leased maxDeliveries times (NACKed
+     * or expired every time) is dropped as visited instead
+     */
+    @Override
+    public URLLease getNextURLs(int max, long leaseMillis) throws RemoteException {
+        List<String> urls = new ArrayList<>(Math.min(max, 1000));
+        // The expiry doubles as the lease stamp, so no two calls share one
+        long now = System.currentTimeMillis();
+        long expiry = lastExpiry.accumulateAndGet(now + leaseMillis, (last, next) -> Math.max(last + 1, next));
+        while (urls.size() < max) {
+            String url = pollUnvisited();
+            if (url == null) {
+                break;
+            }
+            int delivery = deliveries.merge(url, 1, Integer::sum);
+            if (delivery > maxDeliveries) {
+                System.err.println("Dropped " + url + " after " + maxDeliveries + " deliveries without an ACK");
+                markVisited(url);
+                pendingURLs.remove(url);
+                deliveries.remove(url);
+                continue;
+            }
+            leases.put(url, expiry);
+            urls.add(url);
+        }
+        if (!urls.isEmpty()) {
+            System.out.println("Leased " + urls.size() + " URLs for " + leaseMillis + " ms (queue size: " +
+                             frontier.size() + ", leased: " + leases.size() + ")");
+        }
+        return new URLLease(urls, expiry);
+    }
+    
+    @Override
+    public void ack(List<String> urls) throws RemoteException {
+        for (String url : urls) {
+            // Visited even if the lease expired meanwhile: the page was crawled
+            markVisited(url);
+            leases.remove(url);
+            deliveries.remove(url);
+            pendingURLs.remove(url);
+        }
+    }
+    
+    @Override
+    public void nack(List<String> urls, long lease) throws RemoteException {
+        int requeued = 0;
+        for (String url : urls) {
+            // remove(key, value): a NACK after the lease expired and the URL
+            // was leased again is ignored
+            if (leases.remove(url, lease)) {
+                frontier.offer(url);
+                requeued++;
+            }
+        }
+        if (requeued > 0) {
+            System.out.println("Requeued " + requeued + " NACKed URLs (queue size: " + frontier.size() + ")");
+        }
+    }
+    
+    /**
+     * Put URLs whose lease ran out back into the frontier
+     */
+    private void expireLeases() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Map.Entry<String, Long> lease : leases.entrySet()) {
+            // remove(key, value): an ack or a new lease in between keeps the URL out
+            if (lease.getValue() < now && leases.remove(lease.getKey(), lease.getValue())) {
+                frontier.offer(lease.getKey());
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            System.out.println("Requeued " + expired + " URLs with expired leases (queue size: " + frontier.size() + ")");
+        }
+    }
+    
+    /**
+     * Next URL from the frontier, skipping ones acknowledged after being requeued
+     */
+    private String pollUnvisited() {
+        String url;
+        while ((url = frontier.poll()) != null && isVisited(url)) {
+            pendingURLs.remove(url);
         }
         return url;
     }
     
     @Override
     public int getQueueSize() throws RemoteException {
-        return urlQueue.size();
+        return (int) Math.min(Integer.MAX_VALUE, frontier.size());
     }
     
     @Override
     public boolean hasURLs() throws RemoteException {
-        return !urlQueue.isEmpty();
+        return !frontier.isEmpty();
     }
     
     @Override
-    public int getVisitedCount() throws RemoteException {
-        return visitedURLs.size();
+    public int getVisitedCount() {
+        ScalableBloomFilter filter = visitedFilter;
+        return visitedURLs.size() + (filter != null ? (int) filter.size() : 0);
     }
 
     // Normalize URL for consistency
@@ -125,38 +297,198 @@ public class URLQueue extends UnicastRemoteObject implements URLQueueInterface {
 
     // Save state for crash recovery
     private void saveState() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(persistenceFile))) {
-            oos.writeObject(new ArrayList<>(urlQueue));
-            oos.writeObject(new HashSet<>(visitedURLs));
-            System.out.println("URLQueue state saved (queue: " + urlQueue.size() + 
-                             ", visited: " + visitedURLs.size() + ")");
+        if (persistenceFile == null) {
+            return;
+        }
+        try {
+            HostFrontier.Snapshot snapshot = frontier.snapshot();
+            List<String> queued = snapshot.urls;
+            queued.addAll(leases.keySet()); // handed out again after a restart
+            List<String> visited = new ArrayList<>(visitedURLs);
+            ScalableBloomFilter filter = visitedFilter;
+            long start = System.nanoTime();
+            long bytes = saveSnapshot(new File(persistenceFile), queued, visited, filter,
+                                      snapshot.spillSegment, snapshot.spillOffset);
+            frontier.release(snapshot.spillSegment);
+            System.out.println("URLQueue state saved (queue: " + queued.size() + " across " +
+                             frontier.hostCount() + " hosts + " + frontier.spilledCount() + " spilled, visited: " +
+                             getVisitedCount() + ", " + bytes / 1024 + " KB in " +
+                             (System.nanoTime() - start) / 1_000_000 + " ms)");
+            System.out.println("URLQueue pending set: " + pendingURLs.size() + " URLs in " +
+                             pendingURLs.memoryBytes() / 1024 + " KB");
+            if (filter != null) {
+                System.out.println(visitedFilterStats(filter));
+            }
         } catch (Exception e) {
             System.err.println("Failed to save URLQueue state: " + e.getMessage());
         }
     }
-
-    // Load state from disk
+    
+    /**
+     * Size, memory and estimated false-positive rate of the visited filter
+     */
+    static String visitedFilterStats(ScalableBloomFilter filter) {
+        return String.format("URLQueue visited filter: %d URLs in %d stages, %d KB (~%d KB saved vs. URL set), " +
+                             "estimated FPR %.5f (target %.5f)",
+                             filter.size(), filter.stageCount(), filter.memoryBytes() / 1024,
+                             filter.memorySavedBytes() / 1024, filter.estimatedFalsePositiveRate(),
+                             filter.targetFalsePositiveRate());
+    }
+    
+    /**
+     * Write queue (in order), visited URLs (sorted, front-coded), the
+     * visited filter, if any, and the spill log's read position as a SnapshotFile
+     * @return file size in bytes
+     */
+    static long saveSnapshot(File file, Collection<String> queued, Collection<String> visited,
+                             ScalableBloomFilter filter, int spillSegment, int spillOffset) throws IOException {
+        return SnapshotFile.save(file, SNAPSHOT_KIND, SNAPSHOT_VERSION, out -> {
+            SnapshotFile.writeVarInt(out, queued.size());
+            for (String url : queued) {
+                SnapshotFile.writeString(out, url);
+            }
+            SnapshotFile.writeSortedStrings(out, visited);
+            out.writeBoolean(filter != null);
+            if (filter != null) {
+                filter.write(out);
+            }
+            SnapshotFile.writeVarInt(out, spillSegment);
+            SnapshotFile.writeVarInt(out, spillOffset);
+        });
+    }
+    
+    /**
+     * Queue, visited URLs, visited filter (or null) and spill log position
+     * as read from a snapshot
+     */
+    static final class State {
+        final List<String> queue;
+        final List<String> visited;
+        final ScalableBloomFilter filter;
+        final int spillSegment;
+        final int spillOffset;
+        final boolean legacy;
+        
+        State(List<String> queue, List<String> visited, ScalableBloomFilter filter,
+              int spillSegment, int spillOffset, boolean legacy) {
+            this.queue = queue;
+            this.visited = visited;
+            this.filter = filter;
+            this.spillSegment = spillSegment;
+            this.spillOffset = spillOffset;
+            this.legacy = legacy;
+        }
+    }
+    
+    static State loadSnapshot(File file) throws IOException {
+        return SnapshotFile.load(file, SNAPSHOT_KIND, (in, version) -> {
+            int count = SnapshotFile.readVarInt(in);
+            List<String> queue = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                queue.add(SnapshotFile.readString(in));
+            }
+            List<String> visited = SnapshotFile.readSortedStrings(in);
+            ScalableBloomFilter filter = version >= 2 && in.readBoolean() ? ScalableBloomFilter.read(in) : null;
+            int spillSegment = version >= 3 ? SnapshotFile.readVarInt(in) : 0;
+            int spillOffset = version >= 3 ? SnapshotFile.readVarInt(in) : 0;
+            return new State(queue, visited, filter, spillSegment, spillOffset, false);
+        });
+    }
+    
+    /**
+     * Read a state file written with ObjectOutputStream (before SnapshotFile)
+     */
     @SuppressWarnings("unchecked")
-    private void loadState() {
+    static State loadLegacy(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            List<String> loadedQueue = (List<String>) ois.readObject();
+            Set<String> loadedVisited = (Set<String>) ois.readObject();
+            return new State(loadedQueue, new ArrayList<>(loadedVisited), null, 0, 0, true);
+        }
+    }
+
+    /**
+     * Load state from disk
+     * @return the state loaded, or null if there was none or it was unreadable
+     */
+    private State loadState() {
         File file = new File(persistenceFile);
-        if (!file.exists()) {
+        if (!file.exists() && !new File(persistenceFile + ".prev").exists()) {
             System.out.println("URLQueue: No previous state found, starting fresh");
-            return;
+            return null;
         }
         
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(file))) {
-            List<String> loadedQueue = (List<String>) ois.readObject();
-            Set<String> loadedVisited = (Set<String>) ois.readObject();
+        try {
+            boolean legacy = file.exists() && SnapshotFile.isLegacy(file);
+            State state = legacy ? loadLegacy(file) : loadSnapshot(file);
             
-            urlQueue.addAll(loadedQueue);
-            visitedURLs.addAll(loadedVisited);
+            if (state.filter != null) {
+                visitedFilter = state.filter;
+                if (!Config.getQueueBloomFilterEnabled()) {
+                    System.out.println("URLQueue: Bloom filter disabled, keeping the saved one for " +
+                                     state.filter.size() + " visited URLs (new ones stored in full)");
+                }
+            }
+            if (visitedFilter != null && Config.getQueueBloomFilterEnabled()) {
+                for (String url : state.visited) {
+                    visitedFilter.add(url); // move full URLs into the filter
+                }
+            } else {
+                visitedURLs.addAll(state.visited);
+            }
+            for (String url : state.queue) {
+                // Older than anything spilled, so kept in memory; older
+                // snapshots may hold duplicates
+                if (!isVisited(url) && pendingURLs.add(url)) {
+                    frontier.restore(url);
+                }
+            }
             
-            System.out.println("URLQueue state recovered (queue: " + urlQueue.size() + 
-                             ", visited: " + visitedURLs.size() + ")");
+            System.out.println("URLQueue state recovered (queue: " + frontier.size() + 
+                             ", visited: " + getVisitedCount() + ")");
+            return state;
         } catch (Exception e) {
             System.err.println("Failed to load URLQueue state: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Resume the spill log where the snapshot left it (from its oldest
+     * segment without one) and mark its URLs pending
+     */
+    private void openSpill(State state) {
+        if (spill == null) {
+            return;
+        }
+        try {
+            long spilled = spill.open(state != null ? state.spillSegment : 0, state != null ? state.spillOffset : 0);
+            spill.forEachPending(pendingURLs::add);
+            if (spilled > 0) {
+                System.out.println("URLQueue: " + spilled + " URLs waiting in the spill log");
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to open URLQueue spill log: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Spill log in data/frontier next to the state file, or in a temporary
+     * directory (removed on shutdown) without persistence
+     * @return null if it can't be created (frontier kept entirely in memory)
+     */
+    private static SpillLog createSpill(String persistenceFile) {
+        long segmentBytes = Config.getQueueFrontierSegmentMb() * 1024L * 1024L;
+        try {
+            if (persistenceFile != null) {
+                File directory = new File(new File(persistenceFile).getAbsoluteFile().getParentFile(), "frontier");
+                return new SpillLog(directory, segmentBytes, true);
+            }
+            return new SpillLog(Files.createTempDirectory("urlqueue-frontier").toFile(), segmentBytes, false);
+        } catch (IOException e) {
+            System.err.println("URLQueue: no spill log, frontier kept in memory: " + e.getMessage());
+            return null;
         }
     }
     
@@ -166,7 +498,16 @@ public class URLQueue extends UnicastRemoteObject implements URLQueueInterface {
         if (autosaveTimer != null) {
             autosaveTimer.cancel();
         }
+        leaseTimer.cancel();
         saveState();
+        try {
+            frontier.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close URLQueue spill log: " + e.getMessage());
+        }
+        if (persistenceFile == null && spill != null) {
+            spill.delete();
+        }
         System.out.println("URLQueue shutdown complete");
     }
     
@@ -208,6 +549,9 @@ interface URLQueueInterface extends Remote {
     void addURL(String url) throws RemoteException;
     void addURLs(List<String> urls) throws RemoteException;
     String getNextURL() throws RemoteException;
+    URLLease getNextURLs(int max, long leaseMillis) throws RemoteException;
+    void ack(List<String> urls) throws RemoteException;
+    void nack(List<String> urls, long lease) throws RemoteException;
     int getQueueSize() throws RemoteException;
     boolean hasURLs() throws RemoteException;
     int getVisitedCount() throws RemoteException;
@@ -0,0 +1,143 @@
+package rmi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * URL Store - Compact in-memory storage for a barrel's URLs
+ *
+ * Each URL is kept once, host-compressed: "scheme://host" is stored once per
+ * host and every URL keeps only its host ID and its UTF-8 path, appended to
+ * an arena of 64 KB byte chunks. Entries are addressed by an int position,
+ * so the structures referring to a URL hold an int instead of a String.
+ * Chunks are never copied and an entry is complete before its position is
+ * handed out, so reads need no lock; appends are synchronized.
+ *
+ * Entry: [varint hostId][varint pathLength][path bytes] (never split across
+ * chunks; a path longer than a chunk gets a chunk of its own)
+ */
+class UrlStore {
+    
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    private volatile byte[][] chunks = new byte[0][];
+    private int used = CHUNK_SIZE; // bytes used in the last chunk (full: none yet)
+    private long arenaBytes = 0;
+    
+    // "scheme://host" by host ID
+    private volatile byte[][] hosts = new byte[0][];
+    private final Map<String, Integer> hostIds = new HashMap<>();
+    
+    /**
+     * Append a URL
+     * @return its position (pass to get() and matches())
+     */
+    synchronized int add(String url) {
+        int split = hostEnd(url);
+        int hostId = hostId(url.substring(0, split));
+        byte[] path = url.substring(split).getBytes(StandardCharsets.UTF_8);
+        
+        int length = varIntSize(hostId) + varIntSize(path.length) + path.length;
+        byte[][] current = chunks;
+        if (used + length > CHUNK_SIZE) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = new byte[Math.max(CHUNK_SIZE, length)];
+            arenaBytes += current[current.length - 1].length;
+            used = 0;
+        }
+        int chunk = current.length - 1;
+        if (chunk >= 1 << (31 - CHUNK_BITS)) {
+            throw new IllegalStateException("URL store full");
+        }
+        byte[] bytes = current[chunk];
+        int start = used;
+        int pos = PostingList.writeVarInt(bytes, start, hostId);
+        pos = PostingList.writeVarInt(bytes, pos, path.length);
+        System.arraycopy(path, 0, bytes, pos, path.length);
+        used = pos + path.length;
+        chunks = current; // publishes the entry
+        return (chunk << CHUNK_BITS) | start;
+    }
+    
+    String get(int position) {
+        byte[] bytes = chunks[position >>> CHUNK_BITS];
+        int[] at = {position & (CHUNK_SIZE - 1)};
+        byte[] host = hosts[readVarInt(bytes, at)];
+        int length = readVarInt(bytes, at);
+        byte[] url = Arrays.copyOf(host, host.length + length);
+        System.arraycopy(bytes, at[0], url, host.length, length);
+        return new String(url, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Whether the entry at position is this URL (as UTF-8), without decoding it
+     */
+    boolean matches(int position, byte[] url) {
+        byte[] bytes = chunks[position >>> CHUNK_BITS];
+        int[] at = {position & (CHUNK_SIZE - 1)};
+        byte[] host = hosts[readVarInt(bytes, at)];
+        int length = readVarInt(bytes, at);
+        if (host.length + length != url.length) {
+            return false;
+        }
+        return Arrays.equals(host, 0, host.length, url, 0, host.length) &&
+               Arrays.equals(bytes, at[0], at[0] + length, url, host.length, url.length);
+    }
+    
+    /**
+     * Bytes held on the heap (arena chunks and host table)
+     */
+    synchronized long heapBytes() {
+        long total = arenaBytes + 16L * chunks.length;
+        for (byte[] host : hosts) {
+            total += 16 + host.length;
+        }
+        return total + 64L * hostIds.size(); // host map entries and their String keys
+    }
+    
+    private int hostId(String host) {
+        Integer id = hostIds.get(host);
+        if (id == null) {
+            id = hosts.length;
+            byte[][] grown = Arrays.copyOf(hosts, id + 1);
+            grown[id] = host.getBytes(StandardCharsets.UTF_8);
+            hosts = grown;
+            hostIds.put(host, id);
+        }
+        return id;
+    }
+    
+    /**
+     * End of "scheme://host" (0 if the URL has no scheme)
+     */
+    private static int hostEnd(String url) {
+        int scheme = url.indexOf("://");
+        if (scheme < 0) {
+            return 0;
+        }
+        int slash = url.indexOf('/', scheme + 3);
+        return slash < 0 ? url.length() : slash;
+    }
+    
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+    
+    private static int readVarInt(byte[] buf, int[] at) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[at[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,456 @@
+package rmi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write-Ahead Log - Append-only log of indexPage operations for a barrel
+ *
+ * FEATURES:
+ * - Group commit: a single writer thread drains all pending records, writes
+ *   them in one go and fsyncs once, then releases every waiting indexer
+ * - Generations: the log is split into numbered files so a checkpoint can
+ *   start a new generation and later delete the ones it covers
+ * - Replay: records are CRC-checked; a torn record at the tail of a file
+ *   (crash mid-write) ends replay of that file
+ * - Failure: once a write fails the log stops; queued records are dropped
+ *   and every later append or wait throws, so callers NACK instead of
+ *   piling up records that will never reach the disk
+ *
+ * Record layout: [int payloadLength][long crc32][payload]
+ * Payload:       [byte op][url][title][citation][int n][n words][int m][m links]
+ */
+class WriteAheadLog {
+    
+    static final byte OP_INDEX = 1;
+    static final byte OP_LINKS = 2;
+    
+    /**
+     * Receives replayed operations
+     */
+    interface Replayer {
+        void index(String url, String title, String citation, Set<String> words, Set<String> links);
+        void links(String url, Set<String> links);
+    }
+    
+    private final String directory;
+    private final String prefix;
+    private final boolean sync;
+    
+    private FileChannel channel;
+    private long generation;
+    
+    // Group commit state (guarded by this)
+    private final List<byte[]> pending = new ArrayList<>();
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private IOException failure;
+    private boolean closed = false;
+    private boolean stopped = false; // writer thread exited
+    private boolean rotateRequested = false;
+    private IOException rotateFailure;
+    
+    private final Thread writer;
+    
+    /**
+     * Open the log, starting a new generation after the highest one on disk
+     */
+    public WriteAheadLog(String directory, String prefix, boolean sync) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.sync = sync;
+        
+        // Empty generations (e.g. from a restart without writes) hold nothing to replay.
+        // The newest one is kept so generation numbers never go backwards, since
+        // checkpoints record the first generation they do not cover.
+        List<Long> existing = listGenerations();
+        for (int i = 0; i < existing.size() - 1; i++) {
+            File file = pathOf(existing.get(i)).toFile();
+            if (file.length() == 0) {
+                file.delete();
+            }
+        }
+        existing = listGenerations();
+        this.generation = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        this.channel = openGeneration(generation);
+        
+        this.writer = new Thread(this::writeLoop, "WAL-" + prefix);
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Append an indexPage operation
+     * @return sequence number to pass to awaitDurable()
+     */
+    public long appendIndex(String url, String title, String citation, Set<String> words, Set<String> links)
+            throws IOException {
+        return append(encodeIndex(url, title, citation, words, links));
+    }
+    
+    /**
+     * Append the links of a page owned by another shard
+     * @return sequence number to pass to awaitDurable()
+     */
+    public long appendLinks(String url, Set<String> links) throws IOException {
+        return append(encodeLinks(url, links));
+    }
+    
+    /**
+     * Payload of an indexPage operation (also spooled by peer transfers)
+     */
+    static byte[] encodeIndex(String url, String title, String citation, Set<String> words, Set<String> links) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(OP_INDEX);
+            writeString(out, url);
+            writeString(out, title);
+            writeString(out, citation);
+            out.writeInt(words.size());
+            for (String word : words) {
+                writeString(out, word);
+            }
+            out.writeInt(links.size());
+            for (String link : links) {
+                writeString(out, link);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory stream, cannot happen
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Payload of a links-only operation
+     */
+    static byte[] encodeLinks(String url, Set<String> links) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(OP_LINKS);
+            writeString(out, url);
+            out.writeInt(links.size());
+            for (String link : links) {
+                writeString(out, link);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory stream, cannot happen
+        }
+        return bytes.toByteArray();
+    }
+    
+    private synchronized long append(byte[] payload) throws IOException {
+        if (failure != null) {
+            throw new IOException("WAL " + prefix + " failed: " + failure.getMessage(), failure);
+        }
+        if (closed) {
+            throw new IOException("WAL " + prefix + " is closed");
+        }
+        pending.add(payload);
+        appendedSeq++;
+        notifyAll();
+        return appendedSeq;
+    }
+    
+    /**
+     * Block until the record with this sequence number is on disk
+     * @throws IOException if the log failed or stopped before writing it
+     */
+    public synchronized void awaitDurable(long seq) throws IOException {
+        while (durableSeq < seq && failure == null && !stopped) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for WAL commit");
+            }
+        }
+        if (durableSeq >= seq) {
+            return;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        throw new IOException("WAL " + prefix + " closed before record " + seq + " was written");
+    }
+    
+    /**
+     * Writer thread: one write + fsync per group of pending records
+     */
+    private void writeLoop() {
+        try {
+            writeGroups();
+        } finally {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+        }
+    }
+    
+    private void writeGroups() {
+        while (true) {
+            List<byte[]> group;
+            long groupSeq;
+            FileChannel target;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed && !rotateRequested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (rotateRequested) {
+                    // Swap files between groups, so no write is in flight on the old one
+                    // (if the new file can't be opened, records stay in the current one)
+                    FileChannel old = channel;
+                    try {
+                        channel = openGeneration(generation + 1);
+                        generation++;
+                        old.close();
+                    } catch (IOException e) {
+                        rotateFailure = e;
+                    }
+                    rotateRequested = false;
+                    notifyAll();
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    return; // closed and drained
+                }
+                group = new ArrayList<>(pending);
+                pending.clear();
+                groupSeq = appendedSeq;
+                target = channel;
+            }
+            
+            try {
+                for (byte[] payload : group) {
+                    ByteBuffer record = ByteBuffer.wrap(frame(payload));
+                    while (record.hasRemaining()) {
+                        target.write(record);
+                    }
+                }
+                if (sync) {
+                    target.force(false);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    pending.clear();
+                    notifyAll();
+                }
+                System.err.println("WAL " + prefix + " write failed: " + e.getMessage());
+                return;
+            }
+            
+            synchronized (this) {
+                durableSeq = groupSeq;
+                notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Start a new generation for a checkpoint
+     * Done by the writer thread between groups. Every record in older
+     * generations was applied to the index before it was appended, so a
+     * snapshot started after this call covers them; the returned generation
+     * is the first one the snapshot does NOT cover.
+     */
+    public synchronized long rotate() throws IOException {
+        if (failure != null || stopped) {
+            throw new IOException("WAL " + prefix + " is not running", failure);
+        }
+        rotateRequested = true;
+        notifyAll();
+        while (rotateRequested && failure == null && !stopped) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted rotating WAL");
+            }
+        }
+        if (rotateFailure != null) {
+            IOException e = rotateFailure;
+            rotateFailure = null;
+            throw e;
+        }
+        if (rotateRequested) {
+            throw new IOException("WAL " + prefix + " stopped before rotating", failure);
+        }
+        return generation;
+    }
+    
+    /**
+     * Delete generations older than the given one (covered by a checkpoint)
+     */
+    public void deleteBefore(long keepFrom) {
+        for (long gen : listGenerations()) {
+            if (gen < keepFrom) {
+                try {
+                    Files.deleteIfExists(pathOf(gen));
+                } catch (IOException e) {
+                    System.err.println("WAL " + prefix + " could not delete generation " + gen + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Replay every record of generations >= fromGeneration, in order
+     * @return number of operations replayed
+     */
+    public int replay(long fromGeneration, Replayer replayer) {
+        int replayed = 0;
+        for (long gen : listGenerations()) {
+            if (gen < fromGeneration || gen == generation) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(pathOf(gen))))) {
+                while (true) {
+                    byte[] payload = readRecord(in);
+                    if (payload == null) {
+                        break;
+                    }
+                    if (decode(payload, replayer)) {
+                        replayed++;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("WAL " + prefix + " replay of generation " + gen + " stopped: " + e.getMessage());
+            }
+        }
+        return replayed;
+    }
+    
+    /**
+     * Hand one payload to the replayer
+     * @return true for an indexPage operation
+     */
+    static boolean decode(byte[] payload, Replayer replayer) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = record.readByte();
+        if (op == OP_INDEX) {
+            String url = readString(record);
+            String title = readString(record);
+            String citation = readString(record);
+            Set<String> words = readStrings(record);
+            Set<String> links = readStrings(record);
+            replayer.index(url, title, citation, words, links);
+            return true;
+        } else if (op == OP_LINKS) {
+            replayer.links(readString(record), readStrings(record));
+        }
+        return false;
+    }
+    
+    /**
+     * Payload framed as a record: [int payloadLength][long crc32][payload]
+     */
+    static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(12 + payload.length)
+                .putInt(payload.length).putLong(crc.getValue()).put(payload).array();
+    }
+    
+    /**
+     * Read one record, or null at end of file / torn tail
+     */
+    static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        long expectedCrc;
+        try {
+            length = in.readInt();
+            expectedCrc = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > 64 * 1024 * 1024) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue() == expectedCrc ? payload : null;
+    }
+    
+    /**
+     * Flush pending records and stop the writer thread
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join(5000);
+            channel.close();
+        } catch (Exception e) {
+            System.err.println("WAL " + prefix + " close failed: " + e.getMessage());
+        }
+    }
+    
+    private FileChannel openGeneration(long gen) throws IOException {
+        return FileChannel.open(pathOf(gen), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    
+    private Path pathOf(long gen) {
+        return Paths.get(directory, prefix + ".wal." + gen);
+    }
+    
+    private List<Long> listGenerations() {
+        List<Long> generations = new ArrayList<>();
+        File[] files = new File(directory).listFiles();
+        if (files != null) {
+            String marker = prefix + ".wal.";
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(marker)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(marker.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a WAL file
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+    
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static Set<String> readStrings(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        Set<String> values = new HashSet<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+}
@@ -6,7 +6,9 @@ import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import webapp.service.GoogolService;
+import rmi.SearchPage;
 import rmi.SearchResult;
 import java.util.List;
 import java.util.Set;
@@ -35,9 +37,10 @@ public class SearchController {
                           @RequestParam(value = "p", defaultValue = "0") int page, 
                           Model model) {
         try {
-            List<SearchResult> results = googolService.searchPaginated(query, page, 10);
+            SearchPage results = googolService.searchPaginated(query, page, 10);
 
-            model.addAttribute("results", results);
+            model.addAttribute("results", results.results);
+            model.addAttribute("totalHits", results.totalHits);
             model.addAttribute("query", query);
             model.addAttribute("page", page);
 
@@ -45,8 +48,8 @@ public class SearchController {
             model.addAttribute("nextPage", page + 1);
             model.addAttribute("prevPage", page > 0 ? page - 1 : 0);
             model.addAttribute("showPrev", page > 0);
-            // Simplificação: só mostra "Próximo" se vieram 10 resultados
-            model.addAttribute("showNext", results.size() >= 10); 
+            // "Próximo" só se houver resultados depois desta página
+            model.addAttribute("showNext", (page + 1) * 10 < results.totalHits); 
 
         } catch (Exception e) {
             model.addAttribute("error", "Erro na pesquisa: " + e.getMessage());
@@ -54,6 +57,18 @@ public class SearchController {
         return "search"; // Procura search.html
     }
 
+    // Sugestões para a caixa de pesquisa (JSON, chamado a cada tecla)
+    @GetMapping("/suggest")
+    @ResponseBody
+    public List<String> suggest(@RequestParam("q") String prefix,
+                                @RequestParam(value = "k", defaultValue = "8") int k) {
+        try {
+            return googolService.complete(prefix, k);
+        } catch (Exception e) {
+            return List.of(); // Sem sugestões não impede a pesquisa
+        }
+    }
+
     @PostMapping("/index")
     public String indexURL(@RequestParam("url") String url, Model model){
         try {
@@ -94,7 +109,8 @@ public class SearchController {
     public String searchWithSummary(@RequestParam("q") String query, Model model) {
         try {
             // Pesquisa normal
-            List<SearchResult> results = googolService.searchPaginated(query, 0, 10);
+            SearchPage page = googolService.searchPaginated(query, 0, 10);
+            List<SearchResult> results = page.results;
 
             // Extração de snippets
             List<String> snippets = new java.util.ArrayList<>();
@@ -105,6 +121,7 @@ public class SearchController {
             String aiSummary = googolService.generateAISummary(query, snippets);
 
             model.addAttribute("results", results);
+            model.addAttribute("totalHits", page.totalHits);
             model.addAttribute("query", query);
             model.addAttribute("page", 0);
             model.addAttribute("aiSummary", aiSummary);
@@ -113,7 +130,7 @@ public class SearchController {
             model.addAttribute("nextPage", 1);
             model.addAttribute("prevPage", 0);
             model.addAttribute("showPrev", false);
-            model.addAttribute("showNext", results.size() >= 10);
+            model.addAttribute("showNext", page.totalHits > 10);
 
         } catch (Exception e) {
             model.addAttribute("error", "Erro ao gerar " + e.getMessage());
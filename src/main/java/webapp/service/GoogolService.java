@@ -9,6 +9,7 @@ import jakarta.annotation.PostConstruct;
 import rmi.Config;
 import rmi.GatewayInterface;
 import rmi.SystemStats;
+import rmi.SearchPage;
 import rmi.SearchResult;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -89,7 +90,7 @@ public class GoogolService {
     }
     
     // FUNCIONALIDADE 3: Pesquisar com paginação
-    public List<SearchResult> searchPaginated(String query, int page, int pageSize) throws Exception {
+    public SearchPage searchPaginated(String query, int page, int pageSize) throws Exception {
         ensureConnected();
         try {
             return gateway.searchPaginated(query, page, pageSize);
@@ -99,6 +100,17 @@ public class GoogolService {
         }
     }
     
+    // Sugestões de termos para um prefixo (mais frequentes primeiro)
+    public List<String> complete(String prefix, int k) throws Exception {
+        ensureConnected();
+        try {
+            return gateway.complete(prefix, k);
+        } catch (RemoteException e) {
+            connected = false;
+            throw new Exception("Completion failed: " + e.getMessage());
+        }
+    }
+    
     // FUNCIONALIDADE 4: Obter links que apontam para um URL
     public Set<String> getIncomingLinks(String url) throws Exception {
         ensureConnected();
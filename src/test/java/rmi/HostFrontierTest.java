@@ -0,0 +1,92 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Host Frontier Test - per-host scheduling and the in-memory/spill split
+ */
+class HostFrontierTest {
+
+    private static final long LONG_DELAY = 60_000; // a host served once stays waiting for the whole test
+
+    @TempDir
+    File directory;
+
+    private HostFrontier frontier;
+
+    @AfterEach
+    void close() throws Exception {
+        if (frontier != null) {
+            frontier.close();
+        }
+    }
+
+    private HostFrontier frontier(long crawlDelayMillis, int memoryLimit, int hostLimit) throws Exception {
+        SpillLog spill = new SpillLog(new File(directory, "spill"), 1 << 20, false);
+        spill.open(0, 0);
+        frontier = new HostFrontier(crawlDelayMillis, memoryLimit, hostLimit, spill);
+        return frontier;
+    }
+
+    @Test
+    void linkHeavyHostDoesNotPushOtherHostsToDisk() throws Exception {
+        HostFrontier frontier = frontier(LONG_DELAY, 100, 10);
+        for (int i = 0; i < 500; i++) {
+            frontier.offer("http://a.pt/" + i);
+        }
+        frontier.offer("http://b.pt/0");
+
+        assertEquals(490, frontier.spilledCount(), "only a.pt's overflow is spilled");
+        assertEquals("http://a.pt/0", frontier.poll());
+        assertEquals("http://b.pt/0", frontier.poll());
+        assertNull(frontier.poll(), "both hosts are waiting their crawl delay");
+    }
+
+    @Test
+    void spilledHostIsServedWhileHeadHostWaits() throws Exception {
+        HostFrontier frontier = frontier(LONG_DELAY, 100, 10);
+        for (int i = 0; i < 100; i++) {
+            frontier.restore("http://a.pt/" + i); // a snapshot's head: ignores the per-host cap
+        }
+        frontier.offer("http://b.pt/0");
+        assertEquals(1, frontier.spilledCount(), "memory is full, b.pt goes to disk");
+
+        assertEquals("http://a.pt/0", frontier.poll());
+        assertEquals("http://b.pt/0", frontier.poll(), "no host ready: refill from the spill log");
+        assertNull(frontier.poll());
+        assertEquals(99, frontier.size());
+    }
+
+    @Test
+    void deferredUrlsAreNeitherLostNorDuplicated() throws Exception {
+        HostFrontier frontier = frontier(0, 20, 5);
+        Set<String> offered = new HashSet<>();
+        for (int i = 0; i < 300; i++) {
+            String url = "http://site" + (i % 3) + ".pt/" + i;
+            offered.add(url);
+            frontier.offer(url);
+        }
+
+        Set<String> polled = new HashSet<>();
+        String url;
+        while ((url = frontier.poll()) != null) {
+            assertTrue(polled.add(url), "served twice: " + url);
+        }
+        assertEquals(offered, polled);
+        assertTrue(frontier.isEmpty());
+    }
+
+    @Test
+    void hostOfIgnoresUserInfoPortAndCase() {
+        assertEquals("example.pt", HostFrontier.hostOf("https://user:pw@Example.PT:8080/a?b#c"));
+        assertEquals("[::1]", HostFrontier.hostOf("http://[::1]:80/"));
+        assertEquals("a.pt", HostFrontier.hostOf("a.pt/path"));
+    }
+}
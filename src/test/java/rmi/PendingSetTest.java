@@ -0,0 +1,82 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pending Set Test - linear probing with backward-shift deletion, against a HashSet
+ */
+class PendingSetTest {
+
+    @Test
+    void matchesAHashSetUnderRandomAddsAndRemoves() {
+        PendingSet pending = new PendingSet();
+        Set<String> model = new HashSet<>();
+        Random random = new Random(42);
+        for (int op = 0; op < 400_000; op++) {
+            // A small key space keeps the tables dense, with long probe runs to shift
+            String url = "http://site.pt/" + random.nextInt(60_000);
+            if (random.nextInt(3) > 0) {
+                assertEquals(model.add(url), pending.add(url), "add " + url);
+            } else {
+                assertEquals(model.remove(url), pending.remove(url), "remove " + url);
+            }
+        }
+        assertEquals(model.size(), pending.size());
+        for (int i = 0; i < 60_000; i++) {
+            String url = "http://site.pt/" + i;
+            assertEquals(model.contains(url), pending.contains(url), url);
+        }
+    }
+
+    @Test
+    void removeKeepsRunsThatWrapAroundTheTable() {
+        // URLs of one stripe whose home slots are the last two of a fresh
+        // table, so their run wraps to slot 0
+        List<String> run = new ArrayList<>();
+        for (int i = 0; run.size() < 6; i++) {
+            String url = "http://wrap.pt/" + i;
+            long fingerprint = ScalableBloomFilter.hash(url);
+            int home = (int) (fingerprint >>> 32) & 1023;
+            if ((fingerprint & 63) == 0 && home >= 1022) {
+                run.add(url);
+            }
+        }
+        PendingSet pending = new PendingSet();
+        for (String url : run) {
+            assertTrue(pending.add(url));
+        }
+        // Remove from the front, the middle and the end of the run
+        for (int victim : new int[] {0, 3, 5}) {
+            assertTrue(pending.remove(run.get(victim)));
+            assertFalse(pending.contains(run.get(victim)));
+        }
+        for (int kept : new int[] {1, 2, 4}) {
+            assertTrue(pending.contains(run.get(kept)), "lost " + run.get(kept));
+        }
+        assertEquals(3, pending.size());
+        assertFalse(pending.remove(run.get(0)));
+    }
+
+    @Test
+    void growingKeepsEveryFingerprint() {
+        PendingSet pending = new PendingSet();
+        long before = pending.memoryBytes();
+        for (int i = 0; i < 200_000; i++) {
+            assertTrue(pending.add("http://grow.pt/" + i));
+        }
+        assertTrue(pending.memoryBytes() > before);
+        for (int i = 0; i < 200_000; i++) {
+            assertTrue(pending.contains("http://grow.pt/" + i));
+            assertFalse(pending.add("http://grow.pt/" + i));
+        }
+        for (int i = 0; i < 200_000; i += 2) {
+            assertTrue(pending.remove("http://grow.pt/" + i));
+        }
+        assertEquals(100_000, pending.size());
+        assertFalse(pending.isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Query Executor Test - AND queries across segments (varint and bitmap
+ * postings), deletes from re-indexing and the buffer, against a model
+ */
+class QueryExecutorTest {
+
+    private static final String[] TERMS = {"common", "half", "tenth", "rare"};
+
+    @TempDir
+    File directory;
+
+    /**
+     * Words of a page version: "common" almost always, "rare" seldom
+     */
+    private static Set<String> words(Random random) {
+        Set<String> words = new HashSet<>();
+        if (random.nextInt(10) < 9) words.add("common");
+        if (random.nextInt(2) == 0) words.add("half");
+        if (random.nextInt(10) == 0) words.add("tenth");
+        if (random.nextInt(200) == 0) words.add("rare");
+        return words;
+    }
+
+    private static void check(SegmentedIndex index, Map<String, Set<String>> pages, String when) {
+        List<List<String>> queries = new ArrayList<>();
+        for (int a = 0; a < TERMS.length; a++) {
+            queries.add(List.of(TERMS[a]));
+            for (int b = a + 1; b < TERMS.length; b++) {
+                queries.add(List.of(TERMS[a], TERMS[b]));
+                for (int c = b + 1; c < TERMS.length; c++) {
+                    queries.add(List.of(TERMS[a], TERMS[b], TERMS[c]));
+                }
+            }
+        }
+        queries.add(List.of("COMMON", "missing"));
+        for (List<String> query : queries) {
+            Set<String> lower = new HashSet<>();
+            query.forEach(term -> lower.add(term.toLowerCase()));
+            int[] expected = pages.entrySet().stream()
+                                  .filter(page -> page.getValue().containsAll(lower))
+                                  .mapToInt(page -> index.getDocId(page.getKey()))
+                                  .sorted().toArray();
+            assertArrayEquals(expected, QueryExecutor.conjunction(index.view(), query), when + ": " + query);
+        }
+    }
+
+    private void reindexMatchesAModel(boolean offHeap) throws Exception {
+        Map<String, Set<String>> pages = new HashMap<>();
+        Random random = new Random(11);
+        SegmentedIndex index = new SegmentedIndex("q", directory.getPath(), true, false, offHeap);
+        index.open();
+        try {
+            for (int op = 1; op <= 12_000; op++) {
+                String url = "http://site.pt/" + random.nextInt(4000);
+                Set<String> words = words(random);
+                pages.put(url, words);
+                index.index(url, "Title", "Citation", words, Set.of());
+                if (op % 3000 == 0) {
+                    index.flush(); // later segments delete postings of pages re-indexed from earlier ones
+                }
+            }
+            index.index("http://site.pt/buffered", "Title", "Citation", Set.of("common", "rare"), Set.of());
+            pages.put("http://site.pt/buffered", Set.of("common", "rare"));
+            check(index, pages, "live");
+        } finally {
+            index.close();
+        }
+
+        SegmentedIndex reopened = new SegmentedIndex("q", directory.getPath(), true, false, offHeap);
+        reopened.open();
+        try {
+            check(reopened, pages, "reopened");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void conjunctionMatchesAModel() throws Exception {
+        reindexMatchesAModel(false);
+    }
+
+    @Test
+    void conjunctionMatchesAModelOffHeap() throws Exception {
+        reindexMatchesAModel(true);
+    }
+
+    @Test
+    void gallopIntersectKeepsCommonIds() {
+        Random random = new Random(5);
+        for (int round = 0; round < 200; round++) {
+            int[] small = random.ints(random.nextInt(50), 0, 100_000).sorted().distinct().toArray();
+            int[] large = random.ints(random.nextInt(20_000), 0, 100_000).sorted().distinct().toArray();
+            Set<Integer> in = new HashSet<>();
+            for (int id : large) in.add(id);
+            int[] expected = Arrays.stream(small).filter(in::contains).toArray();
+            assertArrayEquals(expected, QueryExecutor.gallopIntersect(small, large));
+            assertArrayEquals(expected, QueryExecutor.gallopIntersect(large, small));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Roaring Postings Test - array/bitmap/run containers and the transitions between them,
+ * against java.util.BitSet
+ */
+class RoaringPostingsTest {
+
+    private static final int ARRAY_MAX = 4096; // largest array container
+
+    private static RoaringPostings of(BitSet set) {
+        int[] ids = set.stream().toArray();
+        return RoaringPostings.fromSorted(ids, ids.length);
+    }
+
+    /**
+     * count random values within container key
+     */
+    private static BitSet random(Random random, int key, int count) {
+        BitSet set = new BitSet();
+        while (set.cardinality() < count) {
+            set.set((key << 16) | random.nextInt(65536));
+        }
+        return set;
+    }
+
+    private static BitSet range(int from, int to) {
+        BitSet set = new BitSet();
+        set.set(from, to);
+        return set;
+    }
+
+    private static BitSet union(BitSet... sets) {
+        BitSet result = new BitSet();
+        for (BitSet set : sets) {
+            result.or(set);
+        }
+        return result;
+    }
+
+    private static void assertPostings(BitSet expected, RoaringPostings actual) {
+        assertArrayEquals(expected.stream().toArray(), actual.toArray());
+        assertEquals(expected.cardinality(), actual.cardinality());
+    }
+
+    private static RoaringPostings roundTrip(RoaringPostings postings, int[] types) {
+        ByteBuffer buf = ByteBuffer.wrap(postings.serialize());
+        RoaringPostings.countContainers(buf, 0, types);
+        return RoaringPostings.read(buf, 0);
+    }
+
+    @Test
+    void arrayBecomesBitmapPastTheArrayLimit() {
+        Random random = new Random(1);
+        for (int count : new int[] {1, ARRAY_MAX - 1, ARRAY_MAX, ARRAY_MAX + 1, 30_000}) {
+            BitSet expected = random(random, 0, count);
+            RoaringPostings postings = of(expected);
+            assertPostings(expected, postings);
+
+            int[] types = new int[3];
+            assertPostings(expected, roundTrip(postings, types));
+            assertEquals(count <= ARRAY_MAX ? 1 : 0, types[RoaringPostings.ARRAY], "array at " + count);
+            assertEquals(count <= ARRAY_MAX ? 0 : 1, types[RoaringPostings.BITMAP], "bitmap at " + count);
+        }
+    }
+
+    @Test
+    void andAcrossContainerKinds() {
+        Random random = new Random(2);
+        BitSet sparse = random(random, 0, 2000);
+        BitSet dense = random(random, 0, 40_000);
+        BitSet otherDense = random(random, 0, 40_000);
+        BitSet sparseBitmap = random(random, 0, 5000); // a bitmap whose AND with another falls under the limit
+
+        BitSet[][] pairs = {{sparse, random(random, 0, 3000)}, {sparse, dense}, {dense, sparse},
+                            {dense, otherDense}, {sparseBitmap, random(random, 0, 5000)}};
+        for (BitSet[] pair : pairs) {
+            BitSet expected = (BitSet) pair[0].clone();
+            expected.and(pair[1]);
+            RoaringPostings result = of(pair[0]).and(of(pair[1]));
+            assertPostings(expected, result);
+            assertPostings(expected, roundTrip(result, new int[3]));
+        }
+    }
+
+    @Test
+    void orAcrossContainerKinds() {
+        Random random = new Random(3);
+        BitSet small = random(random, 0, 1500);
+        BitSet otherSmall = random(random, 0, 1500);
+        BitSet large = random(random, 0, 3000);
+        BitSet otherLarge = random(random, 0, 3000); // two arrays whose union passes the limit
+        BitSet dense = random(random, 0, 20_000);
+
+        BitSet[][] pairs = {{small, otherSmall}, {large, otherLarge}, {small, dense}, {dense, small}};
+        for (BitSet[] pair : pairs) {
+            RoaringPostings result = of(pair[0]).or(of(pair[1]));
+            assertPostings(union(pair), result);
+            assertPostings(union(pair), roundTrip(result, new int[3]));
+        }
+    }
+
+    @Test
+    void consecutiveDocIdsAreStoredAsRuns() {
+        // Runs in an array-sized and in a bitmap-sized container, and across a container boundary
+        BitSet expected = union(range(10, 500), range(1000, 1100), range(65536 + 100, 65536 + 20_000),
+                                range(2 * 65536 - 50, 2 * 65536 + 50));
+        RoaringPostings postings = of(expected);
+        int[] types = new int[3];
+        RoaringPostings read = roundTrip(postings, types);
+        assertPostings(expected, read);
+        assertEquals(3, types[RoaringPostings.RUN]);
+        assertEquals(0, types[RoaringPostings.ARRAY] + types[RoaringPostings.BITMAP]);
+
+        // Decoded runs still combine with the other kinds
+        BitSet other = random(new Random(4), 1, 10_000);
+        BitSet and = (BitSet) expected.clone();
+        and.and(other);
+        assertPostings(and, read.and(of(other)));
+        assertPostings(union(expected, other), read.or(of(other)));
+    }
+
+    @Test
+    void containsAndFilterSpanContainers() {
+        Random random = new Random(5);
+        BitSet expected = union(random(random, 0, 100), random(random, 3, 10_000), random(random, 7, 4000));
+        RoaringPostings postings = of(expected);
+
+        int[] probes = random.ints(20_000, 0, 8 << 16).sorted().distinct().toArray();
+        int[] kept = postings.filter(probes);
+        assertArrayEquals(Arrays.stream(probes).filter(expected::get).toArray(), kept);
+        for (int probe : probes) {
+            assertEquals(expected.get(probe), postings.contains(probe));
+        }
+    }
+}
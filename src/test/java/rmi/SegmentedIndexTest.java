@@ -0,0 +1,450 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Segmented Index Test - re-indexing, flushes, merges, peer transfers and
+ * recovery from segments and the WAL
+ *
+ * A "crash" abandons an index without close(): its WAL records are on disk
+ * (awaitDurable) but its active buffer was never flushed.
+ */
+class SegmentedIndexTest {
+
+    private static final int PAGES = 40;
+    private static final int VOCABULARY = 30;
+
+    @TempDir
+    File directory;
+
+    private final List<SegmentedIndex> opened = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        for (SegmentedIndex index : opened) {
+            index.close();
+        }
+    }
+
+    private SegmentedIndex open() {
+        return open("t", directory);
+    }
+
+    private SegmentedIndex open(String barrelId, File directory) {
+        SegmentedIndex index = openToCrash(barrelId, directory);
+        opened.add(index);
+        return index;
+    }
+
+    private SegmentedIndex openToCrash() {
+        return openToCrash("t", directory);
+    }
+
+    /**
+     * Same as open(), but left for the test to abandon (it must not flush over the next one)
+     */
+    private SegmentedIndex openToCrash(String barrelId, File directory) {
+        SegmentedIndex index = new SegmentedIndex(barrelId, directory.getPath(), true, false, false);
+        index.open();
+        return index;
+    }
+
+    private SegmentedIndex reopen(SegmentedIndex index) {
+        index.close();
+        opened.remove(index);
+        return open();
+    }
+
+    private static String url(int i) {
+        return "http://site.pt/" + i;
+    }
+
+    private static Set<String> wordsOf(SegmentedIndex index, String url) {
+        PageBatch page = index.exportPages(List.of(url));
+        return page.isEmpty() ? Set.of() : page.getWords(0);
+    }
+
+    private static Set<String> linksOf(SegmentedIndex index, String url) {
+        PageBatch page = index.exportPages(List.of(url));
+        return page.isEmpty() ? Set.of() : page.getLinks(0);
+    }
+
+    private static int incomingLinks(SegmentedIndex index, String url) {
+        int docId = index.getDocId(url);
+        return docId >= 0 ? index.incomingLinkCount(docId) : 0;
+    }
+
+    private static boolean matches(SegmentedIndex index, String term, String url) {
+        int docId = index.getDocId(url);
+        int[] ids = index.view().postings(term);
+        return docId >= 0 && ids != null && Arrays.binarySearch(ids, docId) >= 0;
+    }
+
+    /**
+     * Wait for background merges to bring the index down to at most the given segments
+     */
+    private static void awaitSegments(SegmentedIndex index, int segments) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (index.view().segments.size() > segments) {
+            assertTrue(System.currentTimeMillis() < deadline, "merges left " + index.view().segments.size() + " segments");
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * What the index should hold: the last words and links indexed for each URL
+     */
+    private static final class Model {
+        final Map<String, Set<String>> words = new HashMap<>();
+        final Map<String, Set<String>> links = new HashMap<>();
+
+        long reindex(SegmentedIndex index, Random random) throws IOException {
+            String url = url(random.nextInt(PAGES));
+            Set<String> pageWords = new HashSet<>();
+            for (int i = 1 + random.nextInt(6); i > 0; i--) {
+                pageWords.add("term" + random.nextInt(VOCABULARY));
+            }
+            Set<String> pageLinks = new HashSet<>();
+            for (int i = random.nextInt(5); i > 0; i--) {
+                pageLinks.add(url(random.nextInt(PAGES)));
+            }
+            words.put(url, pageWords);
+            links.put(url, pageLinks);
+            return index.index(url, "Title", "Citation", pageWords, pageLinks);
+        }
+
+        void check(SegmentedIndex index, String when) {
+            assertEquals(words.size(), index.size(), when + ": pages");
+            for (int p = 0; p < PAGES; p++) {
+                String url = url(p);
+                Set<String> pageWords = words.getOrDefault(url, Set.of());
+                assertEquals(pageWords, wordsOf(index, url), when + ": words of " + url);
+                assertEquals(links.getOrDefault(url, Set.of()), linksOf(index, url), when + ": links of " + url);
+                for (int t = 0; t < VOCABULARY; t++) {
+                    String term = "term" + t;
+                    assertEquals(pageWords.contains(term), matches(index, term, url), when + ": " + term + " in " + url);
+                }
+                long sources = links.values().stream().filter(l -> l.contains(url)).count();
+                assertEquals(sources, incomingLinks(index, url), when + ": in-links of " + url);
+            }
+        }
+    }
+
+    @Test
+    void reindexMatchesAModelAcrossFlushesMergesAndCrashes() throws Exception {
+        Model model = new Model();
+        Random random = new Random(7);
+        SegmentedIndex index = openToCrash();
+        long seq = 0;
+        for (int op = 1; op <= 3100; op++) {
+            seq = model.reindex(index, random);
+            if (op % 150 == 0) {
+                index.flush(); // 20 small segments, merged as runs of them fill up
+            }
+        }
+        index.awaitDurable(seq);
+        awaitSegments(index, Config.getBarrelSegmentMergeFactor() - 1);
+        model.check(index, "live");
+
+        // The last 100 re-indexes only reached the WAL
+        SegmentedIndex recovered = openToCrash();
+        model.check(recovered, "after a crash");
+
+        for (int op = 0; op < 500; op++) {
+            model.reindex(recovered, random);
+        }
+        recovered.close();
+        model.check(open(), "after a clean restart");
+    }
+
+    @Test
+    void mergeFoldsDeletesUnlessAnOlderSegmentHoldsThePosting() throws Exception {
+        SegmentedIndex index = open();
+        String kept = url(1);
+        String folded = url(2);
+
+        // Over 1 MB, so a level above the small segments and left out of their merge
+        Random random = new Random(3);
+        for (int p = 0; p < 1500; p++) {
+            Set<String> words = new HashSet<>();
+            for (int i = 0; i < 40; i++) {
+                words.add("filler" + random.nextInt(200_000));
+            }
+            index.index("http://big.pt/" + p, "Big", "Citation", words, Set.of());
+        }
+        index.index(kept, "Kept", "Citation", Set.of("old", "keep"), Set.of());
+        index.flush();
+        assertTrue(index.view().segments.get(0).sizeBytes() >= 1 << 20);
+
+        index.index(kept, "Kept", "Citation", Set.of("keep", "new"), Set.of()); // "old" stays in the big segment
+        index.index(folded, "Folded", "Citation", Set.of("gone", "stay"), Set.of());
+        index.flush();
+        index.index(folded, "Folded", "Citation", Set.of("stay"), Set.of()); // "gone" is within the run
+        index.flush();
+        for (int i = 0; i < Config.getBarrelSegmentMergeFactor() - 2; i++) {
+            index.index(url(100 + i), "Other", "Citation", Set.of("other"), Set.of());
+            index.flush();
+        }
+        awaitSegments(index, 2);
+
+        IndexSegment merged = index.view().segments.get(1);
+        assertArrayEquals(new int[] {index.getDocId(kept)}, merged.deletedPostings("old"),
+                          "kept while an older segment holds the posting");
+        int[] gone = merged.deletedPostings("gone");
+        assertTrue(gone == null || gone.length == 0, "applied within the run, not carried");
+
+        for (SegmentedIndex current : List.of(index, reopen(index))) {
+            assertFalse(matches(current, "old", kept));
+            assertTrue(matches(current, "keep", kept));
+            assertTrue(matches(current, "new", kept));
+            assertFalse(matches(current, "gone", folded));
+            assertTrue(matches(current, "stay", folded));
+        }
+    }
+
+    /**
+     * Make the next segment file a device that rejects every write
+     */
+    private Path blockSegment(int number) throws IOException {
+        assumeTrue(new File("/dev/full").exists(), "needs /dev/full to make writes fail");
+        return Files.createSymbolicLink(directory.toPath().resolve("barrel_t_" + number + ".seg"), Paths.get("/dev/full"));
+    }
+
+    @Test
+    void failedFlushIsWrittenBeforeItsWalIsDropped() throws Exception {
+        SegmentedIndex index = openToCrash();
+        index.index(url(1), "First", "Citation", Set.of("first"), Set.of());
+        Path blocked = blockSegment(1);
+        index.flush();
+        assertEquals(1, index.view().frozen.size());
+        assertTrue(matches(index, "first", url(1)), "searchable while frozen");
+
+        Files.deleteIfExists(blocked);
+        long seq = index.index(url(2), "Second", "Citation", Set.of("second"), Set.of());
+        index.flush();
+        assertTrue(index.view().frozen.isEmpty());
+        assertEquals(2, index.view().segments.size());
+        index.awaitDurable(seq);
+
+        // The second flush deleted the WAL generations of both buffers
+        SegmentedIndex recovered = open();
+        assertTrue(matches(recovered, "first", url(1)));
+        assertTrue(matches(recovered, "second", url(2)));
+        assertEquals(2, recovered.size());
+    }
+
+    @Test
+    void closeWritesBuffersLeftByAFailedFlush() throws Exception {
+        SegmentedIndex index = openToCrash();
+        index.index(url(1), "First", "Citation", Set.of("first"), Set.of());
+        Path blocked = blockSegment(1);
+        index.flush();
+        Files.deleteIfExists(blocked);
+        index.close();
+
+        SegmentedIndex reopened = open();
+        assertEquals(1, reopened.view().segments.size());
+        assertTrue(matches(reopened, "first", url(1)));
+    }
+
+    @Test
+    void unreadableSegmentIsQuarantinedAndTheRestKeepTheirDocIds() throws Exception {
+        SegmentedIndex index = open();
+        index.index(url(1), "First", "Citation", Set.of("first"), Set.of());
+        index.flush();
+        index.index(url(2), "Second", "Citation", Set.of("second"), Set.of());
+        index.flush();
+        index = reopen(index);
+        index.close();
+        opened.remove(index);
+
+        // A damaged footer makes the segment fail to map
+        Path damaged = directory.toPath().resolve("barrel_t_2.seg");
+        Files.write(damaged, Arrays.copyOf(Files.readAllBytes(damaged), 10));
+
+        SegmentedIndex reopened = open();
+        assertTrue(Files.exists(directory.toPath().resolve("barrel_t_2.seg.corrupt")));
+        assertTrue(matches(reopened, "first", url(1)));
+        assertFalse(matches(reopened, "second", url(2)));
+        reopened.index(url(3), "Third", "Citation", Set.of("third"), Set.of());
+
+        SegmentedIndex restarted = reopen(reopened);
+        assertTrue(matches(restarted, "first", url(1)));
+        assertTrue(matches(restarted, "third", url(3)));
+        assertEquals(Set.of("third"), wordsOf(restarted, url(3)));
+    }
+
+    @Test
+    void unreadableManifestSetsTheOldFilesAside() throws Exception {
+        SegmentedIndex index = open();
+        for (int p = 0; p < 10; p++) {
+            index.index(url(p), "Old", "Citation", Set.of("old"), Set.of());
+        }
+        index.close();
+        opened.remove(index);
+        Files.writeString(directory.toPath().resolve("barrel_t.manifest"), "next=garbage\n");
+
+        // Pages still in the WAL are replayed into the fresh index
+        SegmentedIndex reset = open();
+        assertTrue(Files.exists(directory.toPath().resolve("barrel_t.docs.corrupt")));
+        reset.index(url(42), "New", "Citation", Set.of("new"), Set.of());
+        int pages = reset.size();
+
+        // New doc IDs start a new URL list instead of following the old one
+        SegmentedIndex restarted = reopen(reset);
+        assertEquals(pages, restarted.size());
+        assertEquals(Set.of("new"), wordsOf(restarted, url(42)));
+        assertTrue(matches(restarted, "new", url(42)));
+        for (int p = 0; p < 10; p++) {
+            assertEquals(matches(restarted, "old", url(p)), wordsOf(restarted, url(p)).equals(Set.of("old")));
+        }
+    }
+
+    @Test
+    void peerTransferWithConcurrentWritersConverges() throws Exception {
+        SegmentedIndex peer = open("p", directory);
+        for (int p = 0; p < 500; p++) {
+            peer.index(url(p), "Title", "Citation", Set.of("seed" + p % 7), Set.of(url((p + 1) % 500)));
+        }
+        peer.flush();
+
+        // Writers keep re-indexing before, during and after the snapshot
+        int threads = 4;
+        AtomicLong lastSeq = new AtomicLong();
+        CountDownLatch warmedUp = new CountDownLatch(threads * 200);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int writer = t;
+            writers.add(pool.submit(() -> {
+                Random random = new Random(writer);
+                for (int i = 0; i < 1500; i++) {
+                    String url = url(writer + threads * random.nextInt(200));
+                    Set<String> words = Set.of("w" + random.nextInt(50), "v" + random.nextInt(50));
+                    long seq = peer.index(url, "Title", "Citation", words, Set.of(url(random.nextInt(800))));
+                    lastSeq.accumulateAndGet(seq, Math::max);
+                    warmedUp.countDown();
+                }
+                return null;
+            }));
+        }
+
+        warmedUp.await();
+        TransferSession session = new TransferSession(1, "j", new File(directory, "transfer.tail"));
+        TransferSession.Manifest manifest = session.start("p", peer.beginTransfer(session));
+
+        // Copy the snapshot the way PeerBootstrap does
+        File joinerDirectory = new File(directory, "joiner");
+        File staging = new File(joinerDirectory, "barrel_j.bootstrap");
+        assertTrue(staging.mkdirs());
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < manifest.segments.length; i++) {
+            String name = "barrel_j" + manifest.segments[i].substring("barrel_p".length());
+            copy(session, i, manifest.segmentBytes[i], new File(staging, name));
+            names.add(name);
+        }
+        copy(session, manifest.segments.length, manifest.docsBytes, new File(staging, "barrel_j.docs"));
+        SegmentedIndex.installTransfer(joinerDirectory.getPath(), "j", staging, names,
+                                       manifest.nextSegment, manifest.pages);
+        SegmentedIndex joiner = open("j", joinerDirectory);
+
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        pool.shutdown();
+        peer.awaitDurable(lastSeq.get());
+
+        WriteAheadLog.Replayer apply = new WriteAheadLog.Replayer() {
+            public void index(String url, String title, String citation, Set<String> words, Set<String> links) {
+                try {
+                    joiner.index(url, title, citation, words, links);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            public void links(String url, Set<String> links) {
+                try {
+                    joiner.indexLinks(url, links);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        long offset = 0;
+        byte[] chunk;
+        while ((chunk = session.readTail(offset, 1 << 16)).length > 0) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+            byte[] payload;
+            while ((payload = WriteAheadLog.readRecord(in)) != null) {
+                WriteAheadLog.decode(payload, apply);
+            }
+            offset += chunk.length;
+        }
+        peer.endTransfer(session);
+        session.close();
+
+        assertEquals(peer.size(), joiner.size());
+        for (int p = 0; p < 800; p++) {
+            String url = url(p);
+            assertEquals(wordsOf(peer, url), wordsOf(joiner, url), "words of " + url);
+            assertEquals(linksOf(peer, url), linksOf(joiner, url), "links of " + url);
+            assertEquals(incomingLinks(peer, url), incomingLinks(joiner, url), "in-links of " + url);
+        }
+    }
+
+    private static void copy(TransferSession session, int file, long size, File target) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            long offset = 0;
+            while (offset < size) {
+                byte[] chunk = session.readChunk(file, offset, 1 << 16);
+                out.write(chunk);
+                offset += chunk.length;
+            }
+        }
+    }
+
+    @Test
+    void concurrentReindexIsReplayedInTheOrderItWasApplied() throws Exception {
+        SegmentedIndex index = openToCrash();
+        int threads = 8;
+        int pages = 20;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int writer = t;
+            writers.add(pool.submit(() -> {
+                long seq = 0;
+                for (int i = 0; i < 500; i++) {
+                    String url = "http://a.pt/" + (i % pages);
+                    seq = Math.max(seq, index.index(url, "A", "citation", Set.of("w" + writer + "_" + i), Set.of()));
+                }
+                return seq;
+            }));
+        }
+        for (Future<Long> writer : writers) {
+            index.awaitDurable(writer.get());
+        }
+        pool.shutdown();
+
+        SegmentedIndex recovered = open();
+        for (int p = 0; p < pages; p++) {
+            String url = "http://a.pt/" + p;
+            Set<String> live = wordsOf(index, url);
+            assertEquals(1, live.size());
+            assertEquals(live, wordsOf(recovered, url), "WAL replay ends on the version applied last");
+        }
+        assertEquals(pages, recovered.size());
+    }
+}
@@ -0,0 +1,166 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Spill Log Test - FIFO order across segments, restart at a saved position,
+ * torn records and segment release
+ */
+class SpillLogTest {
+
+    private static final long SEGMENT_BYTES = 256; // about ten URLs per segment
+
+    @TempDir
+    File directory;
+
+    private static String url(int i) {
+        return "http://site.pt/page/" + i;
+    }
+
+    private SpillLog open(boolean keepRead, int segment, int offset) throws IOException {
+        SpillLog spill = new SpillLog(directory, SEGMENT_BYTES, keepRead);
+        spill.open(segment, offset);
+        return spill;
+    }
+
+    private List<String> segmentFiles() {
+        String[] names = directory.list((dir, name) -> name.startsWith("spill_"));
+        List<String> files = new ArrayList<>(Arrays.asList(names != null ? names : new String[0]));
+        Collections.sort(files);
+        return files;
+    }
+
+    @Test
+    void readsBackInOrderWhileStillAppending() throws Exception {
+        SpillLog spill = open(false, 0, 0);
+        for (int i = 0; i < 50; i++) {
+            spill.append(url(i));
+        }
+        for (int i = 0; i < 25; i++) {
+            assertEquals(url(i), spill.next());
+        }
+        for (int i = 50; i < 100; i++) {
+            spill.append(url(i)); // the segment being read was sealed: these go to new ones
+        }
+        assertEquals(75, spill.size());
+        for (int i = 25; i < 100; i++) {
+            assertEquals(url(i), spill.next());
+        }
+        assertNull(spill.next());
+        assertEquals(0, spill.size());
+        spill.close();
+        assertTrue(segmentFiles().size() <= 1, "segments read to the end are deleted: " + segmentFiles());
+    }
+
+    @Test
+    void resumesAtTheSavedPosition() throws Exception {
+        SpillLog spill = open(true, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            spill.append(url(i));
+        }
+        for (int i = 0; i < 37; i++) {
+            spill.next();
+        }
+        int[] position = spill.position();
+        spill.next(); // read after the snapshot: must come back after a crash
+        spill.close();
+
+        SpillLog reopened = new SpillLog(directory, SEGMENT_BYTES, true);
+        assertEquals(63, reopened.open(position[0], position[1]));
+        List<String> pending = new ArrayList<>();
+        reopened.forEachPending(pending::add);
+        assertEquals(63, pending.size());
+        assertEquals(url(37), pending.get(0));
+        for (int i = 37; i < 100; i++) {
+            assertEquals(url(i), reopened.next());
+        }
+        assertNull(reopened.next());
+        reopened.close();
+    }
+
+    @Test
+    void tornRecordEndsItsSegment() throws Exception {
+        SpillLog spill = open(false, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            spill.append(url(i));
+        }
+        spill.close();
+        Path segment = directory.toPath().resolve(segmentFiles().get(0));
+        byte[] bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(bytes, bytes.length - 3)); // crash in the middle of the last append
+
+        SpillLog reopened = new SpillLog(directory, SEGMENT_BYTES, false);
+        assertEquals(4, reopened.open(0, 0));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(url(i), reopened.next());
+        }
+        reopened.append(url(100)); // later appends start a new segment, not after the torn bytes
+        assertEquals(url(100), reopened.next());
+        assertNull(reopened.next());
+        reopened.close();
+    }
+
+    @Test
+    void tornRecordWithinTheLogEndsOnlyThatSegment() throws Exception {
+        SpillLog spill = open(false, 0, 0);
+        for (int i = 0; i < 40; i++) {
+            spill.append(url(i));
+        }
+        spill.close();
+        List<String> files = segmentFiles();
+        assertTrue(files.size() >= 3);
+        Path first = directory.toPath().resolve("spill_0.log");
+        byte[] bytes = Files.readAllBytes(first);
+        Files.write(first, Arrays.copyOf(bytes, bytes.length - 3));
+
+        SpillLog reopened = new SpillLog(directory, SEGMENT_BYTES, false);
+        long left = reopened.open(0, 0);
+        List<String> read = new ArrayList<>();
+        String url;
+        while ((url = reopened.next()) != null) {
+            read.add(url);
+        }
+        assertEquals(left, read.size());
+        assertEquals(39, read.size(), "only the torn URL is lost");
+        assertEquals(url(0), read.get(0));
+        assertEquals(url(39), read.get(read.size() - 1));
+        reopened.close();
+    }
+
+    @Test
+    void releaseDeletesOnlySegmentsBeforeTheSnapshot() throws Exception {
+        SpillLog spill = open(true, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            spill.append(url(i));
+        }
+        spill.flush();
+        int segments = segmentFiles().size();
+        for (int i = 0; i < 50; i++) {
+            spill.next();
+        }
+        assertEquals(segments, segmentFiles().size(), "segments read are kept until a snapshot covers them");
+
+        int[] position = spill.position();
+        spill.release(position[0]);
+        List<String> left = segmentFiles();
+        assertTrue(left.size() < segments);
+        for (String name : left) {
+            int number = Integer.parseInt(name.substring("spill_".length(), name.length() - ".log".length()));
+            assertTrue(number >= position[0], "kept " + name + " before segment " + position[0]);
+        }
+
+        // Resuming from the released position still finds every unread URL
+        spill.close();
+        SpillLog reopened = new SpillLog(directory, SEGMENT_BYTES, true);
+        assertEquals(50, reopened.open(position[0], position[1]));
+        assertEquals(url(50), reopened.next());
+        reopened.close();
+    }
+}
@@ -0,0 +1,180 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * URL Queue Test - admission against queued, leased and visited URLs
+ * (concurrent callers included), and leases: ACK, NACK, expiry and the
+ * redelivery cap
+ *
+ * Each URL gets its own host, so only a redelivery waits for the crawl delay.
+ */
+class URLQueueTest {
+
+    private final URLQueue queue;
+
+    URLQueueTest() throws Exception {
+        queue = new URLQueue(null);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        queue.shutdown();
+        UnicastRemoteObject.unexportObject(queue, true);
+    }
+
+    private static String url(int i) {
+        return "http://host" + i + ".pt/page";
+    }
+
+    /**
+     * Lease the next URLs, waiting for ones not ready yet (crawl delay, lease expiry)
+     */
+    private URLLease next(long leaseMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            URLLease lease = queue.getNextURLs(10, leaseMillis);
+            if (!lease.urls.isEmpty() || System.currentTimeMillis() > deadline) {
+                return lease;
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void queuedLeasedAndVisitedURLsAreNotAdmittedAgain() throws Exception {
+        queue.addURL(url(1));
+        queue.addURLs(List.of(url(1), url(1) + "/", url(1) + "#top"));
+        assertEquals(1, queue.getQueueSize());
+
+        URLLease lease = next(60_000);
+        queue.addURL(url(1));
+        assertFalse(queue.hasURLs(), "a leased URL is still pending");
+
+        queue.ack(lease.urls);
+        queue.addURL(url(1));
+        assertFalse(queue.hasURLs(), "an acknowledged URL is visited");
+    }
+
+    @Test
+    void concurrentCallersEnqueueEachURLOnce() throws Exception {
+        int urls = 2000;
+        List<String> links = new ArrayList<>();
+        for (int i = 0; i < urls; i++) {
+            links.add(url(i));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> adders = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            List<String> shuffled = new ArrayList<>(links);
+            Collections.shuffle(shuffled, new Random(t));
+            adders.add(pool.submit(() -> {
+                queue.addURLs(shuffled);
+                return null;
+            }));
+        }
+        for (Future<?> adder : adders) {
+            adder.get();
+        }
+        pool.shutdown();
+        assertEquals(urls, queue.getQueueSize());
+
+        Set<String> handedOut = new HashSet<>();
+        String url;
+        while ((url = queue.getNextURL()) != null) {
+            assertTrue(handedOut.add(url), "handed out twice: " + url);
+        }
+        assertEquals(new HashSet<>(links), handedOut);
+    }
+
+    @Test
+    void urlsDequeuedWhileBeingAddedAreHandedOutOnce() throws Exception {
+        int urls = 500;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        // The window between admission and dequeue is narrow: race over several fresh URL sets
+        for (int round = 0; round < 5; round++) {
+            int first = round * urls;
+            List<Future<?>> adders = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(1);
+            for (int t = 0; t < 4; t++) {
+                adders.add(pool.submit(() -> {
+                    // Keep re-adding every URL, racing the consumer below
+                    while (done.getCount() > 0) {
+                        for (int i = first; i < first + urls; i++) {
+                            queue.addURL(url(i));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Set<String> handedOut = new HashSet<>();
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (handedOut.size() < urls && System.currentTimeMillis() < deadline) {
+                String url = queue.getNextURL();
+                if (url != null) {
+                    assertTrue(handedOut.add(url), "handed out twice: " + url);
+                }
+            }
+            done.countDown();
+            for (Future<?> adder : adders) {
+                adder.get();
+            }
+            assertEquals(urls, handedOut.size());
+            assertEquals(0, queue.getQueueSize(), "a visited URL was enqueued again");
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    void ackedURLsAreDoneAndNackedOnesComeBack() throws Exception {
+        queue.addURLs(List.of(url(1), url(2), url(3)));
+        URLLease lease = next(60_000);
+        assertEquals(Set.of(url(1), url(2), url(3)), new HashSet<>(lease.urls));
+
+        queue.ack(List.of(url(1), url(2)));
+        queue.nack(List.of(url(3)), lease.stamp);
+        assertEquals(List.of(url(3)), next(60_000).urls);
+
+        queue.addURLs(List.of(url(1), url(2)));
+        assertEquals(0, queue.getQueueSize(), "acknowledged URLs count as visited");
+    }
+
+    @Test
+    void expiredLeaseIsRedeliveredAndALateNackIgnored() throws Exception {
+        queue.addURL(url(1));
+        URLLease first = next(1);
+        assertEquals(List.of(url(1)), first.urls);
+
+        URLLease second = next(60_000); // after the lease timer requeued it
+        assertEquals(List.of(url(1)), second.urls);
+        assertNotEquals(first.stamp, second.stamp);
+
+        queue.nack(first.urls, first.stamp); // the first holder gives up late
+        assertFalse(queue.hasURLs(), "a stale NACK must not queue a URL leased again");
+
+        queue.nack(second.urls, second.stamp);
+        assertTrue(queue.hasURLs());
+    }
+
+    @Test
+    void urlIsDroppedAfterTheMaximumDeliveries() throws Exception {
+        queue.addURL(url(1));
+        int deliveries = 0;
+        URLLease lease;
+        while (!(lease = next(60_000)).urls.isEmpty()) {
+            deliveries++;
+            queue.nack(lease.urls, lease.stamp); // a page that fails every time
+        }
+        assertEquals(Config.getQueueLeaseMaxDeliveries(), deliveries);
+        assertEquals(1, queue.getVisitedCount());
+        queue.addURL(url(1));
+        assertFalse(queue.hasURLs(), "a dropped URL is not admitted again");
+    }
+}
@@ -0,0 +1,115 @@
+package rmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Write-Ahead Log Test - replay across generations, torn tails and write failures
+ */
+class WriteAheadLogTest {
+
+    @TempDir
+    File directory;
+
+    /**
+     * Collects replayed operations as "index url" / "links url"
+     */
+    private static final class Recorder implements WriteAheadLog.Replayer {
+        final List<String> ops = new ArrayList<>();
+
+        public void index(String url, String title, String citation, Set<String> words, Set<String> links) {
+            ops.add("index " + url);
+        }
+
+        public void links(String url, Set<String> links) {
+            ops.add("links " + url);
+        }
+    }
+
+    private WriteAheadLog open() throws IOException {
+        return new WriteAheadLog(directory.getPath(), "t", false);
+    }
+
+    private static long index(WriteAheadLog wal, String url) throws IOException {
+        return wal.appendIndex(url, "title", "citation", Set.of("word"), Set.of("http://link.pt"));
+    }
+
+    @Test
+    void replaysEveryGenerationFromTheCheckpointOn() throws Exception {
+        WriteAheadLog wal = open();
+        wal.awaitDurable(index(wal, "http://a.pt"));
+        long covered = wal.rotate();
+        wal.awaitDurable(index(wal, "http://b.pt"));
+        wal.awaitDurable(wal.appendLinks("http://c.pt", Set.of("http://b.pt")));
+        wal.close();
+
+        WriteAheadLog reopened = open();
+        Recorder all = new Recorder();
+        assertEquals(2, reopened.replay(0, all), "index operations replayed");
+        assertEquals(List.of("index http://a.pt", "index http://b.pt", "links http://c.pt"), all.ops);
+
+        Recorder afterCheckpoint = new Recorder();
+        reopened.replay(covered, afterCheckpoint);
+        assertEquals(List.of("index http://b.pt", "links http://c.pt"), afterCheckpoint.ops);
+
+        reopened.deleteBefore(covered);
+        Recorder afterDelete = new Recorder();
+        reopened.replay(0, afterDelete);
+        assertEquals(afterCheckpoint.ops, afterDelete.ops);
+        reopened.close();
+    }
+
+    @Test
+    void tornTailEndsReplayOfItsFile() throws Exception {
+        WriteAheadLog wal = open();
+        index(wal, "http://a.pt");
+        wal.awaitDurable(index(wal, "http://b.pt"));
+        wal.close();
+
+        Path file = directory.toPath().resolve("t.wal.1");
+        byte[] record = WriteAheadLog.frame(WriteAheadLog.encodeLinks("http://c.pt", Set.of()));
+        Files.write(file, Arrays.copyOf(record, record.length - 3), StandardOpenOption.APPEND);
+
+        WriteAheadLog reopened = open();
+        Recorder recorder = new Recorder();
+        reopened.replay(0, recorder);
+        assertEquals(List.of("index http://a.pt", "index http://b.pt"), recorder.ops);
+        reopened.close();
+    }
+
+    @Test
+    void closeWritesQueuedRecordsThenRefusesAppends() throws Exception {
+        WriteAheadLog wal = open();
+        long seq = 0;
+        for (int i = 0; i < 100; i++) {
+            seq = index(wal, "http://a.pt/" + i);
+        }
+        wal.close();
+        wal.awaitDurable(seq); // drained before the writer stopped
+        assertThrows(IOException.class, () -> index(wal, "http://late.pt"));
+        assertThrows(IOException.class, wal::rotate);
+    }
+
+    @Test
+    void failedWriteFailsWaitersAndLaterAppends() throws Exception {
+        assumeTrue(new File("/dev/full").exists(), "needs /dev/full to make writes fail");
+        WriteAheadLog wal = open();
+        wal.awaitDurable(index(wal, "http://a.pt"));
+        // The next generation is a device that rejects every write
+        Files.createSymbolicLink(directory.toPath().resolve("t.wal.2"), Paths.get("/dev/full"));
+        assertEquals(2, wal.rotate());
+
+        long seq = index(wal, "http://b.pt");
+        assertThrows(IOException.class, () -> wal.awaitDurable(seq));
+        assertThrows(IOException.class, () -> index(wal, "http://c.pt"));
+        assertThrows(IOException.class, wal::rotate);
+        wal.close();
+    }
+}